@@ -1,12 +1,15 @@
 package com.isaacsheff.charlotte.collections;
 
 import com.isaacsheff.charlotte.collections.ConcurrentHolder;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A map with a blockingGet function.
  * This is based on ConcurrentHashMap, so it inherits all that stuff.
  * Calling blockingGet is a lot like get, except it waits for a value to exist, if there isn't one yet.
+ * Calling futureGet is like blockingGet, except it returns a future right away, rather than waiting.
  * @author Isaac Sheff
  */
 public class BlockingConcurrentHashMap<K,V> extends ConcurrentHashMap<K,V> implements BlockingMap<K,V> {
@@ -20,10 +23,18 @@ public class BlockingConcurrentHashMap<K,V> extends ConcurrentHashMap<K,V> imple
    */
   private final ConcurrentHashMap<K,ConcurrentHolder<V>> pendingHolders;
 
+  /**
+   * All the pending futures are kept here.
+   * When a future is requested for something that's not already in the map, it waits in here.
+   * Futures remove themselves once they're completed (or cancelled).
+   */
+  private final ConcurrentHashMap<K,Set<CompletableFuture<V>>> pendingFutures;
+
   /** Create an empty BlockingConcurrentHashMap. */
   public BlockingConcurrentHashMap() {
     super();
     pendingHolders = new ConcurrentHashMap<K,ConcurrentHolder<V>>();
+    pendingFutures = new ConcurrentHashMap<K,Set<CompletableFuture<V>>>();
   }
 
 
@@ -51,6 +62,47 @@ public class BlockingConcurrentHashMap<K,V> extends ConcurrentHashMap<K,V> imple
     return oldHolder.get();
   }
 
+  /** @return how many futures (from futureGet) are still waiting for values to arrive */
+  public int getPendingFutureCount() {
+    int count = 0;
+    for (Set<CompletableFuture<V>> futures : pendingFutures.values()) {
+      count += futures.size();
+    }
+    return count;
+  }
+
+  /**
+   * Get a future for the value associated with the key, which will be filled in when one arrives.
+   * NON-BLOCKING.
+   * Each call gets its own future, so cancelling one does not affect anyone else waiting on the same key.
+   * @param key the key for which you want an associated value
+   * @return a future for the associated value
+   */
+  @Override
+  public CompletableFuture<V> futureGet(K key) {
+    final V value = get(key);
+    if (value != null) {
+      return CompletableFuture.completedFuture(value);
+    }
+    final CompletableFuture<V> future = new CompletableFuture<V>();
+    pendingFutures.compute(key, (k, futures) -> {
+      final Set<CompletableFuture<V>> set = (futures == null) ? ConcurrentHashMap.newKeySet() : futures;
+      set.add(future);
+      return set;
+    });
+    // once it's done (or cancelled), the future no longer needs to be kept around
+    future.whenComplete((v, t) -> pendingFutures.computeIfPresent(key, (k, futures) -> {
+      futures.remove(future);
+      return futures.isEmpty() ? null : futures;
+    }));
+    // the value might have arrived while we were putting the future in pendingFutures
+    final V arrived = get(key);
+    if (arrived != null) {
+      future.complete(arrived);
+    }
+    return future;
+  }
+
   /**
    * Put a value in the map.
    * Overwrites previous values.
@@ -110,13 +162,20 @@ public class BlockingConcurrentHashMap<K,V> extends ConcurrentHashMap<K,V> imple
   }
 
   /**
-   * If there are threads waiting to get this value, give it to them.
+   * If there are threads (or futures) waiting to get this value, give it to them.
    * Removes the holder from the set of pending holders, and passes the given value to all waiting threads.
+   * Completes all pending futures for this key with the given value.
    */
   private void fillHolder(K key, V value) {
     final ConcurrentHolder<V> holder = pendingHolders.remove(key);
     if (holder != null) {
       holder.put(value);
     }
+    final Set<CompletableFuture<V>> futures = pendingFutures.remove(key);
+    if (futures != null) {
+      for (CompletableFuture<V> future : futures) {
+        future.complete(value);
+      }
+    }
   }
 }
@@ -1,9 +1,11 @@
 package com.isaacsheff.charlotte.collections;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * A Map featuring a blockingGet method, which returns when the Map has a value associated with the given key.
+ * It also features futureGet, which does not block, but returns a future filled in when there is such a value.
  * @author Isaac Sheff
  */
 public interface BlockingMap<K,V> extends ConcurrentMap<K,V> {
@@ -16,4 +18,16 @@ public interface BlockingMap<K,V> extends ConcurrentMap<K,V> {
    * @see     get
    */
   public V blockingGet(K key);
+
+  /**
+   * Returns a future for the value associated with the given key.
+   * If no such value exists yet, the future will be completed when there is one.
+   * Cancelling (or otherwise completing) the future releases anything the map was holding for it.
+   * NON-BLOCKING.
+   *
+   * @param key The key associated with the desired value
+   * @return    A future for the value associated with that key
+   * @see     blockingGet
+   */
+  public CompletableFuture<V> futureGet(K key);
 }
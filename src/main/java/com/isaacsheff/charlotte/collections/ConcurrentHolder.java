@@ -30,6 +30,14 @@ public class ConcurrentHolder<T> {
     return v;
   }
 
+  /**
+   * Read the value without waiting for it.
+   * @return the value, or null if none has been put yet
+   */
+  public synchronized T getNow() {
+    return this.value;
+  }
+
   /**
    * Write a value and awaken any processes waiting to read it.
    * @param value the value which everyone should read.
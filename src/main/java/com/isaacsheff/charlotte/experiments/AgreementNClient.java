@@ -28,7 +28,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -37,8 +41,12 @@ import java.util.logging.Logger;
 /**
  * For running an experiment with Agreement Fern servers that demand N
  *  attestations before committing a block.
- * This will append blocks to the chain, waiting to broadcast and
- *  request attestations for each until the previous is committed.
+ * This will append blocks to the chain, waiting to request attestations for each until the previous is committed.
+ * Preparing a slot (sending out its block, and whatever else it needs before its request: see prepareBlock) is
+ *  pipelined: up to JsonExperimentConfig.pipelineWindow slots are prepared at once, ahead of the slot being
+ *  agreed on, so that when a slot commits, the request for the next needs only its parent reference filled in.
+ * The requests themselves still go out one slot at a time, in order, since a Fern won't attest to a slot until
+ *  its parent has enough attestations.
  * This experiment uses the JsonExperimentConfig.blockSize parameter to determind block payload size.
  * @author Isaac Sheff
  */
@@ -76,6 +84,21 @@ public class AgreementNClient {
   /** The current slot number we've just tried to append to the chain (MUTABLE) **/
   private int currentSlot;
 
+  /** The number of slots prepared at once, ahead of the slot being agreed on **/
+  private final int window;
+
+  /** For each slot being prepared (or prepared, but not yet requested), a reference to its block **/
+  private final ConcurrentMap<Integer, CompletableFuture<Reference>> prepared;
+
+  /** Runs the preparation of slots (up to window at once) **/
+  private final ExecutorService preparers;
+
+  /** Builds and enqueues the requests for each slot, one at a time, in order **/
+  private final ExecutorService requester;
+
+  /** When we began slot 0 (System.nanoTime()) **/
+  private volatile long startTime;
+
   
   /** Fills in the blocks array with boring, but distinct, blocks */
   protected void fillBlocks() {
@@ -103,6 +126,11 @@ public class AgreementNClient {
     rootHash = sha3Hash(blocks[0]);
     threshold = (2 * config.getFernServers().size()) / 3;
     currentSlot = 0;
+    window = config.getPipelineWindow();
+    prepared = new ConcurrentHashMap<Integer, CompletableFuture<Reference>>();
+    preparers = Executors.newFixedThreadPool(window);
+    requester = Executors.newSingleThreadExecutor();
+    startTime = System.nanoTime();
     knownAttestations = new ConcurrentHashMap<CryptoId, Hash>(config.getFernServers().size());
     requestQueues = new ConcurrentHashMap<CryptoId, BlockingQueue<RequestIntegrityAttestationInput>>();
 
@@ -149,9 +177,13 @@ public class AgreementNClient {
   /** @return The hash of the root block (literally sha3Hash(blocks[0])) **/
   public Hash getRootHash() {return rootHash;}
 
+  /** @return The number of slots prepared at once, ahead of the slot being agreed on **/
+  public int getWindow() {return window;}
+
   /** 
    * Send a request to all the clients (and so to all the fern servers).
-   * This will broadcast the block from blocks[slot], and then enqueue requests built for each fern.
+   * This starts preparing blocks[slot] (and the window of slots after it, if they aren't already), and once
+   *  it's prepared, enqueues requests built for each fern (in slot order). This doesn't wait for any of that.
    * @param parentBuilder represents the reference to the parent block
    * @param slot the slot number of this new block
    */
@@ -160,15 +192,72 @@ public class AgreementNClient {
       done(); // we've finished all the blocks, and we're done.
       return; // unreachable, I'm pretty sure
     }
+    if (slot == 0) {
+      startTime = System.nanoTime();
+    }
     logger.info("Beginning slot " + slot);
+    for (int ahead = slot; ahead < Math.min(slot + getWindow(), getTotalBlocks()); ++ahead) {
+      prepare(ahead);
+    }
+    prepare(slot).thenAcceptAsync(block -> {
+      prepared.remove(slot);
+      enqueueRequests(prepareParent(parentBuilder), block, slot);
+    }, requester).exceptionally(e -> {
+      logger.log(Level.SEVERE, "Could not send requests for slot " + slot, e);
+      return null;
+    });
+  }
+
+  /**
+   * Start preparing this slot, if it isn't already.
+   * @param slot the slot number
+   * @return a future reference to the slot's block, once it's prepared
+   */
+  private CompletableFuture<Reference> prepare(final int slot) {
+    return prepared.computeIfAbsent(slot, s -> CompletableFuture.supplyAsync(() -> prepareBlock(s), preparers));
+  }
+
+  /**
+   * Prepare this slot's block for its request: here, that means sending out the block the attestations reference.
+   * This runs ahead of time (on one of window threads), so it can wait for whatever it needs.
+   * @param slot the slot number
+   * @return the reference to the block, to put in the request
+   */
+  protected Reference prepareBlock(final int slot) {
     getService().onSendBlocksInput(getBlocks()[slot]); // send out the block the attestations reference
+    return Reference.newBuilder().setHash(sha3Hash(getBlocks()[slot])).build();
+  }
+
+  /**
+   * Prepare the parent reference for a request, once the parent is committed.
+   * Here, it's used as is.
+   * This runs on the thread enqueueing requests in order, just before the request is built.
+   * @param parentBuilder represents the reference to the parent block
+   * @return the reference to the parent block, to put in the request
+   */
+  protected Reference.Builder prepareParent(final Reference.Builder parentBuilder) {
+    return parentBuilder;
+  }
+
+  /** @return the reference to the root block, to put in each request */
+  protected Reference.Builder rootReference() {
+    return Reference.newBuilder().setHash(getRootHash());
+  }
+
+  /**
+   * Enqueue a request for this block in this slot for each fern.
+   * @param parentBuilder represents the reference to the parent block
+   * @param block the reference to the block in this slot
+   * @param slot the slot number
+   */
+  private void enqueueRequests(final Reference.Builder parentBuilder, final Reference block, final int slot) {
     RequestIntegrityAttestationInput.Builder builder = RequestIntegrityAttestationInput.newBuilder().setPolicy(
             IntegrityPolicy.newBuilder().setFillInTheBlank(
               IntegrityAttestation.newBuilder().setSignedChainSlot(
                 SignedChainSlot.newBuilder().setChainSlot(
                   ChainSlot.newBuilder().
-                    setBlock(Reference.newBuilder().setHash(sha3Hash(getBlocks()[slot]))).
-                    setRoot(Reference.newBuilder().setHash(getRootHash())).
+                    setBlock(block).
+                    setRoot(rootReference()).
                     setSlot(slot).
                     setParent(parentBuilder)
                 )
@@ -187,8 +276,14 @@ public class AgreementNClient {
     }
   }
 
-  /** To be called when the experiment is complete. **/
+  /**
+   * To be called when the experiment is complete.
+   * Logs (INFO) the throughput, as a JSON with the pipeline window, blocks, seconds, and blocks per second.
+   */
   public void done() {
+    final double seconds = (System.nanoTime() - startTime) / 1e9;
+    logger.info("{ \"window\":" + getWindow() + ", \"blocks\":" + getTotalBlocks() + ", \"seconds\":" + seconds +
+                ", \"blocksPerSecond\":" + (getTotalBlocks() / seconds) + " }");
     synchronized(doneLock) {
       doneLock.notifyAll();
     }
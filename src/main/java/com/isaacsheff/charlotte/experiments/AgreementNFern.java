@@ -17,6 +17,7 @@ import com.google.protobuf.util.JsonFormat;
 import com.isaacsheff.charlotte.fern.AgreementChainFernService;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.MerkleBatchSigner;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.CryptoId;
 import com.isaacsheff.charlotte.proto.Hash;
@@ -92,7 +93,9 @@ public class AgreementNFern extends AgreementChainFernService {
         @Override
         public boolean storeNewBlock(final Block block) {
           final Hash hash = sha3Hash(block);
+          indexBlock(hash, block);
           if (getBlockMap().putIfAbsent(hash, block) == null) {
+            newBlockStored(hash, block);
             try {
               logger.info("{ \"NewBlockHash\":"+JsonFormat.printer().print(hash)+"}");
             } catch (InvalidProtocolBufferException e) {
@@ -131,6 +134,11 @@ public class AgreementNFern extends AgreementChainFernService {
     for (String fern : this.config.getFernServers()) {
       ferns.add(service.getConfig().getContact(fern).getCryptoId());
     }
+    if (this.config.getSignBatchMicroseconds() > 0) {
+      setBatchSigner(new MerkleBatchSigner(service.getConfig().getKeyPair(),
+                                           this.config.getSignBatchMicroseconds(),
+                                           MerkleBatchSigner.DEFAULT_MAX_BATCH_SIZE));
+    }
 
   }
 
@@ -191,4 +199,17 @@ public class AgreementNFern extends AgreementChainFernService {
     }
     return "did not reference enough Ferns' Integrity Attestations for Parent: " + policy;
   }
+
+  /**
+   * Is this policy, for a ChainSlot after the first in a segment, one which this server could ever accept?
+   * The same rules apply as to any other ChainSlot (validPolicy): enough Ferns must have attested to its parent.
+   * Since its parent is the ChainSlot before it in the segment, they usually won't have yet, so in practice
+   *  this only attests to segments of one ChainSlot.
+   * @param policy a SignedChainSlot policy for one ChainSlot of a segment (not the first)
+   * @return an error string if it's unacceptable, null if it's acceptable
+   */
+  @Override
+  protected String validLaterSegmentSlot(final IntegrityPolicy policy) {
+    return validPolicy(policy);
+  }
 }
@@ -27,14 +27,9 @@ import com.isaacsheff.charlotte.proto.AvailabilityPolicy;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.CryptoId;
 import com.isaacsheff.charlotte.proto.Hash;
-import com.isaacsheff.charlotte.proto.IntegrityAttestation;
-import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
-import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSlot;
-import com.isaacsheff.charlotte.proto.IntegrityPolicy;
 import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationInput;
 import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationResponse;
-import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationInput;
 import com.isaacsheff.charlotte.proto.Signature;
 import com.isaacsheff.charlotte.wilbur.WilburClient;
 import com.isaacsheff.charlotte.yaml.Contact;
@@ -100,19 +95,16 @@ public class AgreementNWClient extends AgreementNClient {
   }
 
 
-  /** 
-   * Send a request to all the server clients (and so to all the wilbur servers, and then the fern servers).
-   * This will broadcast the block from blocks[slot], and then enqueue requests built for each fern.
-   * @param parentBuilder represents the reference to the parent block
-   * @param slot the slot number of this new block
+  /**
+   * Prepare this slot's block for its request: send it to the Wilbur servers, and wait until it (and the root)
+   *  are sufficiently available.
+   * This runs ahead of time (see AgreementNClient), so the Wilbur round trips for upcoming slots overlap with
+   *  agreement on the current one.
+   * @param slot the slot number
+   * @return the reference to the block (with its availability attestations), to put in the request
    */
   @Override
-  public void broadcastRequest(final Reference.Builder parentBuilder, final int slot) {
-    logger.info("Beginning slot " + slot);
-    if (slot >= getTotalBlocks()) {
-      done(); // we've finished all the blocks, and we're done.
-      return; // unreachable, I'm pretty sure
-    }
+  protected Reference prepareBlock(final int slot) {
     if (slot < 0) {
       // For reasons unknown ( https://github.com/isheff/charlotte-java/issues/5 ),
       // Wilbur servers have to flood the root block.
@@ -127,6 +119,20 @@ public class AgreementNWClient extends AgreementNClient {
     final Set<Hash> hashesToBeMadeAvailable = newKeySet();
     hashesToBeMadeAvailable.add(blockHash);
     hashesToBeMadeAvailable.add(getRootHash());
+    makeAvailable(hashesToBeMadeAvailable);
+    return Reference.newBuilder().setHash(blockHash).addAllAvailabilityAttestations(pendingRefs.get(blockHash)).
+             build();
+  }
+
+  /**
+   * Prepare the parent reference for a request, once the parent is committed: wait until the parent's Fern
+   *  attestations are sufficiently available, and reference their availability attestations.
+   * @param parentBuilder represents the reference to the parent block
+   * @return the reference to the parent block, to put in the request
+   */
+  @Override
+  protected Reference.Builder prepareParent(final Reference.Builder parentBuilder) {
+    final Set<Hash> hashesToBeMadeAvailable = newKeySet();
     for (Reference r : parentBuilder.getIntegrityAttestationsList()) {
       hashesToBeMadeAvailable.add(r.getHash());
     }
@@ -134,36 +140,14 @@ public class AgreementNWClient extends AgreementNClient {
     for (Reference.Builder r : parentBuilder.getIntegrityAttestationsBuilderList()) {
       r.addAllAvailabilityAttestations(pendingRefs.get(r.getHash()));
     }
-    final Reference.Builder blockReference =
-      Reference.newBuilder().setHash(blockHash).addAllAvailabilityAttestations(pendingRefs.get(blockHash));
-    final Reference.Builder rootReference = Reference.newBuilder().setHash(getRootHash()).
-                                              addAllAvailabilityAttestations(pendingRefs.get(getRootHash()));
-    RequestIntegrityAttestationInput.Builder builder = RequestIntegrityAttestationInput.newBuilder().setPolicy(
-            IntegrityPolicy.newBuilder().setFillInTheBlank(
-              IntegrityAttestation.newBuilder().setSignedChainSlot(
-                SignedChainSlot.newBuilder().setChainSlot(
-                  ChainSlot.newBuilder().
-                    setBlock(blockReference).
-                    setRoot(rootReference).
-                    setSlot(slot).
-                    setParent(parentBuilder)
-                )
-              )
-            )
-          );
-    // for each fern, the request specifies a CryptoId
-    for (Entry<CryptoId, BlockingQueue<RequestIntegrityAttestationInput>> entry : getRequestQueues().entrySet()){
-      builder.getPolicyBuilder().getFillInTheBlankBuilder().getSignedChainSlotBuilder().getSignatureBuilder().
-              setCryptoId(entry.getKey());
-      try {
-        entry.getValue().put(builder.build());
-      } catch (InterruptedException e) {
-        logger.log(Level.SEVERE, "interrupted while enqueuing to send to fern", e);
-      }
-    }
+    return parentBuilder;
   }
 
-
+  /** @return the reference to the root block (with its availability attestations), to put in each request */
+  @Override
+  protected Reference.Builder rootReference() {
+    return Reference.newBuilder().setHash(getRootHash()).addAllAvailabilityAttestations(pendingRefs.get(getRootHash()));
+  }
 
   /**
    * Make the blocks with hashes given sufficiently available. 
@@ -1,6 +1,5 @@
 package com.isaacsheff.charlotte.experiments;
 
-import static com.isaacsheff.charlotte.node.SignatureUtil.checkSignature;
 import static java.lang.Integer.parseInt;
 
 import java.io.IOException;
@@ -10,11 +9,23 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.ReferenceIndex;
+import com.isaacsheff.charlotte.node.SignatureVerificationService;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.ErasureCodedFragment;
 import com.isaacsheff.charlotte.proto.Hash;
 import com.isaacsheff.charlotte.proto.IntegrityPolicy;
 import com.isaacsheff.charlotte.proto.Reference;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,6 +57,13 @@ public class AgreementNWFern extends AgreementNFern {
 
   /**
    * Does this reference have enough valid availability attestations?.
+   * Each full copy attested by a known Wilbur server counts once.
+   * Fragments (as made by ErasureCodedStore) count too: if f distinct known Wilbur servers each attest to a
+   *  distinct fragment of this block, any k of which reconstruct it, then it survives the loss of any f-k of those
+   *  servers, so they count as f-(k-1) copies.
+   * One server attesting to many fragments is still one server: losing it loses all of them.
+   * We can only tell what a fragment is a fragment of if we've received the fragment block itself, so fragments
+   *  not sent to this server do not count.
    * @param config the raw experimental configuration
    * @param service the local CharlotteNodeService used for sending blocks and such.
    * @param threshold how many Wilbur servers do you need to be sufficiently available? (> threshold)
@@ -55,36 +73,160 @@ public class AgreementNWFern extends AgreementNFern {
                                                final CharlotteNodeService service,
                                                final int threshold,
                                                final Reference reference)  {
-    int count = 0;
+    // first, find every attestation which would count, if its signature is correct,
+    //  and start checking all those signatures in parallel.
+    final List<Integer> counts = new ArrayList<Integer>();
+    final List<CompletableFuture<Boolean>> verifications = new ArrayList<CompletableFuture<Boolean>>();
+    final List<ErasureCodedFragment> fragments = new ArrayList<ErasureCodedFragment>();
+    final List<CryptoId> fragmentSigners = new ArrayList<CryptoId>();
+    final List<CompletableFuture<Boolean>> fragmentVerifications = new ArrayList<CompletableFuture<Boolean>>();
     for (Hash hash : reference.getAvailabilityAttestationsList()) {
-      Block availabilityAttestation = service.getBlockMap().get(hash);
-      if (availabilityAttestation != null) {
-        if (availabilityAttestation.hasAvailabilityAttestation()
-            && availabilityAttestation.getAvailabilityAttestation().hasSignedStoreForever()
-            && availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().hasSignature()
-            && availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().hasStoreForever()
-            && checkSignature(
-                availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().getStoreForever(),
-                availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().getSignature())) {
+      // if it's an attestation to a fragment of this reference
+      final ErasureCodedFragment fragment = attestedFragment(config, service, reference.getHash(), hash);
+      if (fragment != null) {
+        final SignedStoreForever signed = service.getBlockMap().get(hash).getAvailabilityAttestation().
+                                            getSignedStoreForever();
+        fragments.add(fragment);
+        fragmentSigners.add(signed.getSignature().getCryptoId());
+        fragmentVerifications.add(SignatureVerificationService.getDefault().verify(signed.getStoreForever(),
+                                                                                   signed.getSignature()));
+      }
+      // if it actually references this reference (looked up in the index, rather than scanning its StoreForever)
+      if (service.getReferenceIndex().references(hash, reference.getHash(), ReferenceIndex.Kind.STORE_FOREVER)) {
+        final Block availabilityAttestation = service.getBlockMap().get(hash);
+        if (availabilityAttestation != null // it's indexed just before it's put in the block map
+            && availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().hasSignature()) {
+          int count = 0;
           // if a known Wilbur server signed it
           for (String wilburName : config.getWilburServers()) {
             if (availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().getSignature().
                   getCryptoId().equals(service.getConfig().getContact(wilburName).getCryptoId())) {
-              // if it actually references this reference
-              for (Reference r : availabilityAttestation.getAvailabilityAttestation().
-                                 getSignedStoreForever().getStoreForever().getBlockList()) {
-                if (reference.getHash().equals(r.getHash())) {
-                  ++count;
-                }
-              }
+              ++count;
             }
           }
+          if (count > 0) {
+            counts.add(count);
+            verifications.add(SignatureVerificationService.getDefault().verify(
+                availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().getStoreForever(),
+                availabilityAttestation.getAvailabilityAttestation().getSignedStoreForever().getSignature()));
+          }
         }
       }
     }
+    // then tally up the ones whose signatures were correct.
+    int count = 0;
+    for (int i = 0; i < verifications.size(); ++i) {
+      try {
+        if (verifications.get(i).join()) {
+          count += counts.get(i);
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Exception while verifying an availability attestation signature", e);
+      }
+    }
+    // then the fragments: all from the same encoding, whose signatures were correct, as many as we can pair
+    //  distinct signers with distinct indices
+    final Map<CryptoId, Set<Integer>> indices = new HashMap<CryptoId, Set<Integer>>();
+    ErasureCodedFragment first = null;
+    for (int i = 0; i < fragmentVerifications.size(); ++i) {
+      try {
+        if ((first == null || (first.getK() == fragments.get(i).getK() && first.getN() == fragments.get(i).getN()))
+            && fragmentVerifications.get(i).join()) {
+          first = (first == null) ? fragments.get(i) : first;
+          indices.computeIfAbsent(fragmentSigners.get(i), signer -> new HashSet<Integer>()).
+            add(fragments.get(i).getIndex());
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Exception while verifying an availability attestation signature", e);
+      }
+    }
+    final int distinct = distinctSignersAndIndices(indices);
+    if (first != null && distinct >= first.getK()) {
+      count += distinct - (first.getK() - 1);
+    }
     return (count > threshold);
   }
 
+  /**
+   * How many signers can we pair up with fragment indices they attested to, using each signer and each index at
+   *  most once?
+   * This is a maximum bipartite matching, found one augmenting path at a time (there are at most as many signers
+   *  as known Wilbur servers, so this is quick).
+   * @param indices the fragment indices each signer attested to
+   * @return the most such pairs
+   */
+  static int distinctSignersAndIndices(final Map<CryptoId, Set<Integer>> indices) {
+    final Map<Integer, CryptoId> pairedWith = new HashMap<Integer, CryptoId>();
+    int pairs = 0;
+    for (CryptoId signer : indices.keySet()) {
+      if (pair(signer, indices, pairedWith, new HashSet<Integer>())) {
+        ++pairs;
+      }
+    }
+    return pairs;
+  }
+
+  /**
+   * Try to pair this signer with one of its indices, re-pairing other signers if need be.
+   * @param signer the signer to pair
+   * @param indices the fragment indices each signer attested to
+   * @param pairedWith the signer each index is paired with so far (updated if this succeeds)
+   * @param tried the indices already tried while looking for this pairing
+   * @return whether the signer is now paired
+   */
+  private static boolean pair(final CryptoId signer,
+                              final Map<CryptoId, Set<Integer>> indices,
+                              final Map<Integer, CryptoId> pairedWith,
+                              final Set<Integer> tried) {
+    for (Integer index : indices.get(signer)) {
+      if (tried.add(index) &&
+          (!pairedWith.containsKey(index) || pair(pairedWith.get(index), indices, pairedWith, tried))) {
+        pairedWith.put(index, signer);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * If this is a block we've received, and it's an availability attestation signed by a known Wilbur server,
+   *  for a fragment (which we've also received) of the original block, return that fragment.
+   * @param config the raw experimental configuration
+   * @param service the local CharlotteNodeService used for sending blocks and such.
+   * @param original the hash of the block the fragment should be a fragment of
+   * @param attestationHash the hash of the availability attestation
+   * @return the fragment, or null if there is no such fragment.
+   */
+  private static ErasureCodedFragment attestedFragment(final JsonExperimentConfig config,
+                                                       final CharlotteNodeService service,
+                                                       final Hash original,
+                                                       final Hash attestationHash) {
+    final Block attestation = service.getBlockMap().get(attestationHash);
+    if (attestation == null || !attestation.getAvailabilityAttestation().getSignedStoreForever().hasSignature()) {
+      return null;
+    }
+    final SignedStoreForever signed = attestation.getAvailabilityAttestation().getSignedStoreForever();
+    boolean known = false;
+    for (String wilburName : config.getWilburServers()) {
+      known = known ||
+              signed.getSignature().getCryptoId().equals(service.getConfig().getContact(wilburName).getCryptoId());
+    }
+    if (!known) {
+      return null;
+    }
+    for (Reference stored : signed.getStoreForever().getBlockList()) {
+      final Block block = service.getBlockMap().get(stored.getHash());
+      if (block != null && block.hasErasureCodedFragment()) {
+        final ErasureCodedFragment fragment = block.getErasureCodedFragment();
+        if (fragment.getOriginal().equals(original) && fragment.getK() > 0 &&
+            fragment.getIndex() >= 0 && fragment.getIndex() < fragment.getN()) {
+          return fragment;
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Is this policy, alone, one which this server could ever accept?.
    * check that this ChainSlot actually has a block hash in it.
@@ -16,6 +16,8 @@ import java.util.Map;
  */
 @JsonIgnoreProperties(ignoreUnknown = true) // if there are random other fields at the top level of config, just ignore them
 public class JsonExperimentConfig extends JsonConfig {
+  /** the number of slots a chain client prepares at once, if the config doesn't say **/
+  public static final int DEFAULT_PIPELINE_WINDOW = 1;
 
   /** the set of fern servers this client should talk to */
   @JsonProperty("fernservers") 
@@ -37,6 +39,14 @@ public class JsonExperimentConfig extends JsonConfig {
   @JsonProperty("blocksize")
   private final int blocksize;
 
+  /** the number of slots a chain client prepares at once (sending blocks, and making them available) **/
+  @JsonProperty("pipelinewindow")
+  private final int pipelineWindow;
+
+  /** how long (microseconds) a Fern server waits to sign attestations together in a Merkle batch (0: no batches) **/
+  @JsonProperty("signbatchmicroseconds")
+  private final long signBatchMicroseconds;
+
   /** @return the set of fern servers this client should talk to */
   public List<String> getFernServers() {return fernServers;}
 
@@ -52,6 +62,12 @@ public class JsonExperimentConfig extends JsonConfig {
   /** @return the  size of blocks used in some experiments **/
   public int getBlocksize() {return blocksize;}
 
+  /** @return the number of slots a chain client prepares at once (sending blocks, and making them available) **/
+  public int getPipelineWindow() {return pipelineWindow;}
+
+  /** @return how long (microseconds) a Fern server waits to sign attestations together in a Merkle batch (0: none) **/
+  public long getSignBatchMicroseconds() {return signBatchMicroseconds;}
+
   /**
    * This constructor is meant to be used by Jackson when it's parsing a config file.
    * @param fernServers the set of fern servers this client should talk to 
@@ -62,6 +78,8 @@ public class JsonExperimentConfig extends JsonConfig {
    * @param me which of the named contacts is this server
    * @param contacts a map fo names and contact info of other servers in the system
    * @param blockSize the  size of blocks used in some experiments 
+   * @param pipelineWindow the number of slots a chain client prepares at once (DEFAULT_PIPELINE_WINDOW if null)
+   * @param signBatchMicroseconds how long a Fern server waits to sign attestations together (0, no batches, if null)
    */
   @JsonCreator
   public JsonExperimentConfig(
@@ -72,7 +90,9 @@ public class JsonExperimentConfig extends JsonConfig {
       @JsonProperty("privatekey") String privatekey,
       @JsonProperty("me") String me,
       @JsonProperty("contacts") Map<String, JsonContact> contacts,
-      @JsonProperty("blocksize") int blocksize
+      @JsonProperty("blocksize") int blocksize,
+      @JsonProperty("pipelinewindow") Integer pipelineWindow,
+      @JsonProperty("signbatchmicroseconds") Long signBatchMicroseconds
       ) {
     super(privatekey, me, contacts);
     this.fernServers = fernServers;
@@ -80,6 +100,33 @@ public class JsonExperimentConfig extends JsonConfig {
     this.wilburServers = wilburServers;
     this.wilburThreshold = wilburThreshold;
     this.blocksize = blocksize;
+    this.pipelineWindow = (pipelineWindow == null || pipelineWindow < 1) ? DEFAULT_PIPELINE_WINDOW : pipelineWindow;
+    this.signBatchMicroseconds = (signBatchMicroseconds == null) ? 0 : signBatchMicroseconds;
+  }
+
+  /**
+   * Make a config with the DEFAULT_PIPELINE_WINDOW, and no Merkle batch signing.
+   * @param fernServers the set of fern servers this client should talk to 
+   * @param wilburServers the set of wilbur servers this client might talk to 
+   * @param blocksPerExperiment  the number of blocks to append to the chain in the experiment 
+   * @param wilburThreshold  the number of Wilbur attestations it takes to be considered available
+   * @param privatekey the filename of the private key (PEM file) relative to the config file
+   * @param me which of the named contacts is this server
+   * @param contacts a map fo names and contact info of other servers in the system
+   * @param blockSize the  size of blocks used in some experiments 
+   */
+  public JsonExperimentConfig(
+      List<String> fernServers,
+      List<String> wilburServers,
+      int blocksPerExperiment,
+      int wilburThreshold,
+      String privatekey,
+      String me,
+      Map<String, JsonContact> contacts,
+      int blocksize
+      ) {
+    this(fernServers, wilburServers, blocksPerExperiment, wilburThreshold, privatekey, me, contacts, blocksize,
+         null, null);
   }
 }
 
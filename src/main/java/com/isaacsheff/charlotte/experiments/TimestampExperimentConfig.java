@@ -21,8 +21,23 @@ public class TimestampExperimentConfig extends JsonExperimentConfig {
   @JsonProperty("timestampreferencesperattestation")
   private final int timestampReferencesPerAttestation;
 
+  /** how long (microseconds) each Fern server waits for more requests to share a timestamp (0 for no sharing) **/
+  @JsonProperty("timestampgroupmicroseconds")
+  private final long timestampGroupMicroseconds;
+
   /** @return the number of blocks to append to the chain in the experiment **/
   public int getTimestampReferencesPerAttestation() {return timestampReferencesPerAttestation;}
+
+  /** the longest (milliseconds) a block waits for a timestamp, even in a partial batch (0 for no lingering) **/
+  @JsonProperty("timestamplingermilliseconds")
+  private final long timestampLingerMilliseconds;
+
+  /** @return how long (microseconds) each Fern server waits for more requests to share a timestamp (0: no sharing) **/
+  public long getTimestampGroupMicroseconds() {return timestampGroupMicroseconds;}
+
+  /** @return the longest (milliseconds) a block waits for a timestamp, even in a partial batch (0: no lingering) **/
+  public long getTimestampLingerMilliseconds() {return timestampLingerMilliseconds;}
+
   /**
    * This constructor is meant to be used by Jackson when it's parsing a config file.
    * @param timestampReferencesPerAttestation the number of blocks to receive before you should issue a timestamp 
@@ -30,6 +45,9 @@ public class TimestampExperimentConfig extends JsonExperimentConfig {
    * @param privatekey the filename of the private key (PEM file) relative to the config file
    * @param me which of the named contacts is this server
    * @param contacts a map fo names and contact info of other servers in the system
+   * @param timestampGroupMicroseconds how long each Fern server waits for requests to share a timestamp (0 if null)
+   * @param timestampLingerMilliseconds the longest a block waits for a timestamp (0 if null)
+   * @param signBatchMicroseconds how long a Fern server waits to sign timestamps together (0, no batches, if null)
    */
   @JsonCreator
   public TimestampExperimentConfig (
@@ -41,10 +59,16 @@ public class TimestampExperimentConfig extends JsonExperimentConfig {
       @JsonProperty("privatekey") String privatekey,
       @JsonProperty("me") String me,
       @JsonProperty("contacts") Map<String, JsonContact> contacts,
-      @JsonProperty("blocksize") int blocksize
+      @JsonProperty("blocksize") int blocksize,
+      @JsonProperty("timestampgroupmicroseconds") Long timestampGroupMicroseconds,
+      @JsonProperty("timestamplingermilliseconds") Long timestampLingerMilliseconds,
+      @JsonProperty("signbatchmicroseconds") Long signBatchMicroseconds
       ) {
-    super(fernServers, wilburServers, blocksPerExperiment, wilburThreshold, privatekey, me, contacts, blocksize);
+    super(fernServers, wilburServers, blocksPerExperiment, wilburThreshold, privatekey, me, contacts, blocksize,
+          null, signBatchMicroseconds);
     this.timestampReferencesPerAttestation = timestampReferencesPerAttestation;
+    this.timestampGroupMicroseconds = (timestampGroupMicroseconds == null) ? 0 : timestampGroupMicroseconds;
+    this.timestampLingerMilliseconds = (timestampLingerMilliseconds == null) ? 0 : timestampLingerMilliseconds;
   }
 }
 
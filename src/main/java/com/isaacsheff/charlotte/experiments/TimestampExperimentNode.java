@@ -12,6 +12,7 @@ import java.util.logging.Logger;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.isaacsheff.charlotte.fern.TimestampFern;
+import com.isaacsheff.charlotte.node.MerkleBatchSigner;
 import com.isaacsheff.charlotte.node.TimestampNode;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.yaml.Config;
@@ -51,10 +52,11 @@ public class TimestampExperimentNode extends TimestampNode {
   @Override
   public void broadcastBlock(final Block block) {
     if (block.hasIntegrityAttestation()) {
-      // If this block is a signed timestamp deal with MULTIPLE REFERENCES, broadcast it.
+      // If this block is a signed timestamp deal with MULTIPLE REFERENCES (or a Merkle root of them), broadcast it.
       if (block.getIntegrityAttestation().hasSignedTimestampedReferences()
        && block.getIntegrityAttestation().getSignedTimestampedReferences().hasTimestampedReferences()
-       && block.getIntegrityAttestation().getSignedTimestampedReferences().getTimestampedReferences().getBlockCount()>1){
+       && (block.getIntegrityAttestation().getSignedTimestampedReferences().getTimestampedReferences().getBlockCount()>1
+        || block.getIntegrityAttestation().getSignedTimestampedReferences().getTimestampedReferences().hasMerkleRoot())){
       super.broadcastBlock(block);
       } else {
         // send it to people who are not Fern or Wilbur servers
@@ -83,6 +85,13 @@ public class TimestampExperimentNode extends TimestampNode {
                                                       fern,
                                                       new Config(config, Paths.get(filename).getParent()));
     fern.setNode(nodeService);
+    nodeService.setLingerMilliseconds(config.getTimestampLingerMilliseconds());
+    if (config.getSignBatchMicroseconds() > 0) {
+      fern.setBatchSigner(new MerkleBatchSigner(nodeService.getConfig().getKeyPair(),
+                                                config.getSignBatchMicroseconds(),
+                                                MerkleBatchSigner.DEFAULT_MAX_BATCH_SIZE));
+    }
+    fern.setGroupWindowMicroseconds(config.getTimestampGroupMicroseconds());
     
     final Thread thread = new Thread(getFernNode(fern));
     thread.start();
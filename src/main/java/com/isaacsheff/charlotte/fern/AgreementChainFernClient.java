@@ -4,6 +4,7 @@ import static java.util.concurrent.ConcurrentHashMap.newKeySet;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -34,6 +35,9 @@ import io.grpc.stub.StreamObserver;
 /**
  * A client designed to be used with AgreementChainFernService to make blockchains using Agreement.
  * Realistically, chain-makers should use the braodcastWhenReady method to submit requests.
+ * A request for slot n to a server is held in a pending table, keyed by the request for its parent (slot n-1) to
+ *  the same server, until that server's attestation for the parent arrives: then it's sent from the thread
+ *  handling that response. So there are no threads waiting around for parents, however many slots are in flight.
  * @author Isaac Sheff
  */
 public class AgreementChainFernClient {
@@ -55,6 +59,9 @@ public class AgreementChainFernClient {
   /** The known response to each request, in a concurrent holder, so you can ask for it, and wait for it */
   private final ConcurrentMap<RequestIntegrityAttestationInput, ConcurrentHolder<Hash>> knownResponses; 
 
+  /** Requests waiting for their parent's attestation, by the (stripped) request for their parent */
+  private final ConcurrentMap<RequestIntegrityAttestationInput, List<PendingRequest>> pending;
+
   /**
    * Make a new AgreementChainFernClient.
    * This will try and make clients to talk to Fern Services on EACH of the participants.
@@ -66,6 +73,7 @@ public class AgreementChainFernClient {
     this.node = node;
     knownIntegrityAttestations = new ConcurrentHashMap<Hash, Set<Hash>>();
     knownResponses = new ConcurrentHashMap<RequestIntegrityAttestationInput, ConcurrentHolder<Hash>>();
+    pending = new ConcurrentHashMap<RequestIntegrityAttestationInput, List<PendingRequest>>();
     handles = new ConcurrentHashMap<CryptoId, AgreementChainClientPerServer>(
                    getNode().getConfig().getContacts().size());
     handleThreads = new ArrayList<Thread>(getNode().getConfig().getContacts().size());
@@ -91,6 +99,9 @@ public class AgreementChainFernClient {
   public ConcurrentMap<RequestIntegrityAttestationInput, ConcurrentHolder<Hash>> getKnownResponses()
     {return knownResponses;} 
 
+  /** @return the number of parent requests which have requests waiting for their attestations */
+  public int getPendingCount() {return pending.size();}
+
   /**
    * Shut down this client (and therefore all the sub-clients for each server).
    * This will close all the channels, which may cause warnings to pop up.
@@ -176,6 +187,9 @@ public class AgreementChainFernClient {
    * It's useless to send a request for slot n unless it references an integrity attestation for
    *  the same cryptoId for slot n-1.
    * The exception is of course for slot 0 (root).
+   * If the parent attestation is already known, this sends right away.
+   * Otherwise, the request goes in the pending table, and onRequestIntegrityAttestationResponse sends it when the
+   *  parent attestation arrives. This never waits.
    * @param destination the cryptoId of the relevant Fern server
    * @param input the RequestIntegrityAttestationInput (parent reference will be changed to add attestations)
    */
@@ -183,14 +197,51 @@ public class AgreementChainFernClient {
     // if it's a root block
     if (input.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getSlot() <= 0) {
       send(destination, input);
-    } else { // otherwise, start a new thread, as we may have to wait until the parent attestation arrives.
-      // I'm not super happy about doing this in a new thread.
-      // I don't know what the overhead of starting a new thread here is.
-      // In theory, we could have some kind of pending queue, so when the parent response shows up, the 
-      //   sending happens in that thread.
-      // However, this is easier to write.
-      (new Thread(new SendWhenReady(this, destination, input))).start();
+      return;
     }
+    final List<PendingRequest> ready = new ArrayList<PendingRequest>(1);
+    // The response for the parent is recorded in knownResponses before its pending requests are removed, and
+    //  this check-then-add is atomic with that removal, so a request is either sent here, or sent by whoever
+    //  handles the parent's response.
+    pending.compute(parentRequest(input), (parentIndex, waiting) -> {
+      final ConcurrentHolder<Hash> parentResponse = getKnownResponses().get(parentIndex);
+      if (parentResponse != null && parentResponse.getNow() != null) {
+        ready.add(new PendingRequest(destination, input));
+        return waiting;
+      }
+      final List<PendingRequest> list = (waiting == null) ? new ArrayList<PendingRequest>() : waiting;
+      list.add(new PendingRequest(destination, input));
+      return list;
+    });
+    for (PendingRequest request : ready) {
+      sendWithParent(request);
+    }
+  }
+
+  /**
+   * Send a request whose parent attestation is known, with that attestation added to its parent reference.
+   * @param request the request, and where to send it
+   */
+  private void sendWithParent(final PendingRequest request) {
+    // we're assuming that if it's in getKnownResponses, it's in knownIntegrityAttestations
+    send(request.destination,
+         addIntegrityAttestationsParent(RequestIntegrityAttestationInput.newBuilder(request.input)).build());
+  }
+
+  /**
+   * The (stripped) request for the parent of the block requested, to the same server.
+   * When the response to that arrives, this request is ready to send.
+   * @param input a request for a non-root slot
+   * @return the stripped request for the block in the previous slot, which is this block's parent
+   */
+  public static RequestIntegrityAttestationInput parentRequest(final RequestIntegrityAttestationInput input) {
+    final RequestIntegrityAttestationInput.Builder parentBuilder = RequestIntegrityAttestationInput.newBuilder(input);
+    parentBuilder.getPolicyBuilder().getFillInTheBlankBuilder().getSignedChainSlotBuilder().getChainSlotBuilder().
+      setSlot(input.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getSlot() - 1);
+    parentBuilder.getPolicyBuilder().getFillInTheBlankBuilder().getSignedChainSlotBuilder().getChainSlotBuilder().
+      getBlockBuilder().setHash(input.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().
+                                  getParent().getHash());
+    return stripRequest(parentBuilder.build());
   }
 
   /**
@@ -268,6 +319,7 @@ public class AgreementChainFernClient {
    * Waits until the attestation referenced arrives, and checks it for validity.
    * Adds the attestation to the set of known attestations.
    * Adds the attestation to the known response holder for this request.
+   * Then sends any requests which were waiting for this attestation (see sendWhenReady), from this thread.
    * @param response the response from the wire
    * @param handle represents the client communicating with the server
    * @param request the request to which this is a response
@@ -288,6 +340,12 @@ public class AgreementChainFernClient {
     final RequestIntegrityAttestationInput index = stripRequest(request);
     knownResponses.putIfAbsent(index, new ConcurrentHolder<Hash>());
     knownResponses.get(index).put(response.getReference().getHash());
+    final List<PendingRequest> ready = pending.remove(index);
+    if (ready != null) {
+      for (PendingRequest pendingRequest : ready) {
+        sendWithParent(pendingRequest);
+      }
+    }
   }
 
 
@@ -420,52 +478,24 @@ public class AgreementChainFernClient {
 
 
   /**
-   * For use in threads which wait until an appropriate parent attestation is available, then send a request.
+   * A request waiting in the pending table until its parent attestation is available.
    * @see sendWhenReady
    * @author Isaac Sheff
    */
-  private class SendWhenReady implements Runnable {
-    /** the AgreementChainFernClient of which this is a part */
-    private final AgreementChainFernClient client;
+  private static class PendingRequest {
     /** the CryptoId of the destination Fern server */
     private final CryptoId destination;
     /** the request to be sent */
     private final RequestIntegrityAttestationInput input;
 
     /**
-     * Make a new SendWhenReady
-     * @param client the AgreementChainFernClient of which this is a part 
+     * Make a new PendingRequest
      * @param destination  the CryptoId of the destination Fern server 
      * @param input  the request to be sent 
      */
-    public SendWhenReady(final AgreementChainFernClient client,
-                         final CryptoId destination,
-                         final RequestIntegrityAttestationInput input) {
-      this.input = input;
-      this.client = client;
+    PendingRequest(final CryptoId destination, final RequestIntegrityAttestationInput input) {
       this.destination = destination;
-    }
-
-    /**
-     * Called when the thread with this SendWhenReady launches.
-     * It will try to get the appropriate parent reference, and when that arrives, it will send the request
-     *  (now featuring a reference to the parent attestation) to the Fern server.
-     */
-    public void run() {
-      final RequestIntegrityAttestationInput.Builder parentBuilder =
-        RequestIntegrityAttestationInput.newBuilder(input);
-      parentBuilder.getPolicyBuilder().getFillInTheBlankBuilder().getSignedChainSlotBuilder().getChainSlotBuilder().
-        setSlot(input.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getSlot() - 1);
-      parentBuilder.getPolicyBuilder().getFillInTheBlankBuilder().getSignedChainSlotBuilder().getChainSlotBuilder().
-        getBlockBuilder().setHash(input.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getParent().getHash());
-      final RequestIntegrityAttestationInput parentIndex = stripRequest(parentBuilder.build());
-      client.getKnownResponses().putIfAbsent(parentIndex, new ConcurrentHolder<Hash>());
-
-      client.getKnownResponses().get(parentIndex).get();
-      // we're assuming that if it's in getKnownResponses, it's in knownIntegrityAttestations
-      client.send(destination,
-        client.addIntegrityAttestationsParent(RequestIntegrityAttestationInput.newBuilder(input)).build());
+      this.input = input;
     }
   }
-
 }
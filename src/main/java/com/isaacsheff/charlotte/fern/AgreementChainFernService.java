@@ -1,20 +1,31 @@
 package com.isaacsheff.charlotte.fern;
 
 import static com.isaacsheff.charlotte.fern.AgreementFernClient.checkAgreementIntegrityAttestation;
+import static com.isaacsheff.charlotte.fern.AgreementFernClient.checkAgreementSegmentAttestation;
 import static java.lang.Integer.parseInt;
 
-import com.isaacsheff.charlotte.collections.ConcurrentHolder;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.MerkleBatchSigner;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.FernGrpc.FernImplBase;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSegment;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSegment;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSlot;
 import com.isaacsheff.charlotte.proto.IntegrityPolicy;
 import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationInput;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.concurrent.ConcurrentMap;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -24,12 +35,21 @@ import java.util.logging.Logger;
  * Of course, it still won't attest to two blocks in the same slot.
  * This enforces that the set of blocks to which this Fern Server
  *  attests must be a chain.
+ * A client may also ask for a whole segment of consecutive slots at once, with a SignedChainSegment policy: the
+ *  segment is checked, and committed to, all or nothing, and answered with one SignedChainSegment attestation
+ *  (one signature for the whole segment).
  * @author Isaac Sheff
  */
 public class AgreementChainFernService extends AgreementFernService {
   /** Use logger for logging events in this class. */
   private static final Logger logger = Logger.getLogger(AgreementChainFernService.class.getName());
 
+  /** The most slots we'll attest to in one SignedChainSegment. */
+  public static final int MAX_SEGMENT_LENGTH = 1024;
+
+  /** The blocks we've recently attested to on each chain, so checking a parent is usually one lookup. */
+  private final ChainTips tips;
+
   /**
    * Get a new one of these Fern services using this local node.
    * @param node the local CharlotteNodeService
@@ -43,13 +63,25 @@ public class AgreementChainFernService extends AgreementFernService {
    * Run as a main class with an arg specifying a config file name to run a Fern Agreement server.
    * creates and runs a new CharlotteNode which runs a Fern Service and a CharlotteNodeService, in a new thread.
    * @param args command line args. args[0] should be the name of the config file, and args[1] is auto-shutdown time in seconds
+   *             args[2] (optional) is a file in which to durably log commitments.
+   *             args[3] (optional) is how long (microseconds) to wait to sign attestations together in a Merkle batch.
    */
-  public static void main(String[] args) throws InterruptedException{
+  public static void main(String[] args) throws InterruptedException, IOException {
     if (args.length < 1) {
-      System.out.println("Correct Usage: FernService configFileName.yaml");
+      System.out.println("Correct Usage: FernService configFileName.yaml " +
+                         "[shutdownSeconds [commitmentLogFile [signBatchMicroseconds]]]");
       return;
     }
-    final Thread thread = new Thread(getFernNode(args[0]));
+    final CharlotteNodeService node = new CharlotteNodeService(args[0]);
+    final AgreementChainFernService fern = (args.length < 3) ?
+      new AgreementChainFernService(node) :
+      new AgreementChainFernService(node, new CommitmentStore(Paths.get(args[2])));
+    if (args.length > 3) {
+      fern.setBatchSigner(new MerkleBatchSigner(node.getConfig().getKeyPair(),
+                                                Long.parseLong(args[3]),
+                                                MerkleBatchSigner.DEFAULT_MAX_BATCH_SIZE));
+    }
+    final Thread thread = new Thread(new CharlotteNode(node, fern));
     thread.start();
     logger.info("Fern service started on new thread");
     thread.join();
@@ -90,13 +122,23 @@ public class AgreementChainFernService extends AgreementFernService {
   /**
    * Make a new Fern with these attributes.
    * @param node the local CharlotteNodeService used to send and receive blocks 
-   * @param commitments If we've seen a request for a given ChainSlot, this stores the response 
+   * @param commitments If we've seen a request for a given chain root and slot, this stores the response
+   * @param tips the blocks we've recently attested to on each chain (filled in as we attest)
    */
   public AgreementChainFernService(final CharlotteNodeService node,
-                                   final ConcurrentMap<ChainSlot,
-                                                       ConcurrentHolder<RequestIntegrityAttestationResponse>>
-                                           commitments){
+                                   final CommitmentStore commitments,
+                                   final ChainTips tips) {
     super(node, commitments);
+    this.tips = tips;
+  }
+
+  /**
+   * Make a new Fern with these attributes, remembering the last ChainTips.DEFAULT_WINDOW slots of each chain.
+   * @param node the local CharlotteNodeService used to send and receive blocks 
+   * @param commitments If we've seen a request for a given chain root and slot, this stores the response
+   */
+  public AgreementChainFernService(final CharlotteNodeService node, final CommitmentStore commitments) {
+    this(node, commitments, new ChainTips());
   }
 
   /**
@@ -110,18 +152,26 @@ public class AgreementChainFernService extends AgreementFernService {
    * @param node the local CharlotteNodeService used to send and receive blocks 
    */
   public AgreementChainFernService(final CharlotteNodeService node) {
-    super(node);
+    this(node, new CommitmentStore());
   }
 
+  /** @return The blocks we've recently attested to on each chain. */
+  public ChainTips getTips() {return tips;}
+
   /**
    * Is this policy, alone, one which this server could ever accept?.
    * check that this ChainSlot actually has a block hash in it.
    * We also check that the parent reference is one we have previously attested to.
+   * If we attested to it recently, that's one lookup in our ChainTips (no signatures to check).
+   * Otherwise (it's old, or we've restarted), we check the parent attestations the request references.
    * @return an error string if it's unacceptable, null if it's acceptable
    */
   @Override
   public String validPolicy(final IntegrityPolicy policy) {
-    super.validPolicy(policy);
+    final String superValid = super.validPolicy(policy);
+    if (superValid != null) {
+      return superValid;
+    }
     if ( policy.getFillInTheBlank().getSignedChainSlot().getChainSlot().getSlot() == 0) { // this is a root
       return null;
     }
@@ -134,22 +184,30 @@ public class AgreementChainFernService extends AgreementFernService {
     if (!policy.getFillInTheBlank().getSignedChainSlot().getChainSlot().getParent().hasHash()) {
       return "The ChainSlot Parent reference in this RequestIntegrityAttestationInput doesn't have a Hash.";
     }
+    final ChainSlot chainSlot = policy.getFillInTheBlank().getSignedChainSlot().getChainSlot();
+    if (getTips().contains(chainSlot.getRoot().getHash(), chainSlot.getSlot() - 1, chainSlot.getParent().getHash())) {
+      return null; // we attested to the parent, in the previous slot on this chain.
+    }
     // We expect the client to provide proof that this Fern server has already committed to the parent of this block.
     // Therefore, in the parent reference, one of the integrity attestations referenced should be signed by this server
     // Here we check each of those attestations, and if we know about it (which we should), then we check
     //  to see that it really is a valid integrity attesation for the parent block signed by this server.
-    for (Reference reference :
-         policy.getFillInTheBlank().getSignedChainSlot().getChainSlot().getParent().getIntegrityAttestationsList()) {
+    // It may be a SignedChainSlot for the parent, or a SignedChainSegment with the parent in it.
+    final Hash parentHash = chainSlot.getParent().getHash();
+    for (Reference reference : chainSlot.getParent().getIntegrityAttestationsList()) {
       if (reference.hasHash()) {
         final Block parentAttestation = getNode().getBlockMap().get(reference.getHash()); // NOT BLOCKING
         if (parentAttestation != null) {
-          if(checkAgreementIntegrityAttestation(parentAttestation) != null) { 
+          if (parentAttestation.getIntegrityAttestation().hasSignedChainSegment()) {
+            if (attestsToParent(parentAttestation, chainSlot)) {
+              return null; // all is well. We're good to go.
+            }
+          } else if(checkAgreementIntegrityAttestation(parentAttestation) != null) { 
             if (parentAttestation.getIntegrityAttestation().getSignedChainSlot().getChainSlot().hasBlock()) {
               if(parentAttestation.getIntegrityAttestation().getSignedChainSlot().getChainSlot().getBlock().hasHash()){
                 if (// The parent attestation actually refers to the same block listed as parent
                     (parentAttestation.getIntegrityAttestation().getSignedChainSlot().getChainSlot().getBlock().
-                       getHash().equals(
-                     policy.getFillInTheBlank().getSignedChainSlot().getChainSlot().getParent().getHash())) &&
+                       getHash().equals(parentHash)) &&
                     // and the parent attestation's signature actually uses the cryptoID for this Fern server
                     (parentAttestation.getIntegrityAttestation().getSignedChainSlot().getSignature().
                        getCryptoId().equals(
@@ -164,4 +222,159 @@ public class AgreementChainFernService extends AgreementFernService {
     }
     return "did not reference this node's Integrity Attestation for Parent";
   }
+
+  /**
+   * Is this a valid SignedChainSegment attestation, signed by this server, with the parent block in it?
+   * The parent block must be in the slot before this ChainSlot's, on the same chain (same root).
+   * @param parentAttestation a block which may be a SignedChainSegment attestation
+   * @param chainSlot the ChainSlot whose parent we're looking for
+   * @return whether this is proof that this server has attested to the parent block
+   */
+  private boolean attestsToParent(final Block parentAttestation, final ChainSlot chainSlot) {
+    if (!parentAttestation.getIntegrityAttestation().getSignedChainSegment().getSignature().getCryptoId().equals(
+           getNode().getConfig().getCryptoId())) {
+      return false;
+    }
+    if (checkAgreementSegmentAttestation(parentAttestation) == null) {
+      return false;
+    }
+    for (ChainSlot parentSlot :
+         parentAttestation.getIntegrityAttestation().getSignedChainSegment().getChainSegment().getChainSlotList()) {
+      if (parentSlot.getBlock().getHash().equals(chainSlot.getParent().getHash()) &&
+          parentSlot.getSlot() == chainSlot.getSlot() - 1 &&
+          parentSlot.getRoot().getHash().equals(chainSlot.getRoot().getHash())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Is this policy, for a ChainSlot after the first in a segment, one which this server could ever accept?
+   * Its parent is the ChainSlot before it in the segment (validSegment checks that), which we'll attest to along
+   *  with it, so we don't look for an attestation to the parent: everything else in validPolicy still applies.
+   * Subclasses with their own rules in validPolicy should override this to apply them too.
+   * @param policy a SignedChainSlot policy for one ChainSlot of a segment (not the first)
+   * @return an error string if it's unacceptable, null if it's acceptable
+   */
+  protected String validLaterSegmentSlot(final IntegrityPolicy policy) {
+    final String superValid = super.validPolicy(policy);
+    if (superValid != null) {
+      return superValid;
+    }
+    if (!policy.getFillInTheBlank().getSignedChainSlot().getChainSlot().getParent().hasHash()) {
+      return "The ChainSlot Parent reference in this RequestIntegrityAttestationInput doesn't have a Hash.";
+    }
+    return null;
+  }
+
+  /**
+   * Is this segment one which this server could ever accept?
+   * It must have between 1 and MAX_SEGMENT_LENGTH ChainSlots, each with the same root, consecutive slot numbers,
+   *  and a block hash, and each (after the first) must list the block of the one before as its parent.
+   * Every ChainSlot must be acceptable on its own, as a SignedChainSlot policy: the first according to
+   *  validPolicy, and the rest according to validLaterSegmentSlot.
+   * @param segment the ChainSegment
+   * @return an error string if it's unacceptable, null if it's acceptable
+   */
+  public String validSegment(final ChainSegment segment) {
+    final List<ChainSlot> chainSlots = segment.getChainSlotList();
+    if (chainSlots.isEmpty()) {
+      return "The ChainSegment in this RequestIntegrityAttestationInput has no ChainSlots.";
+    }
+    if (chainSlots.size() > MAX_SEGMENT_LENGTH) {
+      return "The ChainSegment in this RequestIntegrityAttestationInput has more than " + MAX_SEGMENT_LENGTH +
+             " ChainSlots.";
+    }
+    final ChainSlot first = chainSlots.get(0);
+    if (!first.getRoot().hasHash()) {
+      return "The ChainSegment in this RequestIntegrityAttestationInput doesn't have a root hash.";
+    }
+    for (int i = 0; i < chainSlots.size(); ++i) {
+      final ChainSlot chainSlot = chainSlots.get(i);
+      if (!chainSlot.getBlock().hasHash()) {
+        return "ChainSlot " + i + " of this ChainSegment doesn't have a block Hash.";
+      }
+      if (!chainSlot.getRoot().getHash().equals(first.getRoot().getHash())) {
+        return "ChainSlot " + i + " of this ChainSegment has a different root.";
+      }
+      if (chainSlot.getSlot() != first.getSlot() + i) {
+        return "ChainSlot " + i + " of this ChainSegment is not in the next slot.";
+      }
+      if (i > 0 && !chainSlot.getParent().getHash().equals(chainSlots.get(i - 1).getBlock().getHash())) {
+        return "The parent of ChainSlot " + i + " of this ChainSegment is not the block before it.";
+      }
+    }
+    for (int i = 0; i < chainSlots.size(); ++i) {
+      final IntegrityPolicy policy = IntegrityPolicy.newBuilder().setFillInTheBlank(IntegrityAttestation.newBuilder().
+                                       setSignedChainSlot(SignedChainSlot.newBuilder().
+                                         setChainSlot(chainSlots.get(i)))).build();
+      final String valid = (i == 0) ? validPolicy(policy) : validLaterSegmentSlot(policy);
+      if (valid != null) {
+        return "ChainSlot " + i + " of this ChainSegment is unacceptable: " + valid;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks to see if all is well with this request, then commits to it (see AgreementFernService).
+   * A SignedChainSegment request is checked as a whole (validSegment), and then committed to for every slot in
+   *  it at once: if any of them is already committed to something else, nothing is, and the response is an error.
+   * A repeat of a segment request already committed to gets the same response.
+   * @param request details what we want attested to
+   * @return a future RequestIntegrityAttestationResponse featuring an error message or a reference to an attestation.
+   */
+  @Override
+  public CompletableFuture<RequestIntegrityAttestationResponse> requestIntegrityAttestationAsync(
+      final RequestIntegrityAttestationInput request) {
+    if (!request.getPolicy().getFillInTheBlank().hasSignedChainSegment()) {
+      return super.requestIntegrityAttestationAsync(request);
+    }
+    final ChainSegment segment = request.getPolicy().getFillInTheBlank().getSignedChainSegment().getChainSegment();
+    final String isAcceptable = validSegment(segment);
+    if (isAcceptable != null) {
+      return CompletableFuture.completedFuture(
+               RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(isAcceptable).build());
+    }
+    final ChainSlot first = segment.getChainSlot(0);
+    return getCommitments().commitSegment(first.getRoot().getHash(), first.getSlot(), segment.getChainSlotCount(),
+                                          request.getPolicy(), this::newResponseAsync).
+      exceptionally(e -> {
+        logger.log(Level.WARNING, "Could not commit to segment starting at slot " + first.getSlot(), e);
+        return RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(
+                 "Could not commit to this segment: " + e).build();
+      });
+  }
+
+  /**
+   * Called when a new request warrants a response (see AgreementFernService.newResponse).
+   * For a SignedChainSegment policy, this signs the whole segment once, and receives (and broadcasts) the
+   *  resulting SignedChainSegment attestation via the local CharlotteNodeService.
+   * Once the attestation is made, each block in it is remembered in our ChainTips.
+   * @param policy the Integrity Policy
+   * @return a future for the RequestIntegrityAttestationResponse to send to the client over the wire.
+   */
+  @Override
+  public CompletableFuture<RequestIntegrityAttestationResponse> newResponseAsync(final IntegrityPolicy policy) {
+    if (!policy.getFillInTheBlank().hasSignedChainSegment()) {
+      final ChainSlot chainSlot = policy.getFillInTheBlank().getSignedChainSlot().getChainSlot();
+      return super.newResponseAsync(policy).thenApply(response -> {
+        getTips().put(chainSlot.getRoot().getHash(), chainSlot.getSlot(), chainSlot.getBlock().getHash());
+        return response;
+      });
+    }
+    final ChainSegment segment = policy.getFillInTheBlank().getSignedChainSegment().getChainSegment();
+    return signAttestationAsync(segment).thenApply(signature -> {
+      final Block block = Block.newBuilder().setIntegrityAttestation(IntegrityAttestation.newBuilder().
+                            setSignedChainSegment(SignedChainSegment.newBuilder().
+                              setChainSegment(segment).
+                              setSignature(signature))).build();
+      getNode().onSendBlocksInput(block);
+      for (ChainSlot chainSlot : segment.getChainSlotList()) {
+        getTips().put(chainSlot.getRoot().getHash(), chainSlot.getSlot(), chainSlot.getBlock().getHash());
+      }
+      return newResponse(block);
+    });
+  }
 }
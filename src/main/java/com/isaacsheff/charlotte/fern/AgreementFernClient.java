@@ -1,12 +1,11 @@
 package com.isaacsheff.charlotte.fern;
 
-import static com.isaacsheff.charlotte.node.SignatureUtil.checkSignature;
-
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.VerifiedSignatureCache;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.FernGrpc;
 import com.isaacsheff.charlotte.proto.FernGrpc.FernBlockingStub;
@@ -113,8 +112,46 @@ public class AgreementFernClient {
                                 attestation);
       return null;
     }
-    if (!checkSignature(attestation.getIntegrityAttestation().getSignedChainSlot().getChainSlot(),
-                        attestation.getIntegrityAttestation().getSignedChainSlot().getSignature())) {
+    if (!VerifiedSignatureCache.getDefault().checkSignature(
+          attestation.getIntegrityAttestation().getSignedChainSlot().getChainSlot(),
+          attestation.getIntegrityAttestation().getSignedChainSlot().getSignature())) {
+      logger.log(Level.WARNING, "Response from Fern Server referenced block with an incorrect signature:\n" +
+                                attestation);
+      return null;
+    }
+    return attestation;
+  }
+
+  /**
+   * Check whether this Block contains a valid segment IntegrityAttestation.
+   * Checks for a valid signature in a properly formatted SignedChainSegment with at least one ChainSlot.
+   * @param attestation the block we're hoping contains the IntegrityAttestation
+   * @return the Block input if it's valid, null otherwise.
+   */
+  public static Block checkAgreementSegmentAttestation(final Block attestation) {
+    if (!attestation.hasIntegrityAttestation()) {
+      logger.log(Level.WARNING, "Response from Fern Server referenced block which is not an Integrity Attestation:\n" +
+                                attestation);
+      return null;
+    }
+    if (!attestation.getIntegrityAttestation().hasSignedChainSegment()) {
+      logger.log(Level.WARNING, "Response from Fern Server referenced block which is not a SignedChainSegment:\n" +
+                                attestation);
+      return null;
+    }
+    if (attestation.getIntegrityAttestation().getSignedChainSegment().getChainSegment().getChainSlotCount() == 0) {
+      logger.log(Level.WARNING, "Response from Fern Server referenced block which has no ChainSlots:\n" +
+                                attestation);
+      return null;
+    }
+    if (!attestation.getIntegrityAttestation().getSignedChainSegment().hasSignature()) {
+      logger.log(Level.WARNING, "Response from Fern Server referenced block which has no Signature:\n" +
+                                attestation);
+      return null;
+    }
+    if (!VerifiedSignatureCache.getDefault().checkSignature(
+          attestation.getIntegrityAttestation().getSignedChainSegment().getChainSegment(),
+          attestation.getIntegrityAttestation().getSignedChainSegment().getSignature())) {
       logger.log(Level.WARNING, "Response from Fern Server referenced block with an incorrect signature:\n" +
                                 attestation);
       return null;
@@ -3,9 +3,9 @@ package com.isaacsheff.charlotte.fern;
 import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
 import static com.isaacsheff.charlotte.node.SignatureUtil.signBytes;
 
-import com.isaacsheff.charlotte.collections.ConcurrentHolder;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.MerkleBatchSigner;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.FernGrpc.FernImplBase;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation;
@@ -15,12 +15,17 @@ import com.isaacsheff.charlotte.proto.IntegrityPolicy;
 import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationInput;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
+import com.isaacsheff.charlotte.proto.Signature;
+
+import com.google.protobuf.MessageLite;
 
 import io.grpc.stub.StreamObserver;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -32,26 +37,36 @@ import java.util.logging.Logger;
  * to one block.
  *
  * <p>
- * Can be run as a main class with: AgreementFernService configFileName.yaml
+ * Can be run as a main class with: AgreementFernService configFileName.yaml [commitmentLogFile]
+ * </p>
+ *
+ * <p>
+ * Commitments are kept in a CommitmentStore, which can log them to a file, so that a restarted server still
+ *  won't contradict itself.
  * </p>
  *
  * <p>
  * Future extensions may wish to override validPolicy, as it designates
  *  (in a vacuum, so to speak), what policies this Fern server
  *   considers acceptable.
- * Alternatively, requestIntegrityAttestation contains almost all the
+ * Alternatively, requestIntegrityAttestationAsync contains almost all the
  *  functionality (it calls validPolicy), so you could override that
  *  to completely change what the server does.
  * </p>
  *
  * <p>
- * Furthermore, future extensions may wish to override newResponse and
- *  newAttestation (called by requestIntegrityAttestation), which govern
+ * Furthermore, future extensions may wish to override newResponseAsync and
+ *  newAttestationAsync (called by requestIntegrityAttestationAsync), which govern
  *  how responses are made to new requests (which don't conflict with anything
  *  seen so far). 
- * By default, newResponse just calls newAttestation and makes a simple
+ * By default, newResponseAsync just calls newAttestationAsync and makes a simple
  *  reference to the attestation block.
  * </p>
+ *
+ * <p>
+ * Requests are handled asynchronously: no gRPC thread waits for a signature, or for another request for the
+ *  same slot, to finish. Each response is sent from whichever thread completes its future.
+ * </p>
  * @author Isaac Sheff
  */
 public class AgreementFernService extends FernImplBase {
@@ -59,25 +74,41 @@ public class AgreementFernService extends FernImplBase {
   /** Use logger for logging events in this class. */
   private static final Logger logger = Logger.getLogger(AgreementFernService.class.getName());
 
-  /** If we've seen a request for a given ChainSlot, this stores the response (or a standin that will be filled appropriately) */
-  private final ConcurrentMap<ChainSlot, ConcurrentHolder<RequestIntegrityAttestationResponse>> commitments;
+  /** If we've seen a request for a given chain root and slot, this stores the response (or a future response) */
+  private final CommitmentStore commitments;
 
   /** The local CharlotteNodeService used to send and receive blocks */
   private final CharlotteNodeService node;
 
+  /**
+   * If not null, attestations are signed in Merkle batches by this, rather than one signature each.
+   * See setBatchSigner.
+   */
+  private volatile MerkleBatchSigner batchSigner;
+
   /**
    * Run as a main class with an arg specifying a config file name to
    * run a Fern Agreement server.
    * Creates and runs a new CharlotteNode which runs a Wilbur Service
    * and a CharlotteNodeService, in a new thread.
-   * @param args command line args. args[0] should be the name of the config file
+   * @param args command line args. args[0] should be the name of the config file.
+   *             args[1] (optional) is a file in which to durably log commitments.
+   *             args[2] (optional) is how long (microseconds) to wait to sign attestations together in a Merkle batch.
    */
-  public static void main(String[] args) throws InterruptedException{
+  public static void main(String[] args) throws InterruptedException, IOException {
     if (args.length < 1) {
-      System.out.println("Correct Usage: FernService configFileName.yaml");
+      System.out.println("Correct Usage: FernService configFileName.yaml [commitmentLogFile [signBatchMicroseconds]]");
       return;
     }
-    final Thread thread = new Thread(getFernNode(args[0]));
+    final CharlotteNodeService node = new CharlotteNodeService(args[0]);
+    final AgreementFernService fern = (args.length < 2) ?
+      new AgreementFernService(node) : new AgreementFernService(node, new CommitmentStore(Paths.get(args[1])));
+    if (args.length > 2) {
+      fern.setBatchSigner(new MerkleBatchSigner(node.getConfig().getKeyPair(),
+                                                Long.parseLong(args[2]),
+                                                MerkleBatchSigner.DEFAULT_MAX_BATCH_SIZE));
+    }
+    final Thread thread = new Thread(new CharlotteNode(node, fern));
     thread.start();
     logger.info("Fern service started on new thread");
     thread.join();
@@ -118,27 +149,60 @@ public class AgreementFernService extends FernImplBase {
   /**
    * Make a new Fern with these attributes.
    * @param node the local CharlotteNodeService used to send and receive blocks 
-   * @param commitments If we've seen a request for a given ChainSlot, this stores the response 
+   * @param commitments If we've seen a request for a given chain root and slot, this stores the response
    */
-  public AgreementFernService(final CharlotteNodeService node,
-                              final ConcurrentMap<ChainSlot, ConcurrentHolder<RequestIntegrityAttestationResponse>> commitments){
+  public AgreementFernService(final CharlotteNodeService node, final CommitmentStore commitments) {
     this.node = node;
     this.commitments = commitments;
+    this.batchSigner = null;
   }
 
   /**
-   * Make a new Fern with this node and no known commitments.
+   * Make a new Fern with this node and no known commitments, kept only in memory.
    * @param node the local CharlotteNodeService used to send and receive blocks 
    */
   public AgreementFernService(final CharlotteNodeService node) {
-    this(node, new ConcurrentHashMap<ChainSlot, ConcurrentHolder<RequestIntegrityAttestationResponse>>());
+    this(node, new CommitmentStore());
   }
 
   /** @return The local CharlotteNodeService used to send and receive blocks */
   public CharlotteNodeService getNode() {return node;}
 
-  /** @return If we've seen a request for a given ChainSlot, this stores the response  */
-  public ConcurrentMap<ChainSlot, ConcurrentHolder<RequestIntegrityAttestationResponse>> getCommitments() {return commitments;}
+  /** @return If we've seen a request for a given chain root and slot, this stores the response */
+  public CommitmentStore getCommitments() {return commitments;}
+
+  /** @return the MerkleBatchSigner signing attestations, or null if each attestation is signed on its own. */
+  public MerkleBatchSigner getBatchSigner() {return batchSigner;}
+
+  /**
+   * Sign attestations in Merkle batches: concurrent attestations share one signature over their Merkle root.
+   * Clients verify these with SignatureUtil.checkSignature as usual.
+   * @param batchSigner the MerkleBatchSigner to use (with this node's keys), or null to sign each attestation on its own.
+   */
+  public void setBatchSigner(final MerkleBatchSigner batchSigner) {this.batchSigner = batchSigner;}
+
+  /**
+   * Sign this part of an attestation, using the batch signer if there is one.
+   * @param message the thing to sign
+   * @return the Signature
+   */
+  public Signature signAttestation(final MessageLite message) {
+    return signAttestationAsync(message).join();
+  }
+
+  /**
+   * Sign this part of an attestation, using the batch signer if there is one.
+   * NON-BLOCKING if there is a batch signer (otherwise, this signs on this thread).
+   * @param message the thing to sign
+   * @return a future for the Signature
+   */
+  public CompletableFuture<Signature> signAttestationAsync(final MessageLite message) {
+    final MerkleBatchSigner signer = getBatchSigner();
+    if (signer == null) {
+      return CompletableFuture.completedFuture(signBytes(getNode().getConfig().getKeyPair(), message));
+    }
+    return signer.sign(message);
+  }
 
   /**
    * Is this policy, alone, one which this server could ever accept?.
@@ -160,13 +224,20 @@ public class AgreementFernService extends FernImplBase {
    * @return the block featuring the IntegrityAttestation in response to a given policy.
    */
   public Block makeNewAttestation(final IntegrityPolicy policy) {
-    return Block.newBuilder().setIntegrityAttestation(
+    return makeNewAttestationAsync(policy).join();
+  }
+
+  /**
+   * Constructs the block featuring the IntegrityAttestation in response to a given policy, once it's signed.
+   * @param policy the Integrity Policy
+   * @return a future for the block featuring the IntegrityAttestation in response to a given policy.
+   */
+  public CompletableFuture<Block> makeNewAttestationAsync(final IntegrityPolicy policy) {
+    return signAttestationAsync(policy.getFillInTheBlank().getSignedChainSlot().getChainSlot()).thenApply(
+      signature -> Block.newBuilder().setIntegrityAttestation(
         IntegrityAttestation.newBuilder(policy.getFillInTheBlank()).
           setSignedChainSlot(SignedChainSlot.newBuilder(policy.getFillInTheBlank().getSignedChainSlot()).
-                               setSignature(signBytes(
-                                   getNode().getConfig().getKeyPair(),
-                                   policy.getFillInTheBlank().getSignedChainSlot().getChainSlot())
-        ))).build();
+                               setSignature(signature))).build());
   }
 
 
@@ -186,9 +257,20 @@ public class AgreementFernService extends FernImplBase {
    * @return the block featuring the IntegrityAttestation in response to a given policy.
    */
   public Block newAttestation(final IntegrityPolicy policy) {
-    final Block block = makeNewAttestation(policy);
-    getNode().onSendBlocksInput(block);
-    return block;
+    return newAttestationAsync(policy).join();
+  }
+
+  /**
+   * Called when a new attestation is warranted in response to a given policy (see newAttestation).
+   * Constructs the block, then, once it's signed, receives (and broadcasts) it via the local CharlotteNodeService.
+   * @param policy the Integrity Policy
+   * @return a future for the block featuring the IntegrityAttestation in response to a given policy.
+   */
+  public CompletableFuture<Block> newAttestationAsync(final IntegrityPolicy policy) {
+    return makeNewAttestationAsync(policy).thenApply(block -> {
+      getNode().onSendBlocksInput(block);
+      return block;
+    });
   }
 
   /**
@@ -222,7 +304,17 @@ public class AgreementFernService extends FernImplBase {
    * @return the RequestIntegrityAttestationResponse to send to the client over the wire.
    */
   public RequestIntegrityAttestationResponse newResponse(final IntegrityPolicy policy) {
-    return newResponse(newAttestation(policy));
+    return newResponseAsync(policy).join();
+  }
+
+  /**
+   * Called when a new request warrants a response (see newResponse).
+   * This response will be remembered, so it must not be an error.
+   * @param policy the Integrity Policy
+   * @return a future for the RequestIntegrityAttestationResponse to send to the client over the wire.
+   */
+  public CompletableFuture<RequestIntegrityAttestationResponse> newResponseAsync(final IntegrityPolicy policy) {
+    return newAttestationAsync(policy).thenApply(this::newResponse);
   }
 
   /**
@@ -230,10 +322,54 @@ public class AgreementFernService extends FernImplBase {
    * conflicting request has already been answered, and if not, makes a
    * new Integrity Attestation.
    * This only handles ChainedSlot type Integrity Policies.
+   * This waits for the response: see requestIntegrityAttestationAsync.
    * @param request details what we want attested to
    * @return RequestIntegrityAttestationResponse featues an error message or a reference to an attestation.
    */
   public RequestIntegrityAttestationResponse requestIntegrityAttestation(final RequestIntegrityAttestationInput request) {
+    return requestIntegrityAttestationAsync(request).join();
+  }
+
+  /**
+   * Checks to see if all is well with this request, then checks if a
+   * conflicting request has already been answered, and if not, starts making a
+   * new Integrity Attestation.
+   * This only handles ChainedSlot type Integrity Policies.
+   * If another request for the same slot is still being answered, this doesn't wait for it: the future
+   *  returned is completed with the same response, when that's done.
+   * @param request details what we want attested to
+   * @return a future RequestIntegrityAttestationResponse featuring an error message or a reference to an attestation.
+   */
+  public CompletableFuture<RequestIntegrityAttestationResponse> requestIntegrityAttestationAsync(
+      final RequestIntegrityAttestationInput request) {
+    final RequestIntegrityAttestationResponse error = checkRequest(request);
+    if (error != null) {
+      return CompletableFuture.completedFuture(error);
+    }
+
+    // By the time we get here, we have to return a commitment: either an old one, or a new one.
+    
+    // we're indexing strictly by root (hash) and slot.
+    // that means different parents or whatever conflict.
+    final ChainSlot chainSlot = request.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot();
+
+    // If there is a known response (or another request is making one), return (a future for) that.
+    // Otherwise, the store logs this policy, and then we make, receive (and broadcast) our new block.
+    return getCommitments().commit(chainSlot.getRoot().getHash(), chainSlot.getSlot(), request.getPolicy(),
+                                   this::newResponseAsync).
+      exceptionally(e -> {
+        logger.log(Level.WARNING, "Could not commit to slot " + chainSlot.getSlot(), e);
+        return RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(
+                 "Could not commit to this slot: " + e).build();
+      });
+  }
+
+  /**
+   * Checks to see if all is well with this request.
+   * @param request details what we want attested to
+   * @return a RequestIntegrityAttestationResponse featuring an error message, or null if the request is acceptable
+   */
+  private RequestIntegrityAttestationResponse checkRequest(final RequestIntegrityAttestationInput request) {
     if (!request.hasPolicy()) {
       return RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(
                "There is no policy in this RequestIntegrityAttestationInput.").build();
@@ -262,49 +398,41 @@ public class AgreementFernService extends FernImplBase {
     if (isAcceptable != null) {
       return RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(isAcceptable).build();
     }
-
-    // By the time we get here, we have to return a commitment: either an old one, or a new one.
-    
-    // we're indexing strictly by root and slot.
-    // that means different parents or whatever conflict.
-    final ChainSlot indexableChainSlot = ChainSlot.newBuilder().
-      setRoot(request.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getRoot()).
-      setSlot(request.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getSlot()).
-      build();
-
-    // If there is a known response (or another thread is makign one), return that (possibly waiting for it).
-    // Otherwise, put in a ConcurrentHolder which indicates that this thread is making a response, and others should wait.
-    final ConcurrentHolder<RequestIntegrityAttestationResponse> newHolder =
-      new ConcurrentHolder<RequestIntegrityAttestationResponse>(); // empty, for now
-    final ConcurrentHolder<RequestIntegrityAttestationResponse> cachedResponse =
-      getCommitments().putIfAbsent(indexableChainSlot, newHolder); // putIfAbsent returns null if it's previously unfilled.
-    if (cachedResponse != null) {
-      return cachedResponse.get();
-    }
-
-    // The only way we get here is if we have no commitment, and no other thread is working on making one.
-    // Therefore we have to make a commitment here, and put it into newHolder, and return it.
-    // Making a new block may be slow and involve IO.
-    // This simplistic implementation does not.
-
-    // make, receive (and broadcast) our new block
-    final RequestIntegrityAttestationResponse response = newResponse(request.getPolicy());
-
-    newHolder.put(response);
-    return response;
+    return null;
   }
 
   /**
    * Grpc calls this whenever a RequestIntegrityAttestation rpc comes in over the wire.
-   * It calls requestIntegrityAttestation(final RequestIntegrityAttestationInput request), which returns a
-   *  RequestIntegrityAttestationResponse, which it gives to responseObserver.
+   * It calls requestIntegrityAttestationAsync(request), and gives the RequestIntegrityAttestationResponse to
+   *  responseObserver when it's ready, without waiting for it.
    * @param request the request from the client sent over the wire
    * @param responseObserver used for sending a RequestIntegrityAttestationResponse back to the client over the wire
    */
   @Override
   public void requestIntegrityAttestation(final RequestIntegrityAttestationInput request,
                                           final StreamObserver<RequestIntegrityAttestationResponse> responseObserver) {
-    responseObserver.onNext(requestIntegrityAttestation(request));
-    responseObserver.onCompleted();
+    respond(requestIntegrityAttestationAsync(request), responseObserver);
+  }
+
+  /**
+   * Send a response over the wire once it's ready.
+   * If the client has gone away by then, that's logged, rather than thrown on whatever thread completed the future.
+   * @param response the future response
+   * @param responseObserver used for sending the response back to the client over the wire
+   */
+  public static void respond(final CompletableFuture<RequestIntegrityAttestationResponse> response,
+                             final StreamObserver<RequestIntegrityAttestationResponse> responseObserver) {
+    response.whenComplete((made, exception) -> {
+      try {
+        if (exception == null) {
+          responseObserver.onNext(made);
+          responseObserver.onCompleted();
+        } else {
+          responseObserver.onError(exception);
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.FINE, "Could not send a RequestIntegrityAttestationResponse", e);
+      }
+    });
   }
 }
@@ -0,0 +1,123 @@
+package com.isaacsheff.charlotte.fern;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.isaacsheff.charlotte.proto.Hash;
+
+/**
+ * The blocks an AgreementChainFernService has attested to most recently on each chain: for each chain (by the
+ *  hash of its root), the hash of the block in each of its last window slots.
+ * This lets the service check that a request's parent is a block it attested to with one lookup, rather than by
+ *  fetching and verifying its own signed attestation.
+ * Each chain is a ring of window entries, indexed by slot number modulo window, so it costs the same however
+ *  long the chain gets, and a slot which has fallen out of the window is simply not known (the caller should then
+ *  check the old way).
+ * @author Isaac Sheff
+ */
+public class ChainTips {
+  /** The number of slots remembered for each chain if we're not told otherwise. */
+  public static final int DEFAULT_WINDOW = 4096;
+
+  /** The number of slots remembered for each chain. */
+  private final int window;
+
+  /** The chains, by the hash of their root. */
+  private final ConcurrentMap<Hash, Ring> chains;
+
+  /**
+   * The last window slots of one chain.
+   * Everything in here is guarded by this.
+   */
+  private static class Ring {
+    /** The slot number held in each entry (meaningless where blocks is null). */
+    private final long[] slots;
+
+    /** The hash of the block in each entry's slot, or null if the entry is empty. */
+    private final Hash[] blocks;
+
+    /**
+     * Make a new, empty, Ring.
+     * @param window the number of entries
+     */
+    Ring(final int window) {
+      this.slots = new long[window];
+      this.blocks = new Hash[window];
+    }
+  }
+
+  /**
+   * Make a new, empty, ChainTips.
+   * @param window the number of slots remembered for each chain
+   */
+  public ChainTips(final int window) {
+    if (window < 1) {
+      throw new IllegalArgumentException("ChainTips window must be positive, not " + window);
+    }
+    this.window = window;
+    this.chains = new ConcurrentHashMap<Hash, Ring>();
+  }
+
+  /** Make a new, empty, ChainTips with the DEFAULT_WINDOW. */
+  public ChainTips() {
+    this(DEFAULT_WINDOW);
+  }
+
+  /** @return The number of slots remembered for each chain. */
+  public int getWindow() {return window;}
+
+  /** @return The number of chains with anything remembered. */
+  public int getChainCount() {return chains.size();}
+
+  /**
+   * @param slot a slot number
+   * @return its entry in a Ring
+   */
+  private int index(final long slot) {
+    return (int) Long.remainderUnsigned(slot, window);
+  }
+
+  /**
+   * Remember that this block is in this slot of this chain.
+   * It replaces whatever slot shared its entry, unless that slot is later than this one.
+   * @param root the hash of the root of the chain
+   * @param slot the slot number
+   * @param block the hash of the block in that slot
+   */
+  public void put(final Hash root, final long slot, final Hash block) {
+    final Ring ring = chains.computeIfAbsent(root, r -> new Ring(window));
+    final int i = index(slot);
+    synchronized (ring) {
+      if (ring.blocks[i] == null || Long.compareUnsigned(ring.slots[i], slot) <= 0) {
+        ring.slots[i] = slot;
+        ring.blocks[i] = block;
+      }
+    }
+  }
+
+  /**
+   * @param root the hash of the root of the chain
+   * @param slot the slot number
+   * @return the hash of the block remembered in that slot, or null if none is
+   */
+  public Hash get(final Hash root, final long slot) {
+    final Ring ring = chains.get(root);
+    if (ring == null) {
+      return null;
+    }
+    final int i = index(slot);
+    synchronized (ring) {
+      return (ring.blocks[i] != null && ring.slots[i] == slot) ? ring.blocks[i] : null;
+    }
+  }
+
+  /**
+   * @param root the hash of the root of the chain
+   * @param slot the slot number
+   * @param block the hash of a block
+   * @return whether that block is remembered in that slot
+   */
+  public boolean contains(final Hash root, final long slot, final Hash block) {
+    return block.equals(get(root, slot));
+  }
+}
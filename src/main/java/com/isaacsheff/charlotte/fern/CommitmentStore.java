@@ -0,0 +1,841 @@
+package com.isaacsheff.charlotte.fern;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.isaacsheff.charlotte.proto.AgreementCommitment;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.IntegrityPolicy;
+import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
+
+/**
+ * The commitments an AgreementFernService has made: at most one response for each slot of each chain.
+ * Chains are keyed by the hash of their root, and each chain keeps its slots in pages of PAGE_SIZE consecutive
+ *  slots (a two-level radix layout), so a densely used chain costs an array entry per slot, rather than a map
+ *  entry (and a freshly built key) per slot.
+ *
+ * <p>
+ * If the store has a log file, the policy for each new commitment is forced to disk before anything is attested
+ *  (see commit), and the response is written once it's made, before it's returned.
+ * When the log is reopened, slots whose policy was logged but whose response was not are remembered, and the
+ *  next request for such a slot re-attests to the logged policy, whatever it asks for.
+ * So a restarted AgreementFernService never contradicts itself.
+ * The log format is the same as a BlockLog's, with AgreementCommitment records instead of Blocks.
+ * </p>
+ *
+ * <p>
+ * Nobody waits for the log: like a BlockLog, it is written by its own (daemon) thread, which group commits
+ *  whatever records have been appended since the last commit (with one force to disk), and carries on from there.
+ * Responses are made on a pool of (daemon) responder threads, so neither the caller nor the log thread waits for
+ *  them to be signed.
+ * </p>
+ *
+ * <p>
+ * Slots below a given number can be archived out of memory.
+ * Archived slots cost 8 bytes each (their position in the log), and are read back from the log on request.
+ * Without a log, requests for archived slots get an error response (they are never committed again).
+ * Archiving is not itself logged: a reopened store has every logged slot in memory again.
+ * </p>
+ * @author Isaac Sheff
+ */
+public class CommitmentStore implements Closeable {
+  /** Use logger for logging events involving CommitmentStore. */
+  private static final Logger logger = Logger.getLogger(CommitmentStore.class.getName());
+
+  /** The number of low bits of a slot number which pick its place within a page. */
+  public static final int PAGE_BITS = 10;
+
+  /** The number of consecutive slots in each page. */
+  public static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  /** The log offset of a slot with no response in the log. */
+  private static final long NOT_LOGGED = -1;
+
+  /** The log offset of a slot archived without a log (so its response is gone). */
+  private static final long ARCHIVED = -2;
+
+  /** The default longest we wait (after the first append of a group arrives) for more appends to join it. */
+  public static final long DEFAULT_COMMIT_WINDOW_MICROSECONDS = 0;
+
+  /** The default most appends in one group commit. */
+  public static final int DEFAULT_MAX_GROUP_SIZE = 1024;
+
+  /** The log file, or null if this store is only in memory. */
+  private final Path path;
+
+  /** The open log file, or null if this store is only in memory. Only the log thread writes to it. */
+  private final FileChannel channel;
+
+  /** The longest we wait (after the first append of a group arrives) for more appends to join it. */
+  private final long commitWindowMicroseconds;
+
+  /** The most appends in one group commit. */
+  private final int maxGroupSize;
+
+  /** Appends waiting for the next group commit. */
+  private final BlockingQueue<PendingAppend> queue;
+
+  /** The thread writing the log, or null if this store is only in memory. */
+  private final Thread committer;
+
+  /** The threads making responses. */
+  private final ExecutorService responder;
+
+  /** The chains, by the hash of their root. */
+  private final ConcurrentMap<Hash, Chain> chains;
+
+  /** The number of commitments currently in memory. */
+  private final AtomicLong residentCount;
+
+  /** Set when this store is closed. */
+  private volatile boolean closed;
+
+  /**
+   * Set if a failed append couldn't be rolled back, leaving bytes in the log we can't vouch for.
+   * Once set, nothing more is committed.
+   */
+  private volatile IOException failure;
+
+  /** Some records waiting to be written. */
+  private static class PendingAppend {
+    /** The records to be written. */
+    private final List<AgreementCommitment> records;
+
+    /** Whether they must be forced to the storage device before the future is completed. */
+    private final boolean force;
+
+    /** Completed with the offset of each record, once they're written. */
+    private final CompletableFuture<long[]> future;
+
+    /**
+     * @param records the records to be written
+     * @param force whether they must be forced to the storage device before the future is completed
+     */
+    PendingAppend(final List<AgreementCommitment> records, final boolean force) {
+      this.records = records;
+      this.force = force;
+      this.future = new CompletableFuture<long[]>();
+    }
+  }
+
+  /**
+   * PAGE_SIZE consecutive slots of a chain.
+   * Everything in here is guarded by the Chain it's in.
+   */
+  private static class Page {
+    /** The response (or future response) for each slot in memory, or null if all are archived. */
+    private AtomicReferenceArray<CompletableFuture<RequestIntegrityAttestationResponse>> responses;
+
+    /** The log offset of each slot's response record (or NOT_LOGGED, or ARCHIVED). */
+    private final long[] offsets;
+
+    /** Make a new, empty, Page. */
+    Page() {
+      this.responses = new AtomicReferenceArray<CompletableFuture<RequestIntegrityAttestationResponse>>(PAGE_SIZE);
+      this.offsets = new long[PAGE_SIZE];
+      Arrays.fill(offsets, NOT_LOGGED);
+    }
+  }
+
+  /**
+   * The slots of one chain.
+   * Everything in here is guarded by this.
+   */
+  private static class Chain {
+    /** The pages, by slot number with the low PAGE_BITS removed. */
+    private final Map<Long, Page> pages;
+
+    /** Policies logged (so committed to) whose responses have not yet been made, by slot. */
+    private final Map<Long, IntegrityPolicy> unfinished;
+
+    /** Make a new, empty, Chain. */
+    Chain() {
+      this.pages = new HashMap<Long, Page>();
+      this.unfinished = new HashMap<Long, IntegrityPolicy>();
+    }
+
+    /**
+     * @param slot a slot number
+     * @param create whether to make the page if there isn't one
+     * @return the page for that slot (or null if there isn't one, and create is false)
+     */
+    Page page(final long slot, final boolean create) {
+      return create ? pages.computeIfAbsent(slot >>> PAGE_BITS, p -> new Page()) : pages.get(slot >>> PAGE_BITS);
+    }
+
+    /**
+     * @param slot a slot number
+     * @return the response for that slot in memory, or null if there isn't one
+     */
+    CompletableFuture<RequestIntegrityAttestationResponse> resident(final long slot) {
+      final Page page = page(slot, false);
+      if (page == null || page.responses == null) {
+        return null;
+      }
+      return page.responses.get((int) (slot & (PAGE_SIZE - 1)));
+    }
+
+    /**
+     * @param slot a slot number
+     * @return the log offset of that slot's response record (or NOT_LOGGED, or ARCHIVED)
+     */
+    long offset(final long slot) {
+      final Page page = page(slot, false);
+      return (page == null) ? NOT_LOGGED : page.offsets[(int) (slot & (PAGE_SIZE - 1))];
+    }
+
+    /**
+     * @param slot a slot number
+     * @param response the response (or future response) for that slot, or null to forget it
+     */
+    void put(final long slot, final CompletableFuture<RequestIntegrityAttestationResponse> response) {
+      final Page page = page(slot, true);
+      if (page.responses == null) {
+        page.responses = new AtomicReferenceArray<CompletableFuture<RequestIntegrityAttestationResponse>>(PAGE_SIZE);
+      }
+      page.responses.set((int) (slot & (PAGE_SIZE - 1)), response);
+    }
+
+    /**
+     * @param slot a slot number
+     * @param offset the log offset of that slot's response record
+     */
+    void setOffset(final long slot, final long offset) {
+      page(slot, true).offsets[(int) (slot & (PAGE_SIZE - 1))] = offset;
+    }
+  }
+
+  /** Make a new, empty, CommitmentStore, which is only in memory. */
+  public CommitmentStore() {
+    this.path = null;
+    this.channel = null;
+    this.commitWindowMicroseconds = DEFAULT_COMMIT_WINDOW_MICROSECONDS;
+    this.maxGroupSize = DEFAULT_MAX_GROUP_SIZE;
+    this.queue = new LinkedBlockingQueue<PendingAppend>();
+    this.committer = null;
+    this.responder = newResponder();
+    this.chains = new ConcurrentHashMap<Hash, Chain>();
+    this.residentCount = new AtomicLong(0);
+    this.closed = false;
+  }
+
+  /**
+   * Open (or create) a CommitmentStore logged to this file, reading in every commitment already in it.
+   * Any torn record at the end of an existing log is truncated away.
+   * @param path the log file
+   * @param commitWindowMicroseconds the longest we wait (after the first append of a group arrives) for more
+   * @param maxGroupSize the most appends in one group commit
+   * @throws IOException if the file can't be opened or read
+   */
+  public CommitmentStore(final Path path, final long commitWindowMicroseconds, final int maxGroupSize)
+      throws IOException {
+    this.path = path;
+    this.commitWindowMicroseconds = commitWindowMicroseconds;
+    this.maxGroupSize = maxGroupSize;
+    this.queue = new LinkedBlockingQueue<PendingAppend>();
+    this.chains = new ConcurrentHashMap<Hash, Chain>();
+    this.residentCount = new AtomicLong(0);
+    this.closed = false;
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final long end = replay();
+    if (end < channel.size()) {
+      logger.log(Level.WARNING, "Truncating torn record(s) at the end of " + path + " from " + channel.size() +
+                                " to " + end + " bytes");
+      channel.truncate(end);
+      channel.force(true);
+    }
+    channel.position(end);
+    this.responder = newResponder();
+    this.committer = new Thread(this::run, "CommitmentStore " + path);
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+  /**
+   * Open (or create) a CommitmentStore logged to this file, with the default window and group size.
+   * Any torn record at the end of an existing log is truncated away.
+   * @param path the log file
+   * @throws IOException if the file can't be opened or read
+   */
+  public CommitmentStore(final Path path) throws IOException {
+    this(path, DEFAULT_COMMIT_WINDOW_MICROSECONDS, DEFAULT_MAX_GROUP_SIZE);
+  }
+
+  /** @return a pool of (daemon) threads, one per available processor, to make responses on. */
+  private static ExecutorService newResponder() {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+      final Thread thread = new Thread(runnable, "CommitmentStore responder");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** @return The log file, or null if this store is only in memory. */
+  public Path getPath() {return path;}
+
+  /** @return The longest we wait (after the first append of a group arrives) for more appends to join it. */
+  public long getCommitWindowMicroseconds() {return commitWindowMicroseconds;}
+
+  /** @return The most appends in one group commit. */
+  public int getMaxGroupSize() {return maxGroupSize;}
+
+  /** @return The number of commitments currently in memory. */
+  public long getResidentCount() {return residentCount.get();}
+
+  /** @return The number of chains with commitments. */
+  public int getChainCount() {return chains.size();}
+
+  /**
+   * The commitment (if any) for this slot of this chain.
+   * @param root the hash of the root of the chain
+   * @param slot the slot number
+   * @return the response (or future response) for that slot, or null if nothing has been committed there
+   */
+  public CompletableFuture<RequestIntegrityAttestationResponse> get(final Hash root, final long slot) {
+    final Chain chain = chains.get(root);
+    if (chain == null) {
+      return null;
+    }
+    synchronized (chain) {
+      return lookup(chain, slot);
+    }
+  }
+
+  /**
+   * Commit to a response for this slot of this chain, unless there is one already.
+   * If there is already a response (or a future response, being made by another request), that is returned.
+   * Otherwise, the policy is durably logged, and then respond is called to make the response (attesting to the
+   *  policy), which is logged once it's made, and then completes the future returned.
+   * If a policy was logged for this slot but its response never was (we crashed, or respond failed), respond is
+   *  called with the logged policy instead of this one.
+   * This does not wait for anything: the log is written, and respond called, on other threads.
+   * @param root the hash of the root of the chain
+   * @param slot the slot number
+   * @param policy the policy to commit to, if nothing has been committed in this slot
+   * @param respond makes the response for a policy. It should not be an error: the response is remembered.
+   * @return the response for this slot, completed exceptionally if it couldn't be made (so nothing is committed)
+   */
+  public CompletableFuture<RequestIntegrityAttestationResponse> commit(
+      final Hash root,
+      final long slot,
+      final IntegrityPolicy policy,
+      final Function<IntegrityPolicy, CompletableFuture<RequestIntegrityAttestationResponse>> respond) {
+    final Chain chain = chains.computeIfAbsent(root, r -> new Chain());
+    final CompletableFuture<RequestIntegrityAttestationResponse> future =
+      new CompletableFuture<RequestIntegrityAttestationResponse>();
+    final IntegrityPolicy committed;
+    synchronized (chain) {
+      final CompletableFuture<RequestIntegrityAttestationResponse> existing = lookup(chain, slot);
+      if (existing != null) {
+        return existing;
+      }
+      chain.put(slot, future);
+      residentCount.incrementAndGet();
+      committed = chain.unfinished.remove(slot);
+    }
+    if (committed == null) {
+      append(List.of(AgreementCommitment.newBuilder().setRoot(root).setSlot(slot).setPolicy(policy).build()), true).
+        whenCompleteAsync((offsets, exception) -> {
+          if (exception != null) {
+            logger.log(Level.SEVERE, "Could not log a commitment to " + path, exception);
+            forget(chain, slot, 1, null);
+            future.completeExceptionally(exception);
+          } else {
+            make(chain, root, slot, 1, policy, respond, future);
+          }
+        }, responder);
+    } else {
+      responder.execute(() -> make(chain, root, slot, 1, committed, respond, future));
+    }
+    return future;
+  }
+
+  /**
+   * Commit to one response for all of these consecutive slots of this chain, if none of them is committed yet.
+   * If they are all already committed to the same response (this segment was asked for before), that is returned.
+   * Otherwise, if any of them is already committed (or has some other policy logged, awaiting a response), nothing
+   *  is committed, and the response returned is an error naming that slot.
+   * Otherwise, the policy is durably logged for each slot (with one force to disk), and then respond is called
+   *  once to make the response, which is logged for each slot once it's made, and then completes the future.
+   * @param root the hash of the root of the chain
+   * @param firstSlot the first slot number
+   * @param length the number of consecutive slots
+   * @param policy the policy to commit to, for every slot
+   * @param respond makes the response for a policy. It should not be an error: the response is remembered.
+   * @return the response for these slots, completed exceptionally if it couldn't be made (so nothing is committed)
+   */
+  public CompletableFuture<RequestIntegrityAttestationResponse> commitSegment(
+      final Hash root,
+      final long firstSlot,
+      final int length,
+      final IntegrityPolicy policy,
+      final Function<IntegrityPolicy, CompletableFuture<RequestIntegrityAttestationResponse>> respond) {
+    final Chain chain = chains.computeIfAbsent(root, r -> new Chain());
+    final CompletableFuture<RequestIntegrityAttestationResponse> future =
+      new CompletableFuture<RequestIntegrityAttestationResponse>();
+    synchronized (chain) {
+      CompletableFuture<RequestIntegrityAttestationResponse> first = null;
+      long conflict = 0;
+      int taken = 0;
+      boolean same = true;
+      for (int i = 0; i < length; ++i) {
+        final long slot = firstSlot + i;
+        final CompletableFuture<RequestIntegrityAttestationResponse> existing = lookup(chain, slot);
+        final IntegrityPolicy logged = chain.unfinished.get(slot);
+        if (existing != null || (logged != null && !logged.equals(policy))) {
+          if (taken == 0) {
+            first = existing;
+            conflict = slot;
+          }
+          same = same && sameResponse(existing, first);
+          ++taken;
+        }
+      }
+      if (taken == length && same) {
+        return first;
+      }
+      if (taken > 0) {
+        return CompletableFuture.completedFuture(RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(
+                 "Slot " + Long.toUnsignedString(conflict) + " of this chain is already committed.").build());
+      }
+      for (int i = 0; i < length; ++i) {
+        chain.put(firstSlot + i, future);
+        chain.unfinished.remove(firstSlot + i);
+      }
+      residentCount.addAndGet(length);
+    }
+    final List<AgreementCommitment> records = new ArrayList<AgreementCommitment>(length);
+    for (int i = 0; i < length; ++i) {
+      records.add(AgreementCommitment.newBuilder().setRoot(root).setSlot(firstSlot + i).setPolicy(policy).build());
+    }
+    append(records, true).whenCompleteAsync((offsets, exception) -> {
+      if (exception != null) {
+        logger.log(Level.SEVERE, "Could not log a commitment to " + path, exception);
+        forget(chain, firstSlot, length, null);
+        future.completeExceptionally(exception);
+      } else {
+        make(chain, root, firstSlot, length, policy, respond, future);
+      }
+    }, responder);
+    return future;
+  }
+
+  /**
+   * Are these the same response? They are if they're the same future, or both are done with equal responses (as
+   *  when each slot of a segment is read back from the log).
+   * @param a a future response (or null)
+   * @param b another future response (or null)
+   * @return whether they're known to be the same response
+   */
+  private static boolean sameResponse(final CompletableFuture<RequestIntegrityAttestationResponse> a,
+                                      final CompletableFuture<RequestIntegrityAttestationResponse> b) {
+    if (a == null || b == null) {
+      return false;
+    }
+    if (a == b) {
+      return true;
+    }
+    return a.isDone() && b.isDone() && !a.isCompletedExceptionally() && !b.isCompletedExceptionally() &&
+           a.join().equals(b.join());
+  }
+
+  /**
+   * Make the response for (already logged) commitments to these slots, log it, and complete their future.
+   * The future is completed by the log thread, once the response is written (but not forced: if it's lost, the
+   *  logged policy is attested to again).
+   * If it can't be made, the commitments are forgotten (but their logged policy is remembered).
+   * @param chain the chain
+   * @param root the hash of the root of the chain
+   * @param firstSlot the first slot number
+   * @param length the number of consecutive slots
+   * @param policy the (logged) policy to attest to
+   * @param respond makes the response for a policy
+   * @param future the future response for these slots, to complete
+   */
+  private void make(final Chain chain,
+                    final Hash root,
+                    final long firstSlot,
+                    final int length,
+                    final IntegrityPolicy policy,
+                    final Function<IntegrityPolicy, CompletableFuture<RequestIntegrityAttestationResponse>> respond,
+                    final CompletableFuture<RequestIntegrityAttestationResponse> future) {
+    CompletableFuture<RequestIntegrityAttestationResponse> response;
+    try {
+      response = respond.apply(policy);
+    } catch (RuntimeException e) {
+      response = new CompletableFuture<RequestIntegrityAttestationResponse>();
+      response.completeExceptionally(e);
+    }
+    response.whenComplete((made, exception) -> {
+      if (exception != null) {
+        logger.log(Level.WARNING, "Could not make a response for slot " + Long.toUnsignedString(firstSlot),
+                   exception);
+        forget(chain, firstSlot, length, policy);
+        future.completeExceptionally(exception);
+        return;
+      }
+      final List<AgreementCommitment> records = new ArrayList<AgreementCommitment>(length);
+      for (int i = 0; i < length; ++i) {
+        records.add(AgreementCommitment.newBuilder().setRoot(root).setSlot(firstSlot + i).setResponse(made).build());
+      }
+      append(records, false).whenComplete((offsets, logException) -> {
+        if (logException != null) { // the policy is logged, so if we restart, we'll just attest to it again.
+          logger.log(Level.WARNING, "Could not log a response to " + path, logException);
+        }
+        synchronized (chain) {
+          for (int i = 0; i < length; ++i) {
+            chain.setOffset(firstSlot + i, (offsets == null) ? NOT_LOGGED : offsets[i]);
+          }
+        }
+        future.complete(made);
+      });
+    });
+  }
+
+  /**
+   * Archive the commitments to slots below this one on this chain out of memory.
+   * Commitments still being made are left alone.
+   * @param root the hash of the root of the chain
+   * @param belowSlot commitments to slots less than this are archived
+   * @return how many commitments were archived
+   */
+  public long archive(final Hash root, final long belowSlot) {
+    final Chain chain = chains.get(root);
+    if (chain == null) {
+      return 0;
+    }
+    long archived = 0;
+    synchronized (chain) {
+      for (Map.Entry<Long, Page> entry : chain.pages.entrySet()) {
+        final Page page = entry.getValue();
+        final long first = entry.getKey() << PAGE_BITS;
+        if (page.responses == null || Long.compareUnsigned(first, belowSlot) >= 0) {
+          continue;
+        }
+        boolean empty = true;
+        for (int i = 0; i < PAGE_SIZE; ++i) {
+          final CompletableFuture<RequestIntegrityAttestationResponse> response = page.responses.get(i);
+          if (response == null) {
+            continue;
+          }
+          if (Long.compareUnsigned(first + i, belowSlot) < 0 && response.isDone()) {
+            page.responses.set(i, null);
+            if (page.offsets[i] == NOT_LOGGED) {
+              page.offsets[i] = ARCHIVED;
+            }
+            ++archived;
+          } else {
+            empty = false;
+          }
+        }
+        if (empty) {
+          page.responses = null;
+        }
+      }
+    }
+    residentCount.addAndGet(-archived);
+    return archived;
+  }
+
+  /**
+   * Stop logging, and close the log file, if there is one.
+   * Records not yet written, and commitments made after this, complete exceptionally (so nothing new is committed).
+   * @throws IOException if the file can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    if (committer != null) {
+      committer.interrupt();
+      try {
+        committer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (PendingAppend pending = queue.poll(); pending != null; pending = queue.poll()) {
+      pending.future.completeExceptionally(new IOException("CommitmentStore " + path + " is closed"));
+    }
+    responder.shutdown();
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  /**
+   * Find the commitment for a slot, in memory or in the log. Call this holding the lock on the chain.
+   * @param chain the chain
+   * @param slot the slot number
+   * @return the response (or future response) for that slot, or null if nothing has been committed there
+   */
+  private CompletableFuture<RequestIntegrityAttestationResponse> lookup(final Chain chain, final long slot) {
+    final CompletableFuture<RequestIntegrityAttestationResponse> resident = chain.resident(slot);
+    if (resident != null) {
+      return resident;
+    }
+    final long offset = chain.offset(slot);
+    if (offset == ARCHIVED) {
+      return CompletableFuture.completedFuture(RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(
+               "Slot " + slot + " of this chain has been archived.").build());
+    }
+    if (offset >= 0) {
+      try {
+        return CompletableFuture.completedFuture(read(offset).getResponse());
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Could not read an archived commitment from " + path, e);
+        final CompletableFuture<RequestIntegrityAttestationResponse> failed =
+          new CompletableFuture<RequestIntegrityAttestationResponse>();
+        failed.completeExceptionally(e);
+        return failed;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Forget commitments that couldn't be made.
+   * @param chain the chain
+   * @param firstSlot the first slot number
+   * @param length the number of consecutive slots
+   * @param logged the policy logged for these slots (which any later response must attest to), or null if none was
+   */
+  private void forget(final Chain chain, final long firstSlot, final int length, final IntegrityPolicy logged) {
+    synchronized (chain) {
+      for (int i = 0; i < length; ++i) {
+        chain.put(firstSlot + i, null);
+        if (logged != null) {
+          chain.unfinished.put(firstSlot + i, logged);
+        }
+      }
+    }
+    residentCount.addAndGet(-length);
+  }
+
+  /**
+   * Append records to the log (if there is one), as part of the next group commit.
+   * @param records the records
+   * @param force whether to force them to the storage device before completing the future
+   * @return a future for the offset of each record in the log (NOT_LOGGED if there is no log), completed by the log
+   *          thread, or completed exceptionally if the records can't be written (or the store is closed)
+   */
+  private CompletableFuture<long[]> append(final List<AgreementCommitment> records, final boolean force) {
+    final PendingAppend pending = new PendingAppend(records, force);
+    if (closed) {
+      pending.future.completeExceptionally(new IOException("CommitmentStore " + path + " is closed"));
+    } else if (failure != null) {
+      pending.future.completeExceptionally(failure);
+    } else if (channel == null) {
+      final long[] offsets = new long[records.size()];
+      Arrays.fill(offsets, NOT_LOGGED);
+      pending.future.complete(offsets);
+    } else {
+      queue.add(pending);
+    }
+    return pending.future;
+  }
+
+  /** Repeatedly collect a group of appends, and write them. Runs on the log thread. */
+  private void run() {
+    final List<PendingAppend> group = new ArrayList<PendingAppend>();
+    while (!closed) {
+      group.clear();
+      try {
+        group.add(queue.take());
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(getCommitWindowMicroseconds());
+        while (group.size() < getMaxGroupSize()) {
+          final PendingAppend next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          group.add(next);
+        }
+      } catch (InterruptedException e) {
+        if (!closed) {
+          logger.log(Level.WARNING, "CommitmentStore interrupted while collecting a group of appends", e);
+        }
+      }
+      commit(group);
+    }
+  }
+
+  /**
+   * Write all the records in this group, force them to disk if any of them need it, and complete their futures.
+   * If they can't be written, the log is cut back to where it was before them, so no torn bytes are left for later
+   *  records to land after (replay would stop at the torn bytes, and lose those later commitments).
+   * If even that fails, the store refuses all further appends.
+   * @param group the appends to write
+   */
+  private void commit(final List<PendingAppend> group) {
+    if (group.isEmpty()) {
+      return;
+    }
+    if (failure != null) {
+      for (PendingAppend pending : group) {
+        pending.future.completeExceptionally(failure);
+      }
+      return;
+    }
+    final List<long[]> offsets = new ArrayList<long[]>(group.size());
+    long start = -1;
+    try {
+      start = channel.position();
+      final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      final CodedOutputStream output = CodedOutputStream.newInstance(stream);
+      final CRC32 crc = new CRC32();
+      boolean force = false;
+      for (PendingAppend pending : group) {
+        final long[] pendingOffsets = new long[pending.records.size()];
+        for (int i = 0; i < pendingOffsets.length; ++i) {
+          pendingOffsets[i] = start + output.getTotalBytesWritten();
+          final byte[] bytes = pending.records.get(i).toByteArray();
+          crc.reset();
+          crc.update(bytes);
+          output.writeUInt32NoTag(bytes.length);
+          output.writeRawBytes(bytes);
+          output.writeFixed32NoTag((int) crc.getValue());
+        }
+        offsets.add(pendingOffsets);
+        force = force || pending.force;
+      }
+      output.flush();
+      final ByteBuffer buffer = ByteBuffer.wrap(stream.toByteArray());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      if (force) {
+        channel.force(false);
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "CommitmentStore failed to write to " + path, e);
+      rollBack(start, e);
+      for (PendingAppend pending : group) {
+        pending.future.completeExceptionally(e);
+      }
+      return;
+    }
+    for (int i = 0; i < group.size(); ++i) {
+      group.get(i).future.complete(offsets.get(i));
+    }
+  }
+
+  /**
+   * Cut the log back to where it was before a failed group commit. Runs on the log thread.
+   * If that can't be done, refuse all further appends.
+   * @param start the length of the log before the failed group commit (if negative, it's unknown)
+   * @param cause why the group commit failed
+   */
+  private void rollBack(final long start, final IOException cause) {
+    try {
+      if (start < 0) {
+        throw new IOException("CommitmentStore " + path + " doesn't know where the failed append started");
+      }
+      if (channel.size() > start) {
+        channel.truncate(start);
+      }
+      channel.position(start);
+      channel.force(true);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Could not roll back a failed append to " + path + ", refusing further commitments", e);
+      final IOException failed = new IOException("CommitmentStore " + path + " failed, and couldn't roll back", cause);
+      failed.addSuppressed(e);
+      failure = failed;
+    }
+  }
+
+  /**
+   * Read the record at this offset of the log.
+   * @param offset the offset of the record
+   * @return the record
+   * @throws IOException if it can't be read
+   */
+  private AgreementCommitment read(final long offset) throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(5); // the longest varint32
+    channel.read(header, offset);
+    final CodedInputStream input = CodedInputStream.newInstance(header.array(), 0, header.position());
+    final ByteBuffer record = ByteBuffer.allocate(input.readRawVarint32());
+    final long start = offset + input.getTotalBytesRead();
+    while (record.hasRemaining()) {
+      if (channel.read(record, start + record.position()) < 0) {
+        throw new EOFException("Commitment record at " + offset + " runs past the end of " + path);
+      }
+    }
+    return AgreementCommitment.parseFrom(record.array());
+  }
+
+  /**
+   * Read every (intact) record in the log, in order, into memory.
+   * Stops at the first torn or corrupt record.
+   * @return the length of the intact part of the log, in bytes
+   * @throws IOException if the file can't be read
+   */
+  private long replay() throws IOException {
+    long end = 0;
+    try (InputStream stream = new BufferedInputStream(Channels.newInputStream(FileChannel.open(path)))) {
+      final CodedInputStream input = CodedInputStream.newInstance(stream);
+      input.setSizeLimit(Integer.MAX_VALUE);
+      final CRC32 crc = new CRC32();
+      while (!input.isAtEnd()) {
+        input.resetSizeCounter();
+        final byte[] bytes;
+        final int checksum;
+        try {
+          bytes = input.readRawBytes(input.readRawVarint32());
+          checksum = input.readFixed32();
+        } catch (InvalidProtocolBufferException e) {
+          break; // torn record at the end
+        }
+        crc.reset();
+        crc.update(bytes);
+        if (checksum != (int) crc.getValue()) {
+          logger.log(Level.WARNING, "Corrupt record in " + path + " at byte " + end);
+          break;
+        }
+        final AgreementCommitment record = AgreementCommitment.parseFrom(bytes);
+        final Chain chain = chains.computeIfAbsent(record.getRoot(), r -> new Chain());
+        if (record.hasResponse()) {
+          chain.unfinished.remove(record.getSlot());
+          if (chain.resident(record.getSlot()) == null) {
+            residentCount.incrementAndGet();
+          }
+          chain.put(record.getSlot(), CompletableFuture.completedFuture(record.getResponse()));
+          chain.setOffset(record.getSlot(), end);
+        } else if (record.hasPolicy() && chain.resident(record.getSlot()) == null) {
+          chain.unfinished.put(record.getSlot(), record.getPolicy());
+        }
+        end += input.getTotalBytesRead();
+      }
+    }
+    return end;
+  }
+}
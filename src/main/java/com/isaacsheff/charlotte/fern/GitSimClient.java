@@ -1,7 +1,6 @@
 package com.isaacsheff.charlotte.fern;
 
 import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
-import static com.isaacsheff.charlotte.node.SignatureUtil.checkSignature;
 import static com.isaacsheff.charlotte.node.SignatureUtil.signBytes;
 import static java.util.concurrent.ConcurrentHashMap.newKeySet;
 
@@ -12,6 +11,8 @@ import java.util.Set;
 
 import com.google.protobuf.ByteString;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.ReferenceIndex;
+import com.isaacsheff.charlotte.node.SignatureVerificationService;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.Hash;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation;
@@ -197,8 +198,8 @@ public class GitSimClient extends AgreementFernClient {
 
   /**
    * Fill in all known attestations for a reference.
-   * Danger: this is SLOW!
-   * It is going to search through all known blocks, possibly multiple times (as it fills out references to integrity attestations).
+   * Looks them up in the local service's ReferenceIndex, recursively (as it fills out references to integrity
+   *  attestations), so it takes time proportional to the number of attestations found, not the number of known blocks.
    * @param reference the reference for which we're seeking attestations.
    * @return the same reference, but with all known integrity and availability attestations added.
    */
@@ -216,45 +217,16 @@ public class GitSimClient extends AgreementFernClient {
         builder.addIntegrityAttestations(collectAttestations(attestation));
       }
     }
-    for (Block block : getLocalService().getBlockMap().values()) {
-      final Hash blockHash = sha3Hash(block);
-      if (!knownAttestations.contains(blockHash)) { // if this attestation isn't already listed...
-        if (block.hasAvailabilityAttestation()) {
-          if (block.getAvailabilityAttestation().hasSignedStoreForever()
-             && block.getAvailabilityAttestation().getSignedStoreForever().hasStoreForever()) {
-            for (Reference r : block.getAvailabilityAttestation().getSignedStoreForever().getStoreForever().getBlockList()) {
-              if (r.hasHash()
-                 && r.getHash().equals(reference.getHash())) {
-                builder.addAvailabilityAttestations(blockHash);
-              }
-            }
-          }
-        } else if (block.hasIntegrityAttestation()) {
-          if(block.getIntegrityAttestation().hasSignedChainSlot()) {
-            if (block.getIntegrityAttestation().getSignedChainSlot().hasChainSlot()
-               && block.getIntegrityAttestation().getSignedChainSlot().getChainSlot().hasBlock()
-               && block.getIntegrityAttestation().getSignedChainSlot().getChainSlot().getBlock().hasHash()
-               && block.getIntegrityAttestation().getSignedChainSlot().getChainSlot().getBlock().getHash().equals(reference.getHash())) {
-              builder.addIntegrityAttestations(collectAttestations(Reference.newBuilder().setHash(blockHash).build()));
-            }
-          } else if (block.getIntegrityAttestation().hasSignedGitSimBranch()) {
-            if (block.getIntegrityAttestation().getSignedGitSimBranch().hasGitSimBranch()
-               && block.getIntegrityAttestation().getSignedGitSimBranch().getGitSimBranch().hasCommit()
-               && block.getIntegrityAttestation().getSignedGitSimBranch().getGitSimBranch().getCommit().hasHash()
-               && block.getIntegrityAttestation().getSignedGitSimBranch().getGitSimBranch().getCommit().getHash().
-                  equals(reference.getHash())){
-              builder.addIntegrityAttestations(collectAttestations(Reference.newBuilder().setHash(blockHash).build()));
-            }
-          } else if (block.getIntegrityAttestation().hasSignedTimestampedReferences()) {
-            if (block.getIntegrityAttestation().getSignedTimestampedReferences().hasTimestampedReferences()) {
-              for (Reference r:block.getIntegrityAttestation().getSignedTimestampedReferences().getTimestampedReferences().getBlockList()) {
-                if (r.hasHash()
-                   && r.getHash().equals(reference.getHash())) {
-                  builder.addIntegrityAttestations(collectAttestations(Reference.newBuilder().setHash(blockHash).build()));
-                }
-              }
-            }
-          }
+    final ReferenceIndex index = getLocalService().getReferenceIndex();
+    for (Hash attestation : index.getAvailabilityAttestations(reference.getHash())) {
+      if (knownAttestations.add(attestation)) { // if this attestation isn't already listed...
+        builder.addAvailabilityAttestations(attestation);
+      }
+    }
+    for (ReferenceIndex.Kind kind : ReferenceIndex.INTEGRITY_KINDS) {
+      for (Hash attestation : index.getAttestations(reference.getHash(), kind)) {
+        if (knownAttestations.add(attestation)) { // if this attestation isn't already listed...
+          builder.addIntegrityAttestations(collectAttestations(Reference.newBuilder().setHash(attestation).build()));
         }
       }
     }
@@ -294,8 +266,9 @@ public class GitSimClient extends AgreementFernClient {
                                 attestation);
       return null;
     }
-    if (!checkSignature(attestation.getIntegrityAttestation().getSignedGitSimBranch().getGitSimBranch(),
-                        attestation.getIntegrityAttestation().getSignedGitSimBranch().getSignature())) {
+    if (!SignatureVerificationService.getDefault().check(
+          attestation.getIntegrityAttestation().getSignedGitSimBranch().getGitSimBranch(),
+          attestation.getIntegrityAttestation().getSignedGitSimBranch().getSignature())) {
       logger.log(Level.WARNING, "Response from Fern Server referenced attestation with an incorrect signature:\n" +
                                 attestation);
       return null;
@@ -2,18 +2,15 @@ package com.isaacsheff.charlotte.fern;
 
 import static com.google.protobuf.util.Timestamps.fromMillis;
 import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
-import static com.isaacsheff.charlotte.node.SignatureUtil.checkSignature;
-import static com.isaacsheff.charlotte.node.SignatureUtil.signBytes;
 import static java.lang.Integer.parseInt;
 import static java.lang.System.currentTimeMillis;
 
-import com.isaacsheff.charlotte.collections.ConcurrentHolder;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.SignatureVerificationService;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.FernGrpc.FernImplBase; import com.isaacsheff.charlotte.proto.Hash;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation;
-import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation.GitSimBranch;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedGitSimBranch;
 import com.isaacsheff.charlotte.proto.IntegrityPolicy;
@@ -25,6 +22,7 @@ import com.isaacsheff.charlotte.proto.SignedGitSimCommit.GitSimCommit.GitSimPare
 import java.nio.file.Path;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
@@ -138,7 +136,7 @@ public class GitSimFern extends AgreementFernService {
    */
   public GitSimFern(final CharlotteNodeService node,
                     final ConcurrentMap<String, Hash> latestCommits){
-    super(node, new ConcurrentHashMap<ChainSlot, ConcurrentHolder<RequestIntegrityAttestationResponse>>());
+    super(node, new CommitmentStore());
     this.latestCommits = latestCommits;
   }
 
@@ -196,8 +194,8 @@ public class GitSimFern extends AgreementFernService {
     if (!commit.getSignedGitSimCommit().hasSignature()) {
       return "Referenced block has no Signature:\nPOLICY:\n"+policy+"\nREFERENCED BLOCK:\n"+commit;
     }
-    if (!checkSignature(commit.getSignedGitSimCommit().getCommit(),
-                        commit.getSignedGitSimCommit().getSignature())) {
+    if (!SignatureVerificationService.getDefault().check(commit.getSignedGitSimCommit().getCommit(),
+                                                         commit.getSignedGitSimCommit().getSignature())) {
       return "The SignedGitSimCommit signature does not verify correctly.";
     }
 
@@ -218,7 +216,7 @@ public class GitSimFern extends AgreementFernService {
             IntegrityAttestation.newBuilder().setSignedGitSimBranch(
               SignedGitSimBranch.newBuilder().
                 setGitSimBranch(gitSimBranch).
-                setSignature(signBytes(getNode().getConfig().getKeyPair(), gitSimBranch))
+                setSignature(signAttestation(gitSimBranch))
             )
           ).build();
     getNode().onSendBlocksInput(block); // distribute the block
@@ -228,6 +226,18 @@ public class GitSimFern extends AgreementFernService {
   }
 
 
+  /**
+   * Called whenever a request comes in over the wire.
+   * GitSimFern waits for the referenced commit blocks, so this just calls requestIntegrityAttestation.
+   * @param request details what we want attested to
+   * @return a completed future RequestIntegrityAttestationResponse
+   */
+  @Override
+  public CompletableFuture<RequestIntegrityAttestationResponse> requestIntegrityAttestationAsync(
+      final RequestIntegrityAttestationInput request) {
+    return CompletableFuture.completedFuture(requestIntegrityAttestation(request));
+  }
+
   /**
    * Called whenever a request comes in over the wire.
    * If there is really a GitSim request in here, we pass it on to
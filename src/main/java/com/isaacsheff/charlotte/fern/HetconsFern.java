@@ -5,6 +5,7 @@ import com.isaacsheff.charlotte.collections.BlockingMap;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.HetconsParticipantNodeForFern;
 import com.isaacsheff.charlotte.node.SignatureUtil;
+import com.isaacsheff.charlotte.node.SignatureVerificationService;
 import com.isaacsheff.charlotte.proto.*;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation.HetconsAttestation;
@@ -13,7 +14,6 @@ import com.isaacsheff.charlotte.yaml.Config;
 import com.xinwenwang.hetcons.HetconsUtil;
 import com.xinwenwang.hetcons.config.HetconsConfig;
 import io.grpc.Context;
-import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
@@ -72,6 +72,12 @@ public class HetconsFern extends AgreementFernService {
   /** Use logger for logging events in this class. */
   private static final Logger logger = Logger.getLogger(HetconsFern.class.getName());
 
+  /** The longest an agreement request waits for an attestation, if we're not told otherwise. */
+  public static final long DEFAULT_ATTESTATION_WAIT_MILLISECONDS = 60000;
+
+  /** The longest an agreement request waits for an attestation before it gets an error response. */
+  private volatile long attestationWaitMilliseconds = DEFAULT_ATTESTATION_WAIT_MILLISECONDS;
+
   /** The HetconsNode (which is also a CharlotteNode Service) that also inhabits this server **/
   private final HetconsParticipantNodeForFern hetconsNode;
 
@@ -81,12 +87,13 @@ public class HetconsFern extends AgreementFernService {
   /** All responses yet made for hetcons requests for each chain slot and observer **/
   private final ConcurrentMap<ChainSlot, BlockingMap<CryptoId, RequestIntegrityAttestationResponse>> hetconsAttestationCache;
 
-  /* an map from proposalID to a queue of threads that waiting for attestation related to the proposal */
-  private final ConcurrentMap<String, ConcurrentLinkedQueue<Thread>> requestResponseTable;
+  /* an map from proposalID to a queue of futures waiting for attestations related to the proposal */
+  private final ConcurrentMap<String, ConcurrentLinkedQueue<CompletableFuture<RequestIntegrityAttestationResponse>>>
+    requestResponseTable;
 
-  private final HashMap<String, Boolean> requestResponseComplete;
+  private final ConcurrentMap<String, Boolean> requestResponseComplete;
 
-  /* the pool of threads which will waiting attestation response from other observer */
+  /* the pool of threads which send responses once attestations arrive (none of them wait for attestations) */
   private final ExecutorService responseWaitingPool;
 
 
@@ -147,7 +154,7 @@ public class HetconsFern extends AgreementFernService {
     hetconsAttestationCache =
       new ConcurrentHashMap<ChainSlot, BlockingMap<CryptoId, RequestIntegrityAttestationResponse>>();
     requestResponseTable = new ConcurrentHashMap<>();
-    requestResponseComplete = new HashMap<>();
+    requestResponseComplete = new ConcurrentHashMap<>();
     responseWaitingPool = Executors.newCachedThreadPool();
 //    poolQueue = new LinkedBlockingQueue<>();
 //    new Thread(() -> {
@@ -176,6 +183,17 @@ public class HetconsFern extends AgreementFernService {
   /** @return The HetconsNode (which is also a CharlotteNode Service) that also inhabits this server **/
   public HetconsParticipantNodeForFern getHetconsNode() {return hetconsNode;};
 
+  /** @return The longest an agreement request waits for an attestation before it gets an error response. */
+  public long getAttestationWaitMilliseconds() {return attestationWaitMilliseconds;}
+
+  /**
+   * @param attestationWaitMilliseconds the longest an agreement request waits for an attestation before it gets an
+   *                                    error response
+   */
+  public void setAttestationWaitMilliseconds(final long attestationWaitMilliseconds) {
+    this.attestationWaitMilliseconds = attestationWaitMilliseconds;
+  }
+
   /** @return All responses yet made for agreement requests for each chain slot **/
   public BlockingMap<ChainSlot, RequestIntegrityAttestationResponse> getAgreementAttestationCache() {
     return agreementAttestationCache;
@@ -209,20 +227,21 @@ public class HetconsFern extends AgreementFernService {
  }
 
   /**
-   * Retrieve a value from hetconsAttestationCache, waiting, if necessary, until there is one.
+   * Retrieve a value from hetconsAttestationCache, without waiting.
    * @param slot the ChainSlot this value is in
    * @param observer the observer for whom this value is decided
-   * @return the actual response to send to clients
+   * @return a future for the actual response to send to clients (cancel it to stop waiting)
    */
-  private RequestIntegrityAttestationResponse getHetconsAttestation(final ChainSlot slot, final CryptoId observer) {
+  private CompletableFuture<RequestIntegrityAttestationResponse> futureHetconsAttestation(final ChainSlot slot,
+                                                                                         final CryptoId observer) {
     final BlockingMap<CryptoId, RequestIntegrityAttestationResponse> newObserverToResponse =
       new BlockingConcurrentHashMap<CryptoId, RequestIntegrityAttestationResponse>();
     final BlockingMap<CryptoId, RequestIntegrityAttestationResponse> oldObserverToResponse =
       getHetconsAttestationCache().putIfAbsent(slot, newObserverToResponse);
     if (oldObserverToResponse == null) {
-      return newObserverToResponse.blockingGet(observer);
+      return newObserverToResponse.futureGet(observer);
     } else {
-      return oldObserverToResponse.blockingGet(observer);
+      return oldObserverToResponse.futureGet(observer);
     }
   }
 
@@ -333,7 +352,8 @@ public class HetconsFern extends AgreementFernService {
 
   public void saveAttestation(IntegrityAttestation attestation) {
     HetconsAttestation hetconsAttestation = attestation.getSignedHetconsAttestation().getAttestation();
-    if (!SignatureUtil.checkSignature(hetconsAttestation, attestation.getSignedHetconsAttestation().getSignaure())) {
+    if (!SignatureVerificationService.getDefault().check(hetconsAttestation,
+                                                         attestation.getSignedHetconsAttestation().getSignaure())) {
       // logger.info("Signature does not match");
       return;
     }
@@ -365,7 +385,7 @@ public class HetconsFern extends AgreementFernService {
 
   /**
    * Called when a request for integrity attestation comes in over the wire.
-   * This will wait for an attestation to become available, and then respond with it.
+   * This will respond with an attestation once one becomes available (without a thread waiting for it).
    * If the request is for a HetconsAttestation, it will also initiate consensus.
    * @param request the incoming request for an attestation from the wire.
    * @param responseObserver used to send ONE response back over the wire.
@@ -381,12 +401,17 @@ public class HetconsFern extends AgreementFernService {
                && request.getPolicy().getFillInTheBlank().hasSignedChainSlot()
                && request.getPolicy().getFillInTheBlank().getSignedChainSlot().hasChainSlot()
                && request.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().hasRoot()) {
-      responseObserver.onNext(getAgreementAttestationCache().get(
+      // respond once there is an attestation, without waiting for it here.
+      final CompletableFuture<RequestIntegrityAttestationResponse> response = getAgreementAttestationCache().futureGet(
         ChainSlot.newBuilder().
           setRoot(request.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getRoot()).
           setSlot(request.getPolicy().getFillInTheBlank().getSignedChainSlot().getChainSlot().getSlot()).
-          build()));
-      responseObserver.onCompleted();
+          build());
+      Context.current().addListener(context -> response.cancel(false), Runnable::run);
+      response.completeOnTimeout(RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(
+          "No attestation for this slot within " + getAttestationWaitMilliseconds() + " milliseconds.").build(),
+        getAttestationWaitMilliseconds(), TimeUnit.MILLISECONDS);
+      respond(response, responseObserver);
     } else if (request.getPolicy().hasHetconsPolicy()
                && request.getPolicy().getHetconsPolicy().hasObserver()
                && request.getPolicy().getHetconsPolicy().hasProposal()
@@ -425,40 +450,27 @@ public class HetconsFern extends AgreementFernService {
 
       requestResponseTable.putIfAbsent(proposalID, new ConcurrentLinkedQueue<>());
       requestResponseComplete.putIfAbsent(proposalID, false);
+      final ConcurrentLinkedQueue<CompletableFuture<RequestIntegrityAttestationResponse>> waiting =
+        requestResponseTable.get(proposalID);
+      final List<CompletableFuture<RequestIntegrityAttestationResponse>> ours = new ArrayList<>();
 
       for (ChainSlot slot : slots) {
         for (CryptoId ob : obs) {
           // Whichever Slot reaches consensus first for this observer, return the affiliated response
-          responseWaitingPool.submit(() -> {
+          // Nothing waits for that: the response is sent (on responseWaitingPool) once the attestation arrives.
+          final CompletableFuture<RequestIntegrityAttestationResponse> attestation = futureHetconsAttestation(slot, ob);
+          waiting.add(attestation);
+          ours.add(attestation);
+          attestation.thenAcceptAsync(attestationResponse -> {
             try {
-              // This call blocks until that slot is filled
-
-              synchronized (requestResponseTable.get(proposalID)) {
-                /* bookkeeping thread for this proposal */
-                requestResponseTable.get(proposalID).add(Thread.currentThread());
-              }
-
-              RequestIntegrityAttestationResponse attestationResponse = getHetconsAttestation(slot, ob);
-
-              if (Context.current().isCancelled()) {
-                responseObserver.onError(Status.CANCELLED.withDescription("Cancelled by client").asRuntimeException());
-                return;
-              }
-
               /* return if this proposal has been responded */
               if (requestResponseComplete.get(proposalID))
                 return;
 
-//              if (requestResponseTable.get(proposalID).isEmpty() || Thread.interrupted())
-//                return;
-
-              synchronized (requestResponseTable.get(proposalID)) {
+              synchronized (waiting) {
                 if (requestResponseComplete.get(proposalID))
                   return;
 
-//                if (requestResponseTable.get(proposalID).isEmpty() || Thread.interrupted())
-//                  return;
-
                 HetconsAttestation  receivedAttestation = attestationResponse.getAttestation().getSignedHetconsAttestation().getAttestation();
                 HetconsValue        requestValue        = request.getPolicy().getHetconsPolicy().getProposal().getM1A().getProposal().getValue();
 
@@ -474,17 +486,15 @@ public class HetconsFern extends AgreementFernService {
                     logger.info(ex.getMessage());
 
                   }
-//                  requestResponseTable.get(proposalID).clear();
-                  // System.err.println(proposalID+" response sent");
                 } else {
-                  // System.err.println("Abort on "+proposalID+" at value "+requestValue);
                   if (!receivedProposalID.equals(requestProposalID)) {
                     getHetconsNode().abortProposal(requestProposalID);
                   }
                   responseSlotAlreadyTaken(request, responseObserver);
                 }
-                requestResponseTable.get(proposalID).forEach(Thread::interrupt);
-                requestResponseTable.get(proposalID).clear();
+                /* stop waiting for the other slots and observers */
+                waiting.forEach(future -> future.cancel(false));
+                waiting.clear();
                 requestResponseComplete.put(proposalID, true);
               }
             } catch (Throwable t) {
@@ -492,9 +502,11 @@ public class HetconsFern extends AgreementFernService {
               // This is likely to happen if multiple chainSlots are filled.
               // That's ok, we can return any one of them.
             }
-          });
+          }, responseWaitingPool);
         }
       }
+      // If the client goes away, stop waiting for attestations on its behalf.
+      Context.current().addListener(context -> ours.forEach(future -> future.cancel(false)), Runnable::run);
     } else {
       responseObserver.onNext(RequestIntegrityAttestationResponse.newBuilder().setErrorMessage(
                "There was neither a properly formatted Agreement request nor a properly formatted Consensus request").build());
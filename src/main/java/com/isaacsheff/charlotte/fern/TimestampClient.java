@@ -1,14 +1,20 @@
 package com.isaacsheff.charlotte.fern;
 
 import static com.isaacsheff.charlotte.node.SignatureUtil.checkSignature;
+import static com.isaacsheff.charlotte.node.TimestampNode.checkTimestampProof;
 
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationInput;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
+import com.isaacsheff.charlotte.proto.TimestampProofInput;
+import com.isaacsheff.charlotte.proto.TimestampProofResponse;
 import com.isaacsheff.charlotte.yaml.Contact;
 
 /**
@@ -68,12 +74,62 @@ public class TimestampClient extends AgreementFernClient {
     return attestation;
   }
 
+  /**
+   * Send a GetTimestampProof to the Fern Server, and await a response.
+   * This corresponds directly to the gRPC call.
+   * @param request the request sent to the server over the wire
+   * @return the TimestampProofResponse returned over the wire.
+   */
+  public TimestampProofResponse getTimestampProof(final TimestampProofInput request) {
+    return getBlockingStub().getTimestampProof(request);
+  }
+
+  /**
+   * Ask the Fern Server for proof that this block was timestamped under a Merkle root, and check it.
+   * Fetches the attestation the proof names from our local node.
+   * This may wait until the block referenced is received.
+   * Checks for a valid signature in a properly formatted SignedTimestampedReferences, and that the proof leads
+   *  from the block to its Merkle root.
+   * @param block the hash of the block we want to know was timestamped
+   * @return the Integrity Attestation Block timestamping the block, if it's valid, null otherwise.
+   */
+  public Block checkTimestamp(final Hash block) {
+    final TimestampProofResponse response = getTimestampProof(TimestampProofInput.newBuilder().setBlock(block).build());
+    if (!response.getErrorMessage().equals("")) {
+      logger.log(Level.WARNING, "Timestamp Proof from Fern Server has an Error Message: " + response.getErrorMessage());
+      return null;
+    }
+    if (!response.getProof().getBlock().getHash().equals(block)) {
+      logger.log(Level.WARNING, "Timestamp Proof from Fern Server is for a different block:\n" + response);
+      return null;
+    }
+    if (!response.getProof().getAttestation().hasHash()) {
+      logger.log(Level.WARNING, "Timestamp Proof from Fern Server has no Hash in its attestation reference:\n" +
+                                response);
+      return null;
+    }
+    final Block attestation =
+      checkIntegrityAttestation(getLocalService().getBlock(response.getProof().getAttestation()));
+    if (attestation == null) {
+      return null;
+    }
+    if (!checkTimestampProof(response.getProof(), attestation)) {
+      logger.log(Level.WARNING, "Timestamp Proof from Fern Server does not lead to its attestation's Merkle root:" +
+                                "\nPROOF:\n" + response +
+                                "\nATTESTATION:\n" + attestation);
+      return null;
+    }
+    return attestation;
+  }
+
   /**
    * Check whether this Response references a valid IntegrityAttestation matching the request.
    * Fetches the block from our local node.
    * This may wait until the block referenced is received.
-   * Checks for a valid signature in a properly formatted SignedChainSlot.
-   * Checks that the Attestation is for the same ChainSlot, and the same CryptoId, as the request.
+   * Checks for a valid signature in a properly formatted SignedTimestampedReferences.
+   * Checks that the Attestation timestamps every block in the request, and has the same CryptoId.
+   * Blocks not listed in the attestation may be timestamped under its Merkle root: for those, we ask the Fern Server
+   *  for proof (see checkTimestamp).
    * @param request the request we sent to the Fern server
    * @param response references the block we're hoping contains the IntegrityAttestation
    * @return the Integrity Attestation Block input if it's valid, null otherwise.
@@ -85,12 +141,16 @@ public class TimestampClient extends AgreementFernClient {
      if (attestation == null) {
        return null;
      }
-     if (!attestation.getIntegrityAttestation().getSignedTimestampedReferences().getTimestampedReferences().getBlockList().containsAll(
-        request.getPolicy().getFillInTheBlank().getSignedTimestampedReferences().getTimestampedReferences().getBlockList())) {
-       logger.log(Level.WARNING, "Response from Fern Server did not reference all the blocks we wanted timestamped."+
-                                 "\nATTESTATION:\n"+attestation+
-                                 "\nREQUEST:\n"+request);
-       return null;
+     final List<Reference> listed =
+       attestation.getIntegrityAttestation().getSignedTimestampedReferences().getTimestampedReferences().getBlockList();
+     for (Reference reference : request.getPolicy().getFillInTheBlank().getSignedTimestampedReferences().
+                                  getTimestampedReferences().getBlockList()) {
+       if (!listed.contains(reference) && !attestation.equals(checkTimestamp(reference.getHash()))) {
+         logger.log(Level.WARNING, "Response from Fern Server did not reference all the blocks we wanted timestamped."+
+                                   "\nATTESTATION:\n"+attestation+
+                                   "\nREQUEST:\n"+request);
+         return null;
+       }
      }
      if (!attestation.getIntegrityAttestation().getSignedTimestampedReferences().getSignature().getCryptoId().equals(
         request.getPolicy().getFillInTheBlank().getSignedTimestampedReferences().getSignature().getCryptoId())) {
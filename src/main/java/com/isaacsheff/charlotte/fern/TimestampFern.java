@@ -5,11 +5,14 @@ import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
 import static com.isaacsheff.charlotte.node.SignatureUtil.signBytes;
 import static java.lang.Integer.parseInt;
 import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.MerkleBatchSigner;
 import com.isaacsheff.charlotte.node.TimestampNode;
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
 import com.isaacsheff.charlotte.proto.FernGrpc.FernImplBase;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedTimestampedReferences;
@@ -18,11 +21,25 @@ import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationInput;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
 import com.isaacsheff.charlotte.proto.SendBlocksResponse;
+import com.isaacsheff.charlotte.proto.Signature;
+import com.isaacsheff.charlotte.proto.TimestampProof;
+import com.isaacsheff.charlotte.proto.TimestampProofInput;
+import com.isaacsheff.charlotte.proto.TimestampProofResponse;
 import com.isaacsheff.charlotte.yaml.Config;
 
 import io.grpc.stub.StreamObserver;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -46,6 +63,15 @@ import java.util.logging.Logger;
  *  and then issue a signed timestamp.
  * </p>
  *
+ * <p>
+ * With a group window set (see setGroupWindowMicroseconds), requests
+ *  arriving within the window of each other share one timestamp
+ *  covering all their references, and every one of them gets a
+ *  reference to it.
+ * At most maxGroupSize requests share one timestamp (see
+ *  setMaxGroupSize).
+ * </p>
+ *
  * @author Isaac Sheff
  */
 public class TimestampFern extends FernImplBase {
@@ -56,18 +82,74 @@ public class TimestampFern extends FernImplBase {
   /** The local CharlotteNodeService used to send and receive blocks */
   protected CharlotteNodeService node;
 
+  /**
+   * If not null, timestamps are signed in Merkle batches by this, rather than one signature each.
+   * See setBatchSigner.
+   */
+  private volatile MerkleBatchSigner batchSigner = null;
+
+  /** A sensible group window, for those who want requests to share timestamps. */
+  public static final long DEFAULT_GROUP_WINDOW_MICROSECONDS = 1000;
+
+  /**
+   * The longest we wait (after the first request of a group arrives) for more requests to share its timestamp.
+   * If not positive, each request gets its own timestamp.
+   */
+  private volatile long groupWindowMicroseconds = 0;
+
+  /** The default most requests sharing one timestamp. */
+  public static final int DEFAULT_MAX_GROUP_SIZE = 1024;
+
+  /** The most requests sharing one timestamp: a full group is timestamped without waiting out the window. */
+  private volatile int maxGroupSize = DEFAULT_MAX_GROUP_SIZE;
+
+  /** Requests waiting to share a timestamp. */
+  private final BlockingQueue<PendingTimestamp> group = new LinkedBlockingQueue<PendingTimestamp>();
+
+  /** The (daemon) thread collecting groups, or null if it hasn't started. Guarded by group. */
+  private Thread groupThread = null;
+
+  /**
+   * Makes each group's timestamp, once collected, or null if the group thread hasn't started. Guarded by group.
+   * Its (daemon) threads are cached rather than fixed in number: storing a timestamp may set off a request which
+   *  waits for the next group, and that group must not wait for a thread.
+   */
+  private ExecutorService groupExecutor = null;
+
+  /** One request waiting to share a timestamp. */
+  private static class PendingTimestamp {
+    /** The blocks to be timestamped. */
+    private final List<Reference> references;
+
+    /** Filled in once the group's timestamp is made. */
+    private final CompletableFuture<RequestIntegrityAttestationResponse> future;
+
+    /** @param references the blocks to be timestamped */
+    PendingTimestamp(final List<Reference> references) {
+      this.references = references;
+      this.future = new CompletableFuture<RequestIntegrityAttestationResponse>();
+    }
+  }
+
   /**
    * Run as a main class with an arg specifying a config file name to run a Fern Timestamp server.
    * creates and runs a new CharlotteNode which runs a Fern Service
    *  and a TimestampNode service (which is a CharlotteNode Service), in a new thread.
    * @param args command line args. args[0] should be the name of the config file, args[1] is BlocksPerTimestamp, args[2] (optional) is timeout until the server shuts down, in seconds
+   *             args[3] (optional) is how long (microseconds) to wait to sign timestamps together in a Merkle batch.
    */
   public static void main(String[] args) throws InterruptedException{
     if (args.length < 1) {
       System.out.println("Correct Usage: FernService configFileName.yaml");
       return;
     }
-    final Thread thread = new Thread(getFernNode(args[0], parseInt(args[1])));
+    final TimestampFern fern = new TimestampFern(args[0], parseInt(args[1]));
+    if (args.length > 3) {
+      fern.setBatchSigner(new MerkleBatchSigner(fern.getNode().getConfig().getKeyPair(),
+                                                Long.parseLong(args[3]),
+                                                MerkleBatchSigner.DEFAULT_MAX_BATCH_SIZE));
+    }
+    final Thread thread = new Thread(getFernNode(fern));
     thread.start();
     logger.info("Fern service started on new thread");
     thread.join();
@@ -141,69 +223,254 @@ public class TimestampFern extends FernImplBase {
   /** @return The local CharlotteNodeService used to send and receive blocks */
   public CharlotteNodeService getNode() {return node;}
 
+  /** @return the MerkleBatchSigner signing timestamps, or null if each timestamp is signed on its own. */
+  public MerkleBatchSigner getBatchSigner() {return batchSigner;}
+
+  /**
+   * Sign timestamps in Merkle batches: concurrent timestamps share one signature over their Merkle root.
+   * Clients verify these with SignatureUtil.checkSignature as usual.
+   * @param batchSigner the MerkleBatchSigner to use (with this node's keys), or null to sign each timestamp on its own.
+   */
+  public void setBatchSigner(final MerkleBatchSigner batchSigner) {this.batchSigner = batchSigner;}
+
+  /**
+   * @return the longest we wait (after the first request of a group arrives) for more requests to share its
+   *          timestamp (if not positive, each request gets its own timestamp).
+   */
+  public long getGroupWindowMicroseconds() {return groupWindowMicroseconds;}
+
+  /**
+   * Let requests share timestamps: requests arriving within this window of the first request of a group get one
+   *  timestamp covering all their references.
+   * Requests timestamping a Merkle root always get their own timestamp.
+   * @param groupWindowMicroseconds the longest we wait for more requests (if not positive, each request gets its
+   *                                own timestamp)
+   */
+  public void setGroupWindowMicroseconds(final long groupWindowMicroseconds) {
+    this.groupWindowMicroseconds = groupWindowMicroseconds;
+    synchronized(group) {
+      if (groupWindowMicroseconds > 0 && groupThread == null) {
+        groupExecutor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "TimestampFern group timestamp");
+            thread.setDaemon(true);
+            return thread;
+          });
+        groupThread = new Thread(this::runGroups, "TimestampFern group");
+        groupThread.setDaemon(true);
+        groupThread.start();
+      }
+    }
+  }
+
+  /** @return the most requests sharing one timestamp. */
+  public int getMaxGroupSize() {return maxGroupSize;}
+
+  /**
+   * Limit how many requests share one timestamp (so how big it gets): once a group has this many, it's timestamped
+   *  without waiting out the rest of the group window.
+   * @param maxGroupSize the most requests sharing one timestamp (at least 1)
+   */
+  public void setMaxGroupSize(final int maxGroupSize) {this.maxGroupSize = Math.max(1, maxGroupSize);}
 
   /**
    * Called whenever a requestIntegrityAttestation comes in over the wire.
    * This checks whether the incoming request is for a timestamp, and
    *  then creates a timestamp for those blocks, and returns a
    *  reference to that attestation.
+   * This waits for the response: see requestIntegrityAttestationAsync.
    * @param request the request that came in over the wire
    * @return the RequestIntegrityAttestationResponse to be sent back over the wire.
    */
   public RequestIntegrityAttestationResponse requestIntegrityAttestation(final RequestIntegrityAttestationInput request) {
+    return requestIntegrityAttestationAsync(request).join();
+  }
+
+  /**
+   * Checks whether the incoming request is for a timestamp, and then
+   *  starts creating a timestamp for those blocks.
+   * If there is a batch signer, this doesn't wait for the signature: the attestation is made and sent out by
+   *  whichever thread completes the batch.
+   * If there is a group window, this doesn't wait for the group either.
+   * @param request the request that came in over the wire
+   * @return a future for the RequestIntegrityAttestationResponse to be sent back over the wire.
+   */
+  public CompletableFuture<RequestIntegrityAttestationResponse> requestIntegrityAttestationAsync(
+      final RequestIntegrityAttestationInput request) {
     final RequestIntegrityAttestationResponse.Builder builder = RequestIntegrityAttestationResponse.newBuilder(); 
     if (!request.hasPolicy()) {
-      return builder.setErrorMessage("Integrity Attestation Request has no Policy").build();
+      return completedFuture(builder.setErrorMessage("Integrity Attestation Request has no Policy").build());
     }
     if (!request.getPolicy().hasFillInTheBlank()) {
-      return builder.setErrorMessage("Integrity Attestation Request has a Policy that isn't FillInTheBlank").build();
+      return completedFuture(
+        builder.setErrorMessage("Integrity Attestation Request has a Policy that isn't FillInTheBlank").build());
     }
     if (!request.getPolicy().getFillInTheBlank().hasSignedTimestampedReferences()) {
-      return builder.setErrorMessage(
-        "Integrity Attestation Request has a Policy with a FillInTheBlank that isn't SignedTimestampedReferences").build();
+      return completedFuture(builder.setErrorMessage(
+        "Integrity Attestation Request has a Policy with a FillInTheBlank that isn't SignedTimestampedReferences").build());
     }
     if (!request.getPolicy().getFillInTheBlank().getSignedTimestampedReferences().hasTimestampedReferences()) {
-      return builder.setErrorMessage(
-        "Integrity Attestation Request has a Policy with a SignedTimestampedReferences but no TimestampedReferences").build();
+      return completedFuture(builder.setErrorMessage(
+        "Integrity Attestation Request has a Policy with a SignedTimestampedReferences but no TimestampedReferences").build());
     }
     final TimestampedReferences.Builder referencesBuilder = TimestampedReferences.newBuilder();
     for (Reference reference :
          request.getPolicy().getFillInTheBlank().getSignedTimestampedReferences().getTimestampedReferences().getBlockList()) {
       if (!reference.hasHash()) {
-        return builder.setErrorMessage("Reference with no Hash").build();
+        return completedFuture(builder.setErrorMessage("Reference with no Hash").build());
       }
       referencesBuilder.addBlock(Reference.newBuilder().setHash(reference.getHash()));
     }
+    if (request.getPolicy().getFillInTheBlank().getSignedTimestampedReferences().getTimestampedReferences().
+          hasMerkleRoot()) {
+      referencesBuilder.setMerkleRoot(request.getPolicy().getFillInTheBlank().getSignedTimestampedReferences().
+                                        getTimestampedReferences().getMerkleRoot());
+    }
 
+    if (getGroupWindowMicroseconds() > 0 && !referencesBuilder.hasMerkleRoot()) {
+      final PendingTimestamp pending = new PendingTimestamp(referencesBuilder.getBlockList());
+      group.add(pending);
+      return pending.future;
+    }
+    return timestamp(referencesBuilder);
+  }
+
+  /**
+   * Timestamp these references as of now, sign them, and send out the attestation.
+   * If there is a batch signer, this doesn't wait for the signature.
+   * @param referencesBuilder the references to timestamp (the timestamp itself is filled in here)
+   * @return a future for the RequestIntegrityAttestationResponse referencing the attestation
+   */
+  private CompletableFuture<RequestIntegrityAttestationResponse> timestamp(
+      final TimestampedReferences.Builder referencesBuilder) {
+    final RequestIntegrityAttestationResponse.Builder builder = RequestIntegrityAttestationResponse.newBuilder();
     referencesBuilder.setTimestamp(fromMillis(currentTimeMillis())); // actually gets the current time.
 
     final TimestampedReferences references = referencesBuilder.build();
-    final Block attestation = Block.newBuilder().setIntegrityAttestation(
-          IntegrityAttestation.newBuilder().setSignedTimestampedReferences(
-            SignedTimestampedReferences.newBuilder().setTimestampedReferences(references).setSignature(
-              signBytes(getNode().getConfig().getKeyPair(), references)
+    final MerkleBatchSigner signer = getBatchSigner();
+    final CompletableFuture<Signature> signature = (signer == null) ?
+      completedFuture(signBytes(getNode().getConfig().getKeyPair(), references)) : signer.sign(references);
+    return signature.thenApply(signed -> {
+      final Block attestation = Block.newBuilder().setIntegrityAttestation(
+            IntegrityAttestation.newBuilder().setSignedTimestampedReferences(
+              SignedTimestampedReferences.newBuilder().setTimestampedReferences(references).setSignature(signed)
             )
-          )
-        ).build();
-    for (SendBlocksResponse response : getNode().onSendBlocksInput(attestation)) {
-      if (!response.getErrorMessage().equals("")) {
-        return builder.setErrorMessage("Problem with newly created attestation:\n"+response.getErrorMessage()).build();
+          ).build();
+      for (SendBlocksResponse response : getNode().onSendBlocksInput(attestation)) {
+        if (!response.getErrorMessage().equals("")) {
+          return builder.setErrorMessage("Problem with newly created attestation:\n"+response.getErrorMessage()).build();
+        }
+      }
+      return builder.setReference(Reference.newBuilder().setHash(sha3Hash(attestation))).build();
+    });
+  }
+
+  /**
+   * Repeatedly collect a group of requests, and give them all one timestamp. Runs on the group thread.
+   * A group is collected until the group window ends, or it's full (maxGroupSize), whichever comes first.
+   */
+  private void runGroups() {
+    final List<PendingTimestamp> pendings = new ArrayList<PendingTimestamp>();
+    while (true) {
+      pendings.clear();
+      try {
+        pendings.add(group.take());
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(getGroupWindowMicroseconds());
+        while (pendings.size() < getMaxGroupSize()) {
+          final PendingTimestamp next = group.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          pendings.add(next);
+        }
+      } catch (InterruptedException e) {
+        logger.log(Level.WARNING, "TimestampFern interrupted while collecting a group", e);
+      }
+      // The timestamp is made elsewhere: storing it may set off another request (e.g. from a TimestampNode)
+      //  which waits for the next group, so this thread must keep collecting.
+      final List<PendingTimestamp> collected = new ArrayList<PendingTimestamp>(pendings);
+      groupExecutor.execute(() -> timestampGroup(collected));
+    }
+  }
+
+  /**
+   * Make one timestamp covering every reference in this group, and give all of them a reference to it.
+   * @param pendings the group of requests
+   */
+  private void timestampGroup(final List<PendingTimestamp> pendings) {
+    if (pendings.isEmpty()) {
+      return;
+    }
+    final Set<Hash> hashes = new LinkedHashSet<Hash>();
+    for (PendingTimestamp pending : pendings) {
+      for (Reference reference : pending.references) {
+        hashes.add(reference.getHash());
       }
     }
-    return builder.setReference(Reference.newBuilder().setHash(sha3Hash(attestation))).build();
+    final TimestampedReferences.Builder referencesBuilder = TimestampedReferences.newBuilder();
+    for (Hash hash : hashes) {
+      referencesBuilder.addBlock(Reference.newBuilder().setHash(hash));
+    }
+    CompletableFuture<RequestIntegrityAttestationResponse> response;
+    try {
+      response = timestamp(referencesBuilder);
+    } catch (Throwable t) {
+      logger.log(Level.SEVERE, "TimestampFern failed to timestamp a group", t);
+      response = new CompletableFuture<RequestIntegrityAttestationResponse>();
+      response.completeExceptionally(t);
+    }
+    response.whenComplete((made, t) -> {
+      for (PendingTimestamp pending : pendings) {
+        if (t == null) {
+          pending.future.complete(made);
+        } else {
+          pending.future.completeExceptionally(t);
+        }
+      }
+    });
   }
 
   /**
    * Grpc calls this whenever a RequestIntegrityAttestation rpc comes in over the wire.
-   * It calls requestIntegrityAttestation(final RequestIntegrityAttestationInput request), which returns a
-   *  RequestIntegrityAttestationResponse, which it gives to responseObserver.
+   * It calls requestIntegrityAttestationAsync(request), and gives the RequestIntegrityAttestationResponse to
+   *  responseObserver when it's ready, without waiting for it.
    * @param request the request from the client sent over the wire
    * @param responseObserver used for sending a RequestIntegrityAttestationResponse back to the client over the wire
    */
   @Override
   public void requestIntegrityAttestation(final RequestIntegrityAttestationInput request,
                                           final StreamObserver<RequestIntegrityAttestationResponse> responseObserver) {
-    responseObserver.onNext(requestIntegrityAttestation(request));
+    AgreementFernService.respond(requestIntegrityAttestationAsync(request), responseObserver);
+  }
+
+  /**
+   * Find the proof that a block was timestamped under a Merkle root by one of this node's automatic timestamps.
+   * @param request names the block
+   * @return the TimestampProof, or an error message if there isn't one (yet)
+   */
+  public TimestampProofResponse getTimestampProof(final TimestampProofInput request) {
+    final TimestampProofResponse.Builder builder = TimestampProofResponse.newBuilder();
+    if (!request.hasBlock()) {
+      return builder.setErrorMessage("Timestamp Proof Request has no block Hash").build();
+    }
+    if (!(getNode() instanceof TimestampNode)) {
+      return builder.setErrorMessage("This Fern server does not timestamp blocks automatically").build();
+    }
+    final TimestampProof proof = ((TimestampNode) getNode()).getTimestampProof(request.getBlock());
+    if (proof == null) {
+      return builder.setErrorMessage("No Merkle root timestamp (yet) for this block").build();
+    }
+    return builder.setProof(proof).build();
+  }
+
+  /**
+   * Grpc calls this whenever a GetTimestampProof rpc comes in over the wire.
+   * @param request the request from the client sent over the wire
+   * @param responseObserver used for sending a TimestampProofResponse back to the client over the wire
+   */
+  @Override
+  public void getTimestampProof(final TimestampProofInput request,
+                                final StreamObserver<TimestampProofResponse> responseObserver) {
+    responseObserver.onNext(getTimestampProof(request));
     responseObserver.onCompleted();
   }
 }
@@ -6,6 +6,10 @@ import static java.util.Collections.emptySet;
 import static java.util.Collections.singleton;
 
 import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 import java.util.logging.*;
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -45,6 +49,18 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
   /** The configuration of this service, parsed from a yaml config file, and some x509 key files. */
   private final Config config;
 
+  /**
+   * For each block hash, the known attestation blocks referencing it.
+   * Blocks are indexed before they're put in the blockMap, so anyone who can get a block can find it in here.
+   */
+  private final ReferenceIndex referenceIndex;
+
+  /** Anything else (like a WilburQueryService's QueryIndex) to be told about each block as it is stored. */
+  private final List<BiConsumer<Hash, Block>> indexers;
+
+  /** Anything (like a WilburQueryService's subscriptions) to be told about each new block once it is stored. */
+  private final List<BiConsumer<Hash, Block>> newBlockListeners;
+
   private int sendBlocksCancelledCount;
 
   /**
@@ -57,6 +73,9 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
                               final Config config) {
     this.blockMap = blockMap;
     this.config = config;
+    this.referenceIndex = new ReferenceIndex();
+    this.indexers = new CopyOnWriteArrayList<BiConsumer<Hash, Block>>();
+    this.newBlockListeners = new CopyOnWriteArrayList<BiConsumer<Hash, Block>>();
     logger.setUseParentHandlers(false);
 //    SimpleFormatter fmt = new SimpleFormatter();
 //    StreamHandler sh = new StreamHandler(System.out, fmt) {
@@ -99,6 +118,56 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
     return blockMap;
   }
 
+  /** @return For each block hash, the known attestation blocks referencing it. */
+  public ReferenceIndex getReferenceIndex() {
+    return referenceIndex;
+  }
+
+  /**
+   * Have this indexer told about every block stored from now on (see indexBlock).
+   * It is not told about blocks already stored: it should look through getBlockMap() for those, after adding itself.
+   * It may be told about the same block more than once, and concurrently with other blocks.
+   * @param indexer called with the hash of each block, and the block
+   */
+  public void addIndexer(final BiConsumer<Hash, Block> indexer) {
+    indexers.add(indexer);
+  }
+
+  /**
+   * Index a block about to be stored: add it to the ReferenceIndex, and tell each indexer added with addIndexer.
+   * This should be called before the block is put in the blockMap, so it's indexed as soon as it's visible.
+   * @param hash the hash of the block
+   * @param block the block
+   */
+  protected void indexBlock(final Hash hash, final Block block) {
+    getReferenceIndex().add(hash, block);
+    for (BiConsumer<Hash, Block> indexer : indexers) {
+      indexer.accept(hash, block);
+    }
+  }
+
+  /**
+   * Have this listener told about every new block stored from now on (see newBlockStored).
+   * It is told about each block once, just after it's put in the blockMap, on whatever thread stored it, so it
+   *  should be quick.
+   * @param listener called with the hash of each new block, and the block
+   */
+  public void addNewBlockListener(final BiConsumer<Hash, Block> listener) {
+    newBlockListeners.add(listener);
+  }
+
+  /**
+   * Tell each listener added with addNewBlockListener about a new block.
+   * This should be called once per block, just after it's (newly) put in the blockMap.
+   * @param hash the hash of the block
+   * @param block the block
+   */
+  protected void newBlockStored(final Hash hash, final Block block) {
+    for (BiConsumer<Hash, Block> listener : newBlockListeners) {
+      listener.accept(hash, block);
+    }
+  }
+
   /**
    * @param hash the hash of the desired block
    * @return the block corresponding to this hash. Warning: WILL WAIT until such a block arrives
@@ -115,6 +184,14 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
     return getBlock(reference.getHash());
   }
 
+  /**
+   * @param hash the hash of the desired block
+   * @return a future for the block corresponding to this hash, completed when such a block arrives. Does not wait.
+   */
+  public CompletableFuture<Block> getBlockFuture(final Hash hash) {
+    return getBlockMap().futureGet(hash);
+  }
+
   /** @return The configuration of this service, parsed from a yaml config file, and some x509 key files. */
   public Config getConfig() {
     return config;
@@ -231,6 +308,8 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
 
   /**
    * Stores a block in the services blockMap, and returns whether it was already known to this service.
+   * Also indexes it (see indexBlock), and tells any new block listeners about it if it's new (see newBlockStored).
+   * Anything overriding this should call indexBlock( - ) and newBlockStored( - ) too.
    * Logs (INFO) whenever a block is received, whether it was new or repeat.
    * This will be a JSON, with fields "block" and either "NewBlockHash" or "RepeatBlockHash"
    * @param block the block to be stored
@@ -238,7 +317,9 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
    */
   public boolean storeNewBlock(final Block block) {
     final Hash hash = sha3Hash(block);
+    indexBlock(hash, block); // before it's in the blockMap, so it's indexed as soon as it's visible
     if (getBlockMap().putIfAbsent(hash, block) == null) {
+      newBlockStored(hash, block);
 //      try {
 //        logger.info("{ \"NewBlockHash\":"+JsonFormat.printer().print(hash)+
 //                     ",\n\"block\":"+JsonFormat.printer().print(block)+"}");
@@ -269,6 +350,8 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
    * Unless sendBlocks or onSendBlocksInput(SendBlocksInput -) have been overridden with a handler that does
    *  otherwise, this will be called for every block which arrives via any stream.
    * If the block is not yet seen, broadcasts the block to all contacts and calls afterBroadcastNewBlock().
+   * ErasureCodedFragments are the exception: each is meant for just the one node it was sent to, so they are
+   *  stored, but not broadcast.
    * Otherwise, returns an empty list of response messages.
    * Logs (INFO) whenever a block is received, whether it was new or repeat.
    * <p>
@@ -280,7 +363,9 @@ public class CharlotteNodeService extends CharlotteNodeImplBase {
    */
   public Iterable<SendBlocksResponse> onSendBlocksInput(final Block block) {
     if (storeNewBlock(block)) {
-      broadcastBlock(block);
+      if (!block.hasErasureCodedFragment()) {
+        broadcastBlock(block);
+      }
       return afterBroadcastNewBlock(block);
     } 
     return emptySet();
@@ -0,0 +1,121 @@
+package com.isaacsheff.charlotte.node;
+
+import com.google.protobuf.ByteString;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.PublicKey;
+import com.isaacsheff.charlotte.proto.Signature;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ServiceConfigurationError;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The original (and default) Charlotte signature scheme: SHA256withECDSA on P-256 keys, via BouncyCastle.
+ * Keys are the built-in PublicKey.EllipticCurveP256 type (X.509 encoded),
+ *  and signatures the built-in Signature.SignatureAlgorithmSHA256WithECDSA type.
+ * @author Isaac Sheff
+ */
+public class EcdsaP256SignatureScheme implements SignatureScheme {
+  /** Use logger for logging events involving EcdsaP256SignatureScheme. */
+  private static final Logger logger = Logger.getLogger(EcdsaP256SignatureScheme.class.getName());
+
+  /**
+   * @param publicKey a Java public key
+   * @return whether this is an elliptic curve key
+   */
+  @Override
+  public boolean handles(final java.security.PublicKey publicKey) {
+    return "EC".equals(publicKey.getAlgorithm()) || "ECDSA".equals(publicKey.getAlgorithm());
+  }
+
+  /**
+   * @param cryptoId a CryptoId, which may contain a public key
+   * @return whether this CryptoId contains an EllipticCurveP256 key
+   */
+  @Override
+  public boolean handles(final CryptoId cryptoId) {
+    return cryptoId.hasPublicKey() && cryptoId.getPublicKey().hasEllipticCurveP256();
+  }
+
+  /**
+   * @param signature a charlotte Signature
+   * @return whether this is a SHA256WithECDSA signature
+   */
+  @Override
+  public boolean handles(final Signature signature) {
+    return signature.hasSha256WithEcdsa();
+  }
+
+  /**
+   * Initiated with algorithm "SHA256withECDSA" and provider "BC".
+   * If something goes wrong in initiating an instance, it logs it as SEVERE, and throws an error.
+   * @return a new signature engine
+   */
+  @Override
+  public java.security.Signature newEngine() {
+    try {
+      return java.security.Signature.getInstance("SHA256withECDSA", "BC");
+    } catch (GeneralSecurityException e) {
+      // actually throws NoSuchAlgorithmException or NoSuchProviderException
+      logger.log(Level.SEVERE, "Signature generated an exception when shouldn't have, on SHA256withECDSA, BC: ", e);
+      throw (new ServiceConfigurationError(
+                   "Signature generated an exception when shouldn't have, on SHA256withECDSA, BC: " + e));
+    }
+  }
+
+  /**
+   * @param publicKey an elliptic curve P-256 public key
+   * @return the CryptoId containing this key as an EllipticCurveP256
+   */
+  @Override
+  public CryptoId createCryptoId(final java.security.PublicKey publicKey) {
+    return CryptoId.newBuilder().setPublicKey(PublicKey.newBuilder().setEllipticCurveP256(
+             PublicKey.EllipticCurveP256.newBuilder().setByteString(
+               ByteString.copyFrom(publicKey.getEncoded())))).build();
+  }
+
+  /**
+   * @param cryptoId a CryptoId containing an EllipticCurveP256 key
+   * @return the Java public key it contains, or null if the key is invalid
+   */
+  @Override
+  public java.security.PublicKey parsePublicKey(final CryptoId cryptoId) {
+    try {
+      return KeyFactory.getInstance("EC", "BC").generatePublic(new X509EncodedKeySpec(
+          cryptoId.getPublicKey().getEllipticCurveP256().getByteString().toByteArray()));
+    } catch (InvalidKeySpecException e) {
+      logger.info("tried to parse an invalid EC key");
+      return null;
+    } catch (GeneralSecurityException e) {
+      // actually throws NoSuchAlgorithmException or NoSuchProviderException
+      logger.log(Level.SEVERE, "Key Parsing generated an exception when shouldn't have, on EC, BC: ", e);
+      throw (new ServiceConfigurationError("Key Parsing generated an exception when shouldn't have, on EC, BC: " + e));
+    }
+  }
+
+  /**
+   * @param signatureBytes the raw output of a SHA256withECDSA engine
+   * @param cryptoId the CryptoId of the signer
+   * @return a charlotte Signature containing these bytes as a SHA256WithECDSA
+   */
+  @Override
+  public Signature createSignature(final byte[] signatureBytes, final CryptoId cryptoId) {
+    return Signature.newBuilder().
+             setSha256WithEcdsa(Signature.SignatureAlgorithmSHA256WithECDSA.newBuilder().setByteString(
+               ByteString.copyFrom(signatureBytes))).
+             setCryptoId(cryptoId).build();
+  }
+
+  /**
+   * @param signature a SHA256WithECDSA signature
+   * @return the raw signature bytes
+   */
+  @Override
+  public byte[] getSignatureBytes(final Signature signature) {
+    return signature.getSha256WithEcdsa().getByteString().toByteArray();
+  }
+}
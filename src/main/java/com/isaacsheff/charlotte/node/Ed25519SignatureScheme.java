@@ -0,0 +1,142 @@
+package com.isaacsheff.charlotte.node;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.isaacsheff.charlotte.proto.AnyWithReference;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.PublicKey;
+import com.isaacsheff.charlotte.proto.Signature;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ServiceConfigurationError;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ed25519 signatures, via BouncyCastle.
+ * Verification is several times faster than SHA256withECDSA on P-256.
+ * These are not built-in types in the protobuf oneofs: keys travel as a PublicKey.Ed25519 (X.509 encoded)
+ *  packed into the PublicKey's AnyWithReference, and signatures as a Signature.SignatureAlgorithmEd25519
+ *  packed into the Signature's AnyWithReference.
+ * @author Isaac Sheff
+ */
+public class Ed25519SignatureScheme implements SignatureScheme {
+  /** Use logger for logging events involving Ed25519SignatureScheme. */
+  private static final Logger logger = Logger.getLogger(Ed25519SignatureScheme.class.getName());
+
+  /** The length of an X.509 encoded Ed25519 public key (12 bytes of header, 32 of key). */
+  private static final int ENCODED_KEY_LENGTH = 44;
+
+  /**
+   * BouncyCastle calls its keys "Ed25519," while the JDK calls them (and Ed448 keys) "EdDSA."
+   * @param publicKey a Java public key
+   * @return whether this is an Ed25519 key
+   */
+  @Override
+  public boolean handles(final java.security.PublicKey publicKey) {
+    return "Ed25519".equals(publicKey.getAlgorithm())
+        || ("EdDSA".equals(publicKey.getAlgorithm()) && publicKey.getEncoded().length == ENCODED_KEY_LENGTH);
+  }
+
+  /**
+   * @param cryptoId a CryptoId, which may contain a public key
+   * @return whether this CryptoId contains a PublicKey.Ed25519 packed in its any field
+   */
+  @Override
+  public boolean handles(final CryptoId cryptoId) {
+    return cryptoId.hasPublicKey()
+        && cryptoId.getPublicKey().hasAny()
+        && cryptoId.getPublicKey().getAny().getAny().is(PublicKey.Ed25519.class);
+  }
+
+  /**
+   * @param signature a charlotte Signature
+   * @return whether this Signature has a SignatureAlgorithmEd25519 packed in its any field
+   */
+  @Override
+  public boolean handles(final Signature signature) {
+    return signature.hasAny() && signature.getAny().getAny().is(Signature.SignatureAlgorithmEd25519.class);
+  }
+
+  /**
+   * Initiated with algorithm "Ed25519" and provider "BC".
+   * If something goes wrong in initiating an instance, it logs it as SEVERE, and throws an error.
+   * @return a new signature engine
+   */
+  @Override
+  public java.security.Signature newEngine() {
+    try {
+      return java.security.Signature.getInstance("Ed25519", "BC");
+    } catch (GeneralSecurityException e) {
+      // actually throws NoSuchAlgorithmException or NoSuchProviderException
+      logger.log(Level.SEVERE, "Signature generated an exception when shouldn't have, on Ed25519, BC: ", e);
+      throw (new ServiceConfigurationError("Signature generated an exception when shouldn't have, on Ed25519, BC: "+e));
+    }
+  }
+
+  /**
+   * @param publicKey an Ed25519 public key
+   * @return the CryptoId containing this key as a PublicKey.Ed25519 packed in the any field
+   */
+  @Override
+  public CryptoId createCryptoId(final java.security.PublicKey publicKey) {
+    return CryptoId.newBuilder().setPublicKey(PublicKey.newBuilder().setAny(
+             AnyWithReference.newBuilder().setAny(Any.pack(
+               PublicKey.Ed25519.newBuilder().setByteString(ByteString.copyFrom(publicKey.getEncoded())).build()
+             )))).build();
+  }
+
+  /**
+   * @param cryptoId a CryptoId containing a PublicKey.Ed25519 in its any field
+   * @return the Java public key it contains, or null if the key is invalid
+   */
+  @Override
+  public java.security.PublicKey parsePublicKey(final CryptoId cryptoId) {
+    try {
+      return KeyFactory.getInstance("Ed25519", "BC").generatePublic(new X509EncodedKeySpec(
+          cryptoId.getPublicKey().getAny().getAny().unpack(PublicKey.Ed25519.class).getByteString().toByteArray()));
+    } catch (InvalidProtocolBufferException e) {
+      logger.info("tried to parse an Ed25519 key which was not a valid protobuf");
+      return null;
+    } catch (InvalidKeySpecException e) {
+      logger.info("tried to parse an invalid Ed25519 key");
+      return null;
+    } catch (GeneralSecurityException e) {
+      // actually throws NoSuchAlgorithmException or NoSuchProviderException
+      logger.log(Level.SEVERE, "Key Parsing generated an exception when shouldn't have, on Ed25519, BC: ", e);
+      throw (new ServiceConfigurationError("Key Parsing generated an exception when shouldn't have, on Ed25519, BC: "+e));
+    }
+  }
+
+  /**
+   * @param signatureBytes the raw output of an Ed25519 engine
+   * @param cryptoId the CryptoId of the signer
+   * @return a charlotte Signature containing these bytes as a SignatureAlgorithmEd25519 packed in the any field
+   */
+  @Override
+  public Signature createSignature(final byte[] signatureBytes, final CryptoId cryptoId) {
+    return Signature.newBuilder().
+             setAny(AnyWithReference.newBuilder().setAny(Any.pack(
+               Signature.SignatureAlgorithmEd25519.newBuilder().setByteString(ByteString.copyFrom(signatureBytes)).build()
+             ))).
+             setCryptoId(cryptoId).build();
+  }
+
+  /**
+   * @param signature a Signature with a SignatureAlgorithmEd25519 packed in its any field
+   * @return the raw signature bytes, or null if it doesn't unpack
+   */
+  @Override
+  public byte[] getSignatureBytes(final Signature signature) {
+    try {
+      return signature.getAny().getAny().unpack(Signature.SignatureAlgorithmEd25519.class).getByteString().toByteArray();
+    } catch (InvalidProtocolBufferException e) {
+      logger.info("tried to read an Ed25519 signature which was not a valid protobuf");
+      return null;
+    }
+  }
+}
@@ -8,6 +8,7 @@ import com.google.protobuf.MessageLite;
 
 import com.isaacsheff.charlotte.proto.Hash;
 
+import java.security.MessageDigest;
 import java.security.Security;
 
 /**
@@ -18,6 +19,12 @@ public class HashUtil {
   /** This line is required to use bouncycastle encryption libraries. */
   static {Security.addProvider(new BouncyCastleProvider());}
 
+  /**
+   * Each thread keeps a sha3 digest to reuse.
+   * Calling digest() resets it, ready for the next use.
+   */
+  private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(SHA3.Digest256::new);
+
   /**
    * @param bytes the bytes you want to hash
    * @return the sha3 hash of those bytes
@@ -28,13 +35,24 @@ public class HashUtil {
    * @param byteString the bytes you want to hash
    * @return the sha3 hash of those bytes
    */
-  public static byte[] sha3(ByteString byteString) {return sha3(byteString.toByteArray());}
+  public static byte[] sha3(ByteString byteString) {
+    final MessageDigest digest = digests.get();
+    digest.reset();
+    UpdatingOutputStream.update(digest, byteString);
+    return digest.digest();
+  }
 
   /**
+   * The message is serialized straight into the digest, rather than into a byte[] first.
    * @param message the message you want to hash
    * @return the sha3 hash of that message, as bytes
    */
-  public static byte[] sha3(MessageLite message) {return sha3(message.toByteArray());}
+  public static byte[] sha3(MessageLite message) {
+    final MessageDigest digest = digests.get();
+    digest.reset();
+    UpdatingOutputStream.update(digest, message);
+    return digest.digest();
+  }
 
   /**
    * @param bytes the bytes you want to hash
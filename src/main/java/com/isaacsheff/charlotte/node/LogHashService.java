@@ -53,7 +53,9 @@ public class LogHashService extends CharlotteNodeService {
   @Override
   public boolean storeNewBlock(final Block block) {
     final Hash hash = sha3Hash(block);
+    indexBlock(hash, block);
     if (getBlockMap().putIfAbsent(hash, block) == null) {
+      newBlockStored(hash, block);
       try {
         logger.info("{ \"NewBlockHash\":"+JsonFormat.printer().print(hash)+"}");
       } catch (InvalidProtocolBufferException e) {
@@ -0,0 +1,337 @@
+package com.isaacsheff.charlotte.node;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Signature;
+import com.isaacsheff.charlotte.proto.Signature.MerkleBatch;
+import com.isaacsheff.charlotte.proto.Signature.MerkleBatch.PathStep;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.jcajce.provider.digest.SHA3;
+
+/**
+ * Signs many things with a single signature, by signing the root of a Merkle tree over them.
+ * Requests arriving within a short window of each other are collected into one batch.
+ * Each request gets back a Signature with a MerkleBatch in it: the root signature, and the path from its leaf to the root.
+ * SignatureUtil.checkSignature verifies these like any other Signature.
+ * A batch of one is just signed directly, so lightly loaded signers pay no extra verification cost.
+ *
+ * <p>
+ * Leaves are sha3(0x00 || bytes), and interior nodes sha3(0x01 || left || right), so a leaf can never pose as an interior node.
+ * The root signature covers ROOT_PREFIX || root, so it can't be mistaken for a signature over anything else.
+ * </p>
+ * @author Isaac Sheff
+ */
+public class MerkleBatchSigner {
+  /** Use logger for logging events involving MerkleBatchSigner. */
+  private static final Logger logger = Logger.getLogger(MerkleBatchSigner.class.getName());
+
+  /** Prefixed to the root before it is signed. */
+  private static final byte[] ROOT_PREFIX = "CharlotteMerkleBatchRoot".getBytes(StandardCharsets.UTF_8);
+
+  /** Prefixed to the bytes of a leaf before it is hashed. */
+  private static final byte LEAF_PREFIX = 0;
+
+  /** Prefixed to the two children of an interior node before they are hashed. */
+  private static final byte INTERIOR_PREFIX = 1;
+
+  /** No tree we make is deeper than this, so no path we accept is longer. */
+  public static final int MAX_PATH_LENGTH = 64;
+
+  /** The default longest we wait for more requests to join a batch. */
+  public static final long DEFAULT_WINDOW_MICROSECONDS = 1000;
+
+  /** The default most requests in a batch. */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+  /** The keys we sign with. */
+  private final KeyPair keyPair;
+
+  /** The longest we wait (after the first request of a batch arrives) for more requests to join it. */
+  private final long windowMicroseconds;
+
+  /** The most requests in a batch. */
+  private final int maxBatchSize;
+
+  /** Requests waiting to be batched. */
+  private final BlockingQueue<PendingLeaf> queue;
+
+  /** One thing waiting to be signed. */
+  private static class PendingLeaf {
+    /** The thing to be signed, in case it ends up in a batch of one. */
+    private final ByteString bytes;
+
+    /** The leaf hash of the thing to be signed. */
+    private final byte[] leaf;
+
+    /** Filled in once the batch is signed. */
+    private final CompletableFuture<Signature> future;
+
+    /** @param bytes the thing to be signed */
+    PendingLeaf(final ByteString bytes) {
+      this.bytes = bytes;
+      this.leaf = leafHash(bytes);
+      this.future = new CompletableFuture<Signature>();
+    }
+  }
+
+  /**
+   * Make a new MerkleBatchSigner, with its own (daemon) batching thread.
+   * @param keyPair the keys to sign with
+   * @param windowMicroseconds the longest we wait (after the first request of a batch arrives) for more requests
+   * @param maxBatchSize the most requests in a batch
+   */
+  public MerkleBatchSigner(final KeyPair keyPair, final long windowMicroseconds, final int maxBatchSize) {
+    this.keyPair = keyPair;
+    this.windowMicroseconds = windowMicroseconds;
+    this.maxBatchSize = maxBatchSize;
+    this.queue = new LinkedBlockingQueue<PendingLeaf>();
+    final Thread thread = new Thread(this::run, "MerkleBatchSigner");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Make a new MerkleBatchSigner, with the default window and batch size.
+   * @param keyPair the keys to sign with
+   */
+  public MerkleBatchSigner(final KeyPair keyPair) {
+    this(keyPair, DEFAULT_WINDOW_MICROSECONDS, DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  /** @return The keys we sign with. */
+  public KeyPair getKeyPair() {return keyPair;}
+
+  /** @return The longest we wait (after the first request of a batch arrives) for more requests to join it. */
+  public long getWindowMicroseconds() {return windowMicroseconds;}
+
+  /** @return The most requests in a batch. */
+  public int getMaxBatchSize() {return maxBatchSize;}
+
+  /**
+   * Sign this message as part of the next batch.
+   * @param message the message to sign
+   * @return a future for the Signature, which will contain a MerkleBatch unless the batch had only this in it
+   */
+  public CompletableFuture<Signature> sign(final MessageLite message) {
+    final PendingLeaf pending = new PendingLeaf(message.toByteString());
+    queue.add(pending);
+    return pending.future;
+  }
+
+  /**
+   * Sign this message as part of the next batch, and wait for the signature.
+   * @param message the message to sign
+   * @return the Signature, which will contain a MerkleBatch unless the batch had only this in it
+   */
+  public Signature signBytes(final MessageLite message) {
+    return sign(message).join();
+  }
+
+  /** Repeatedly collect a batch, and sign it. Runs on this signer's own thread. */
+  private void run() {
+    final List<PendingLeaf> batch = new ArrayList<PendingLeaf>();
+    while (true) {
+      batch.clear();
+      try {
+        batch.add(queue.take());
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(getWindowMicroseconds());
+        while (batch.size() < getMaxBatchSize()) {
+          final PendingLeaf next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        logger.log(Level.WARNING, "MerkleBatchSigner interrupted while collecting a batch", e);
+      }
+      try {
+        signBatch(batch);
+      } catch (Throwable t) {
+        logger.log(Level.SEVERE, "MerkleBatchSigner failed to sign a batch", t);
+        for (PendingLeaf pending : batch) {
+          pending.future.completeExceptionally(t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Build the Merkle tree over this batch, sign its root, and give each request its path.
+   * @param batch the requests to sign
+   */
+  private void signBatch(final List<PendingLeaf> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (batch.size() == 1) {
+      batch.get(0).future.complete(SignatureUtil.signBytes(getKeyPair(), batch.get(0).bytes));
+      return;
+    }
+    final List<byte[]> leaves = new ArrayList<byte[]>(batch.size());
+    for (PendingLeaf pending : batch) {
+      leaves.add(pending.leaf);
+    }
+    final List<MerkleBatch.Builder> paths = new ArrayList<MerkleBatch.Builder>(batch.size());
+    final byte[] root = tree(leaves, paths);
+    final Signature rootSignature = SignatureUtil.signBytes(getKeyPair(), rootBytes(root));
+    for (int i = 0; i < batch.size(); ++i) {
+      batch.get(i).future.complete(Signature.newBuilder().
+        setCryptoId(rootSignature.getCryptoId()).
+        setMerkleBatch(paths.get(i).setRootSignature(rootSignature)).build());
+    }
+  }
+
+  /**
+   * Build the Merkle tree over these leaves, and find the path from each leaf up to the root.
+   * An odd node out at any level moves up unchanged.
+   * @param leaves the leaf hashes (at least one)
+   * @param paths one MerkleBatch.Builder (holding only the path) is added to this for each leaf, in order
+   * @return the root
+   */
+  public static byte[] tree(final List<byte[]> leaves, final List<MerkleBatch.Builder> paths) {
+    final int first = paths.size();
+    final List<List<Integer>> members = new ArrayList<List<Integer>>(leaves.size()); // leaves under each node
+    for (int i = 0; i < leaves.size(); ++i) {
+      paths.add(MerkleBatch.newBuilder());
+      final List<Integer> member = new ArrayList<Integer>();
+      member.add(first + i);
+      members.add(member);
+    }
+    List<byte[]> level = leaves;
+    List<List<Integer>> levelMembers = members;
+    while (level.size() > 1) {
+      final List<byte[]> nextLevel = new ArrayList<byte[]>((level.size() + 1) / 2);
+      final List<List<Integer>> nextMembers = new ArrayList<List<Integer>>((level.size() + 1) / 2);
+      for (int i = 0; i < level.size(); i += 2) {
+        if (i + 1 == level.size()) { // odd one out moves up unchanged
+          nextLevel.add(level.get(i));
+          nextMembers.add(levelMembers.get(i));
+          continue;
+        }
+        for (int leaf : levelMembers.get(i)) {
+          paths.get(leaf).addPath(PathStep.newBuilder().setSibling(toHash(level.get(i + 1))).setSiblingOnLeft(false));
+        }
+        for (int leaf : levelMembers.get(i + 1)) {
+          paths.get(leaf).addPath(PathStep.newBuilder().setSibling(toHash(level.get(i))).setSiblingOnLeft(true));
+        }
+        nextLevel.add(interiorHash(level.get(i), level.get(i + 1)));
+        final List<Integer> merged = new ArrayList<Integer>(levelMembers.get(i));
+        merged.addAll(levelMembers.get(i + 1));
+        nextMembers.add(merged);
+      }
+      level = nextLevel;
+      levelMembers = nextMembers;
+    }
+    return level.get(0);
+  }
+
+  /**
+   * @param digest raw sha3 bytes
+   * @return a Hash containing them
+   */
+  private static Hash toHash(final byte[] digest) {
+    return Hash.newBuilder().setSha3(ByteString.copyFrom(digest)).build();
+  }
+
+  /**
+   * @param bytes the thing signed
+   * @return sha3(0x00 || bytes)
+   */
+  public static byte[] leafHash(final byte[] bytes) {
+    final MessageDigest digest = new SHA3.Digest256();
+    digest.update(LEAF_PREFIX);
+    digest.update(bytes);
+    return digest.digest();
+  }
+
+  /**
+   * @param bytes the thing signed
+   * @return sha3(0x00 || bytes)
+   */
+  public static byte[] leafHash(final ByteString bytes) {
+    final MessageDigest digest = new SHA3.Digest256();
+    digest.update(LEAF_PREFIX);
+    UpdatingOutputStream.update(digest, bytes);
+    return digest.digest();
+  }
+
+  /**
+   * @param message the thing signed
+   * @return sha3(0x00 || serialized message)
+   */
+  public static byte[] leafHash(final MessageLite message) {
+    final MessageDigest digest = new SHA3.Digest256();
+    digest.update(LEAF_PREFIX);
+    UpdatingOutputStream.update(digest, message);
+    return digest.digest();
+  }
+
+  /**
+   * @param left the left child
+   * @param right the right child
+   * @return sha3(0x01 || left || right)
+   */
+  private static byte[] interiorHash(final byte[] left, final byte[] right) {
+    final MessageDigest digest = new SHA3.Digest256();
+    digest.update(INTERIOR_PREFIX);
+    digest.update(left);
+    digest.update(right);
+    return digest.digest();
+  }
+
+  /**
+   * @param root the root of a Merkle tree
+   * @return the bytes actually signed for that root: ROOT_PREFIX || root
+   */
+  public static byte[] rootBytes(final byte[] root) {
+    final byte[] bytes = new byte[ROOT_PREFIX.length + root.length];
+    System.arraycopy(ROOT_PREFIX, 0, bytes, 0, ROOT_PREFIX.length);
+    System.arraycopy(root, 0, bytes, ROOT_PREFIX.length, root.length);
+    return bytes;
+  }
+
+  /**
+   * Follow a path from a leaf up to the root it leads to.
+   * @param leaf the leaf hash
+   * @param batch the MerkleBatch containing the path
+   * @return the root, or null if the path is malformed
+   */
+  public static byte[] root(final byte[] leaf, final MerkleBatch batch) {
+    return root(leaf, batch.getPathList());
+  }
+
+  /**
+   * Follow a path from a leaf up to the root it leads to.
+   * @param leaf the leaf hash
+   * @param path the steps from the leaf up to the root
+   * @return the root, or null if the path is malformed
+   */
+  public static byte[] root(final byte[] leaf, final List<PathStep> path) {
+    if (path.size() > MAX_PATH_LENGTH) {
+      return null;
+    }
+    byte[] node = leaf;
+    for (PathStep step : path) {
+      final byte[] sibling = step.getSibling().getSha3().toByteArray();
+      if (sibling.length != leaf.length) {
+        return null;
+      }
+      node = step.getSiblingOnLeft() ? interiorHash(sibling, node) : interiorHash(node, sibling);
+    }
+    return node;
+  }
+}
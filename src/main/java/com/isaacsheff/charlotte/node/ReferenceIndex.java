@@ -0,0 +1,126 @@
+package com.isaacsheff.charlotte.node;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.Reference;
+
+/**
+ * A reverse index over the References in attestation blocks:
+ *  for each referenced hash, which attestation blocks reference it, broken down by kind of attestation.
+ * CharlotteNodeService maintains one of these incrementally, as blocks are stored, so finding the attestations for a
+ *  block is a lookup, rather than a scan of every known block.
+ * @author Isaac Sheff
+ */
+public class ReferenceIndex {
+  /** The kinds of attestation (and the Reference fields within them) that are indexed. */
+  public enum Kind {
+    /** AvailabilityAttestation.SignedStoreForever: each Reference in its StoreForever. */
+    STORE_FOREVER,
+    /** IntegrityAttestation.SignedChainSlot (or SignedChainSegment): the block in its ChainSlot (or each one). */
+    CHAIN_SLOT,
+    /** IntegrityAttestation.SignedTimestampedReferences: each Reference in its TimestampedReferences. */
+    TIMESTAMPED_REFERENCES,
+    /** IntegrityAttestation.SignedGitSimBranch: the commit in its GitSimBranch. */
+    GIT_SIM_BRANCH
+  }
+
+  /** The kinds of integrity attestation. */
+  public static final Set<Kind> INTEGRITY_KINDS =
+    unmodifiableSet(EnumSet.of(Kind.CHAIN_SLOT, Kind.TIMESTAMPED_REFERENCES, Kind.GIT_SIM_BRANCH));
+
+  /** For each referenced hash, for each kind, the hashes of attestation blocks referencing it. */
+  private final ConcurrentMap<Hash, ConcurrentMap<Kind, Set<Hash>>> index;
+
+  /** Make a new, empty, ReferenceIndex. */
+  public ReferenceIndex() {
+    index = new ConcurrentHashMap<Hash, ConcurrentMap<Kind, Set<Hash>>>();
+  }
+
+  /**
+   * Record that this attestation references this hash.
+   * @param referenced the hash referenced
+   * @param kind the kind of attestation
+   * @param attestation the hash of the attestation block
+   */
+  private void put(final Reference referenced, final Kind kind, final Hash attestation) {
+    if (referenced.hasHash()) {
+      index.computeIfAbsent(referenced.getHash(), h -> new ConcurrentHashMap<Kind, Set<Hash>>()).
+        computeIfAbsent(kind, k -> ConcurrentHashMap.newKeySet()).add(attestation);
+    }
+  }
+
+  /**
+   * Index all the References in this block (if it's a kind of attestation we index).
+   * Adding the same block more than once does no harm.
+   * @param hash the hash of the block
+   * @param block the block
+   */
+  public void add(final Hash hash, final Block block) {
+    if (block.hasAvailabilityAttestation()) {
+      if (block.getAvailabilityAttestation().hasSignedStoreForever()) {
+        for (Reference reference :
+             block.getAvailabilityAttestation().getSignedStoreForever().getStoreForever().getBlockList()) {
+          put(reference, Kind.STORE_FOREVER, hash);
+        }
+      }
+    } else if (block.hasIntegrityAttestation()) {
+      final IntegrityAttestation attestation = block.getIntegrityAttestation();
+      if (attestation.hasSignedChainSlot()) {
+        put(attestation.getSignedChainSlot().getChainSlot().getBlock(), Kind.CHAIN_SLOT, hash);
+      } else if (attestation.hasSignedChainSegment()) {
+        for (ChainSlot chainSlot : attestation.getSignedChainSegment().getChainSegment().getChainSlotList()) {
+          put(chainSlot.getBlock(), Kind.CHAIN_SLOT, hash);
+        }
+      } else if (attestation.hasSignedTimestampedReferences()) {
+        for (Reference reference :
+             attestation.getSignedTimestampedReferences().getTimestampedReferences().getBlockList()) {
+          put(reference, Kind.TIMESTAMPED_REFERENCES, hash);
+        }
+      } else if (attestation.hasSignedGitSimBranch()) {
+        put(attestation.getSignedGitSimBranch().getGitSimBranch().getCommit(), Kind.GIT_SIM_BRANCH, hash);
+      }
+    }
+  }
+
+  /**
+   * @param referenced the hash of a block
+   * @param kind the kind of attestation
+   * @return the hashes of all (indexed) attestation blocks of this kind referencing that block (a read-only view)
+   */
+  public Set<Hash> getAttestations(final Hash referenced, final Kind kind) {
+    final ConcurrentMap<Kind, Set<Hash>> kinds = index.get(referenced);
+    if (kinds == null) {
+      return emptySet();
+    }
+    final Set<Hash> attestations = kinds.get(kind);
+    return (attestations == null) ? emptySet() : unmodifiableSet(attestations);
+  }
+
+  /**
+   * @param referenced the hash of a block
+   * @return the hashes of all (indexed) availability attestation blocks referencing that block (a read-only view)
+   */
+  public Set<Hash> getAvailabilityAttestations(final Hash referenced) {
+    return getAttestations(referenced, Kind.STORE_FOREVER);
+  }
+
+  /**
+   * @param attestation the hash of an attestation block
+   * @param referenced the hash of a block
+   * @param kind the kind of attestation
+   * @return whether that attestation block (which must have been indexed) references that block
+   */
+  public boolean references(final Hash attestation, final Hash referenced, final Kind kind) {
+    return getAttestations(referenced, kind).contains(attestation);
+  }
+}
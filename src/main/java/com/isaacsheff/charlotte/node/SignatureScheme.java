@@ -0,0 +1,67 @@
+package com.isaacsheff.charlotte.node;
+
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.Signature;
+
+/**
+ * A signature algorithm SignatureUtil can sign and verify with.
+ * SignatureUtil picks a scheme by the type of the key signing, or the type of the CryptoId / Signature being checked.
+ * Built-in schemes are EcdsaP256SignatureScheme (the default) and Ed25519SignatureScheme.
+ * More can be added with SignatureUtil.registerScheme, typically using the AnyWithReference
+ *  fields in PublicKey and Signature to carry their keys and signatures.
+ * Implementations must be thread-safe: one instance is shared by everyone.
+ * @author Isaac Sheff
+ */
+public interface SignatureScheme {
+
+  /**
+   * @param publicKey a Java public key
+   * @return whether this scheme signs with keys of this type
+   */
+  boolean handles(java.security.PublicKey publicKey);
+
+  /**
+   * @param cryptoId a CryptoId, which may contain a public key
+   * @return whether this CryptoId contains a key of this scheme's type
+   */
+  boolean handles(CryptoId cryptoId);
+
+  /**
+   * @param signature a charlotte Signature
+   * @return whether this Signature is of this scheme's type
+   */
+  boolean handles(Signature signature);
+
+  /**
+   * Create a new (not thread-safe) signature engine for this scheme.
+   * SignatureUtil keeps one per thread.
+   * Should log severe and throw a ServiceConfigurationError if the engine is unavailable.
+   * @return a new signature engine
+   */
+  java.security.Signature newEngine();
+
+  /**
+   * @param publicKey a Java public key of this scheme's type
+   * @return the CryptoId containing this key
+   */
+  CryptoId createCryptoId(java.security.PublicKey publicKey);
+
+  /**
+   * @param cryptoId a CryptoId for which handles(cryptoId) is true
+   * @return the Java public key it contains, or null if the key is invalid
+   */
+  java.security.PublicKey parsePublicKey(CryptoId cryptoId);
+
+  /**
+   * @param signatureBytes the raw output of this scheme's signature engine
+   * @param cryptoId the CryptoId of the signer
+   * @return a charlotte Signature containing these bytes
+   */
+  Signature createSignature(byte[] signatureBytes, CryptoId cryptoId);
+
+  /**
+   * @param signature a charlotte Signature for which handles(signature) is true
+   * @return the raw signature bytes to feed the engine, or null if the signature is malformed
+   */
+  byte[] getSignatureBytes(Signature signature);
+}
@@ -3,25 +3,28 @@ package com.isaacsheff.charlotte.node;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.MessageLite;
 import com.isaacsheff.charlotte.proto.CryptoId;
-import com.isaacsheff.charlotte.proto.PublicKey;
 import com.isaacsheff.charlotte.proto.Signature;
 
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.security.SignatureException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.ServiceConfigurationError;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 /**
- * Useful utility function for making and checking ECDSA P-256 signatures.
+ * Useful utility function for making and checking signatures.
+ * The actual algorithm is chosen by a SignatureScheme, selected by the type of key signing,
+ *  or the type of signature being checked.
+ * ECDSA P-256 (the default) and Ed25519 are built in.
  * @author Isaac Sheff
  */
 public class SignatureUtil {
@@ -35,6 +38,48 @@ public class SignatureUtil {
    */
   private static final Logger logger = Logger.getLogger(SignatureUtil.class.getName());
 
+  /**
+   * The most public keys we'll keep parsed in publicKeyCache before clearing it.
+   * Deployments have a handful of participants, so this should never actually be reached.
+   */
+  private static final int MAX_CACHED_PUBLIC_KEYS = 4096;
+
+  /**
+   * The signature schemes we know, in the order we ask them whether they handle something.
+   * Schemes registered later go in front.
+   */
+  private static final List<SignatureScheme> schemes =
+    new CopyOnWriteArrayList<SignatureScheme>(List.of(new EcdsaP256SignatureScheme(), new Ed25519SignatureScheme()));
+
+  /**
+   * Public keys we've already parsed, by the CryptoId they came from.
+   * Parsing a key is a large fraction of the cost of checking a signature.
+   */
+  private static final ConcurrentMap<CryptoId, java.security.PublicKey> publicKeyCache = new ConcurrentHashMap<>();
+
+  /**
+   * CryptoIds we've already created for our own signing keys.
+   * Config hands out the same KeyPair each time, so this is usually one entry.
+   */
+  private static final ConcurrentMap<java.security.PublicKey, CryptoId> cryptoIdCache = new ConcurrentHashMap<>();
+
+  /**
+   * Each thread gets its own signature engine for each scheme, since they are not thread-safe, and expensive to look up.
+   * Every use starts with initSign or initVerify, which resets the engine.
+   */
+  private static final ThreadLocal<Map<SignatureScheme, java.security.Signature>> signatureEngines =
+    ThreadLocal.withInitial(HashMap::new);
+
+  /** Something that feeds the bytes to be signed (or verified) into a signature engine. */
+  @FunctionalInterface
+  private interface EngineUpdate {
+    /**
+     * @param engine the initialized signature engine
+     * @throws SignatureException if the engine throws one while being updated
+     */
+    void update(java.security.Signature engine) throws SignatureException;
+  }
+
   /**
    * A useful helper method for Throwables that should never be thrown.
    * We log them as severe, and then throw a ConfigurationError,
@@ -46,52 +91,146 @@ public class SignatureUtil {
   }
 
   /**
-   * A helper method for starting up a signature object.
-   * Initiated with algorithm "SHA256withECDSA" and provider "BC".
-   * If something goes wrong in initiating an instance, it logs it as SEVERE, and throws an error.
-   * @return the signature object
+   * Add a signature scheme, which will be asked whether it handles things before any already known.
+   * @param scheme the new SignatureScheme
    */
-  private static java.security.Signature initSignature() {
-    try {
-      return java.security.Signature.getInstance("SHA256withECDSA", "BC");
-    } catch (NoSuchAlgorithmException e) {
-      logSevereAndServiceConfigurationError(
-          "Signature generated NoSuchAlgorithm when shouldn't have, on SHA256withECDSA: ", e);
-    } catch (NoSuchProviderException e) {
-      logSevereAndServiceConfigurationError("Signature generated NoSuchProvider when shouldn't have, on BC: ", e);
+  public static void registerScheme(final SignatureScheme scheme) {
+    schemes.add(0, scheme);
+  }
+
+  /**
+   * @param publicKey a Java public key
+   * @return the scheme which signs with this type of key, or null if there is none
+   */
+  public static SignatureScheme getScheme(final java.security.PublicKey publicKey) {
+    for (SignatureScheme scheme : schemes) {
+      if (scheme.handles(publicKey)) {
+        return scheme;
+      }
     }
-    return null; // this point should never be reached.
+    return null;
+  }
+
+  /**
+   * @param cryptoId a CryptoId containing a public key
+   * @return the scheme which handles this type of key, or null if there is none
+   */
+  public static SignatureScheme getScheme(final CryptoId cryptoId) {
+    for (SignatureScheme scheme : schemes) {
+      if (scheme.handles(cryptoId)) {
+        return scheme;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param signature a charlotte Signature
+   * @return the scheme which handles this type of signature, or null if there is none
+   */
+  public static SignatureScheme getScheme(final Signature signature) {
+    for (SignatureScheme scheme : schemes) {
+      if (scheme.handles(signature)) {
+        return scheme;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A helper method for getting this thread's signature engine for a scheme.
+   * @param scheme the scheme in question
+   * @return the signature object
+   */
+  private static java.security.Signature getEngine(final SignatureScheme scheme) {
+    return signatureEngines.get().computeIfAbsent(scheme, SignatureScheme::newEngine);
   }
 
   /**
    * Get the CryptoId object corresponding to the Java PublicKey object.
-   * This assymes you're using a P256 Ecliptic Curve Key
-   * @param publicKey the Java PublicKey 
+   * If no scheme handles this type of key, it logs it as SEVERE, and throws an error.
+   * @param publicKey the Java PublicKey
    * @return the corresponding CryptoId object
    */
   public static CryptoId createCryptoId(final java.security.PublicKey publicKey) {
-    return CryptoId.newBuilder().setPublicKey(PublicKey.newBuilder().setEllipticCurveP256(
-             PublicKey.EllipticCurveP256.newBuilder().setByteString(
-               ByteString.copyFrom(publicKey.getEncoded())))).build();
+    final SignatureScheme scheme = getScheme(publicKey);
+    if (scheme == null) {
+      logSevereAndServiceConfigurationError("No signature scheme for keys of type " + publicKey.getAlgorithm() + ": ",
+                                            new IllegalArgumentException(publicKey.getAlgorithm()));
+    }
+    return scheme.createCryptoId(publicKey);
+  }
+
+  /**
+   * Get the CryptoId object corresponding to the Java PublicKey object, reusing one we've made before if possible.
+   * @param publicKey the Java PublicKey
+   * @return the corresponding CryptoId object
+   */
+  public static CryptoId getCryptoId(final java.security.PublicKey publicKey) {
+    return cryptoIdCache.computeIfAbsent(publicKey, SignatureUtil::createCryptoId);
+  }
+
+  /**
+   * Parse the Java PublicKey object from a CryptoId, reusing one we've parsed before if possible.
+   * @param cryptoId the CryptoId containing the encoded key
+   * @return the corresponding Java PublicKey, or null if the key was invalid or of an unknown type
+   */
+  public static java.security.PublicKey getPublicKey(final CryptoId cryptoId) {
+    java.security.PublicKey publicKey = publicKeyCache.get(cryptoId);
+    if (publicKey != null) {
+      return publicKey;
+    }
+    final SignatureScheme scheme = getScheme(cryptoId);
+    if (scheme == null) {
+      logger.info("tried to parse a key of unknown type");
+      return null;
+    }
+    publicKey = scheme.parsePublicKey(cryptoId);
+    if (publicKey == null) {
+      return null; // the key was invalid, and we don't cache invalid keys
+    }
+    if (publicKeyCache.size() >= MAX_CACHED_PUBLIC_KEYS) {
+      logger.warning("public key cache full, clearing it");
+      publicKeyCache.clear();
+    }
+    publicKeyCache.putIfAbsent(cryptoId, publicKey);
+    return publicKey;
   }
 
   /**
    * Create a Signature (charlotte protobuf) object for the given keypair and bytestring.
+   * The signature scheme is chosen by the type of the keypair.
    * @param keyPair the key pair to use in signing the response
    * @param bytes the bytes you want to sign
    * @return the calculated Signature
    */
   public static Signature signBytes(final KeyPair keyPair, byte[] bytes) {
-    // Here we start creating the signature string. 
+    return sign(keyPair, engine -> engine.update(bytes));
+  }
+
+  /**
+   * Create a Signature (charlotte protobuf) object for the given keypair and whatever bytes the update feeds in.
+   * The signature scheme is chosen by the type of the keypair.
+   * @param keyPair the key pair to use in signing the response
+   * @param update feeds the bytes you want to sign into the engine
+   * @return the calculated Signature
+   */
+  private static Signature sign(final KeyPair keyPair, final EngineUpdate update) {
+    final SignatureScheme scheme = getScheme(keyPair.getPublic());
+    if (scheme == null) {
+      logSevereAndServiceConfigurationError("No signature scheme for keys of type " +
+          keyPair.getPublic().getAlgorithm() + ": ", new IllegalArgumentException(keyPair.getPublic().getAlgorithm()));
+    }
+    // Here we start creating the signature string.
     // Lots of Exceptions are possible, but ought to never happen, so we log severe and throw an error if they do.
-    java.security.Signature signature = initSignature();
+    java.security.Signature signature = getEngine(scheme);
     try {
       signature.initSign(keyPair.getPrivate());
     } catch (InvalidKeyException e) {
       logSevereAndServiceConfigurationError("The Key which we tried to sign with was invalid: ", e);
     }
     try {
-      signature.update(bytes);
+      update.update(signature);
     } catch (SignatureException e) {
       logSevereAndServiceConfigurationError("Something went wrong while passing bytes to signer:  ", e);
     }
@@ -103,12 +242,9 @@ public class SignatureUtil {
     }
 
     // assemble and return the response object:
-    return Signature.newBuilder().
-             setSha256WithEcdsa(Signature.SignatureAlgorithmSHA256WithECDSA.newBuilder().setByteString(
-               ByteString.copyFrom(signatureBytes))).
-             setCryptoId(createCryptoId(keyPair.getPublic())).build();
+    return scheme.createSignature(signatureBytes, getCryptoId(keyPair.getPublic()));
   }
-  
+
   /**
    * Create a Signature (charlotte protobuf) object for the given keypair and bytestring.
    * @param keyPair the key pair to use in signing the response
@@ -116,57 +252,106 @@ public class SignatureUtil {
    * @return the calculated Signature
    */
   public static Signature signBytes(final KeyPair keyPair, final ByteString bytes) {
-    return signBytes(keyPair,bytes.toByteArray());
+    return sign(keyPair, engine -> UpdatingOutputStream.update(engine, bytes));
   }
 
   /**
    * Create a Signature (charlotte protobuf) object for the given keypair and message.
+   * The message is serialized straight into the signature engine, rather than into a byte[] first.
    * @param keyPair the key pair to use in signing the response
    * @param message the message you want to sign
    * @return the calculated Signature
    */
   public static Signature signBytes(final KeyPair keyPair, final MessageLite message) {
-    return signBytes(keyPair, message.toByteArray());
+    return sign(keyPair, engine -> UpdatingOutputStream.update(engine, message));
   }
 
   /**
    * Check whether this crypto signature was calculated successfully.
+   * The signature scheme is chosen by the type of the signature.
    * @param bytes the bytes supposedly signed
    * @param signature the signature
    * @return whether the signature was correct
    */
   public static boolean checkSignature(final byte[] bytes, final Signature signature) {
-    // second, parse the public key from X.509 bytes to a java PublicKey object
-    java.security.PublicKey publicKey = null;
-    try {
-      publicKey = KeyFactory.getInstance("EC", "BC").generatePublic(new X509EncodedKeySpec(
-          signature.getCryptoId().getPublicKey().getEllipticCurveP256().getByteString().toByteArray()));
-    } catch(NoSuchAlgorithmException e) {
-      logSevereAndServiceConfigurationError("Key Parsing generated NoSuchAlgorithm when shouldn't have, on EC: ", e);
-    } catch(NoSuchProviderException e) {
-      logSevereAndServiceConfigurationError("Key Parsing generated NoSuchProvider when shouldn't have, on BC: ", e);
-    } catch (InvalidKeySpecException e) {
+    if (signature.hasMerkleBatch()) {
+      return checkMerkleBatch(MerkleBatchSigner.leafHash(bytes), signature);
+    }
+    return check(engine -> engine.update(bytes), signature);
+  }
+
+  /**
+   * Check a signature made by a MerkleBatchSigner: follow the path from the leaf to the root,
+   *  and check the signature over the root.
+   * The root signature is checked through the VerifiedSignatureCache, since every other member of
+   *  the batch will present the same one.
+   * @param leaf the leaf hash of the thing supposedly signed
+   * @param signature the signature, containing a MerkleBatch
+   * @return whether the signature was correct
+   */
+  private static boolean checkMerkleBatch(final byte[] leaf, final Signature signature) {
+    final Signature rootSignature = signature.getMerkleBatch().getRootSignature();
+    if (rootSignature.hasMerkleBatch()) {
+      logger.info("tried to verify a Merkle batch signature whose root was signed by another Merkle batch");
+      return false;
+    }
+    if (!rootSignature.getCryptoId().equals(signature.getCryptoId())) {
+      logger.info("tried to verify a Merkle batch signature whose root was signed by someone else");
+      return false;
+    }
+    final byte[] root = MerkleBatchSigner.root(leaf, signature.getMerkleBatch());
+    if (root == null) {
+      logger.info("tried to verify a Merkle batch signature with a malformed path");
+      return false;
+    }
+    return VerifiedSignatureCache.getDefault().checkSignature(
+             ByteString.copyFrom(MerkleBatchSigner.rootBytes(root)), rootSignature);
+  }
+
+  /**
+   * Check whether this crypto signature was calculated successfully over whatever bytes the update feeds in.
+   * The signature scheme is chosen by the type of the signature.
+   * @param update feeds the bytes supposedly signed into the engine
+   * @param signature the signature
+   * @return whether the signature was correct
+   */
+  private static boolean check(final EngineUpdate update, final Signature signature) {
+    // first, find out what kind of signature this is
+    final SignatureScheme scheme = getScheme(signature);
+    if (scheme == null) {
+      logger.info("tried to verify a signature of unknown type");
+      return false;
+    }
+    final byte[] signatureBytes = scheme.getSignatureBytes(signature);
+    if (signatureBytes == null) {
+      logger.info("tried to verify a malformed signature");
+      return false;
+    }
+
+    // second, parse the public key to a java PublicKey object (or find it in the cache)
+    final java.security.PublicKey publicKey = getPublicKey(signature.getCryptoId());
+    if (publicKey == null) {
       logger.info("tried to verify a signature which had an invalid key");
       return false; // the key was invalid
     }
 
     // Parse the signature into a java Signature object, and then verify it with the public key
-    java.security.Signature sig = initSignature();
+    java.security.Signature sig = getEngine(scheme);
     try {
       sig.initVerify(publicKey);
     } catch (InvalidKeyException e) {
-      logger.log(Level.WARNING, "something very odd has happened: we parsed a key, and then it was invalid.", e);
+      logger.log(Level.INFO, "tried to verify a signature with a key of the wrong type for the signature.", e);
       return false; // the key was invalid
     }
     try {
-      sig.update(bytes); // the bytes that supposedly were signed
+      update.update(sig); // the bytes that supposedly were signed
     } catch (SignatureException e) {
       logger.log(Level.WARNING, "something very odd has happened: we parsed a key, and got a "+
                 "signature exception while feeding in the string supposedly signed.", e);
       return false; // the signature didn't verify
     }
     try {
-      if (!sig.verify(signature.getSha256WithEcdsa().getByteString().toByteArray())){
+      if (!sig.verify(signatureBytes)){
         logger.info("tried to verify a signature, but the signature didn't verify.");
         return false; // the signature didn't verify
       }
@@ -186,16 +371,23 @@ public class SignatureUtil {
    * @return whether the signature was correct
    */
   public static boolean checkSignature(final ByteString bytes, final Signature signature) {
-    return checkSignature(bytes.toByteArray(), signature);
+    if (signature.hasMerkleBatch()) {
+      return checkMerkleBatch(MerkleBatchSigner.leafHash(bytes), signature);
+    }
+    return check(engine -> UpdatingOutputStream.update(engine, bytes), signature);
   }
 
   /**
    * Check whether this crypto signature was calculated successfully.
+   * The message is serialized straight into the signature engine, rather than into a byte[] first.
    * @param message the Message supposedly signed
    * @param signature the signature
    * @return whether the signature was correct
    */
   public static boolean checkSignature(final MessageLite message, final Signature signature) {
-    return checkSignature(message.toByteArray(), signature);
+    if (signature.hasMerkleBatch()) {
+      return checkMerkleBatch(MerkleBatchSigner.leafHash(message), signature);
+    }
+    return check(engine -> UpdatingOutputStream.update(engine, message), signature);
   }
 }
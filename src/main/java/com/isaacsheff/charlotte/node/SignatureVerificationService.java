@@ -0,0 +1,248 @@
+package com.isaacsheff.charlotte.node;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.isaacsheff.charlotte.proto.Signature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verifies signatures in parallel across a pool of threads, rather than on whichever thread received the message.
+ * Requests return CompletableFutures, and batches of requests are spread across the pool.
+ * If the same (bytes, signature) pair is requested while a verification of it is still in flight,
+ *  the requester gets the in-flight future, rather than a second verification.
+ * Most users will want the shared instance from getDefault().
+ * @author Isaac Sheff
+ */
+public class SignatureVerificationService {
+  /** Use logger for logging events involving SignatureVerificationService. */
+  private static final Logger logger = Logger.getLogger(SignatureVerificationService.class.getName());
+
+  /** Lazily creates the shared instance the first time it's needed. */
+  private static class DefaultHolder {
+    /** The shared instance, with one thread per available processor. */
+    private static final SignatureVerificationService instance = new SignatureVerificationService();
+  }
+
+  /** The pool of threads on which signatures are checked. */
+  private final ExecutorService executor;
+
+  /** Verifications which have been requested, but not yet completed. */
+  private final ConcurrentMap<SignedBytes, CompletableFuture<Boolean>> inFlight;
+
+  /**
+   * A pair of bytes (or a message) and the signature supposedly signing them.
+   * Equal pairs are coalesced into a single verification.
+   * A message is kept as it is, rather than copied into bytes: it's serialized straight into the digest and the
+   *  signature engine when it's checked.
+   */
+  public static class SignedBytes {
+    /** The bytes supposedly signed, or null if this is a message. */
+    private final ByteString bytes;
+
+    /** The message supposedly signed, or null if this is bytes. */
+    private final MessageLite message;
+
+    /** The signature supposedly signing the bytes. */
+    private final Signature signature;
+
+    /**
+     * @param bytes the bytes supposedly signed
+     * @param signature the signature supposedly signing the bytes
+     */
+    public SignedBytes(final ByteString bytes, final Signature signature) {
+      this.bytes = bytes;
+      this.message = null;
+      this.signature = signature;
+    }
+
+    /**
+     * @param message the message supposedly signed
+     * @param signature the signature supposedly signing the message
+     */
+    public SignedBytes(final MessageLite message, final Signature signature) {
+      this.bytes = null;
+      this.message = message;
+      this.signature = signature;
+    }
+
+    /** @return the bytes supposedly signed (serializing the message, if this is a message) */
+    public ByteString getBytes() {return (bytes == null) ? message.toByteString() : bytes;}
+
+    /** @return the message supposedly signed, or null if this was made with bytes */
+    public MessageLite getMessage() {return message;}
+
+    /** @return the signature supposedly signing the bytes */
+    public Signature getSignature() {return signature;}
+
+    /**
+     * @param cache a VerifiedSignatureCache
+     * @return whether the cache remembers this signature verifying
+     */
+    boolean isVerified(final VerifiedSignatureCache cache) {
+      return (bytes == null) ? cache.isVerified(message, signature) : cache.isVerified(bytes, signature);
+    }
+
+    /**
+     * Check the signature (without looking in the cache), and remember it in the cache if it's correct.
+     * @param cache a VerifiedSignatureCache
+     * @return whether the signature was correct
+     */
+    boolean checkAndRemember(final VerifiedSignatureCache cache) {
+      if (bytes == null) {
+        if (SignatureUtil.checkSignature(message, signature)) {
+          cache.putVerified(message, signature);
+          return true;
+        }
+      } else if (SignatureUtil.checkSignature(bytes, signature)) {
+        cache.putVerified(bytes, signature);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Messages are compared with messages, and bytes with bytes (so a message and its bytes are not coalesced).
+     * @param other the object to compare to
+     * @return whether other is a SignedBytes with equal bytes (or message) and signature
+     */
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof SignedBytes)) {
+        return false;
+      }
+      return Objects.equals(bytes, ((SignedBytes) other).bytes)
+          && Objects.equals(message, ((SignedBytes) other).message)
+          && getSignature().equals(((SignedBytes) other).getSignature());
+    }
+
+    /** @return a hash code combining the bytes (or message) and signature */
+    @Override
+    public int hashCode() {
+      return Objects.hash(bytes, message, getSignature());
+    }
+  }
+
+  /**
+   * Create a new service with a pool of the given number of (daemon) threads.
+   * @param threads the number of threads to check signatures with
+   */
+  public SignatureVerificationService(final int threads) {
+    executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, "SignatureVerificationService");
+      thread.setDaemon(true);
+      return thread;
+    });
+    inFlight = new ConcurrentHashMap<SignedBytes, CompletableFuture<Boolean>>();
+  }
+
+  /** Create a new service with one thread per available processor. */
+  public SignatureVerificationService() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /** @return the shared instance, with one thread per available processor. */
+  public static SignatureVerificationService getDefault() {return DefaultHolder.instance;}
+
+  /**
+   * Check whether this signature is correct, on the pool.
+   * If the VerifiedSignatureCache already knows it's correct, returns a completed future.
+   * If an identical check is already in flight, returns the same future.
+   * @param signedBytes the bytes and the signature supposedly signing them
+   * @return a future that completes with whether the signature was correct
+   */
+  public CompletableFuture<Boolean> verify(final SignedBytes signedBytes) {
+    if (signedBytes.isVerified(VerifiedSignatureCache.getDefault())) {
+      return CompletableFuture.completedFuture(true);
+    }
+    final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+    final CompletableFuture<Boolean> existing = inFlight.putIfAbsent(signedBytes, future);
+    if (existing != null) {
+      return existing;
+    }
+    executor.execute(() -> {
+      try {
+        // we've already looked it up in the cache, so just check it (and remember it if it's correct).
+        future.complete(signedBytes.checkAndRemember(VerifiedSignatureCache.getDefault()));
+      } catch (Throwable t) {
+        logger.log(Level.WARNING, "Exception while verifying a signature", t);
+        future.completeExceptionally(t);
+      } finally {
+        inFlight.remove(signedBytes, future);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Check whether this signature is correct, on the pool.
+   * @param message the message supposedly signed
+   * @param signature the signature
+   * @return a future that completes with whether the signature was correct
+   */
+  public CompletableFuture<Boolean> verify(final MessageLite message, final Signature signature) {
+    return verify(new SignedBytes(message, signature));
+  }
+
+  /**
+   * Check whether this signature is correct, and wait for the answer.
+   * Since the caller waits anyway, this checks on the caller's thread (unless an identical check is already in
+   *  flight, which it waits for), rather than handing the check to the pool and blocking on it.
+   * Callers with several signatures to check should use verify (or verifyAll) and combine the futures instead,
+   *  so the checks run in parallel.
+   * Any exception during verification counts as an incorrect signature.
+   * @param message the message supposedly signed
+   * @param signature the signature
+   * @return whether the signature was correct
+   */
+  public boolean check(final MessageLite message, final Signature signature) {
+    try {
+      final CompletableFuture<Boolean> existing = inFlight.get(new SignedBytes(message, signature));
+      if (existing != null) {
+        return existing.join();
+      }
+      return VerifiedSignatureCache.getDefault().checkSignature(message, signature);
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Signature verification failed exceptionally", e);
+      return false;
+    }
+  }
+
+  /**
+   * Check a batch of signatures in parallel across the pool.
+   * @param batch the bytes and signatures to check
+   * @return futures for whether each signature was correct, in the same order as the batch
+   */
+  public List<CompletableFuture<Boolean>> verifyAll(final Iterable<SignedBytes> batch) {
+    final List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+    for (SignedBytes signedBytes : batch) {
+      futures.add(verify(signedBytes));
+    }
+    return futures;
+  }
+
+  /**
+   * Check a batch of signatures in parallel across the pool.
+   * @param batch the bytes and signatures to check
+   * @return a future that completes with whether every signature in the batch was correct
+   */
+  public CompletableFuture<Boolean> allVerified(final Iterable<SignedBytes> batch) {
+    CompletableFuture<Boolean> all = CompletableFuture.completedFuture(true);
+    for (CompletableFuture<Boolean> future : verifyAll(batch)) {
+      all = all.thenCombine(future, Boolean::logicalAnd);
+    }
+    return all;
+  }
+}
@@ -4,13 +4,21 @@ package com.isaacsheff.charlotte.node;
 import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
 import static java.util.Collections.emptySet;
 import static java.util.Collections.singleton;
-import static java.util.concurrent.ConcurrentHashMap.newKeySet;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.protobuf.ByteString;
+
 import com.isaacsheff.charlotte.collections.BlockingMap;
 import com.isaacsheff.charlotte.fern.TimestampFern;
 import com.isaacsheff.charlotte.proto.Block;
@@ -24,6 +32,8 @@ import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationInput;
 import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
 import com.isaacsheff.charlotte.proto.SendBlocksResponse;
 import com.isaacsheff.charlotte.proto.Signature;
+import com.isaacsheff.charlotte.proto.Signature.MerkleBatch;
+import com.isaacsheff.charlotte.proto.TimestampProof;
 import com.isaacsheff.charlotte.yaml.Config;
 
 /**
@@ -35,8 +45,21 @@ import com.isaacsheff.charlotte.yaml.Config;
  *
  * The TimestampNode differs from the regular CharlotteNodeService in
  *  that, when it has received referencesPerAttestation" new blocks,
- *  it requests a timestamp from the local fern service for those new
- *  blocks.
+ *  or the oldest new block has waited lingerMilliseconds (whichever
+ *  comes first), it requests a timestamp from the local fern service
+ *  for those new blocks.
+ *
+ * A batch of more than one block is timestamped by the root of a
+ *  Merkle tree over their hashes (TimestampedReferences.merkleRoot),
+ *  rather than by listing each one, so the attestation stays small.
+ * The TimestampProof for each block in the batch (the attestation,
+ *  and the path from the block's leaf up to the root) is kept here,
+ *  and served by the TimestampFern (see getTimestampProof), for the
+ *  most recent maxProofs blocks.
+ * Check one with checkTimestampProof.
+ *
+ * Timestamp attestations themselves are not timestamped: otherwise
+ *  each timestamp would call for another one.
  *
  * @author Isaac Sheff
  */
@@ -44,15 +67,33 @@ public class TimestampNode extends CharlotteNodeService {
   /** Use logger for logging events on a CharlotteNodeService. */
   private static final Logger logger = Logger.getLogger(TimestampNode.class.getName());
 
+  /** A sensible longest wait for a timestamp, for those who want one (lingering is off unless set). */
+  public static final long DEFAULT_LINGER_MILLISECONDS = 1000;
+
+  /** The most TimestampProofs kept, if we're not told otherwise. */
+  public static final int DEFAULT_MAX_PROOFS = 65536;
+
   /** a local timestamping service **/
   private final TimestampFern fern;
 
-  /** recently received blocks which are not yet timestamped **/
-  private final Set<Reference.Builder> untimestamped;
+  /** recently received blocks which are not yet timestamped, oldest first. Guarded by itself. **/
+  private final Set<Hash> untimestamped;
+
+  /** when (System.nanoTime()) the oldest untimestamped block arrived. Guarded by untimestamped. **/
+  private long oldestArrival;
+
+  /** The proof of each block's timestamp, for the most recent blocks timestamped under a Merkle root **/
+  private final Map<Hash, TimestampProof> proofs;
+
+  /** the most TimestampProofs kept (the oldest are forgotten first) **/
+  private volatile int maxProofs = DEFAULT_MAX_PROOFS;
 
   /** how many blocks do we want per timestamp? **/
   private int referencesPerAttestation;
 
+  /** the longest a block waits for a timestamp (if not positive, blocks wait for referencesPerAttestation) **/
+  private volatile long lingerMilliseconds = 0;
+
   /**
    * Create a new service with the given map of blocks, and the given map of addresses.
    * No input is checked for correctness.
@@ -67,8 +108,10 @@ public class TimestampNode extends CharlotteNodeService {
                        final Config config) {
     super(blockMap, config);
     this.fern = fern;
-    untimestamped = newKeySet();
+    untimestamped = new LinkedHashSet<Hash>();
+    proofs = newProofs();
     this.referencesPerAttestation = referencesPerAttestation;
+    startLingering();
   }
 
   /**
@@ -80,8 +123,10 @@ public class TimestampNode extends CharlotteNodeService {
   public TimestampNode(final int referencesPerAttestation, final TimestampFern fern, final Config config) {
     super(config);
     this.fern = fern;
-    untimestamped = newKeySet();
+    untimestamped = new LinkedHashSet<Hash>();
+    proofs = newProofs();
     this.referencesPerAttestation = referencesPerAttestation;
+    startLingering();
   }
 
   /**
@@ -93,8 +138,10 @@ public class TimestampNode extends CharlotteNodeService {
   public TimestampNode(final int referencesPerAttestation, final TimestampFern fern, final Path path) {
     super(path);
     this.fern = fern;
-    untimestamped = newKeySet();
+    untimestamped = new LinkedHashSet<Hash>();
+    proofs = newProofs();
     this.referencesPerAttestation = referencesPerAttestation;
+    startLingering();
   }
 
   /**
@@ -106,8 +153,48 @@ public class TimestampNode extends CharlotteNodeService {
   public TimestampNode(final int referencesPerAttestation, final TimestampFern fern, final String filename) {
     super(filename);
     this.fern = fern;
-    untimestamped = newKeySet();
+    untimestamped = new LinkedHashSet<Hash>();
+    proofs = newProofs();
     this.referencesPerAttestation = referencesPerAttestation;
+    startLingering();
+  }
+
+  /** @return a map of proofs, forgetting the oldest beyond maxProofs */
+  private Map<Hash, TimestampProof> newProofs() {
+    return Collections.synchronizedMap(new LinkedHashMap<Hash, TimestampProof>() {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Hash, TimestampProof> eldest) {
+        return size() > getMaxProofs();
+      }
+    });
+  }
+
+  /** @return the most TimestampProofs kept (the oldest are forgotten first) */
+  public int getMaxProofs() {return maxProofs;}
+
+  /** @param maxProofs the most TimestampProofs kept (the oldest are forgotten first) */
+  public void setMaxProofs(final int maxProofs) {this.maxProofs = maxProofs;}
+
+  /** @return the longest a block waits for a timestamp (if not positive, blocks wait for referencesPerAttestation) */
+  public long getLingerMilliseconds() {return lingerMilliseconds;}
+
+  /**
+   * Set the longest a block waits for a timestamp, even if referencesPerAttestation blocks haven't arrived.
+   * @param lingerMilliseconds the longest a block waits (if not positive, blocks wait for referencesPerAttestation)
+   */
+  public void setLingerMilliseconds(final long lingerMilliseconds) {
+    this.lingerMilliseconds = lingerMilliseconds;
+    synchronized(untimestamped) {
+      untimestamped.notifyAll();
+    }
+  }
+
+  /**
+   * @param block the hash of a block
+   * @return the proof of its timestamp, or null if it isn't known (yet) to be timestamped under a Merkle root
+   */
+  public TimestampProof getTimestampProof(final Hash block) {
+    return proofs.get(block);
   }
 
   /**
@@ -115,32 +202,28 @@ public class TimestampNode extends CharlotteNodeService {
    * This is where we count up the recently received blocks, and if
    *  referencesPerAttestation have accrued, we request a timestamp
    *  for them, and clear out the untimestamped set.
+   * Timestamp attestations (ours, or anyone's) are not counted.
    * @param block the newly received block
    * @return any SendBlockResponses (including error messages) to be sent back over the wire to the block's sender.
    */
   @Override
   public Iterable<SendBlocksResponse> afterBroadcastNewBlock(final Block block) {
-    boolean shouldRequestAttestation = false;
-    final TimestampedReferences.Builder references = TimestampedReferences.newBuilder();
-    untimestamped.add(Reference.newBuilder().setHash(sha3Hash(block)));
+    if (block.hasIntegrityAttestation() && block.getIntegrityAttestation().hasSignedTimestampedReferences()) {
+      return emptySet();
+    }
+    List<Hash> batch = null;
     synchronized(untimestamped) {
+      if (untimestamped.isEmpty()) {
+        oldestArrival = System.nanoTime();
+        untimestamped.notifyAll(); // start the linger clock
+      }
+      untimestamped.add(sha3Hash(block));
       if (untimestamped.size() >= referencesPerAttestation) {
-        shouldRequestAttestation = true;
-        for (Reference.Builder reference : untimestamped) {
-          references.addBlock(reference);
-        }
-        untimestamped.clear();
+        batch = takeBatch();
       }
     }
-    if (shouldRequestAttestation) {
-      final RequestIntegrityAttestationResponse response = fern.requestIntegrityAttestation(
-          RequestIntegrityAttestationInput.newBuilder().setPolicy(
-            IntegrityPolicy.newBuilder().setFillInTheBlank(
-              IntegrityAttestation.newBuilder().setSignedTimestampedReferences(
-                SignedTimestampedReferences.newBuilder().
-                  setSignature(
-                    Signature.newBuilder().setCryptoId(getConfig().getCryptoId())). // signed by me
-                  setTimestampedReferences(references)))).build());
+    if (batch != null) {
+      final RequestIntegrityAttestationResponse response = requestTimestamp(batch);
       if (!response.getErrorMessage().equals("")) {
         return singleton(SendBlocksResponse.newBuilder().setErrorMessage(
                  "Problem while getting attestation for latest batch of blocks:\n"+
@@ -149,4 +232,109 @@ public class TimestampNode extends CharlotteNodeService {
     }
     return emptySet();
   }
+
+  /**
+   * Take all the untimestamped blocks. Must be called while synchronized on untimestamped.
+   * @return the hashes of the blocks, oldest first
+   */
+  private List<Hash> takeBatch() {
+    final List<Hash> batch = new ArrayList<Hash>(untimestamped);
+    untimestamped.clear();
+    return batch;
+  }
+
+  /** Start the (daemon) thread which requests timestamps for blocks which have waited lingerMilliseconds. */
+  private void startLingering() {
+    final Thread thread = new Thread(this::timestampLingering, "TimestampNode linger");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Repeatedly wait until the oldest untimestamped block has waited lingerMilliseconds, and timestamp the batch. */
+  private void timestampLingering() {
+    while (true) {
+      List<Hash> batch = null;
+      synchronized(untimestamped) {
+        try {
+          final long linger = getLingerMilliseconds();
+          if (untimestamped.isEmpty() || linger <= 0) {
+            untimestamped.wait();
+          } else {
+            final long wait = oldestArrival + TimeUnit.MILLISECONDS.toNanos(linger) - System.nanoTime();
+            if (wait > 0) {
+              TimeUnit.NANOSECONDS.timedWait(untimestamped, wait);
+            } else {
+              batch = takeBatch();
+            }
+          }
+        } catch (InterruptedException e) {
+          logger.log(Level.WARNING, "TimestampNode interrupted while waiting for blocks to linger", e);
+        }
+      }
+      if (batch != null) {
+        final RequestIntegrityAttestationResponse response = requestTimestamp(batch);
+        if (!response.getErrorMessage().equals("")) {
+          logger.log(Level.WARNING, "Problem while getting attestation for lingering blocks:\n" +
+                                    response.getErrorMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Request a timestamp from the local fern for these blocks.
+   * One block is listed in the TimestampedReferences.
+   * More are timestamped by the root of a Merkle tree over their hashes, and once the attestation is made, the
+   *  TimestampProof for each is kept.
+   * @param batch the hashes of the blocks (at least one)
+   * @return the response from the local fern
+   */
+  private RequestIntegrityAttestationResponse requestTimestamp(final List<Hash> batch) {
+    final TimestampedReferences.Builder references = TimestampedReferences.newBuilder();
+    final List<MerkleBatch.Builder> paths = new ArrayList<MerkleBatch.Builder>(batch.size());
+    if (batch.size() == 1) {
+      references.addBlock(Reference.newBuilder().setHash(batch.get(0)));
+    } else {
+      final List<byte[]> leaves = new ArrayList<byte[]>(batch.size());
+      for (Hash hash : batch) {
+        leaves.add(MerkleBatchSigner.leafHash(hash));
+      }
+      references.setMerkleRoot(Hash.newBuilder().setSha3(ByteString.copyFrom(MerkleBatchSigner.tree(leaves, paths))));
+    }
+    final RequestIntegrityAttestationResponse response = fern.requestIntegrityAttestation(
+        RequestIntegrityAttestationInput.newBuilder().setPolicy(
+          IntegrityPolicy.newBuilder().setFillInTheBlank(
+            IntegrityAttestation.newBuilder().setSignedTimestampedReferences(
+              SignedTimestampedReferences.newBuilder().
+                setSignature(
+                  Signature.newBuilder().setCryptoId(getConfig().getCryptoId())). // signed by me
+                setTimestampedReferences(references)))).build());
+    if (response.getErrorMessage().equals("") && response.hasReference()) {
+      for (int i = 0; i < paths.size(); ++i) {
+        proofs.put(batch.get(i), TimestampProof.newBuilder().
+                                   setBlock(Reference.newBuilder().setHash(batch.get(i))).
+                                   setAttestation(response.getReference()).
+                                   addAllPath(paths.get(i).getPathList()).build());
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Check that a TimestampProof really shows its block is under the Merkle root timestamped by this attestation.
+   * This does not check the attestation's signature (see TimestampClient).
+   * @param proof the TimestampProof
+   * @param attestation the block referenced by the proof's attestation reference
+   * @return whether the proof's path leads from the block's leaf to the attestation's Merkle root
+   */
+  public static boolean checkTimestampProof(final TimestampProof proof, final Block attestation) {
+    if (!attestation.getIntegrityAttestation().getSignedTimestampedReferences().getTimestampedReferences().
+           hasMerkleRoot()) {
+      return false;
+    }
+    final byte[] root = MerkleBatchSigner.root(MerkleBatchSigner.leafHash(proof.getBlock().getHash()),
+                                               proof.getPathList());
+    return root != null && ByteString.copyFrom(root).equals(attestation.getIntegrityAttestation().
+             getSignedTimestampedReferences().getTimestampedReferences().getMerkleRoot().getSha3());
+  }
 }
@@ -0,0 +1,166 @@
+package com.isaacsheff.charlotte.node;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+
+/**
+ * Feeds protobuf messages (and ByteStrings) straight into a MessageDigest or Signature engine,
+ *  without first serializing them to a byte[] with toByteArray().
+ * Each thread keeps one of these, with a CodedOutputStream over a small buffer, and reuses it,
+ *  so the memory used does not grow with the size of the message.
+ * The bytes fed in are exactly those toByteArray() would have produced.
+ * Used by HashUtil and SignatureUtil.
+ * @author Isaac Sheff
+ */
+final class UpdatingOutputStream extends OutputStream {
+  /** The size of the buffer the CodedOutputStream serializes into before we pass bytes along. */
+  private static final int BUFFER_SIZE = 4096;
+
+  /** Each thread gets its own stream (and buffer). */
+  private static final ThreadLocal<UpdatingOutputStream> streams = ThreadLocal.withInitial(UpdatingOutputStream::new);
+
+  /** The digest we're currently feeding, or null if we're feeding a signature. */
+  private MessageDigest digest;
+
+  /** The signature engine we're currently feeding, or null if we're feeding a digest. */
+  private java.security.Signature signature;
+
+  /** Serializes messages into a small buffer, which it flushes into this stream. */
+  private final CodedOutputStream codedOutputStream;
+
+  /** Only made by the ThreadLocal. */
+  private UpdatingOutputStream() {
+    digest = null;
+    signature = null;
+    codedOutputStream = CodedOutputStream.newInstance(this, BUFFER_SIZE);
+  }
+
+  /**
+   * Serialize this message into the digest.
+   * @param message the message to serialize
+   * @param digest the digest to update with the serialized message
+   */
+  static void update(final MessageDigest digest, final MessageLite message) {
+    final UpdatingOutputStream stream = streams.get();
+    stream.digest = digest;
+    try {
+      stream.writeMessage(message);
+    } finally {
+      stream.digest = null;
+    }
+  }
+
+  /**
+   * Serialize this message into the signature engine.
+   * @param signature the (initialized) signature engine to update with the serialized message
+   * @param message the message to serialize
+   * @throws SignatureException if the signature engine throws one while being updated
+   */
+  static void update(final java.security.Signature signature, final MessageLite message) throws SignatureException {
+    final UpdatingOutputStream stream = streams.get();
+    stream.signature = signature;
+    try {
+      stream.writeMessage(message);
+    } catch (UncheckedSignatureException e) {
+      throw e.getCause();
+    } finally {
+      stream.signature = null;
+    }
+  }
+
+  /**
+   * Feed the bytes of a ByteString into the digest, without copying them out into a byte[].
+   * @param digest the digest to update
+   * @param bytes the bytes to feed in
+   */
+  static void update(final MessageDigest digest, final ByteString bytes) {
+    for (ByteBuffer buffer : bytes.asReadOnlyByteBufferList()) {
+      digest.update(buffer);
+    }
+  }
+
+  /**
+   * Feed the bytes of a ByteString into the signature engine, without copying them out into a byte[].
+   * @param signature the (initialized) signature engine to update
+   * @param bytes the bytes to feed in
+   * @throws SignatureException if the signature engine throws one while being updated
+   */
+  static void update(final java.security.Signature signature, final ByteString bytes) throws SignatureException {
+    for (ByteBuffer buffer : bytes.asReadOnlyByteBufferList()) {
+      signature.update(buffer);
+    }
+  }
+
+  /**
+   * Serialize the message through the CodedOutputStream, and flush it all through to the current target.
+   * If anything goes wrong, this thread gets a fresh stream, so no half-written bytes linger in the buffer.
+   * @param message the message to serialize
+   */
+  private void writeMessage(final MessageLite message) {
+    boolean success = false;
+    try {
+      message.writeTo(codedOutputStream);
+      codedOutputStream.flush();
+      success = true;
+    } catch (IOException e) {
+      // we never throw IOExceptions ourselves, so this should never happen.
+      throw new IllegalStateException("IOException while serializing a message into a digest or signature", e);
+    } finally {
+      if (!success) {
+        streams.remove();
+      }
+    }
+  }
+
+  /**
+   * Pass a byte along to the current target.
+   * @param b the byte
+   */
+  @Override
+  public void write(final int b) {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  /**
+   * Pass bytes along to the current target.
+   * @param bytes the array containing the bytes
+   * @param offset where in the array the bytes start
+   * @param length how many bytes to pass along
+   */
+  @Override
+  public void write(final byte[] bytes, final int offset, final int length) {
+    if (digest != null) {
+      digest.update(bytes, offset, length);
+    } else {
+      try {
+        signature.update(bytes, offset, length);
+      } catch (SignatureException e) {
+        throw new UncheckedSignatureException(e);
+      }
+    }
+  }
+
+  /** Carries a SignatureException out through the CodedOutputStream, which only expects IOExceptions. */
+  private static class UncheckedSignatureException extends RuntimeException {
+    /** Serializable classes want one of these. */
+    private static final long serialVersionUID = 1L;
+
+    /** @param cause the SignatureException to carry */
+    UncheckedSignatureException(final SignatureException cause) {
+      super(cause);
+    }
+
+    /** @return the SignatureException carried */
+    @Override
+    public synchronized SignatureException getCause() {
+      return (SignatureException) super.getCause();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.isaacsheff.charlotte.node;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Signature;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded, least-recently-used record of signatures we have already verified.
+ * The same attestation tends to be checked over and over (every time a policy references it),
+ *  so remembering that (digest of signed bytes, signature) verified turns an ECDSA verify into a hash lookup.
+ * Only correct signatures are remembered: an incorrect one is re-checked every time.
+ * The key includes the whole signature (and therefore the signer's CryptoId),
+ *  so a forged signature never rides on a correct one by the same signer.
+ * Most users will want the shared instance from getDefault().
+ * @author Isaac Sheff
+ */
+public class VerifiedSignatureCache {
+  /** How many verified signatures the shared instance remembers. */
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  /** Lazily creates the shared instance the first time it's needed. */
+  private static class DefaultHolder {
+    /** The shared instance, with DEFAULT_CAPACITY. */
+    private static final VerifiedSignatureCache instance = new VerifiedSignatureCache(DEFAULT_CAPACITY);
+  }
+
+  /** The verified (digest, signature) pairs, in least-recently-used order. */
+  private final Map<Key, Boolean> verified;
+
+  /** How many lookups found a verified signature. */
+  private final AtomicLong hits;
+
+  /** How many lookups didn't find a verified signature. */
+  private final AtomicLong misses;
+
+  /** The digest of some signed bytes, and the signature over them. */
+  private static class Key {
+    /** The sha3 digest of the signed bytes. */
+    private final Hash digest;
+
+    /** The signature over the bytes, including the signer's CryptoId. */
+    private final Signature signature;
+
+    /**
+     * @param digest the sha3 digest of the signed bytes
+     * @param signature the signature over the bytes
+     */
+    public Key(final Hash digest, final Signature signature) {
+      this.digest = digest;
+      this.signature = signature;
+    }
+
+    /**
+     * @param other the object to compare to
+     * @return whether other is a Key with equal digest and signature
+     */
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      return digest.equals(((Key) other).digest) && signature.equals(((Key) other).signature);
+    }
+
+    /** @return a hash code combining the digest and signature */
+    @Override
+    public int hashCode() {
+      return Objects.hash(digest, signature);
+    }
+  }
+
+  /**
+   * Create a new cache remembering at most this many verified signatures.
+   * @param capacity the most verified signatures to remember
+   */
+  public VerifiedSignatureCache(final int capacity) {
+    verified = Collections.synchronizedMap(new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, Boolean> eldest) {
+        return size() > capacity;
+      }
+    });
+    hits = new AtomicLong(0);
+    misses = new AtomicLong(0);
+  }
+
+  /** @return the shared instance, with DEFAULT_CAPACITY. */
+  public static VerifiedSignatureCache getDefault() {return DefaultHolder.instance;}
+
+  /** @return how many lookups found a verified signature */
+  public long getHits() {return hits.get();}
+
+  /** @return how many lookups didn't find a verified signature */
+  public long getMisses() {return misses.get();}
+
+  /** @return how many verified signatures are currently remembered */
+  public int size() {return verified.size();}
+
+  /**
+   * Have we already verified this signature (over bytes with this digest)?.
+   * Counts as a hit if so, and a miss if not.
+   * @param key the digest of the bytes supposedly signed, and the signature
+   * @return whether we remember this signature verifying
+   */
+  private boolean isVerified(final Key key) {
+    if (verified.get(key) != null) {
+      hits.incrementAndGet();
+      return true;
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Have we already verified this signature over these bytes?.
+   * Counts as a hit if so, and a miss if not.
+   * @param bytes the bytes supposedly signed
+   * @param signature the signature
+   * @return whether we remember this signature verifying
+   */
+  public boolean isVerified(final ByteString bytes, final Signature signature) {
+    return isVerified(new Key(sha3Hash(bytes), signature));
+  }
+
+  /**
+   * Have we already verified this signature over this message?.
+   * Counts as a hit if so, and a miss if not.
+   * The message is hashed as it's serialized, rather than copied into a ByteString first.
+   * @param message the Message supposedly signed
+   * @param signature the signature
+   * @return whether we remember this signature verifying
+   */
+  public boolean isVerified(final MessageLite message, final Signature signature) {
+    return isVerified(new Key(sha3Hash(message), signature));
+  }
+
+  /**
+   * Remember that this signature over these bytes verified.
+   * @param bytes the bytes signed
+   * @param signature the (correct) signature
+   */
+  public void putVerified(final ByteString bytes, final Signature signature) {
+    verified.put(new Key(sha3Hash(bytes), signature), Boolean.TRUE);
+  }
+
+  /**
+   * Remember that this signature over this message verified.
+   * @param message the Message signed
+   * @param signature the (correct) signature
+   */
+  public void putVerified(final MessageLite message, final Signature signature) {
+    verified.put(new Key(sha3Hash(message), signature), Boolean.TRUE);
+  }
+
+  /**
+   * Check whether this crypto signature was calculated successfully, remembering it if so.
+   * @param key the digest of the bytes supposedly signed, and the signature
+   * @param check actually checks the signature, if we don't remember it verifying
+   * @return whether the signature was correct
+   */
+  private boolean checkSignature(final Key key, final BooleanSupplier check) {
+    if (isVerified(key)) {
+      return true;
+    }
+    if (check.getAsBoolean()) {
+      verified.put(key, Boolean.TRUE);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check whether this crypto signature was calculated successfully, remembering it if so.
+   * If we've already verified it, this is just a hash and a lookup.
+   * @param bytes the bytes supposedly signed
+   * @param signature the signature
+   * @return whether the signature was correct
+   */
+  public boolean checkSignature(final ByteString bytes, final Signature signature) {
+    return checkSignature(new Key(sha3Hash(bytes), signature), () -> SignatureUtil.checkSignature(bytes, signature));
+  }
+
+  /**
+   * Check whether this crypto signature was calculated successfully, remembering it if so.
+   * If we've already verified it, this is just a hash and a lookup.
+   * The message is serialized straight into the digest (and the signature engine), rather than copied into a
+   *  ByteString first.
+   * @param message the Message supposedly signed
+   * @param signature the signature
+   * @return whether the signature was correct
+   */
+  public boolean checkSignature(final MessageLite message, final Signature signature) {
+    return checkSignature(new Key(sha3Hash(message), signature),
+                          () -> SignatureUtil.checkSignature(message, signature));
+  }
+}
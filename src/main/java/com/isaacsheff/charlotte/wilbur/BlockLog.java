@@ -0,0 +1,374 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+
+/**
+ * An append-only file of Blocks, used by a WilburService to keep its StoreForever promises across crashes.
+ * Appends from many concurrent requests are grouped together: one thread writes everything that has queued up
+ *  (waiting up to a configurable window for more), and then forces it to disk once (group commit).
+ * Each append's future is completed only once its blocks are durable (at the chosen Durability).
+ * Each block is only ever written once.
+ *
+ * <p>
+ * Each record is a varint length, that many bytes of serialized Block, and a little-endian CRC32 of those bytes.
+ * When a log is opened, any torn record at the end (from a crash mid-write) is truncated away.
+ * </p>
+ * @author Isaac Sheff
+ */
+public class BlockLog implements Closeable {
+  /** Use logger for logging events involving BlockLog. */
+  private static final Logger logger = Logger.getLogger(BlockLog.class.getName());
+
+  /** How durable an append must be before its future is completed. */
+  public enum Durability {
+    /** Written to the operating system: survives the process crashing, but not the machine. */
+    WRITE,
+    /** Forced to the storage device (fsync): survives the machine crashing. */
+    FSYNC
+  }
+
+  /** The default longest we wait (after the first append of a group arrives) for more appends to join it. */
+  public static final long DEFAULT_COMMIT_WINDOW_MICROSECONDS = 0;
+
+  /** The default most appends in one group commit. */
+  public static final int DEFAULT_MAX_GROUP_SIZE = 1024;
+
+  /** The file we're appending to. */
+  private final Path path;
+
+  /** How durable an append must be before its future is completed. */
+  private final Durability durability;
+
+  /** The longest we wait (after the first append of a group arrives) for more appends to join it. */
+  private final long commitWindowMicroseconds;
+
+  /** The most appends in one group commit. */
+  private final int maxGroupSize;
+
+  /** The open file. */
+  private final FileChannel channel;
+
+  /** Hashes of all the blocks in the log. Only touched by the constructor and the commit thread. */
+  private final Set<Hash> logged;
+
+  /** Appends waiting for the next group commit. */
+  private final BlockingQueue<PendingAppend> queue;
+
+  /** The thread doing the group commits. */
+  private final Thread committer;
+
+  /** The number of group commits done so far. */
+  private final AtomicLong commitCount;
+
+  /** The number of blocks written so far (not counting any already in the log when it was opened). */
+  private final AtomicLong blockCount;
+
+  /** Set when this log is closed. */
+  private volatile boolean closed;
+
+  /**
+   * Set if a failed commit couldn't be rolled back, leaving bytes in the file we can't vouch for.
+   * Once set, every append is refused with this.
+   */
+  private volatile IOException failure;
+
+  /** Some blocks waiting to be written. */
+  private static class PendingAppend {
+    /** The blocks to be written. */
+    private final Collection<Block> blocks;
+
+    /** Completed once the blocks are durable. */
+    private final CompletableFuture<Void> future;
+
+    /** @param blocks the blocks to be written */
+    PendingAppend(final Collection<Block> blocks) {
+      this.blocks = blocks;
+      this.future = new CompletableFuture<Void>();
+    }
+  }
+
+  /**
+   * Open (or create) a log, with its own (daemon) commit thread.
+   * Any torn record at the end of an existing log is truncated away.
+   * @param path the file to append to
+   * @param durability how durable an append must be before its future is completed
+   * @param commitWindowMicroseconds the longest we wait (after the first append of a group arrives) for more
+   * @param maxGroupSize the most appends in one group commit
+   * @throws IOException if the file can't be opened or read
+   */
+  public BlockLog(final Path path,
+                  final Durability durability,
+                  final long commitWindowMicroseconds,
+                  final int maxGroupSize) throws IOException {
+    this.path = path;
+    this.durability = durability;
+    this.commitWindowMicroseconds = commitWindowMicroseconds;
+    this.maxGroupSize = maxGroupSize;
+    this.logged = new HashSet<Hash>();
+    this.queue = new LinkedBlockingQueue<PendingAppend>();
+    this.commitCount = new AtomicLong(0);
+    this.blockCount = new AtomicLong(0);
+    this.closed = false;
+    this.failure = null;
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final long end = replay(path, block -> logged.add(sha3Hash(block)));
+    if (end < channel.size()) {
+      logger.log(Level.WARNING, "Truncating torn record(s) at the end of " + path + " from " + channel.size() +
+                                " to " + end + " bytes");
+      channel.truncate(end);
+      channel.force(true);
+    }
+    channel.position(end);
+    committer = new Thread(this::run, "BlockLog " + path);
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+  /**
+   * Open (or create) a log which forces every group commit to disk, with the default window and group size.
+   * @param path the file to append to
+   * @throws IOException if the file can't be opened or read
+   */
+  public BlockLog(final Path path) throws IOException {
+    this(path, Durability.FSYNC, DEFAULT_COMMIT_WINDOW_MICROSECONDS, DEFAULT_MAX_GROUP_SIZE);
+  }
+
+  /** @return The file we're appending to. */
+  public Path getPath() {return path;}
+
+  /** @return How durable an append must be before its future is completed. */
+  public Durability getDurability() {return durability;}
+
+  /** @return The longest we wait (after the first append of a group arrives) for more appends to join it. */
+  public long getCommitWindowMicroseconds() {return commitWindowMicroseconds;}
+
+  /** @return The most appends in one group commit. */
+  public int getMaxGroupSize() {return maxGroupSize;}
+
+  /** @return The number of group commits done so far. */
+  public long getCommitCount() {return commitCount.get();}
+
+  /** @return The number of blocks written so far (not counting any already in the log when it was opened). */
+  public long getBlockCount() {return blockCount.get();}
+
+  /**
+   * Append these blocks as part of the next group commit.
+   * Blocks already in the log are not written again.
+   * @param blocks the blocks to append
+   * @return a future completed once the blocks are durable, or completed exceptionally if they can't be written
+   */
+  public CompletableFuture<Void> append(final Collection<Block> blocks) {
+    final PendingAppend pending = new PendingAppend(blocks);
+    if (closed) {
+      pending.future.completeExceptionally(new IOException("BlockLog " + path + " is closed"));
+      return pending.future;
+    }
+    if (failure != null) {
+      pending.future.completeExceptionally(failure);
+      return pending.future;
+    }
+    queue.add(pending);
+    return pending.future;
+  }
+
+  /**
+   * Stop committing, and close the file.
+   * Appends not yet committed are completed exceptionally.
+   * @throws IOException if the file can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    committer.interrupt();
+    try {
+      committer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (PendingAppend pending = queue.poll(); pending != null; pending = queue.poll()) {
+      pending.future.completeExceptionally(new IOException("BlockLog " + path + " is closed"));
+    }
+    channel.close();
+  }
+
+  /** Repeatedly collect a group of appends, and commit them. Runs on this log's own thread. */
+  private void run() {
+    final List<PendingAppend> group = new ArrayList<PendingAppend>();
+    while (!closed) {
+      group.clear();
+      try {
+        group.add(queue.take());
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(getCommitWindowMicroseconds());
+        while (group.size() < getMaxGroupSize()) {
+          final PendingAppend next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          group.add(next);
+        }
+      } catch (InterruptedException e) {
+        if (!closed) {
+          logger.log(Level.WARNING, "BlockLog interrupted while collecting a group of appends", e);
+        }
+      }
+      commit(group);
+    }
+  }
+
+  /**
+   * Write all the (new) blocks in this group, force them to disk if need be, and complete their futures.
+   * If the write fails, the file is cut back to where it was before this group, so no torn bytes are left for
+   *  later groups to land after (replay would stop at the torn bytes, and lose those later groups).
+   * If even that fails, the log refuses all further appends.
+   * @param group the appends to commit
+   */
+  private void commit(final List<PendingAppend> group) {
+    if (group.isEmpty()) {
+      return;
+    }
+    if (failure != null) {
+      for (PendingAppend pending : group) {
+        pending.future.completeExceptionally(failure);
+      }
+      return;
+    }
+    final List<Hash> written = new ArrayList<Hash>();
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    long start = -1;
+    try {
+      start = channel.position();
+      final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+      final CRC32 crc = new CRC32();
+      for (PendingAppend pending : group) {
+        for (Block block : pending.blocks) {
+          final Hash hash = sha3Hash(block);
+          if (logged.add(hash)) {
+            written.add(hash);
+            final byte[] record = block.toByteArray();
+            crc.reset();
+            crc.update(record);
+            output.writeUInt32NoTag(record.length);
+            output.writeRawBytes(record);
+            output.writeFixed32NoTag((int) crc.getValue());
+          }
+        }
+      }
+      output.flush();
+      final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      if (getDurability() == Durability.FSYNC && !written.isEmpty()) {
+        channel.force(false);
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "BlockLog failed to commit to " + path, e);
+      logged.removeAll(written);
+      rollBack(start, e);
+      for (PendingAppend pending : group) {
+        pending.future.completeExceptionally(e);
+      }
+      return;
+    }
+    commitCount.incrementAndGet();
+    blockCount.addAndGet(written.size());
+    for (PendingAppend pending : group) {
+      pending.future.complete(null);
+    }
+  }
+
+  /**
+   * Cut the file back to where it was before a failed group commit.
+   * If that can't be done, refuse all further appends.
+   * @param start the length of the file before the group commit (if negative, it's unknown)
+   * @param cause why the group commit failed
+   */
+  private void rollBack(final long start, final IOException cause) {
+    try {
+      if (start < 0) {
+        throw new IOException("BlockLog " + path + " doesn't know where the failed commit started");
+      }
+      if (channel.size() > start) {
+        channel.truncate(start);
+      }
+      channel.position(start);
+      if (getDurability() == Durability.FSYNC) {
+        channel.force(true);
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "BlockLog couldn't roll back a failed commit to " + path +
+                               ", refusing further appends", e);
+      final IOException failed = new IOException("BlockLog " + path + " failed, and couldn't roll back", cause);
+      failed.addSuppressed(e);
+      failure = failed;
+    }
+  }
+
+  /**
+   * Read every (intact) block in a log, in order.
+   * Stops at the first torn or corrupt record.
+   * @param path the log file
+   * @param consumer called with each block in the log
+   * @return the length of the intact part of the log, in bytes
+   * @throws IOException if the file can't be read
+   */
+  public static long replay(final Path path, final Consumer<Block> consumer) throws IOException {
+    long end = 0;
+    try (InputStream stream = new BufferedInputStream(Channels.newInputStream(FileChannel.open(path)))) {
+      final CodedInputStream input = CodedInputStream.newInstance(stream);
+      input.setSizeLimit(Integer.MAX_VALUE);
+      final CRC32 crc = new CRC32();
+      while (!input.isAtEnd()) {
+        input.resetSizeCounter();
+        final byte[] record;
+        final int checksum;
+        try {
+          record = input.readRawBytes(input.readRawVarint32());
+          checksum = input.readFixed32();
+        } catch (InvalidProtocolBufferException e) {
+          break; // torn record at the end
+        }
+        crc.reset();
+        crc.update(record);
+        if (checksum != (int) crc.getValue()) {
+          logger.log(Level.WARNING, "Corrupt record in " + path + " at byte " + end);
+          break;
+        }
+        consumer.accept(Block.parseFrom(record));
+        end += input.getTotalBytesRead();
+      }
+    }
+    return end;
+  }
+}
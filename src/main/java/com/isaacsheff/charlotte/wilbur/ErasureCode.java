@@ -0,0 +1,241 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import java.util.Arrays;
+
+/**
+ * A systematic k-of-n Reed-Solomon erasure code over GF(2^8).
+ * Data is split into k equal-sized data fragments (the last padded with zeros), and n-k parity fragments are added.
+ * Any k of the n fragments are enough to reconstruct the data.
+ * Each fragment is about 1/k the size of the data, so storing all n costs about n/k times the data.
+ *
+ * <p>
+ * The encoding matrix is the k by k identity (so the first k fragments are just the data), atop
+ *  an (n-k) by k Cauchy matrix, with entries 1/(x_i + y_j) for x_i = k+i and y_j = j.
+ * Every square submatrix of a Cauchy matrix is invertible, so every k rows of the whole encoding matrix are too.
+ * </p>
+ * @author Isaac Sheff
+ */
+public final class ErasureCode {
+  /** The most fragments we can make: the field has only 256 distinct elements to build a Cauchy matrix from. */
+  public static final int MAX_FRAGMENTS = 256;
+
+  /** exp[i] = g^i for generator g = 2, with the polynomial x^8 + x^4 + x^3 + x^2 + 1. Doubled so we needn't mod. */
+  private static final int[] EXP = new int[512];
+
+  /** log[x] = i such that g^i = x. log[0] is meaningless. */
+  private static final int[] LOG = new int[256];
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; ++i) {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= 256) {
+        x ^= 0x11d;
+      }
+    }
+    for (int i = 255; i < EXP.length; ++i) {
+      EXP[i] = EXP[i - 255];
+    }
+  }
+
+  /** Everything here is static. */
+  private ErasureCode() {}
+
+  /**
+   * @param a a field element
+   * @param b a field element
+   * @return a times b in GF(2^8)
+   */
+  private static int multiply(final int a, final int b) {
+    if (a == 0 || b == 0) {
+      return 0;
+    }
+    return EXP[LOG[a] + LOG[b]];
+  }
+
+  /**
+   * @param a a nonzero field element
+   * @return 1/a in GF(2^8)
+   */
+  private static int inverse(final int a) {
+    return EXP[255 - LOG[a]];
+  }
+
+  /**
+   * @param k the number of fragments needed to reconstruct
+   * @param n the total number of fragments
+   * @throws IllegalArgumentException unless 0 &lt; k &lt;= n &lt;= MAX_FRAGMENTS
+   */
+  private static void checkParameters(final int k, final int n) {
+    if (k < 1 || n < k || n > MAX_FRAGMENTS) {
+      throw new IllegalArgumentException("Erasure code needs 0 < k <= n <= " + MAX_FRAGMENTS +
+                                         ", but k=" + k + ", n=" + n);
+    }
+  }
+
+  /**
+   * @param k the number of fragments needed to reconstruct
+   * @param row which fragment
+   * @param column which data fragment
+   * @return the entry of the encoding matrix saying how much data fragment column contributes to fragment row
+   */
+  private static int coefficient(final int k, final int row, final int column) {
+    if (row < k) {
+      return (row == column) ? 1 : 0;
+    }
+    return inverse(row ^ column); // x_i + y_j, where x_i = row (at least k), and y_j = column (less than k)
+  }
+
+  /**
+   * @param length the length of the data, in bytes
+   * @param k the number of fragments needed to reconstruct
+   * @return the length of each fragment, in bytes
+   */
+  public static int fragmentLength(final long length, final int k) {
+    return (int) ((length + k - 1) / k);
+  }
+
+  /**
+   * Split data into n fragments, any k of which can reconstruct it.
+   * @param data the data to encode
+   * @param k the number of fragments needed to reconstruct
+   * @param n the total number of fragments
+   * @return n fragments, each of length fragmentLength(data.length, k). The first k are the (padded) data.
+   * @throws IllegalArgumentException unless 0 &lt; k &lt;= n &lt;= MAX_FRAGMENTS
+   */
+  public static byte[][] encode(final byte[] data, final int k, final int n) {
+    checkParameters(k, n);
+    final int length = fragmentLength(data.length, k);
+    final byte[][] fragments = new byte[n][length];
+    for (int i = 0; i < k; ++i) {
+      final int start = i * length;
+      if (start < data.length) {
+        System.arraycopy(data, start, fragments[i], 0, Math.min(length, data.length - start));
+      }
+    }
+    for (int row = k; row < n; ++row) {
+      for (int column = 0; column < k; ++column) {
+        multiplyAdd(fragments[row], fragments[column], coefficient(k, row, column));
+      }
+    }
+    return fragments;
+  }
+
+  /**
+   * Reconstruct data from any k of its n fragments.
+   * @param fragments an array of length n, with null for each missing fragment
+   * @param k the number of fragments needed to reconstruct
+   * @param length the length of the original data, in bytes
+   * @return the original data
+   * @throws IllegalArgumentException if fewer than k fragments are present, or they're the wrong length
+   */
+  public static byte[] decode(final byte[][] fragments, final int k, final int length) {
+    checkParameters(k, fragments.length);
+    final int fragmentLength = fragmentLength(length, k);
+    final int[] rows = new int[k];
+    int found = 0;
+    for (int i = 0; i < fragments.length && found < k; ++i) {
+      if (fragments[i] != null) {
+        if (fragments[i].length != fragmentLength) {
+          throw new IllegalArgumentException("Fragment " + i + " has length " + fragments[i].length +
+                                             ", but should have length " + fragmentLength);
+        }
+        rows[found++] = i;
+      }
+    }
+    if (found < k) {
+      throw new IllegalArgumentException("Need " + k + " fragments to reconstruct, but only have " + found);
+    }
+    final int[][] decoding = invert(k, rows);
+    final byte[] data = new byte[length];
+    final byte[] dataFragment = new byte[fragmentLength];
+    for (int column = 0; column < k; ++column) {
+      final int start = column * fragmentLength;
+      if (start >= length) {
+        break;
+      }
+      if (rows[column] == column) { // we have this data fragment itself
+        System.arraycopy(fragments[column], 0, data, start, Math.min(fragmentLength, length - start));
+        continue;
+      }
+      Arrays.fill(dataFragment, (byte) 0);
+      for (int i = 0; i < k; ++i) {
+        multiplyAdd(dataFragment, fragments[rows[i]], decoding[column][i]);
+      }
+      System.arraycopy(dataFragment, 0, data, start, Math.min(fragmentLength, length - start));
+    }
+    return data;
+  }
+
+  /**
+   * Invert the k by k submatrix of the encoding matrix made of these rows, by Gauss-Jordan elimination.
+   * @param k the number of fragments needed to reconstruct
+   * @param rows which rows of the encoding matrix (in increasing order)
+   * @return the inverse: data fragment j is the sum over i of inverse[j][i] times fragment rows[i]
+   */
+  private static int[][] invert(final int k, final int[] rows) {
+    final int[][] matrix = new int[k][k];
+    final int[][] inverse = new int[k][k];
+    for (int i = 0; i < k; ++i) {
+      for (int j = 0; j < k; ++j) {
+        matrix[i][j] = coefficient(k, rows[i], j);
+      }
+      inverse[i][i] = 1;
+    }
+    for (int column = 0; column < k; ++column) {
+      int pivot = column;
+      while (matrix[pivot][column] == 0) {
+        ++pivot; // the submatrix is invertible, so some row has a nonzero entry here
+      }
+      swap(matrix, pivot, column);
+      swap(inverse, pivot, column);
+      final int scale = inverse(matrix[column][column]);
+      for (int j = 0; j < k; ++j) {
+        matrix[column][j] = multiply(matrix[column][j], scale);
+        inverse[column][j] = multiply(inverse[column][j], scale);
+      }
+      for (int i = 0; i < k; ++i) {
+        final int factor = matrix[i][column];
+        if (i != column && factor != 0) {
+          for (int j = 0; j < k; ++j) {
+            matrix[i][j] ^= multiply(factor, matrix[column][j]);
+            inverse[i][j] ^= multiply(factor, inverse[column][j]);
+          }
+        }
+      }
+    }
+    return inverse;
+  }
+
+  /**
+   * @param matrix the matrix in which to swap rows
+   * @param a a row
+   * @param b another row
+   */
+  private static void swap(final int[][] matrix, final int a, final int b) {
+    final int[] row = matrix[a];
+    matrix[a] = matrix[b];
+    matrix[b] = row;
+  }
+
+  /**
+   * target += coefficient * source, byte by byte, in GF(2^8).
+   * @param target the bytes to add to
+   * @param source the bytes to scale and add
+   * @param coefficient the scale
+   */
+  private static void multiplyAdd(final byte[] target, final byte[] source, final int coefficient) {
+    if (coefficient == 0) {
+      return;
+    }
+    final int logCoefficient = LOG[coefficient];
+    for (int i = 0; i < target.length; ++i) {
+      final int s = source[i] & 0xff;
+      if (s != 0) {
+        target[i] ^= EXP[LOG[s] + logCoefficient];
+      }
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.ErasureCodedFragment;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationResponse;
+import com.isaacsheff.charlotte.proto.WilburQueryInput;
+import com.isaacsheff.charlotte.wilburquery.WilburQueryClient;
+import com.isaacsheff.charlotte.yaml.Contact;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Stores blocks erasure-coded across several Wilbur servers, rather than fully replicated on each.
+ * A block is split into n ErasureCodedFragment blocks (n being the number of Wilburs), any k of which can
+ *  reconstruct it, and fragment i is sent to (and attested by) only Wilbur i.
+ * Fragments are not flooded (see CharlotteNodeService.onSendBlocksInput), so storage and bandwidth per block
+ *  are about n/k times the block, rather than n times.
+ * Reading fetches fragments (via WilburQuery, so the Wilburs must run a WilburQueryService as well, as
+ *  WilburQueryService.getWilburQueryNode does) from the Wilburs that attested to them, until it has k.
+ * This client needs a local CharlotteNodeService to receive the availability attestations.
+ * @author Isaac Sheff
+ */
+public class ErasureCodedStore {
+  /** Use logger for logging events on this class. */
+  private static final Logger logger = Logger.getLogger(ErasureCodedStore.class.getName());
+
+  /** The local CharlotteNodeService we expect to receive blocks (especially availability attestations). */
+  private final CharlotteNodeService localService;
+
+  /** The Wilbur servers we store fragments on. Fragment i goes to Wilbur i. */
+  private final List<WilburClient> wilburs;
+
+  /** How many fragments it takes to reconstruct a block. */
+  private final int k;
+
+  /** Clients for reading fragments back, by the CryptoId of the Wilbur which attested to them. */
+  private final ConcurrentMap<CryptoId, WilburQueryClient> queryClients;
+
+  /**
+   * Make a new ErasureCodedStore, which will open a channel to each Wilbur.
+   * @param localService a CharlotteNodeService which can be used to receive blocks
+   * @param wilburs the Wilbur servers to store fragments on (there will be one fragment per Wilbur)
+   * @param k how many fragments it takes to reconstruct a block
+   * @throws IllegalArgumentException unless 0 &lt; k &lt;= wilburs.size() &lt;= ErasureCode.MAX_FRAGMENTS
+   */
+  public ErasureCodedStore(final CharlotteNodeService localService, final List<Contact> wilburs, final int k) {
+    if (k < 1 || wilburs.size() < k || wilburs.size() > ErasureCode.MAX_FRAGMENTS) {
+      throw new IllegalArgumentException("ErasureCodedStore needs 0 < k <= number of Wilburs <= " +
+                                         ErasureCode.MAX_FRAGMENTS);
+    }
+    this.localService = localService;
+    this.k = k;
+    this.wilburs = new ArrayList<WilburClient>(wilburs.size());
+    for (Contact contact : wilburs) {
+      this.wilburs.add(new WilburClient(localService, contact));
+    }
+    this.queryClients = new ConcurrentHashMap<CryptoId, WilburQueryClient>();
+  }
+
+  /** @return The local CharlotteNodeService we expect to receive blocks. */
+  public CharlotteNodeService getLocalService() {return localService;}
+
+  /** @return The Wilbur servers we store fragments on. Fragment i goes to Wilbur i. */
+  public List<WilburClient> getWilburs() {return wilburs;}
+
+  /** @return How many fragments it takes to reconstruct a block. */
+  public int getK() {return k;}
+
+  /** @return How many fragments each block is split into (one per Wilbur). */
+  public int getN() {return wilburs.size();}
+
+  /**
+   * Split a block into n fragment blocks, any k of which can reconstruct it.
+   * @param block the block to split
+   * @param k how many fragments it takes to reconstruct the block
+   * @param n how many fragments to make
+   * @return the fragment blocks, in order of index
+   */
+  public static List<Block> fragment(final Block block, final int k, final int n) {
+    final byte[] bytes = block.toByteArray();
+    final byte[][] fragments = ErasureCode.encode(bytes, k, n);
+    final Hash original = sha3Hash(block);
+    final List<Block> blocks = new ArrayList<Block>(n);
+    for (int i = 0; i < n; ++i) {
+      blocks.add(Block.newBuilder().setErasureCodedFragment(ErasureCodedFragment.newBuilder().
+                   setOriginal(original).
+                   setK(k).
+                   setN(n).
+                   setIndex(i).
+                   setLength(bytes.length).
+                   setData(ByteString.copyFrom(fragments[i]))).build());
+    }
+    return blocks;
+  }
+
+  /**
+   * Reconstruct a block from (at least k of) its fragment blocks.
+   * Logs a warning and returns null if the fragments are inconsistent, too few, or reconstruct the wrong thing.
+   * @param fragments fragment blocks, in any order
+   * @return the reconstructed block, or null if it can't be reconstructed
+   */
+  public static Block reconstruct(final Iterable<Block> fragments) {
+    ErasureCodedFragment first = null;
+    byte[][] data = null;
+    for (Block block : fragments) {
+      if (!block.hasErasureCodedFragment()) {
+        logger.log(Level.WARNING, "Not an ErasureCodedFragment: " + block);
+        return null;
+      }
+      final ErasureCodedFragment fragment = block.getErasureCodedFragment();
+      if (first == null) {
+        first = fragment;
+        // uint32 fields read as (possibly negative) ints, and uint64 as (possibly negative) longs
+        if (first.getN() <= 0 || first.getN() > ErasureCode.MAX_FRAGMENTS ||
+            first.getK() <= 0 || first.getK() > first.getN() ||
+            first.getLength() < 0 || first.getLength() > Integer.MAX_VALUE) {
+          logger.log(Level.WARNING, "ErasureCodedFragment parameters out of range: " + first);
+          return null;
+        }
+        data = new byte[first.getN()][];
+      }
+      if (!first.getOriginal().equals(fragment.getOriginal()) || first.getK() != fragment.getK() ||
+          first.getN() != fragment.getN() || first.getLength() != fragment.getLength() ||
+          fragment.getIndex() < 0 || fragment.getIndex() >= fragment.getN()) {
+        logger.log(Level.WARNING, "Inconsistent ErasureCodedFragments: \n" + first + "\n" + fragment);
+        return null;
+      }
+      data[fragment.getIndex()] = fragment.getData().toByteArray();
+    }
+    if (first == null) {
+      logger.log(Level.WARNING, "No fragments to reconstruct from");
+      return null;
+    }
+    try {
+      final Block block = Block.parseFrom(ErasureCode.decode(data, first.getK(), (int) first.getLength()));
+      if (!sha3Hash(block).equals(first.getOriginal())) {
+        logger.log(Level.WARNING, "ErasureCodedFragments reconstructed a block with the wrong hash: " + block);
+        return null;
+      }
+      return block;
+    } catch (IllegalArgumentException | InvalidProtocolBufferException e) {
+      logger.log(Level.WARNING, "Could not reconstruct a block from ErasureCodedFragments", e);
+      return null;
+    }
+  }
+
+  /**
+   * Split a block into fragments, send fragment i to Wilbur i, and get an availability attestation for each.
+   * The attestation requests are all made in parallel.
+   * Logs a warning if fewer than k fragments get valid attestations (so the block may not be recoverable).
+   * @param block the block to store
+   * @return a reference to each fragment with a valid attestation, with the attestation's hash in it
+   */
+  public List<Reference> store(final Block block) {
+    final List<Block> fragments = fragment(block, getK(), getN());
+    final List<CompletableFuture<RequestAvailabilityAttestationResponse>> responses =
+      new ArrayList<CompletableFuture<RequestAvailabilityAttestationResponse>>(fragments.size());
+    for (int i = 0; i < fragments.size(); ++i) {
+      getWilburs().get(i).getContact().getCharlotteNodeClient().sendBlock(fragments.get(i));
+      responses.add(requestAvailabilityAttestation(getWilburs().get(i), fragments.get(i)));
+    }
+    final List<Reference> references = new ArrayList<Reference>(fragments.size());
+    for (int i = 0; i < fragments.size(); ++i) {
+      final Hash hash = sha3Hash(fragments.get(i));
+      try {
+        final RequestAvailabilityAttestationResponse response = responses.get(i).join();
+        if (getWilburs().get(i).checkAvailabilityAttestation(hash, response) != null) {
+          references.add(Reference.newBuilder().setHash(hash).
+                           addAvailabilityAttestations(response.getReference().getHash()).build());
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to get an availability attestation for fragment " + i, e);
+      }
+    }
+    if (references.size() < getK()) {
+      logger.log(Level.WARNING, "Only " + references.size() + " fragments of " + sha3Hash(block) +
+                                " were attested, but " + getK() + " are needed to reconstruct it.");
+    }
+    return references;
+  }
+
+  /**
+   * Fetch fragments (from the Wilburs that attested to them) until we have k, and reconstruct the block.
+   * Logs a warning and returns null if that can't be done.
+   * @param fragments references to fragments, each with the hash of an availability attestation for it
+   * @return the reconstructed block, or null if it can't be reconstructed
+   */
+  public Block retrieve(final Iterable<Reference> fragments) {
+    final List<Block> fetched = new ArrayList<Block>(getK());
+    for (Reference reference : fragments) {
+      if (fetched.size() >= getK()) {
+        break;
+      }
+      final Block fragment = fetch(reference);
+      if (fragment != null) {
+        fetched.add(fragment);
+      }
+    }
+    if (fetched.size() < getK()) {
+      logger.log(Level.WARNING, "Could only fetch " + fetched.size() + " fragments, but " + getK() + " are needed.");
+      return null;
+    }
+    return reconstruct(fetched);
+  }
+
+  /**
+   * Fetch one fragment from any Wilbur that attested to it.
+   * Only attestations this client has already received are tried.
+   * @param reference a reference to the fragment, with the hashes of availability attestations for it
+   * @return the fragment block, or null if none of them gave it to us
+   */
+  private Block fetch(final Reference reference) {
+    for (Hash attestationHash : reference.getAvailabilityAttestationsList()) {
+      // don't wait for attestations we haven't received: there may be other Wilburs to try
+      final Block attestation = getLocalService().getBlockMap().get(attestationHash);
+      if (attestation == null || !attestation.hasAvailabilityAttestation() ||
+          !attestation.getAvailabilityAttestation().hasSignedStoreForever()) {
+        continue;
+      }
+      final CryptoId wilbur =
+        attestation.getAvailabilityAttestation().getSignedStoreForever().getSignature().getCryptoId();
+      final Contact contact = getLocalService().getConfig().getContact(wilbur);
+      if (contact == null) {
+        continue;
+      }
+      try {
+        final WilburQueryClient client = queryClients.computeIfAbsent(wilbur, id -> new WilburQueryClient(contact));
+        for (Block block :
+             client.wilburQuery(WilburQueryInput.newBuilder().setReference(reference).build()).getBlockList()) {
+          if (block.hasErasureCodedFragment() && sha3Hash(block).equals(reference.getHash())) {
+            return block;
+          }
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to fetch fragment " + reference.getHash() + " from " + contact.getUrl() +
+                                  ":" + contact.getPort(), e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Request an availability attestation for a block, without waiting for the response.
+   * @param wilbur the Wilbur server to ask
+   * @param block the block to be attested
+   * @return a future for the response
+   */
+  private static CompletableFuture<RequestAvailabilityAttestationResponse> requestAvailabilityAttestation(
+      final WilburClient wilbur,
+      final Block block) {
+    final CompletableFuture<RequestAvailabilityAttestationResponse> future =
+      new CompletableFuture<RequestAvailabilityAttestationResponse>();
+    wilbur.requestAvailabilityAttestation(block, new StreamObserver<RequestAvailabilityAttestationResponse>() {
+      @Override
+      public void onNext(final RequestAvailabilityAttestationResponse response) {
+        future.complete(response);
+      }
+
+      @Override
+      public void onError(final Throwable t) {
+        future.completeExceptionally(t);
+      }
+
+      @Override
+      public void onCompleted() {
+        future.completeExceptionally(new IllegalStateException("No availability attestation response"));
+      }
+    });
+    return future;
+  }
+}
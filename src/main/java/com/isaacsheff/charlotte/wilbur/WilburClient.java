@@ -1,7 +1,6 @@
 package com.isaacsheff.charlotte.wilbur;
 
 import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
-import static com.isaacsheff.charlotte.node.SignatureUtil.checkSignature;
 import static java.util.Collections.singleton;
 
 import java.util.HashSet;
@@ -10,6 +9,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.ReferenceIndex;
+import com.isaacsheff.charlotte.node.SignatureVerificationService;
 import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
 import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
 import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
@@ -151,7 +152,7 @@ public class WilburClient {
                                 " \nATTESTATION: \n" + availabilityAttestationBlock);
       return null;
     }
-    if (!checkSignature(
+    if (!SignatureVerificationService.getDefault().check(
           availabilityAttestationBlock.getAvailabilityAttestation().getSignedStoreForever().getStoreForever(),
           availabilityAttestationBlock.getAvailabilityAttestation().getSignedStoreForever().getSignature())) {
       logger.log(Level.WARNING, "got a RequestAvailabilityAttestationResponse with an invalid Signature: \n" +
@@ -175,11 +176,14 @@ public class WilburClient {
       return null;
     }
     // everything is good so long as the desired hash is actually in here.
-    // Run through the hashes, and if it's in here, return.
+    // Look each hash up in the local service's ReferenceIndex, and if it's in here, return.
     // Otherwise, log a warning and return null
-    // TODO: maybe consider doing this search not the stupid n^2 way we're doing it here.
+    final Hash attestationHash = response.getReference().getHash();
     for (Reference reference : references) {
-      if (!hashInAvailabilityAttestationBlock(reference.getHash(), availabilityAttestationBlock)) {
+      if (!getLocalService().getReferenceIndex().references(attestationHash, reference.getHash(),
+                                                            ReferenceIndex.Kind.STORE_FOREVER)
+          // the index is maintained by storeNewBlock, so fall back on a scan for blocks put in the map otherwise
+          && !hashInAvailabilityAttestationBlock(reference.getHash(), availabilityAttestationBlock)) {
         logger.log(Level.WARNING, "got a RequestAvailabilityAttestationResponse doesn't reference the desired hash:"+
                                   " \nHASH: \n" + reference.getHash() +
                                   " \nRESPONSE: \n" + response);
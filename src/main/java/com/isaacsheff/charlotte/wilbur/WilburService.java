@@ -1,9 +1,21 @@
 package com.isaacsheff.charlotte.wilbur;
 
 import static java.lang.Integer.parseInt;
+import static java.util.Collections.singleton;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,12 +25,17 @@ import com.isaacsheff.charlotte.node.HashUtil;
 import com.isaacsheff.charlotte.node.SignatureUtil;
 import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
 import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
 import com.isaacsheff.charlotte.proto.WilburGrpc;
 import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationInput;
 import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationResponse;
 
+import io.grpc.Context;
+import io.grpc.Context.CancellationListener;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 
 /**
@@ -34,20 +51,84 @@ public class WilburService extends WilburGrpc.WilburImplBase {
   /** Use logger for logging events on a WilburService. */
   private static final Logger logger = Logger.getLogger(WilburService.class.getName());
 
+  /** The default longest we wait (after the first request of a batch arrives) for more requests to join it. */
+  public static final long DEFAULT_BATCH_WINDOW_MICROSECONDS = 0;
+
+  /** The default most requests whose blocks are covered by one attestation. */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+  /** The default most block hashes for which we remember a covering attestation. */
+  public static final int DEFAULT_MAX_COVERAGE = 65536;
+
   /** The CharlotteNodeService running on the same server as this Wilbur service (there must be one). */
   private final CharlotteNodeService node;
 
+  /**
+   * For each block hash we have (recently) attested to, the hash of the (most recent) attestation block covering it.
+   * Requests whose blocks are all covered by one attestation just get a reference to that.
+   * Only the most recently used maxCoverage hashes are remembered: a request for blocks we've forgotten just gets
+   *  a new attestation.
+   */
+  private final Map<Hash, Hash> coverage;
+
+  /** The most block hashes for which we remember a covering attestation. */
+  private final int maxCoverage;
+
+  /** Requests (whose blocks have all arrived) waiting to be covered by the next attestation. */
+  private final BlockingQueue<PendingAttestation> pendingAttestations;
+
+  /**
+   * The longest we wait (after the first request of a batch arrives) for more requests to join it.
+   * Even with 0, requests arriving while the previous attestation is being signed are batched together.
+   */
+  private final long batchWindowMicroseconds;
+
+  /** The most requests whose blocks are covered by one attestation. */
+  private final int maxBatchSize;
+
+  /** The number of requests which have not yet been answered (or cancelled). */
+  private final AtomicInteger pendingRequests;
+
+  /**
+   * If not null, blocks are durably appended to this log before we attest to them.
+   * If null, blocks are only stored in memory (so our StoreForever promises don't survive a crash).
+   */
+  private volatile BlockLog blockLog;
+
+  /** A request (whose blocks have all arrived) waiting to be covered by the next attestation. */
+  private static class PendingAttestation {
+    /** The blocks to be covered. */
+    private final List<Reference> references;
+
+    /** Will be filled in with a reference to the attestation covering these blocks. */
+    private final CompletableFuture<Reference> future;
+
+    /** @param references the blocks to be covered */
+    PendingAttestation(final List<Reference> references) {
+      this.references = references;
+      this.future = new CompletableFuture<Reference>();
+    }
+  }
+
   /**
    * Run as a main class with an arg specifying a config file name to run a Wilbur server.
    * creates and runs a new CharlotteNode which runs a Wilbur Service and a CharlotteNodeService, in a new thread.
    * @param args command line args. args[0] should be the name of the config file. args[1] (optional) is auto-shutdown time in secodns
+   *             args[2] (optional) is a file in which to durably log blocks before attesting to them.
    */
-  public static void main(String[] args) throws InterruptedException {
+  public static void main(String[] args) throws InterruptedException, IOException {
     if (args.length < 1) {
-      System.out.println("Correct Usage: WilburService configFileName.yaml");
+      System.out.println("Correct Usage: WilburService configFileName.yaml [shutdownSeconds [blockLogFile]]");
       return;
     }
-    (new Thread(getWilburNode(args[0]))).start();
+    if (args.length < 3) {
+      (new Thread(getWilburNode(args[0]))).start();
+    } else {
+      final CharlotteNodeService node = new CharlotteNodeService(args[0]);
+      final WilburService wilburService = new WilburService(node);
+      wilburService.setBlockLog(new BlockLog(Paths.get(args[2])));
+      (new Thread(new CharlotteNode(node, wilburService))).start();
+    }
     logger.info("Wilbur service started on new thread");
     if (args.length < 2) {
       TimeUnit.SECONDS.sleep(Integer.MAX_VALUE);
@@ -82,23 +163,239 @@ public class WilburService extends WilburGrpc.WilburImplBase {
 
 
   /**
+   * Make a new WilburService, which batches the requests that arrive while it's signing an attestation.
    * @param node The CharlotteNodeService running on the same server as this Wilbur service (there must be one).
    */
   public WilburService(final CharlotteNodeService node) {
+    this(node, DEFAULT_BATCH_WINDOW_MICROSECONDS, DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  /**
+   * Make a new WilburService, with its own (daemon) thread for batching and signing attestations.
+   * @param node The CharlotteNodeService running on the same server as this Wilbur service (there must be one).
+   * @param batchWindowMicroseconds the longest we wait (after the first request of a batch arrives) for more
+   * @param maxBatchSize the most requests whose blocks are covered by one attestation
+   */
+  public WilburService(final CharlotteNodeService node, final long batchWindowMicroseconds, final int maxBatchSize) {
+    this(node, batchWindowMicroseconds, maxBatchSize, DEFAULT_MAX_COVERAGE);
+  }
+
+  /**
+   * Make a new WilburService, with its own (daemon) thread for batching and signing attestations.
+   * @param node The CharlotteNodeService running on the same server as this Wilbur service (there must be one).
+   * @param batchWindowMicroseconds the longest we wait (after the first request of a batch arrives) for more
+   * @param maxBatchSize the most requests whose blocks are covered by one attestation
+   * @param maxCoverage the most block hashes for which we remember a covering attestation
+   */
+  public WilburService(final CharlotteNodeService node,
+                       final long batchWindowMicroseconds,
+                       final int maxBatchSize,
+                       final int maxCoverage) {
     this.node = node;
+    this.maxCoverage = maxCoverage;
+    this.coverage = Collections.synchronizedMap(new LinkedHashMap<Hash, Hash>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Hash, Hash> eldest) {
+        return size() > getMaxCoverage();
+      }
+    });
+    this.pendingAttestations = new LinkedBlockingQueue<PendingAttestation>();
+    this.batchWindowMicroseconds = batchWindowMicroseconds;
+    this.maxBatchSize = maxBatchSize;
+    this.pendingRequests = new AtomicInteger(0);
+    this.blockLog = null;
+    final Thread thread = new Thread(this::attestBatches, "WilburService attestation batcher");
+    thread.setDaemon(true);
+    thread.start();
   }
 
   /** @return The CharlotteNodeService running on the same server as this Wilbur service (there must be one). */
   public CharlotteNodeService getNode() { return node; }
 
+  /** @return The longest we wait (after the first request of a batch arrives) for more requests to join it. */
+  public long getBatchWindowMicroseconds() {return batchWindowMicroseconds;}
+
+  /** @return The most requests whose blocks are covered by one attestation. */
+  public int getMaxBatchSize() {return maxBatchSize;}
+
+  /** @return The most block hashes for which we remember a covering attestation. */
+  public int getMaxCoverage() {return maxCoverage;}
+
+  /** @return How many block hashes we currently remember a covering attestation for. */
+  public int getCoverageSize() {return coverage.size();}
+
+  /** @return The number of requests which have not yet been answered (or cancelled), mostly waiting for blocks. */
+  public int getPendingRequestCount() {return pendingRequests.get();}
+
+  /** @return The log blocks are durably appended to before we attest to them, or null if they're only in memory. */
+  public BlockLog getBlockLog() {return blockLog;}
+
+  /**
+   * Durably append blocks to this log before attesting to them.
+   * Every block already in the log is stored in our node (without broadcasting it), and
+   *  our own availability attestations in it are remembered, so blocks they cover aren't attested again.
+   * @param blockLog the log to use
+   * @throws IOException if the log can't be read
+   */
+  public void setBlockLog(final BlockLog blockLog) throws IOException {
+    BlockLog.replay(blockLog.getPath(), block -> {
+      getNode().storeNewBlock(block);
+      if (block.hasAvailabilityAttestation()
+          && block.getAvailabilityAttestation().hasSignedStoreForever()
+          && getNode().getConfig().getCryptoId().equals(
+               block.getAvailabilityAttestation().getSignedStoreForever().getSignature().getCryptoId())) {
+        final Hash attestationHash = HashUtil.sha3Hash(block);
+        for (Reference reference :
+             block.getAvailabilityAttestation().getSignedStoreForever().getStoreForever().getBlockList()) {
+          coverage.put(reference.getHash(), attestationHash);
+        }
+      }
+    });
+    this.blockLog = blockLog;
+  }
+
+  /**
+   * Durably store these blocks (which must all have arrived already), if we have a BlockLog.
+   * Concurrent calls are grouped into one commit by the BlockLog.
+   * @param references the blocks to store
+   * @return a future completed once the blocks are durable
+   */
+  public CompletableFuture<Void> persist(final List<Reference> references) {
+    final BlockLog log = getBlockLog();
+    if (log == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final List<Block> blocks = new ArrayList<Block>(references.size());
+    for (Reference reference : references) {
+      blocks.add(getNode().getBlock(reference.getHash()));
+    }
+    return log.append(blocks);
+  }
+
+  /**
+   * Find an attestation we've already issued which covers all these blocks.
+   * @param references the blocks to be covered
+   * @return a reference to the covering attestation, or null if there isn't one
+   */
+  public Reference coveringAttestation(final List<Reference> references) {
+    Hash attestation = null;
+    for (Reference reference : references) {
+      final Hash covering = coverage.get(reference.getHash());
+      if (covering == null || (attestation != null && !attestation.equals(covering))) {
+        return null;
+      }
+      attestation = covering;
+    }
+    return (attestation == null) ? null : Reference.newBuilder().setHash(attestation).build();
+  }
+
+  /**
+   * Get an attestation covering these blocks, which must all have arrived already.
+   * If one we've already issued covers them, we use that.
+   * Otherwise, once they're durably stored (see persist), they're covered by the next batch attestation.
+   * @param references the blocks to be covered
+   * @return a future reference to the covering attestation
+   */
+  public CompletableFuture<Reference> attest(final List<Reference> references) {
+    final Reference existing = coveringAttestation(references);
+    if (existing != null) {
+      return CompletableFuture.completedFuture(existing);
+    }
+    return persist(references).thenCompose(v -> {
+      final PendingAttestation pending = new PendingAttestation(references);
+      pendingAttestations.add(pending);
+      return pending.future;
+    });
+  }
+
+  /** Repeatedly collect a batch of pending requests, and cover them with one attestation. Runs on its own thread. */
+  private void attestBatches() {
+    final List<PendingAttestation> batch = new ArrayList<PendingAttestation>();
+    while (true) {
+      batch.clear();
+      try {
+        batch.add(pendingAttestations.take());
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(getBatchWindowMicroseconds());
+        while (batch.size() < getMaxBatchSize()) {
+          final PendingAttestation next =
+            pendingAttestations.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        logger.log(Level.WARNING, "Interrupted while collecting a batch of attestation requests", e);
+      }
+      try {
+        attestBatch(batch);
+      } catch (Throwable t) {
+        logger.log(Level.SEVERE, "Failed to issue a batch attestation", t);
+        for (PendingAttestation pending : batch) {
+          pending.future.completeExceptionally(t);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sign one StoreForever covering the union of the blocks in this batch, "receive" it ourselves
+   *  (which will involve broadcasting it), and complete each request with a reference to it.
+   * @param batch the pending requests
+   */
+  private void attestBatch(final List<PendingAttestation> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    // requests which arrived after an earlier one in the batch was queued may already be covered
+    final Map<Hash, Reference> union = new LinkedHashMap<Hash, Reference>();
+    final List<PendingAttestation> uncovered = new ArrayList<PendingAttestation>(batch.size());
+    for (PendingAttestation pending : batch) {
+      final Reference existing = coveringAttestation(pending.references);
+      if (existing != null) {
+        pending.future.complete(existing);
+      } else {
+        uncovered.add(pending);
+        for (Reference reference : pending.references) {
+          union.putIfAbsent(reference.getHash(), reference);
+        }
+      }
+    }
+    if (uncovered.isEmpty()) {
+      return;
+    }
+    final StoreForever storeForever = StoreForever.newBuilder().addAllBlock(union.values()).build();
+    final Block availabilityAttestation = Block.newBuilder().setAvailabilityAttestation(
+      AvailabilityAttestation.newBuilder().setSignedStoreForever(
+        SignedStoreForever.newBuilder().setStoreForever(storeForever)
+          .setSignature(SignatureUtil.signBytes(getNode().getConfig().getKeyPair(), storeForever)))
+      ).build();
+    // receive (and broadcast) that attestation
+    getNode().onSendBlocksInput(availabilityAttestation);
+    // log it too (no need to wait: it's our promise, not something we promised to keep)
+    final BlockLog log = getBlockLog();
+    if (log != null) {
+      log.append(singleton(availabilityAttestation));
+    }
+    final Hash attestationHash = HashUtil.sha3Hash(availabilityAttestation);
+    for (Hash hash : union.keySet()) {
+      coverage.put(hash, attestationHash);
+    }
+    final Reference reference = Reference.newBuilder().setHash(attestationHash).build();
+    for (PendingAttestation pending : uncovered) {
+      pending.future.complete(reference);
+    }
+    logger.log(Level.INFO, "Issued signed attestation covering " + uncovered.size() + " requests for: \n" +
+      storeForever);
+  }
+
   /**
    * Called when an rpc comes in over the wire requesting an availability attestation.
    * Since the default CharlotteNode stores all blocks anyway, this just waits
    *  to be sure all listed blocks have arrived.
-   * Since it can wait, this call can take a while.
-   * I'm not sure if gRPC will give this call its own thread.
-   * If not, we might want to launch the contents of this in a new thread.
-   * It would be safe to do so.
+   * Since it can wait, this call can take a while, but it does not hold up the gRPC thread:
+   *  it returns right away, and the response is sent once all the blocks have arrived.
+   * If the call is cancelled, or the client's deadline passes, first, we stop waiting, and send nothing.
    * @param request details the desired attestation block
    * @param responseObserver this observer will get a single response, which
    *                          will have either an error string or a reference to
@@ -148,28 +445,51 @@ public class WilburService extends WilburGrpc.WilburImplBase {
       }
     }
 
-    // Wait until we've received each of the specified blocks.
-    for (Reference reference :
-         request.getPolicy().getFillInTheBlank().getSignedStoreForever().getStoreForever().getBlockList()) {
-      getNode().getBlock(reference.getHash());
+    final List<Reference> references =
+      request.getPolicy().getFillInTheBlank().getSignedStoreForever().getStoreForever().getBlockList();
+    // Don't wait here: once we've received each of the specified blocks,
+    //  find (or batch up and create) an attestation covering them.
+    final List<CompletableFuture<Block>> arrivals = new ArrayList<CompletableFuture<Block>>(references.size());
+    for (Reference reference : references) {
+      arrivals.add(getNode().getBlockFuture(reference.getHash()));
     }
+    final CompletableFuture<Reference> attestation =
+      CompletableFuture.allOf(arrivals.toArray(new CompletableFuture<?>[arrivals.size()])).
+        thenCompose(v -> attest(references));
+    pendingRequests.incrementAndGet();
 
-    // Now we create an attestation, "receive" that ourselves (which will involve broadcasting it), and
-    //  return a reference
-    final Block availabilityAttestation = Block.newBuilder().setAvailabilityAttestation(
-      AvailabilityAttestation.newBuilder().setSignedStoreForever(
-        SignedStoreForever.newBuilder().setStoreForever(
-            request.getPolicy().getFillInTheBlank().getSignedStoreForever().getStoreForever())
-          .setSignature(SignatureUtil.signBytes(getNode().getConfig().getKeyPair(),
-                        request.getPolicy().getFillInTheBlank().getSignedStoreForever().getStoreForever())))
-      ).build();
-    // receive (and broadcast) that attestation
-    getNode().onSendBlocksInput(availabilityAttestation);
-    // send a reference to the attestation back over the wire.
-    responseObserver.onNext(RequestAvailabilityAttestationResponse.newBuilder().setReference(
-      Reference.newBuilder().setHash(HashUtil.sha3Hash(availabilityAttestation))).build());
-    responseObserver.onCompleted();
-    logger.log(Level.INFO, "Issued signed attestation for: \n" +
-      request.getPolicy().getFillInTheBlank().getSignedStoreForever().getStoreForever());
+    // If the call is cancelled (or its deadline passes) before then, stop waiting, and release the block futures.
+    final Context context = Context.current();
+    final CancellationListener onCancel = cancelledContext -> {
+      attestation.cancel(false);
+      for (CompletableFuture<Block> arrival : arrivals) {
+        arrival.cancel(false);
+      }
+    };
+    context.addListener(onCancel, Runnable::run);
+
+    attestation.whenComplete((reference, throwable) -> {
+      pendingRequests.decrementAndGet();
+      context.removeListener(onCancel);
+      if (context.isCancelled()) {
+        logger.log(Level.INFO, "Availability attestation request cancelled before all blocks arrived: " +
+                               context.cancellationCause());
+        return;
+      }
+      try {
+        if (throwable != null) {
+          logger.log(Level.WARNING, "Failed to issue an attestation", throwable);
+          responseObserver.onNext(RequestAvailabilityAttestationResponse.newBuilder().setErrorMessage(
+                "Failed to issue an attestation: " + throwable).build());
+        } else {
+          // send a reference to the attestation back over the wire.
+          responseObserver.onNext(RequestAvailabilityAttestationResponse.newBuilder().setReference(reference).build());
+        }
+        responseObserver.onCompleted();
+      } catch (StatusRuntimeException e) {
+        // the call was cancelled just as we finished.
+        logger.log(Level.INFO, "Could not send availability attestation response", e);
+      }
+    });
   }
 }
@@ -0,0 +1,174 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.MessageOrBuilder;
+
+/**
+ * A fill-in-the-blank query, compiled once into a tree of matchers, one per filled-in field.
+ * Matching a potential block against it gives exactly the same answer as
+ *  WilburQueryService.fillInTheBlankMatch(query, potential), but without walking the query's getAllFields()
+ *  (which builds a fresh map each time) at every level, for every potential block.
+ * Each field's matcher checks presence first, and scalar fields are checked before message and repeated fields,
+ *  so most non-matching blocks are rejected without descending into them.
+ * A CompiledQuery is immutable, so it can be used from many threads at once.
+ * @author Isaac Sheff
+ */
+public class CompiledQuery implements Predicate<MessageOrBuilder> {
+  /** Cheap checks first: non-repeated scalars, then non-repeated messages, then repeated fields. */
+  private static final Comparator<FieldMatcher> CHEAPEST_FIRST = Comparator.comparingInt(FieldMatcher::cost);
+
+  /** A matcher for each filled-in field of the query. A potential matches if all of these do. */
+  private final FieldMatcher[] fields;
+
+  /**
+   * Compile a fill-in-the-blank query.
+   * @param query the fill-in-the-blank query
+   */
+  public CompiledQuery(final MessageOrBuilder query) {
+    final List<FieldMatcher> matchers = new ArrayList<FieldMatcher>();
+    for (Map.Entry<FieldDescriptor, Object> entry : query.getAllFields().entrySet()) {
+      matchers.add(compileField(entry.getKey(), entry.getValue()));
+    }
+    matchers.sort(CHEAPEST_FIRST);
+    fields = matchers.toArray(new FieldMatcher[matchers.size()]);
+  }
+
+  /**
+   * Is the potential equal to the query on all sub-fields where that query is filled in?.
+   * Lists must be in the same order, but query may have 0 or more of the elements of potential.
+   * @param potential the possible match
+   * @return does the query match the potential
+   */
+  @Override
+  public boolean test(final MessageOrBuilder potential) {
+    for (FieldMatcher field : fields) {
+      if (!field.test(potential)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param field the descriptor of a field filled in in the query
+   * @param value the query's value for that field
+   * @return a matcher for that field
+   */
+  @SuppressWarnings("unchecked") // Repeated fields are java.util.Lists.
+  private static FieldMatcher compileField(final FieldDescriptor field, final Object value) {
+    if (field.isRepeated()) {
+      final List<Object> values = (List<Object>) value;
+      final List<Predicate<Object>> elements = new ArrayList<Predicate<Object>>(values.size());
+      for (Object element : values) {
+        elements.add(compileValue(field, element));
+      }
+      return new RepeatedFieldMatcher(field, elements);
+    }
+    return new SingularFieldMatcher(field, compileValue(field, value));
+  }
+
+  /**
+   * @param field the descriptor of a field
+   * @param value a query's value for (one element of) that field
+   * @return a predicate on potential values for (one element of) that field
+   */
+  private static Predicate<Object> compileValue(final FieldDescriptor field, final Object value) {
+    if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+      final CompiledQuery subquery = new CompiledQuery((MessageOrBuilder) value);
+      return potential -> subquery.test((MessageOrBuilder) potential);
+    }
+    return value::equals;
+  }
+
+  /**
+   * Matches one field of a query.
+   * @author Isaac Sheff
+   */
+  private abstract static class FieldMatcher implements Predicate<MessageOrBuilder> {
+    /** The field this matches. */
+    protected final FieldDescriptor field;
+
+    /** @param field The field this matches. */
+    FieldMatcher(final FieldDescriptor field) {
+      this.field = field;
+    }
+
+    /** @return roughly how expensive this is to check, for ordering checks. */
+    int cost() {
+      return (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) ? 1 : 0;
+    }
+  }
+
+  /**
+   * Matches a non-repeated field: it must be present, and its value must match.
+   * @author Isaac Sheff
+   */
+  private static class SingularFieldMatcher extends FieldMatcher {
+    /** Matches the value of the field. */
+    private final Predicate<Object> value;
+
+    /**
+     * @param field The field this matches.
+     * @param value Matches the value of the field.
+     */
+    SingularFieldMatcher(final FieldDescriptor field, final Predicate<Object> value) {
+      super(field);
+      this.value = value;
+    }
+
+    @Override
+    public boolean test(final MessageOrBuilder potential) {
+      return potential.hasField(field) && value.test(potential.getField(field));
+    }
+  }
+
+  /**
+   * Matches a repeated field: each of the query's elements must match a distinct element of the potential's, in
+   *  order (taking the first match for each).
+   * @author Isaac Sheff
+   */
+  private static class RepeatedFieldMatcher extends FieldMatcher {
+    /** Matchers for the query's elements, in order. */
+    private final List<Predicate<Object>> elements;
+
+    /**
+     * @param field The field this matches.
+     * @param elements Matchers for the query's elements, in order.
+     */
+    RepeatedFieldMatcher(final FieldDescriptor field, final List<Predicate<Object>> elements) {
+      super(field);
+      this.elements = elements;
+    }
+
+    @Override
+    int cost() {
+      return 2;
+    }
+
+    @Override
+    public boolean test(final MessageOrBuilder potential) {
+      final int count = potential.getRepeatedFieldCount(field);
+      if (count < elements.size()) {
+        return false;
+      }
+      int next = 0;
+      for (Predicate<Object> element : elements) {
+        while (true) {
+          if (next >= count) {
+            return false;
+          }
+          if (element.test(potential.getRepeatedField(field, next++))) {
+            break;
+          }
+        }
+      }
+      return true;
+    }
+  }
+}
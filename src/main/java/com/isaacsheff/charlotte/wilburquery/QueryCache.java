@@ -0,0 +1,349 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
+
+/**
+ * A cache of fill-in-the-blank query results, keyed by the hash of the query, holding the hashes of the matching
+ *  blocks.
+ * Results are kept up to date, rather than invalidated: each newly stored block (this registers itself with
+ *  CharlotteNodeService.addNewBlockListener) is checked against the cached queries it might match, and added to the
+ *  results of those it does. So a repeated query costs O(results).
+ * Each entry is filed under one key any matching block must have (its signer, chain root, a block it references,
+ *  or failing those, its type, as QueryIndex would look it up), so a new block is checked only against the entries
+ *  filed under its own keys, rather than every entry of its type.
+ * The cache holds roughly at most maxBytes (by a rough estimate of each entry's size), evicting the least
+ *  recently used entries to stay under that.
+ * @author Isaac Sheff
+ */
+public class QueryCache implements BiConsumer<Hash, Block> {
+  /** The rough size limit of a cache if we're not told otherwise: 64 MiB. */
+  public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+  /** Roughly how many bytes each entry takes, apart from its query and results. */
+  private static final long ENTRY_BYTES = 256;
+
+  /** Roughly how many bytes each result takes (a Hash, its bytes, and its place in a LinkedHashSet). */
+  private static final long RESULT_BYTES = 160;
+
+  /** The CharlotteNodeService whose blocks the queries are over. */
+  private final CharlotteNodeService node;
+
+  /** The rough size limit of this cache, in bytes. */
+  private final long maxBytes;
+
+  /** The entries, by query hash, least recently used first. Guarded by this. */
+  private final LinkedHashMap<Hash, Entry> entries;
+
+  /** The entries, by the key they're filed under (see key). Guarded by this. */
+  private final Map<List<Object>, Set<Entry>> byKey;
+
+  /** The rough total size of the entries, in bytes. Guarded by this. */
+  private long bytes;
+
+  /** How many lookups found a complete entry. */
+  private final AtomicLong hits;
+
+  /** How many lookups didn't. */
+  private final AtomicLong misses;
+
+  /**
+   * Make a new, empty, QueryCache, and register it to hear about the node's new blocks.
+   * @param node The CharlotteNodeService whose blocks the queries are over.
+   * @param maxBytes The rough size limit of this cache, in bytes.
+   */
+  public QueryCache(final CharlotteNodeService node, final long maxBytes) {
+    this.node = node;
+    this.maxBytes = maxBytes;
+    this.entries = new LinkedHashMap<Hash, Entry>(16, 0.75f, true);
+    this.byKey = new HashMap<List<Object>, Set<Entry>>();
+    this.bytes = 0;
+    this.hits = new AtomicLong(0);
+    this.misses = new AtomicLong(0);
+    node.addNewBlockListener(this);
+  }
+
+  /**
+   * Make a new, empty, QueryCache, with the DEFAULT_MAX_BYTES, and register it to hear about the node's new blocks.
+   * @param node The CharlotteNodeService whose blocks the queries are over.
+   */
+  public QueryCache(final CharlotteNodeService node) {
+    this(node, DEFAULT_MAX_BYTES);
+  }
+
+  /** @return The CharlotteNodeService whose blocks the queries are over. */
+  public CharlotteNodeService getNode() {return node;}
+
+  /** @return The rough size limit of this cache, in bytes. */
+  public long getMaxBytes() {return maxBytes;}
+
+  /** @return The rough total size of the entries, in bytes. */
+  public synchronized long getBytes() {return bytes;}
+
+  /** @return How many queries are cached. */
+  public synchronized int size() {return entries.size();}
+
+  /** @return How many lookups found a cached result. */
+  public long getHits() {return hits.get();}
+
+  /** @return How many lookups didn't find a cached result. */
+  public long getMisses() {return misses.get();}
+
+  /** @return the fraction of lookups which found a cached result (0 if there have been none). */
+  public double getHitRate() {
+    final long h = getHits();
+    final long total = h + getMisses();
+    return (total == 0) ? 0.0 : (((double) h) / total);
+  }
+
+  /**
+   * The known blocks matching a query, from the cache if it's there, and otherwise found with the given function
+   *  (and then cached).
+   * Blocks stored while the function runs are not missed: the entry is listening for them before it starts.
+   * @param query a fill-in-the-blank query
+   * @param find finds the blocks matching a query, if it's not cached
+   * @return the blocks matching the query
+   */
+  public List<Block> query(final Block query, final Function<Block, Collection<Block>> find) {
+    final Hash key = sha3Hash(query);
+    final Entry cached = lookup(key);
+    if (cached != null) {
+      hits.incrementAndGet();
+      return cached.blocks();
+    }
+    misses.incrementAndGet();
+    final Entry entry = begin(key, query);
+    final Collection<Block> found = find.apply(query);
+    final List<Hash> hashes = new ArrayList<Hash>(found.size());
+    for (Block block : found) {
+      hashes.add(sha3Hash(block));
+    }
+    complete(entry, hashes);
+    return new ArrayList<Block>(found);
+  }
+
+  /**
+   * @param key the hash of a query
+   * @return the complete entry for that query, or null if there isn't one. Counts as a use of it.
+   */
+  private synchronized Entry lookup(final Hash key) {
+    final Entry entry = entries.get(key);
+    return (entry != null && entry.complete) ? entry : null;
+  }
+
+  /**
+   * Start an entry for a query, so it hears about new blocks, if there isn't one already.
+   * @param key the hash of the query
+   * @param query the query
+   * @return the (possibly incomplete) entry for the query
+   */
+  private synchronized Entry begin(final Hash key, final Block query) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(query);
+      entries.put(key, entry);
+      byKey.computeIfAbsent(entry.key, k -> new HashSet<Entry>()).add(entry);
+      bytes += entry.bytes;
+      evict();
+    }
+    return entry;
+  }
+
+  /**
+   * Add the results of running a query to its entry, and mark it complete.
+   * @param entry the entry
+   * @param hashes the hashes of the matching blocks
+   */
+  private synchronized void complete(final Entry entry, final List<Hash> hashes) {
+    for (Hash hash : hashes) {
+      add(entry, hash);
+    }
+    entry.complete = true;
+    evict();
+  }
+
+  /**
+   * Add a result to an entry (if it isn't already there, and the entry hasn't been evicted).
+   * This doesn't count as a use of the entry.
+   * @param entry the entry
+   * @param hash the hash of a matching block
+   */
+  private synchronized void add(final Entry entry, final Hash hash) {
+    if (!entry.evicted && entry.results.add(hash)) {
+      entry.bytes += RESULT_BYTES;
+      bytes += RESULT_BYTES;
+    }
+  }
+
+  /** Evict least recently used entries until we're under maxBytes. */
+  private synchronized void evict() {
+    final Iterator<Entry> iterator = entries.values().iterator();
+    while (bytes > maxBytes && iterator.hasNext()) {
+      final Entry entry = iterator.next();
+      iterator.remove();
+      entry.evicted = true;
+      final Set<Entry> filed = byKey.get(entry.key);
+      filed.remove(entry);
+      if (filed.isEmpty()) {
+        byKey.remove(entry.key);
+      }
+      bytes -= entry.bytes;
+    }
+  }
+
+  /**
+   * The key to file an entry for this query under: something every block matching the query must have.
+   * This is the signer, chain root, or a referenced block, if the query fully specifies one (see
+   *  QueryIndex.specified), and otherwise the Block oneof case (BLOCKTYPEONEOF_NOT_SET if none).
+   * @param query a fill-in-the-blank query
+   * @return the key
+   */
+  private static List<Object> key(final Block query) {
+    final CryptoId signer = QueryIndex.signer(query);
+    if (signer != null && QueryIndex.specified(signer)) {
+      return List.of(QueryIndex.Kind.SIGNER, signer);
+    }
+    final Hash root = query.getIntegrityAttestation().getSignedChainSlot().getChainSlot().getRoot().getHash();
+    if (QueryIndex.specified(root)) {
+      return List.of(QueryIndex.Kind.CHAIN_SLOT, root);
+    }
+    final List<Hash> references = QueryIndex.references(query);
+    if (!references.isEmpty()) {
+      return List.of(QueryIndex.Kind.REFERENCE, references.get(0));
+    }
+    return List.of(QueryIndex.Kind.TYPE, query.getBlocktypeOneofCase());
+  }
+
+  /**
+   * @param block a block
+   * @return every key an entry this block matches might be filed under (see key)
+   */
+  private static List<List<Object>> keys(final Block block) {
+    final List<List<Object>> keys = new ArrayList<List<Object>>();
+    keys.add(List.of(QueryIndex.Kind.TYPE, block.getBlocktypeOneofCase()));
+    keys.add(List.of(QueryIndex.Kind.TYPE, Block.BlocktypeOneofCase.BLOCKTYPEONEOF_NOT_SET));
+    final CryptoId signer = QueryIndex.signer(block);
+    if (signer != null) {
+      keys.add(List.of(QueryIndex.Kind.SIGNER, signer));
+    }
+    final Reference root = block.getIntegrityAttestation().getSignedChainSlot().getChainSlot().getRoot();
+    if (root.hasHash()) {
+      keys.add(List.of(QueryIndex.Kind.CHAIN_SLOT, root.getHash()));
+    }
+    for (Hash reference : QueryIndex.references(block)) {
+      keys.add(List.of(QueryIndex.Kind.REFERENCE, reference));
+    }
+    return keys;
+  }
+
+  /**
+   * @param keys keys entries are filed under
+   * @return the entries filed under any of them (a copy)
+   */
+  private synchronized Set<Entry> entriesFiledUnder(final List<List<Object>> keys) {
+    final Set<Entry> entries = new HashSet<Entry>();
+    for (List<Object> key : keys) {
+      final Set<Entry> filed = byKey.get(key);
+      if (filed != null) {
+        entries.addAll(filed);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Called (via CharlotteNodeService.newBlockStored) with each new block, once it's stored.
+   * Adds it to the results of each cached query it matches.
+   * Only entries filed under one of the block's keys are checked, and matching is done without holding the lock
+   *  on this cache.
+   * @param hash the hash of the block
+   * @param block the block
+   */
+  @Override
+  public void accept(final Hash hash, final Block block) {
+    for (Entry entry : entriesFiledUnder(keys(block))) {
+      if (entry.matcher.test(block)) {
+        add(entry, hash);
+      }
+    }
+    synchronized (this) {
+      evict();
+    }
+  }
+
+  /**
+   * A cached query, and the hashes of the blocks matching it.
+   * Everything mutable in here is guarded by the QueryCache.
+   * @author Isaac Sheff
+   */
+  private class Entry {
+    /** The query. */
+    private final Block query;
+
+    /** The compiled query, for checking new blocks. */
+    private final CompiledQuery matcher;
+
+    /** The key this entry is filed under (see QueryCache.key). */
+    private final List<Object> key;
+
+    /** The hashes of the matching blocks, in the order they were found. */
+    private final Set<Hash> results;
+
+    /** Whether the query has been run (so results has everything). */
+    private boolean complete;
+
+    /** Whether this entry has been evicted (so it needn't be kept up to date). */
+    private boolean evicted;
+
+    /** Roughly how many bytes this entry takes. */
+    private long bytes;
+
+    /**
+     * @param query The query.
+     */
+    Entry(final Block query) {
+      this.query = query;
+      this.matcher = new CompiledQuery(query);
+      this.key = key(query);
+      this.results = new LinkedHashSet<Hash>();
+      this.complete = false;
+      this.evicted = false;
+      this.bytes = ENTRY_BYTES + query.getSerializedSize();
+    }
+
+    /** @return the blocks whose hashes are in the results. */
+    List<Block> blocks() {
+      final List<Hash> hashes;
+      synchronized (QueryCache.this) {
+        hashes = new ArrayList<Hash>(results);
+      }
+      final List<Block> blocks = new ArrayList<Block>(hashes.size());
+      for (Hash hash : hashes) {
+        final Block block = getNode().getBlockMap().get(hash);
+        if (block != null) {
+          blocks.add(block);
+        }
+      }
+      return blocks;
+    }
+  }
+}
@@ -0,0 +1,467 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static java.util.Collections.emptyNavigableSet;
+import static java.util.Collections.unmodifiableNavigableSet;
+import static java.util.Collections.unmodifiableSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.ReferenceIndex;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.Signature;
+
+/**
+ * Secondary indexes over the blocks a CharlotteNodeService knows, for answering fill-in-the-blank WilburQueries
+ *  without matching against every known block.
+ * Each index maps some feature of a block to the hashes of the blocks having it.
+ * The indexes are maintained as blocks are stored (this registers itself with CharlotteNodeService.addIndexer).
+ * For a query, candidates picks the most selective index the query can use.
+ * An index can only be used for a key the query fully specifies: fillInTheBlankMatch treats anything left out of
+ *  a query (even part of a Hash or CryptoId) as a blank, which an exact lookup would not.
+ * Candidates are a superset of the matches: they still have to be checked against the query (see CompiledQuery,
+ *  which agrees with WilburQueryService.fillInTheBlankMatch).
+ * @author Isaac Sheff
+ */
+public class QueryIndex implements BiConsumer<Hash, Block> {
+  /** Use logger for logging events on a QueryIndex. */
+  private static final Logger logger = Logger.getLogger(QueryIndex.class.getName());
+
+  /**
+   * The order in which streamed query results are sent: unsigned lexicographic order of the serialized Hash.
+   * Any fixed order would do, so long as it doesn't change between pages of the same query.
+   */
+  public static final Comparator<Hash> HASH_ORDER = (a, b) -> {
+    // sha3 Hashes of the same length serialize with the same prefix, so compare them without serializing.
+    final boolean sameShape = specified(a) && specified(b) && a.getSha3().size() == b.getSha3().size();
+    final ByteString x = sameShape ? a.getSha3() : a.toByteString();
+    final ByteString y = sameShape ? b.getSha3() : b.toByteString();
+    final int length = Math.min(x.size(), y.size());
+    for (int i = 0; i < length; ++i) {
+      final int difference = (x.byteAt(i) & 0xff) - (y.byteAt(i) & 0xff);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return x.size() - y.size();
+  };
+
+  /** Check at least this many blocks against a query in parallel, rather than one at a time. */
+  public static final int PARALLEL_THRESHOLD = 4096;
+
+  /** The kinds of secondary index which can be kept. */
+  public enum Kind {
+    /** Which field of the Block oneof is set (string, availability attestation, integrity attestation...). */
+    TYPE,
+    /** The CryptoId in the Signature of a signed attestation, GitSim commit, or Hetcons block. */
+    SIGNER,
+    /** The root (and the root and slot) of a SignedChainSlot integrity attestation. */
+    CHAIN_SLOT,
+    /** The hashes referenced by an attestation. This uses the CharlotteNodeService's own ReferenceIndex. */
+    REFERENCE
+  }
+
+  /** The CharlotteNodeService whose blocks are indexed. */
+  private final CharlotteNodeService node;
+
+  /** Which indexes are kept. */
+  private final Set<Kind> kinds;
+
+  /**
+   * The hashes of all indexed blocks, whichever kinds are kept, so queries no index applies to can still be
+   *  paged through in HASH_ORDER.
+   * This, and each set of hashes in the indexes below, is kept in HASH_ORDER, so a page starts with a tailSet.
+   */
+  private final NavigableSet<Hash> all;
+
+  /** For each Block oneof case, the hashes of blocks of that type. */
+  private final ConcurrentMap<Block.BlocktypeOneofCase, NavigableSet<Hash>> byType;
+
+  /** For each signer, the hashes of blocks it signed. */
+  private final ConcurrentMap<CryptoId, NavigableSet<Hash>> bySigner;
+
+  /** For each chain root, the hashes of SignedChainSlot attestations in that chain. */
+  private final ConcurrentMap<Hash, NavigableSet<Hash>> byChainRoot;
+
+  /** For each (chain root, slot), as a ChainSlot with only those filled in, the hashes of attestations for it. */
+  private final ConcurrentMap<ChainSlot, NavigableSet<Hash>> byChainSlot;
+
+  /**
+   * Make a new QueryIndex keeping these indexes over this node's blocks.
+   * It registers itself with the node, and then indexes the blocks the node already has.
+   * @param node the CharlotteNodeService whose blocks are indexed
+   * @param kinds which indexes to keep
+   */
+  public QueryIndex(final CharlotteNodeService node, final Set<Kind> kinds) {
+    this.node = node;
+    this.kinds = unmodifiableSet(kinds.isEmpty() ? EnumSet.noneOf(Kind.class) : EnumSet.copyOf(kinds));
+    all = new ConcurrentSkipListSet<Hash>(HASH_ORDER);
+    byType = new ConcurrentHashMap<Block.BlocktypeOneofCase, NavigableSet<Hash>>();
+    bySigner = new ConcurrentHashMap<CryptoId, NavigableSet<Hash>>();
+    byChainRoot = new ConcurrentHashMap<Hash, NavigableSet<Hash>>();
+    byChainSlot = new ConcurrentHashMap<ChainSlot, NavigableSet<Hash>>();
+    node.addIndexer(this);
+    // anything stored from here on is indexed by accept, and indexing twice does no harm.
+    for (Map.Entry<Hash, Block> entry : node.getBlockMap().entrySet()) {
+      accept(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Make a new QueryIndex keeping all kinds of index over this node's blocks.
+   * @param node the CharlotteNodeService whose blocks are indexed
+   */
+  public QueryIndex(final CharlotteNodeService node) {
+    this(node, EnumSet.allOf(Kind.class));
+  }
+
+  /** @return The CharlotteNodeService whose blocks are indexed. */
+  public CharlotteNodeService getNode() {return node;}
+
+  /** @return Which indexes are kept. */
+  public Set<Kind> getKinds() {return kinds;}
+
+  /**
+   * @param map an index
+   * @param key a key in that index
+   * @param hash a block hash to file under that key
+   */
+  private static <K> void put(final ConcurrentMap<K, NavigableSet<Hash>> map, final K key, final Hash hash) {
+    map.computeIfAbsent(key, k -> new ConcurrentSkipListSet<Hash>(HASH_ORDER)).add(hash);
+  }
+
+  /**
+   * Index a block. Called (via CharlotteNodeService.indexBlock) for each block as it's stored.
+   * Indexing the same block more than once does no harm.
+   * @param hash the hash of the block
+   * @param block the block
+   */
+  @Override
+  public void accept(final Hash hash, final Block block) {
+    all.add(hash);
+    if (kinds.contains(Kind.TYPE) && block.getBlocktypeOneofCase() != Block.BlocktypeOneofCase.BLOCKTYPEONEOF_NOT_SET) {
+      put(byType, block.getBlocktypeOneofCase(), hash);
+    }
+    if (kinds.contains(Kind.SIGNER)) {
+      final CryptoId signer = signer(block);
+      if (signer != null) {
+        put(bySigner, signer, hash);
+      }
+    }
+    if (kinds.contains(Kind.CHAIN_SLOT) && block.getIntegrityAttestation().hasSignedChainSlot()) {
+      final ChainSlot chainSlot = block.getIntegrityAttestation().getSignedChainSlot().getChainSlot();
+      if (chainSlot.getRoot().hasHash()) {
+        put(byChainRoot, chainSlot.getRoot().getHash(), hash);
+        put(byChainSlot, chainSlotKey(chainSlot), hash);
+      }
+    }
+  }
+
+  /**
+   * @param chainSlot a ChainSlot with a root hash
+   * @return a ChainSlot with only the root hash and slot filled in
+   */
+  private static ChainSlot chainSlotKey(final ChainSlot chainSlot) {
+    return ChainSlot.newBuilder().
+             setRoot(Reference.newBuilder().setHash(chainSlot.getRoot().getHash())).
+             setSlot(chainSlot.getSlot()).build();
+  }
+
+  /**
+   * The Signature (if any) of a block: that of a signed attestation, GitSim commit, or Hetcons block.
+   * Works just as well on a fill-in-the-blank query: a Signature is returned only where one is filled in.
+   * @param block a block (or query)
+   * @return the Signature on that block, or null if it has none
+   */
+  public static Signature signature(final Block block) {
+    switch (block.getBlocktypeOneofCase()) {
+      case AVAILABILITYATTESTATION:
+        return block.getAvailabilityAttestation().getSignedStoreForever().hasSignature() ?
+                 block.getAvailabilityAttestation().getSignedStoreForever().getSignature() : null;
+      case INTEGRITYATTESTATION:
+        final IntegrityAttestation attestation = block.getIntegrityAttestation();
+        switch (attestation.getIntegrityattestationtypeOneofCase()) {
+          case SIGNEDCHAINSLOT:
+            return attestation.getSignedChainSlot().hasSignature() ?
+                     attestation.getSignedChainSlot().getSignature() : null;
+          case SIGNEDTIMESTAMPEDREFERENCES:
+            return attestation.getSignedTimestampedReferences().hasSignature() ?
+                     attestation.getSignedTimestampedReferences().getSignature() : null;
+          case SIGNEDGITSIMBRANCH:
+            return attestation.getSignedGitSimBranch().hasSignature() ?
+                     attestation.getSignedGitSimBranch().getSignature() : null;
+          case SIGNEDCHAINSEGMENT:
+            return attestation.getSignedChainSegment().hasSignature() ?
+                     attestation.getSignedChainSegment().getSignature() : null;
+          case SIGNEDHETCONSATTESTATION:
+            return attestation.getSignedHetconsAttestation().hasSignaure() ?
+                     attestation.getSignedHetconsAttestation().getSignaure() : null;
+          default:
+            return null;
+        }
+      case SIGNEDGITSIMCOMMIT:
+        return block.getSignedGitSimCommit().hasSignature() ? block.getSignedGitSimCommit().getSignature() : null;
+      case HETCONSBLOCK:
+        return block.getHetconsBlock().hasSig() ? block.getHetconsBlock().getSig() : null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @param block a block (or query)
+   * @return the CryptoId in the Signature on that block, or null if it has none
+   */
+  public static CryptoId signer(final Block block) {
+    final Signature signature = signature(block);
+    return (signature != null && signature.hasCryptoId()) ? signature.getCryptoId() : null;
+  }
+
+  /**
+   * Does a Hash in a query match only blocks with exactly that Hash?.
+   * Only a sha3 Hash does: anything else may have blanks in it.
+   * @param hash a Hash from a fill-in-the-blank query
+   * @return whether the Hash can be looked up in an index
+   */
+  public static boolean specified(final Hash hash) {
+    return hash.getHashalgorithmOneofCase() == Hash.HashalgorithmOneofCase.SHA3;
+  }
+
+  /**
+   * Does a CryptoId in a query match only blocks with exactly that CryptoId?.
+   * Only a sha3 Hash, or a P256 public key with its bytes filled in, does: anything else may have blanks in it.
+   * @param id a CryptoId from a fill-in-the-blank query
+   * @return whether the CryptoId can be looked up in an index
+   */
+  public static boolean specified(final CryptoId id) {
+    switch (id.getIdtypeOneofCase()) {
+      case HASH:
+        return specified(id.getHash());
+      case PUBLICKEY:
+        return id.getPublicKey().hasEllipticCurveP256() &&
+               !id.getPublicKey().getEllipticCurveP256().getByteString().isEmpty();
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @param map an index
+   * @param key a key in that index
+   * @return the hashes filed under that key, in HASH_ORDER (a read-only view)
+   */
+  private static <K> NavigableSet<Hash> lookup(final ConcurrentMap<K, NavigableSet<Hash>> map, final K key) {
+    final NavigableSet<Hash> hashes = map.get(key);
+    return (hashes == null) ? emptyNavigableSet() : unmodifiableNavigableSet(hashes);
+  }
+
+  /**
+   * The (fully specified) hashes in the References of an attestation which referenceCandidates looks up: each
+   *  block in a StoreForever, the block in a ChainSlot, each block in TimestampedReferences, and a GitSim commit.
+   * Works just as well on a fill-in-the-blank query: any block matching it must reference each of these.
+   * @param block a block (or query)
+   * @return the hashes it references
+   */
+  public static List<Hash> references(final Block block) {
+    final List<Hash> hashes = new ArrayList<Hash>();
+    if (block.hasAvailabilityAttestation()) {
+      for (Reference reference :
+           block.getAvailabilityAttestation().getSignedStoreForever().getStoreForever().getBlockList()) {
+        if (specified(reference.getHash())) {
+          hashes.add(reference.getHash());
+        }
+      }
+    } else if (block.hasIntegrityAttestation()) {
+      final IntegrityAttestation attestation = block.getIntegrityAttestation();
+      if (specified(attestation.getSignedChainSlot().getChainSlot().getBlock().getHash())) {
+        hashes.add(attestation.getSignedChainSlot().getChainSlot().getBlock().getHash());
+      }
+      for (Reference reference :
+           attestation.getSignedTimestampedReferences().getTimestampedReferences().getBlockList()) {
+        if (specified(reference.getHash())) {
+          hashes.add(reference.getHash());
+        }
+      }
+      if (specified(attestation.getSignedGitSimBranch().getGitSimBranch().getCommit().getHash())) {
+        hashes.add(attestation.getSignedGitSimBranch().getGitSimBranch().getCommit().getHash());
+      }
+    }
+    return hashes;
+  }
+
+  /**
+   * For each (fully specified) hash a query requires some Reference to have, the attestations referencing it.
+   * Any block matching the query must be in every one of these sets.
+   * @param query a fill-in-the-blank query
+   * @return a set of attestation hashes for each hash the query references
+   */
+  private List<Set<Hash>> referenceCandidates(final Block query) {
+    final ReferenceIndex index = getNode().getReferenceIndex();
+    final List<Set<Hash>> candidates = new ArrayList<Set<Hash>>();
+    if (query.hasAvailabilityAttestation()) {
+      for (Reference reference :
+           query.getAvailabilityAttestation().getSignedStoreForever().getStoreForever().getBlockList()) {
+        if (specified(reference.getHash())) {
+          candidates.add(index.getAttestations(reference.getHash(), ReferenceIndex.Kind.STORE_FOREVER));
+        }
+      }
+    } else if (query.hasIntegrityAttestation()) {
+      final IntegrityAttestation attestation = query.getIntegrityAttestation();
+      if (specified(attestation.getSignedChainSlot().getChainSlot().getBlock().getHash())) {
+        candidates.add(index.getAttestations(attestation.getSignedChainSlot().getChainSlot().getBlock().getHash(),
+                                             ReferenceIndex.Kind.CHAIN_SLOT));
+      }
+      for (Reference reference :
+           attestation.getSignedTimestampedReferences().getTimestampedReferences().getBlockList()) {
+        if (specified(reference.getHash())) {
+          candidates.add(index.getAttestations(reference.getHash(), ReferenceIndex.Kind.TIMESTAMPED_REFERENCES));
+        }
+      }
+      final Reference commit = attestation.getSignedGitSimBranch().getGitSimBranch().getCommit();
+      if (specified(commit.getHash())) {
+        candidates.add(index.getAttestations(commit.getHash(), ReferenceIndex.Kind.GIT_SIM_BRANCH));
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * The query planner: of all the indexes this query can use, pick the one with the fewest blocks.
+   * An index can be used only for keys the query fully specifies (see specified).
+   * Every block matching the query is among the candidates, but not every candidate matches.
+   * @param query a fill-in-the-blank query
+   * @return the hashes of candidate blocks, or null if no index applies (so every block is a candidate)
+   */
+  public Set<Hash> candidates(final Block query) {
+    final List<Set<Hash>> options = new ArrayList<Set<Hash>>();
+    if (kinds.contains(Kind.TYPE) && query.getBlocktypeOneofCase() != Block.BlocktypeOneofCase.BLOCKTYPEONEOF_NOT_SET) {
+      options.add(lookup(byType, query.getBlocktypeOneofCase()));
+    }
+    if (kinds.contains(Kind.SIGNER)) {
+      final CryptoId signer = signer(query);
+      if (signer != null && specified(signer)) {
+        options.add(lookup(bySigner, signer));
+      }
+    }
+    if (kinds.contains(Kind.CHAIN_SLOT)) {
+      final ChainSlot chainSlot = query.getIntegrityAttestation().getSignedChainSlot().getChainSlot();
+      if (specified(chainSlot.getRoot().getHash())) {
+        // a slot of 0 is indistinguishable from no slot at all in a query, so it constrains only the root.
+        options.add((chainSlot.getSlot() == 0) ? lookup(byChainRoot, chainSlot.getRoot().getHash())
+                                               : lookup(byChainSlot, chainSlotKey(chainSlot)));
+      }
+    }
+    if (kinds.contains(Kind.REFERENCE)) {
+      options.addAll(referenceCandidates(query));
+    }
+    Set<Hash> best = null;
+    for (Set<Hash> option : options) {
+      if (best == null || option.size() < best.size()) {
+        best = option;
+      }
+    }
+    if (best == null) {
+      logger.log(Level.FINE, "No index applies to query:\n" + query);
+    }
+    return best;
+  }
+
+  /**
+   * All the known blocks matching a fill-in-the-blank query.
+   * Uses the most selective applicable index, and falls back to checking every known block if none applies.
+   * The query is compiled once (see CompiledQuery), and checked against large numbers of blocks in parallel, on
+   *  the common fork/join pool (the block map's spliterator divides it up by segments of its table).
+   * @param query a fill-in-the-blank query
+   * @return the blocks matching the query (see WilburQueryService.fillInTheBlankMatch)
+   */
+  public Collection<Block> query(final Block query) {
+    final CompiledQuery matcher = new CompiledQuery(query);
+    final Set<Hash> candidates = candidates(query);
+    if (candidates == null) {
+      final Collection<Block> blocks = getNode().getBlockMap().values();
+      return ((blocks.size() < PARALLEL_THRESHOLD) ? blocks.stream() : blocks.parallelStream()).
+               filter(matcher).collect(Collectors.toList());
+    }
+    // a block is indexed just before it's put in the map, so it may not be there yet.
+    return ((candidates.size() < PARALLEL_THRESHOLD) ? candidates.stream() : candidates.parallelStream()).
+             map(getNode().getBlockMap()::get).
+             filter(block -> block != null && matcher.test(block)).collect(Collectors.toList());
+  }
+
+  /**
+   * The known blocks matching a fill-in-the-blank query, in HASH_ORDER, starting after a cursor.
+   * The candidates are read straight from the index, which is kept in HASH_ORDER, starting at the cursor: each
+   *  block is fetched and matched as the iterator gets to it.
+   * Only candidates from the node's ReferenceIndex (attestations of one block, so usually few) aren't kept in order:
+   *  those after the cursor are copied and sorted.
+   * Blocks stored after this is called may or may not be included.
+   * @param query a fill-in-the-blank query
+   * @param after only blocks with hashes after this one (in HASH_ORDER) are included. If null, all are.
+   * @return an iterator over the matching blocks
+   */
+  public Iterator<Block> matches(final Block query, final Hash after) {
+    final CompiledQuery matcher = new CompiledQuery(query);
+    final Set<Hash> candidates = candidates(query);
+    final Iterator<Hash> hashes;
+    if (candidates == null || candidates instanceof NavigableSet) {
+      final NavigableSet<Hash> ordered = (candidates == null) ? all : (NavigableSet<Hash>) candidates;
+      hashes = ((after == null) ? ordered : ordered.tailSet(after, false)).iterator();
+    } else {
+      final List<Hash> ordered = new ArrayList<Hash>(candidates.size());
+      for (Hash hash : candidates) {
+        if (after == null || HASH_ORDER.compare(hash, after) > 0) {
+          ordered.add(hash);
+        }
+      }
+      ordered.sort(HASH_ORDER);
+      hashes = ordered.iterator();
+    }
+    return new Iterator<Block>() {
+      /** The next matching block, if we've found it already. */
+      private Block next = null;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && hashes.hasNext()) {
+          final Block block = getNode().getBlockMap().get(hashes.next());
+          if (block != null && matcher.test(block)) {
+            next = block;
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public Block next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Block block = next;
+        next = null;
+        return block;
+      }
+    };
+  }
+}
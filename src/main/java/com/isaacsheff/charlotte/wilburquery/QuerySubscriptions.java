@@ -0,0 +1,271 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.WilburQueryPageResponse;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Standing fill-in-the-blank queries: each newly stored block matching one is streamed to its subscriber.
+ * Blocks are checked as they're stored (this registers itself with CharlotteNodeService.addNewBlockListener),
+ *  against only those subscriptions whose query asks for the block's type (or doesn't say).
+ * Each subscription sends only as fast as its client takes them (gRPC flow control), buffering up to maxBacklog
+ *  blocks. A subscriber falling further behind than that is sent an error, and its subscription ends, rather
+ *  than have the server buffer without bound.
+ * @author Isaac Sheff
+ */
+public class QuerySubscriptions implements BiConsumer<Hash, Block> {
+  /** Use logger for logging events on a QuerySubscriptions. */
+  private static final Logger logger = Logger.getLogger(QuerySubscriptions.class.getName());
+
+  /** The most blocks to buffer for a subscriber that isn't keeping up, if we're not told otherwise. */
+  public static final int DEFAULT_MAX_BACKLOG = 1024;
+
+  /** The CharlotteNodeService whose new blocks are checked. */
+  private final CharlotteNodeService node;
+
+  /** The most blocks to buffer for a subscriber that isn't keeping up. */
+  private final int maxBacklog;
+
+  /**
+   * The subscriptions, by the Block oneof case their query asks for.
+   * Queries which don't fill in the Block oneof are under BLOCKTYPEONEOF_NOT_SET.
+   */
+  private final ConcurrentMap<Block.BlocktypeOneofCase, Set<Subscription>> subscriptions;
+
+  /**
+   * Make a new QuerySubscriptions, and register it to hear about the node's new blocks.
+   * @param node The CharlotteNodeService whose new blocks are checked.
+   * @param maxBacklog The most blocks to buffer for a subscriber that isn't keeping up.
+   */
+  public QuerySubscriptions(final CharlotteNodeService node, final int maxBacklog) {
+    this.node = node;
+    this.maxBacklog = maxBacklog;
+    this.subscriptions = new ConcurrentHashMap<Block.BlocktypeOneofCase, Set<Subscription>>();
+    node.addNewBlockListener(this);
+  }
+
+  /**
+   * Make a new QuerySubscriptions, with the DEFAULT_MAX_BACKLOG, and register it to hear about the node's new blocks.
+   * @param node The CharlotteNodeService whose new blocks are checked.
+   */
+  public QuerySubscriptions(final CharlotteNodeService node) {
+    this(node, DEFAULT_MAX_BACKLOG);
+  }
+
+  /** @return The CharlotteNodeService whose new blocks are checked. */
+  public CharlotteNodeService getNode() {return node;}
+
+  /** @return The most blocks to buffer for a subscriber that isn't keeping up. */
+  public int getMaxBacklog() {return maxBacklog;}
+
+  /** @return how many subscriptions are currently open. */
+  public int getSubscriptionCount() {
+    int count = 0;
+    for (Set<Subscription> set : subscriptions.values()) {
+      count += set.size();
+    }
+    return count;
+  }
+
+  /**
+   * Start streaming blocks matching this query to this observer, until the client cancels.
+   * @param query the fill-in-the-blank query
+   * @param existing if not null, finds the blocks already stored which match the query, which will be streamed
+   *                  first. It's called just after the subscription starts, so nothing falls between the two.
+   *                  Blocks offered while it's being read are remembered (so a block stored just as we subscribed
+   *                  isn't sent twice), and forgotten once it's all queued.
+   * @param responseObserver the stream, which will get one response per matching block
+   */
+  public void subscribe(final Block query,
+                        final Supplier<? extends Iterable<Block>> existing,
+                        final StreamObserver<WilburQueryPageResponse> responseObserver) {
+    final Subscription subscription =
+      new Subscription(query.getBlocktypeOneofCase(), new CompiledQuery(query), existing != null, responseObserver);
+    if (responseObserver instanceof ServerCallStreamObserver) { // as it is, when gRPC calls this
+      final ServerCallStreamObserver<WilburQueryPageResponse> serverObserver =
+        (ServerCallStreamObserver<WilburQueryPageResponse>) responseObserver;
+      serverObserver.setOnCancelHandler(subscription::cancel);
+      serverObserver.setOnReadyHandler(subscription);
+    }
+    // subscribe before looking at existing blocks, so nothing stored in between is missed.
+    subscriptions.computeIfAbsent(subscription.getType(), t -> ConcurrentHashMap.newKeySet()).add(subscription);
+    if (existing != null) {
+      for (Block block : existing.get()) {
+        subscription.offer(sha3Hash(block), block, false);
+      }
+      subscription.existingQueued();
+    }
+  }
+
+  /**
+   * Called (via CharlotteNodeService.newBlockStored) with each new block, once it's stored.
+   * Sends it to each subscription it matches.
+   * @param hash the hash of the block
+   * @param block the block
+   */
+  @Override
+  public void accept(final Hash hash, final Block block) {
+    offer(subscriptions.get(block.getBlocktypeOneofCase()), hash, block);
+    offer(subscriptions.get(Block.BlocktypeOneofCase.BLOCKTYPEONEOF_NOT_SET), hash, block);
+  }
+
+  /**
+   * @param candidates subscriptions which might want this block (or null, if there are none)
+   * @param hash the hash of the block
+   * @param block the block
+   */
+  private static void offer(final Set<Subscription> candidates, final Hash hash, final Block block) {
+    if (candidates != null) {
+      for (Subscription subscription : candidates) {
+        if (subscription.getMatcher().test(block)) {
+          subscription.offer(hash, block, true);
+        }
+      }
+    }
+  }
+
+  /**
+   * One subscriber's standing query, and the blocks waiting to be sent to it.
+   * Run whenever the stream becomes ready, to send what's waiting.
+   * @author Isaac Sheff
+   */
+  private class Subscription implements Runnable {
+    /** The Block oneof case the query asks for (which set of subscriptions this is in). */
+    private final Block.BlocktypeOneofCase type;
+
+    /** The compiled query. */
+    private final CompiledQuery matcher;
+
+    /**
+     * The hashes of all blocks offered so far, while existing blocks are being queued (as a block stored just as we
+     *  subscribed may be offered twice). Null otherwise: each new block is offered once.
+     */
+    private Set<Hash> offered;
+
+    /** The stream to send blocks to. */
+    private final StreamObserver<WilburQueryPageResponse> responseObserver;
+
+    /** Responses (for matching blocks) waiting to be sent. */
+    private final Queue<WilburQueryPageResponse> backlog;
+
+    /** How many of the waiting blocks don't count against maxBacklog (existing blocks, which are sent first). */
+    private int excused;
+
+    /** Whether this subscription has ended. */
+    private boolean done;
+
+    /**
+     * @param type The Block oneof case the query asks for.
+     * @param matcher The compiled query.
+     * @param deduplicate whether to keep track of blocks offered, so none is sent twice.
+     * @param responseObserver The stream to send blocks to.
+     */
+    Subscription(final Block.BlocktypeOneofCase type,
+                 final CompiledQuery matcher,
+                 final boolean deduplicate,
+                 final StreamObserver<WilburQueryPageResponse> responseObserver) {
+      this.type = type;
+      this.matcher = matcher;
+      this.offered = deduplicate ? new HashSet<Hash>() : null;
+      this.responseObserver = responseObserver;
+      this.backlog = new ArrayDeque<WilburQueryPageResponse>();
+      this.excused = 0;
+      this.done = false;
+    }
+
+    /** @return The Block oneof case the query asks for. */
+    Block.BlocktypeOneofCase getType() {return type;}
+
+    /** @return The compiled query. */
+    CompiledQuery getMatcher() {return matcher;}
+
+    /** @return whether the stream can take another response without buffering it. */
+    private boolean isReady() {
+      return !(responseObserver instanceof ServerCallStreamObserver) ||
+             ((ServerCallStreamObserver<WilburQueryPageResponse>) responseObserver).isReady();
+    }
+
+    /** All the existing blocks have been queued, so forget which blocks were offered. */
+    synchronized void existingQueued() {
+      offered = null;
+    }
+
+    /** Stop sending, and forget this subscription. */
+    synchronized void cancel() {
+      done = true;
+      backlog.clear();
+      offered = null;
+      final Set<Subscription> set = subscriptions.get(getType());
+      if (set != null) {
+        set.remove(this);
+      }
+    }
+
+    /**
+     * Queue a matching block to be sent, and send what we can.
+     * If too many are waiting (and the backlog is capped for this block), end the subscription with an error instead.
+     * Existing blocks aren't capped: there are only so many of them, and we've already got them in memory.
+     * @param hash the hash of the block
+     * @param block the block
+     * @param capped whether to end the subscription if this makes the backlog too long
+     */
+    synchronized void offer(final Hash hash, final Block block, final boolean capped) {
+      if (done || (offered != null && !offered.add(hash))) {
+        return;
+      }
+      backlog.add(WilburQueryPageResponse.newBuilder().setBlock(block).setCursor(hash).build());
+      if (!capped) {
+        ++excused;
+      } else if (backlog.size() - excused > maxBacklog) {
+        logger.log(Level.WARNING, "Ending a WilburQuery subscription with " + backlog.size() + " blocks unsent.");
+        cancel();
+        try {
+          responseObserver.onNext(WilburQueryPageResponse.newBuilder().
+            setErrorMessage("Subscription fell more than " + maxBacklog + " blocks behind.").build());
+          responseObserver.onCompleted();
+        } catch (RuntimeException e) { // this is on the thread storing the block, so don't throw.
+          logger.log(Level.FINE, "WilburQuery subscription already closed", e);
+        }
+        return;
+      }
+      run();
+    }
+
+    /**
+     * Send waiting blocks until the stream isn't ready, or there are none.
+     * If the stream has gone away, end the subscription (this may be on the thread storing a block, so it doesn't
+     *  throw).
+     */
+    @Override
+    public synchronized void run() {
+      try {
+        while (!done && !backlog.isEmpty() && isReady()) {
+          responseObserver.onNext(backlog.remove());
+          if (excused > 0) {
+            --excused;
+          }
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.FINE, "WilburQuery subscription closed", e);
+        cancel();
+      }
+    }
+  }
+}
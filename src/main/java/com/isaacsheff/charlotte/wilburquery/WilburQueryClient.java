@@ -1,15 +1,25 @@
 package com.isaacsheff.charlotte.wilburquery;
 
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.MultiGetInput;
+import com.isaacsheff.charlotte.proto.MultiGetResponse;
+import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.WilburQueryGrpc;
 import com.isaacsheff.charlotte.proto.WilburQueryGrpc.WilburQueryBlockingStub;
 import com.isaacsheff.charlotte.proto.WilburQueryGrpc.WilburQueryStub;
 import com.isaacsheff.charlotte.proto.WilburQueryInput;
+import com.isaacsheff.charlotte.proto.WilburQueryPageInput;
+import com.isaacsheff.charlotte.proto.WilburQueryPageResponse;
 import com.isaacsheff.charlotte.proto.WilburQueryResponse;
+import com.isaacsheff.charlotte.proto.WilburQuerySubscription;
 import com.isaacsheff.charlotte.yaml.Contact;
 
 import io.grpc.ManagedChannel;
@@ -91,4 +101,139 @@ public class WilburQueryClient {
   public WilburQueryResponse wilburQuery(final WilburQueryInput query) {
     return getBlockingStub().wilburQuery(query);
   }
+
+  /**
+   * Ask the server to stream the blocks it has matching the query, one per response.
+   * @param query the query object, with an optional limit and cursor
+   * @param responseObserver this thing's onNext will be called with each of the server's responses
+   */
+  public void wilburQueryStream(final WilburQueryPageInput query,
+                                final StreamObserver<WilburQueryPageResponse> responseObserver) {
+    getAsyncStub().wilburQueryStream(query, responseObserver);
+  }
+
+  /**
+   * Ask the server to stream the blocks it has matching the query, one per response.
+   * The server finds each block only as this iterator asks for it.
+   * @param query the query object, with an optional limit and cursor
+   * @return the server's responses
+   */
+  public Iterator<WilburQueryPageResponse> wilburQueryStream(final WilburQueryPageInput query) {
+    return getBlockingStub().wilburQueryStream(query);
+  }
+
+  /**
+   * Subscribe to a standing query: the server streams each block it stores which matches the query, until this
+   *  client cancels the call (or the server ends it, with an error message, if we fall too far behind).
+   * @param fillInTheBlank the fill-in-the-blank query
+   * @param includeExisting whether to have the matching blocks the server already has streamed first
+   * @param responseObserver this thing's onNext will be called with a response for each matching block
+   */
+  public void subscribe(final Block fillInTheBlank,
+                        final boolean includeExisting,
+                        final StreamObserver<WilburQueryPageResponse> responseObserver) {
+    getAsyncStub().wilburQuerySubscribe(WilburQuerySubscription.newBuilder().
+                                          setFillInTheBlank(fillInTheBlank).
+                                          setIncludeExisting(includeExisting).build(),
+                                        responseObserver);
+  }
+
+  /**
+   * Ask the server for many blocks by reference, in one call.
+   * The server streams back a response for each block as it finds it, and then, if any are still missing after
+   *  waiting up to waitMilliseconds for them, one listing their hashes.
+   * @param references the blocks to fetch
+   * @param waitMilliseconds how long the server should wait for blocks it doesn't have yet (0 means don't)
+   * @param responseObserver this thing's onNext will be called with each of the server's responses
+   */
+  public void multiGet(final Iterable<Reference> references,
+                       final long waitMilliseconds,
+                       final StreamObserver<MultiGetResponse> responseObserver) {
+    getAsyncStub().multiGet(MultiGetInput.newBuilder().
+                              addAllReference(references).
+                              setWaitMilliseconds(waitMilliseconds).build(),
+                            responseObserver);
+  }
+
+  /**
+   * Ask the server for many blocks by reference, in one call, and wait for all the responses.
+   * @param references the blocks to fetch
+   * @param waitMilliseconds how long the server should wait for blocks it doesn't have yet (0 means don't)
+   * @return each of the server's responses: one per block found, then maybe one listing the hashes of those missing
+   */
+  public Iterator<MultiGetResponse> multiGet(final Iterable<Reference> references, final long waitMilliseconds) {
+    return getBlockingStub().multiGet(MultiGetInput.newBuilder().
+                                        addAllReference(references).
+                                        setWaitMilliseconds(waitMilliseconds).build());
+  }
+
+  /**
+   * Iterate over all the blocks the server has matching a fill-in-the-blank query.
+   * They're fetched a page at a time: when one page runs out, the next is requested from the cursor of the last
+   *  block received, so no single response (or page) need hold every match.
+   * An error message from the server is logged, and ends the iteration.
+   * @param fillInTheBlank the fill-in-the-blank query
+   * @param pageSize the most blocks to request in each page (must be positive)
+   * @return an iterator over the matching blocks
+   */
+  public Iterator<Block> wilburQueryIterator(final Block fillInTheBlank, final int pageSize) {
+    final WilburQueryInput query = WilburQueryInput.newBuilder().setFillInTheBlank(fillInTheBlank).build();
+    return new Iterator<Block>() {
+      /** The current page of responses. */
+      private Iterator<WilburQueryPageResponse> page = null;
+
+      /** How many blocks we've had from the current page. */
+      private int pageCount = 0;
+
+      /** The cursor of the last block received, or null if we haven't had any. */
+      private Hash cursor = null;
+
+      /** The next block, if we've received it already. */
+      private Block next = null;
+
+      /** Whether we've had everything (or an error). */
+      private boolean done = false;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && !done) {
+          if (page == null) {
+            final WilburQueryPageInput.Builder builder = WilburQueryPageInput.newBuilder().
+              setQuery(query).
+              setLimit(pageSize);
+            if (cursor != null) {
+              builder.setCursor(cursor);
+            }
+            page = wilburQueryStream(builder.build());
+            pageCount = 0;
+          }
+          if (!page.hasNext()) {
+            done = (pageCount < pageSize); // a short page means there's no more
+            page = null;
+          } else {
+            final WilburQueryPageResponse response = page.next();
+            if (!response.getErrorMessage().isEmpty()) {
+              logger.log(Level.WARNING, "WilburQuery stream error: " + response.getErrorMessage());
+              done = true;
+            } else {
+              ++pageCount;
+              cursor = response.getCursor();
+              next = response.getBlock();
+            }
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public Block next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Block block = next;
+        next = null;
+        return block;
+      }
+    };
+  }
 }
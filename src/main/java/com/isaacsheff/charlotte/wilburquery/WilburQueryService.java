@@ -1,9 +1,17 @@
 package com.isaacsheff.charlotte.wilburquery;
 
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,11 +21,22 @@ import com.google.protobuf.MessageOrBuilder;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.MultiGetInput;
+import com.isaacsheff.charlotte.proto.MultiGetResponse;
+import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.WilburQueryGrpc;
 import com.isaacsheff.charlotte.proto.WilburQueryInput;
+import com.isaacsheff.charlotte.proto.WilburQueryPageInput;
+import com.isaacsheff.charlotte.proto.WilburQueryPageResponse;
 import com.isaacsheff.charlotte.proto.WilburQueryResponse;
+import com.isaacsheff.charlotte.proto.WilburQuerySubscription;
 import com.isaacsheff.charlotte.wilbur.WilburService;
 
+import io.grpc.Context;
+import io.grpc.Context.CancellationListener;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 /**
@@ -36,6 +55,15 @@ public class WilburQueryService extends WilburQueryGrpc.WilburQueryImplBase {
   /** The CharlotteNodeService running on the same server as this WilburQuery service (there must be one). */
   private final CharlotteNodeService node;
 
+  /** Secondary indexes over the node's blocks, for answering fill-in-the-blank queries. */
+  private final QueryIndex queryIndex;
+
+  /** Cached (and kept up to date) results of recent fill-in-the-blank queries. */
+  private final QueryCache queryCache;
+
+  /** Standing queries, each streaming newly stored matching blocks to its subscriber. */
+  private final QuerySubscriptions subscriptions;
+
   /**
    * Run as a main class with an arg specifying a config file name to run a WilburQuery server.
    * creates and runs a new CharlotteNode which runs a WilburQuery Service and a CharlotteNodeService, in a new thread.
@@ -75,14 +103,50 @@ public class WilburQueryService extends WilburQueryGrpc.WilburQueryImplBase {
   }
 
 
-  /** @param node The CharlotteNodeService running on the same server as this Wilbur service (there must be one). */
-  public WilburQueryService(final CharlotteNodeService node) {
+  /**
+   * @param node The CharlotteNodeService running on the same server as this Wilbur service (there must be one).
+   * @param indexes which secondary indexes to keep for fill-in-the-blank queries (see QueryIndex)
+   * @param cacheBytes the rough size limit, in bytes, of the fill-in-the-blank query result cache (see QueryCache)
+   */
+  public WilburQueryService(final CharlotteNodeService node,
+                            final Set<QueryIndex.Kind> indexes,
+                            final long cacheBytes) {
     this.node = node;
+    this.queryIndex = new QueryIndex(node, indexes);
+    this.queryCache = new QueryCache(node, cacheBytes);
+    this.subscriptions = new QuerySubscriptions(node);
+  }
+
+  /**
+   * Uses a query result cache of QueryCache.DEFAULT_MAX_BYTES.
+   * @param node The CharlotteNodeService running on the same server as this Wilbur service (there must be one).
+   * @param indexes which secondary indexes to keep for fill-in-the-blank queries (see QueryIndex)
+   */
+  public WilburQueryService(final CharlotteNodeService node, final Set<QueryIndex.Kind> indexes) {
+    this(node, indexes, QueryCache.DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Keeps all kinds of secondary index for fill-in-the-blank queries, and a query result cache of
+   *  QueryCache.DEFAULT_MAX_BYTES.
+   * @param node The CharlotteNodeService running on the same server as this Wilbur service (there must be one).
+   */
+  public WilburQueryService(final CharlotteNodeService node) {
+    this(node, EnumSet.allOf(QueryIndex.Kind.class));
   }
 
   /** @return The CharlotteNodeService running on the same server as this WilburQuery service (there must be one). */
   public CharlotteNodeService getNode() { return node; }
 
+  /** @return Secondary indexes over the node's blocks, for answering fill-in-the-blank queries. */
+  public QueryIndex getQueryIndex() {return queryIndex;}
+
+  /** @return Cached (and kept up to date) results of recent fill-in-the-blank queries. */
+  public QueryCache getQueryCache() {return queryCache;}
+
+  /** @return Standing queries, each streaming newly stored matching blocks to its subscriber. */
+  public QuerySubscriptions getSubscriptions() {return subscriptions;}
+
   /**
    * Given that they each represent non-repeated elements of a
    *  protobuf field described by fieldDescriptor, does potential
@@ -240,14 +304,8 @@ public class WilburQueryService extends WilburQueryGrpc.WilburQueryImplBase {
     }
 
     // For requests by fillInTheBlank
-    // Parallelize this loop?
-    // This is a naive linear search. There is probably a way to do better.
-    for (Block block : getNode().getBlockMap().values()) {
-      if (fillInTheBlankMatch(request.getFillInTheBlank(), block)) {
-        builder.addBlock(block);
-      }
-    }
-    return builder.build();
+    // Repeated queries come from the QueryCache. Otherwise, the QueryIndex narrows down the candidates, if it can.
+    return builder.addAllBlock(getQueryCache().query(request.getFillInTheBlank(), getQueryIndex()::query)).build();
   }
 
   /**
@@ -264,4 +322,223 @@ public class WilburQueryService extends WilburQueryGrpc.WilburQueryImplBase {
     responseObserver.onNext(wilburQuery(request));
     responseObserver.onCompleted();
   }
+
+  /**
+   * Called when an rpc comes in over the wire requesting a stream of query results.
+   * Matching blocks are streamed one per response, in QueryIndex.HASH_ORDER, each with a cursor (its hash) from
+   *  which a later request can resume.
+   * Blocks are only matched as fast as the client takes them (gRPC flow control), up to the request's limit.
+   * An erroneous request gets a single response with an error message.
+   * @param request the query, with an optional limit and cursor
+   * @param responseObserver this observer will get a response for each matching block
+   */
+  @Override
+  public void wilburQueryStream(final WilburQueryPageInput request,
+                                final StreamObserver<WilburQueryPageResponse> responseObserver) {
+    final WilburQueryInput query = request.getQuery();
+    if (query.hasReference()) { // there's at most one block by reference, so the non-streaming version will do
+      final WilburQueryResponse response = wilburQuery(query);
+      if (response.getErrorMessage().isEmpty()) {
+        for (Block block : response.getBlockList()) {
+          responseObserver.onNext(WilburQueryPageResponse.newBuilder().
+            setBlock(block).
+            setCursor(query.getReference().getHash()).build());
+        }
+      } else {
+        responseObserver.onNext(WilburQueryPageResponse.newBuilder().
+          setErrorMessage(response.getErrorMessage()).build());
+      }
+      responseObserver.onCompleted();
+      return;
+    }
+    if (!query.hasFillInTheBlank()) {
+      responseObserver.onNext(WilburQueryPageResponse.newBuilder().
+        setErrorMessage("Request has neither Reference nor FillInTheBlank.").build());
+      responseObserver.onCompleted();
+      return;
+    }
+    final PageStreamer streamer = new PageStreamer(
+        getQueryIndex().matches(query.getFillInTheBlank(), request.hasCursor() ? request.getCursor() : null),
+        (request.getLimit() == 0) ? Long.MAX_VALUE : request.getLimit(),
+        responseObserver);
+    if (responseObserver instanceof ServerCallStreamObserver) { // as it is, when gRPC calls this
+      final ServerCallStreamObserver<WilburQueryPageResponse> serverObserver =
+        (ServerCallStreamObserver<WilburQueryPageResponse>) responseObserver;
+      serverObserver.setOnCancelHandler(streamer::cancel);
+      serverObserver.setOnReadyHandler(streamer);
+    }
+    streamer.run();
+  }
+
+  /**
+   * Called when an rpc comes in over the wire subscribing to a standing query.
+   * Each block stored from now on which matches the query is streamed back, one per response, until the client
+   *  cancels (see QuerySubscriptions). If the request says to, matching blocks already stored are streamed first.
+   * A request without a query gets a single response with an error message.
+   * @param request the query, and whether to include blocks already stored
+   * @param responseObserver this observer will get a response for each matching block
+   */
+  @Override
+  public void wilburQuerySubscribe(final WilburQuerySubscription request,
+                                   final StreamObserver<WilburQueryPageResponse> responseObserver) {
+    if (!request.hasFillInTheBlank()) {
+      responseObserver.onNext(WilburQueryPageResponse.newBuilder().
+        setErrorMessage("Subscription has no FillInTheBlank.").build());
+      responseObserver.onCompleted();
+      return;
+    }
+    getSubscriptions().subscribe(
+      request.getFillInTheBlank(),
+      request.getIncludeExisting() ? () -> getQueryIndex().query(request.getFillInTheBlank()) : null,
+      responseObserver);
+  }
+
+  /**
+   * Called when an rpc comes in over the wire requesting many blocks by reference.
+   * Each block we have is streamed back right away, one per response.
+   * If the request says to wait, the rest are streamed back as they arrive, until they've all arrived, the wait is
+   *  up, or the call is cancelled. No thread waits meanwhile.
+   * Then, if any are still missing, a last response lists their hashes.
+   * A request with a reference without a hash gets a single response with an error message.
+   * @param request the references, and how long to wait
+   * @param responseObserver this observer will get a response for each block, and maybe one listing those missing
+   */
+  @Override
+  public void multiGet(final MultiGetInput request, final StreamObserver<MultiGetResponse> responseObserver) {
+    final Set<Hash> hashes = new LinkedHashSet<Hash>();
+    for (Reference reference : request.getReferenceList()) {
+      if (!reference.hasHash()) {
+        responseObserver.onNext(MultiGetResponse.newBuilder().
+          setErrorMessage("Request has a Reference with no Hash: " + reference).build());
+        responseObserver.onCompleted();
+        return;
+      }
+      hashes.add(reference.getHash());
+    }
+    final Set<Hash> missing = new LinkedHashSet<Hash>();
+    for (Hash hash : hashes) {
+      final Block block = getNode().getBlockMap().get(hash);
+      if (block == null) {
+        missing.add(hash);
+      } else {
+        responseObserver.onNext(MultiGetResponse.newBuilder().setBlock(block).build());
+      }
+    }
+    if (missing.isEmpty() || request.getWaitMilliseconds() == 0) {
+      if (!missing.isEmpty()) {
+        responseObserver.onNext(MultiGetResponse.newBuilder().addAllMissing(missing).build());
+      }
+      responseObserver.onCompleted();
+      return;
+    }
+
+    // Wait (without a thread) for the missing blocks. Everything from here on is synchronized on missing.
+    final List<CompletableFuture<Block>> arrivals = new ArrayList<CompletableFuture<Block>>(missing.size());
+    for (Hash hash : new ArrayList<Hash>(missing)) {
+      final CompletableFuture<Block> arrival = getNode().getBlockFuture(hash);
+      arrivals.add(arrival);
+      arrival.thenAccept(block -> {
+        synchronized (missing) {
+          if (missing.remove(hash)) { // once we've sent the last response, missing is cleared
+            try {
+              responseObserver.onNext(MultiGetResponse.newBuilder().setBlock(block).build());
+            } catch (StatusRuntimeException e) {
+              logger.log(Level.INFO, "Could not send a MultiGet response", e);
+            }
+          }
+        }
+      });
+    }
+    final CompletableFuture<Void> done =
+      CompletableFuture.allOf(arrivals.toArray(new CompletableFuture<?>[arrivals.size()])).
+        completeOnTimeout(null, request.getWaitMilliseconds(), TimeUnit.MILLISECONDS);
+
+    // If the call is cancelled (or its deadline passes) before then, stop waiting.
+    final Context context = Context.current();
+    final CancellationListener onCancel = cancelledContext -> done.cancel(false);
+    context.addListener(onCancel, Runnable::run);
+
+    done.whenComplete((v, throwable) -> {
+      context.removeListener(onCancel);
+      for (CompletableFuture<Block> arrival : arrivals) {
+        arrival.cancel(false); // release any still waiting in the block map
+      }
+      synchronized (missing) {
+        final List<Hash> stillMissing = new ArrayList<Hash>(missing);
+        missing.clear();
+        if (context.isCancelled()) {
+          return;
+        }
+        try {
+          if (!stillMissing.isEmpty()) {
+            responseObserver.onNext(MultiGetResponse.newBuilder().addAllMissing(stillMissing).build());
+          }
+          responseObserver.onCompleted();
+        } catch (StatusRuntimeException e) {
+          logger.log(Level.INFO, "Could not finish a MultiGet response", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sends matching blocks to a stream for as long as the stream is ready for them.
+   * Run once to start, and again whenever the stream becomes ready again.
+   * @author Isaac Sheff
+   */
+  private static class PageStreamer implements Runnable {
+    /** The matching blocks, found as they're needed. */
+    private final Iterator<Block> matches;
+
+    /** The stream to send them to. */
+    private final StreamObserver<WilburQueryPageResponse> responseObserver;
+
+    /** How many more blocks we may send. */
+    private long remaining;
+
+    /** Whether we're done with this stream (finished, or cancelled). */
+    private boolean done;
+
+    /**
+     * @param matches The matching blocks, found as they're needed.
+     * @param limit How many blocks we may send.
+     * @param responseObserver The stream to send them to.
+     */
+    PageStreamer(final Iterator<Block> matches,
+                 final long limit,
+                 final StreamObserver<WilburQueryPageResponse> responseObserver) {
+      this.matches = matches;
+      this.remaining = limit;
+      this.responseObserver = responseObserver;
+      this.done = false;
+    }
+
+    /** @return whether the stream can take another response without buffering it. */
+    private boolean isReady() {
+      return !(responseObserver instanceof ServerCallStreamObserver) ||
+             ((ServerCallStreamObserver<WilburQueryPageResponse>) responseObserver).isReady();
+    }
+
+    /** Stop sending: the client has gone away. */
+    synchronized void cancel() {
+      done = true;
+    }
+
+    /** Send matching blocks until the stream isn't ready, or we run out (in which case, complete the stream). */
+    @Override
+    public synchronized void run() {
+      while (!done && isReady()) {
+        if (remaining <= 0 || !matches.hasNext()) {
+          done = true;
+          responseObserver.onCompleted();
+          return;
+        }
+        final Block block = matches.next();
+        responseObserver.onNext(WilburQueryPageResponse.newBuilder().
+          setBlock(block).
+          setCursor(sha3Hash(block)).build());
+        --remaining;
+      }
+    }
+  }
 }
@@ -16,6 +16,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 import org.bouncycastle.openssl.PEMException;
 import org.bouncycastle.openssl.PEMParser;
@@ -214,6 +215,9 @@ public class Config extends Contact {
       }
       PrivateKeyInfo privateKeyInfo = (PrivateKeyInfo) object;
       JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+      if (EdECObjectIdentifiers.id_Ed25519.equals(privateKeyInfo.getPrivateKeyAlgorithm().getAlgorithm())) {
+        converter.setProvider("BC"); // the default providers may not know about Ed25519 keys
+      }
       privateKey = converter.getPrivateKey(privateKeyInfo);
     } catch (PEMException e) {
       logger.log(Level.SEVERE, "Private Key file could not be parsed as PEM", e);
@@ -9,6 +9,7 @@ import java.util.logging.Logger;
 
 import javax.net.ssl.SSLException;
 
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.openssl.PEMException;
@@ -273,6 +274,9 @@ public class Contact {
     try {
       SubjectPublicKeyInfo publicKeyInfo = getHolder().getSubjectPublicKeyInfo();
       JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+      if (EdECObjectIdentifiers.id_Ed25519.equals(publicKeyInfo.getAlgorithm().getAlgorithm())) {
+        converter.setProvider("BC"); // the default providers may not know about Ed25519 keys
+      }
       publicKey = converter.getPublicKey(publicKeyInfo);
     } catch (PEMException e) {
       logger.log(Level.SEVERE, "X509 cert file could not be parsed as PEM", e);
@@ -3,6 +3,7 @@ package com.xinwenwang.hetcons;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
 import com.isaacsheff.charlotte.node.HashUtil;
 import com.isaacsheff.charlotte.node.SignatureUtil;
+import com.isaacsheff.charlotte.node.SignatureVerificationService;
 import com.isaacsheff.charlotte.proto.*;
 import com.isaacsheff.charlotte.yaml.Config;
 import com.isaacsheff.charlotte.yaml.Contact;
@@ -293,7 +294,7 @@ public class HetconsParticipantService extends CharlotteNodeService {
     }
 
     private boolean verifySignature(HetconsBlock block) {
-        return SignatureUtil.checkSignature(block.getHetconsMessage(), block.getSig());
+        return SignatureVerificationService.getDefault().check(block.getHetconsMessage(), block.getSig());
     }
 
     /*
@@ -58,8 +58,10 @@ public class HetconsUtil {
         String ret = id.toString();
         if (id.hasHash()) {
             ret = id.getHash().getSha3().toStringUtf8();
-        } else if (id.hasPublicKey()) {
+        } else if (id.hasPublicKey() && id.getPublicKey().hasEllipticCurveP256()) {
             ret = id.getPublicKey().getEllipticCurveP256().getByteString().toStringUtf8();
+        } else if (id.hasPublicKey()) {
+            ret = id.getPublicKey().toByteString().toStringUtf8();
         }
 //        ret = bytes2Hex(ret.getBytes());
         cryptoString.put(id, ret);
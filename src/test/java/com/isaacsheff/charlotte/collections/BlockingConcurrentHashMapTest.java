@@ -1,7 +1,10 @@
 package com.isaacsheff.charlotte.collections;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import com.isaacsheff.charlotte.collections.BlockingConcurrentHashMap;
@@ -99,4 +102,18 @@ class BlockingConcurrentHashMapTest {
     t2.join();
   }
 
+  /** Test futureGet, both when the value is already there, and when it arrives later. */
+  @Test
+  void futureGet() {
+    final CompletableFuture<String> early = testMap.futureGet("key");
+    final CompletableFuture<String> cancelled = testMap.futureGet("key");
+    assertFalse(early.isDone(), "futureGet should not be done before a value is put");
+    cancelled.cancel(false);
+    assertEquals(null, testMap.putIfAbsent("key", "value"), "putIfAbsent with fresh key should return null");
+    assertEquals("value", early.getNow(null), "futureGet should be completed with the first value set");
+    assertTrue(cancelled.isCancelled(), "a cancelled future should stay cancelled");
+    assertEquals("value", testMap.futureGet("key").getNow(null),
+                 "futureGet should be done right away for a value already in the map");
+  }
+
 } 
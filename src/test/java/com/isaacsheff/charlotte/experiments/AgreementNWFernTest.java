@@ -0,0 +1,171 @@
+package com.isaacsheff.charlotte.experiments;
+
+import static com.isaacsheff.charlotte.experiments.AgreementNWFern.distinctSignersAndIndices;
+import static com.isaacsheff.charlotte.experiments.AgreementNWFern.sufficientAvailability;
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
+import static com.isaacsheff.charlotte.node.SignatureUtil.signBytes;
+import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.wilbur.ErasureCodedStore;
+import com.isaacsheff.charlotte.yaml.Config;
+import com.isaacsheff.charlotte.yaml.JsonConfig;
+import com.isaacsheff.charlotte.yaml.JsonContact;
+
+/**
+ * Does an AgreementNWFern count fragments of a block as available only when they're held by distinct Wilburs?
+ * @author Isaac Sheff
+ */
+class AgreementNWFernTest {
+
+  /** how many Wilbur servers (and so how many fragments) **/
+  private static final int WILBUR_COUNT = 3;
+
+  /** how many fragments it takes to reconstruct the block **/
+  private static final int K = 2;
+
+  /** the participants map to be used in config files. will be set in setup() **/
+  private static Map<String, JsonContact> participants;
+
+  /** the names of the Wilbur servers. will be set in setup() **/
+  private static List<String> wilburs;
+
+  /** The experiment config for the fern judging availability. */
+  private JsonExperimentConfig config;
+
+  /** The fern's local node, which has received the fragments and attestations. */
+  private CharlotteNodeService node;
+
+  /** The keys of each Wilbur server. */
+  private List<KeyPair> keys;
+
+  /** The block fragmented. */
+  private Block block;
+
+  /** The fragments of the block, in order of index. */
+  private List<Block> fragments;
+
+  /**
+   * Set stuff up before running any tests in this class.
+   * In this case, generate some crypto key files, and participants map for a config.
+   * participant0 is the fern, and the rest are Wilburs.
+   */
+  @BeforeAll
+  static void setup() {
+    participants = new HashMap<String, JsonContact>(WILBUR_COUNT + 1);
+    wilburs = new ArrayList<String>(WILBUR_COUNT);
+    for (int i = 0; i <= WILBUR_COUNT; ++i) {
+      generateKeyFiles("src/test/resources/server" + i + ".pem",
+                       "src/test/resources/private-key" + i + ".pem",
+                       "localhost",
+                       "127.0.0.1");
+      participants.put("participant" + i, new JsonContact("src/test/resources/server" + i + ".pem",
+                                                          "localhost",
+                                                          getFreshPort()));
+      if (i > 0) {
+        wilburs.add("participant" + i);
+      }
+    }
+  }
+
+  /** Set stuff up before running each test in this class. */
+  @BeforeEach
+  void init() {
+    config = new JsonExperimentConfig(List.of("participant0"), wilburs, 1, 1,
+                                      "src/test/resources/private-key0.pem", "participant0", participants, 100);
+    node = new CharlotteNodeService(new Config(config, Paths.get(".")));
+    keys = new ArrayList<KeyPair>(WILBUR_COUNT);
+    for (int i = 1; i <= WILBUR_COUNT; ++i) {
+      keys.add(new Config(new JsonConfig("src/test/resources/private-key" + i + ".pem", "participant" + i,
+                                         participants),
+                          Paths.get(".")).getKeyPair());
+    }
+    block = Block.newBuilder().setStr("a block worth storing in fragments").build();
+    fragments = ErasureCodedStore.fragment(block, K, WILBUR_COUNT);
+    for (Block fragment : fragments) {
+      node.storeNewBlock(fragment);
+    }
+  }
+
+  /**
+   * Have a Wilbur server attest to a fragment, and have the fern's node receive the attestation.
+   * @param key the Wilbur server's keys
+   * @param fragment the fragment
+   * @return the hash of the attestation
+   */
+  private Hash attest(final KeyPair key, final Block fragment) {
+    final StoreForever storeForever =
+      StoreForever.newBuilder().addBlock(Reference.newBuilder().setHash(sha3Hash(fragment))).build();
+    final Block attestation = Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+                                setSignedStoreForever(SignedStoreForever.newBuilder().
+                                  setStoreForever(storeForever).
+                                  setSignature(signBytes(key, storeForever)))).build();
+    node.storeNewBlock(attestation);
+    return sha3Hash(attestation);
+  }
+
+  /** Test whether fragments held by distinct Wilburs count as copies. */
+  @Test
+  void distinctWilburs() {
+    final Reference.Builder reference = Reference.newBuilder().setHash(sha3Hash(block));
+    for (int i = 0; i < WILBUR_COUNT; ++i) {
+      reference.addAvailabilityAttestations(attest(keys.get(i), fragments.get(i)));
+    }
+    // 3 Wilburs, any 2 of which reconstruct it, count as 2 copies
+    assertTrue(sufficientAvailability(config, node, 1, reference.build()),
+               "fragments held by distinct Wilburs should be sufficiently available");
+  }
+
+  /** Test whether every fragment held by one Wilbur counts as no more than that Wilbur. */
+  @Test
+  void oneWilbur() {
+    final Reference.Builder reference = Reference.newBuilder().setHash(sha3Hash(block));
+    for (Block fragment : fragments) {
+      reference.addAvailabilityAttestations(attest(keys.get(0), fragment));
+    }
+    assertFalse(sufficientAvailability(config, node, 0, reference.build()),
+                "fragments all held by one Wilbur should not count as any copies");
+  }
+
+  /**
+   * @param name a name for the signer
+   * @return a CryptoId for the signer (not that anything's signed with it)
+   */
+  private static CryptoId signer(final String name) {
+    return CryptoId.newBuilder().setHash(sha3Hash(Block.newBuilder().setStr(name).build())).build();
+  }
+
+  /** Test whether signers are paired with indices as well as they can be, whatever order they're tried in. */
+  @Test
+  void pairing() {
+    final CryptoId first = signer("first");
+    final CryptoId second = signer("second");
+    assertEquals(2, distinctSignersAndIndices(Map.of(first, Set.of(0, 1), second, Set.of(0))),
+                 "the first can take index 1, leaving index 0 for the second");
+    assertEquals(1, distinctSignersAndIndices(Map.of(first, Set.of(0), second, Set.of(0))),
+                 "two signers of the same index count once");
+  }
+}
@@ -0,0 +1,224 @@
+package com.isaacsheff.charlotte.fern;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
+import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.experiments.AgreementNFern;
+import com.isaacsheff.charlotte.experiments.JsonExperimentConfig;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSegment;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSegment;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityPolicy;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationInput;
+import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
+import com.isaacsheff.charlotte.yaml.Config;
+import com.isaacsheff.charlotte.yaml.JsonConfig;
+import com.isaacsheff.charlotte.yaml.JsonContact;
+
+/**
+ * Does an AgreementChainFernService check every slot of a SignedChainSegment request before committing to it?
+ * Does a SignedChainSegment attestation prove a parent only in its own slot and chain?
+ * @author Isaac Sheff
+ */
+class AgreementChainFernServiceTest {
+
+  /** the participants map to be used in config files (just the fern). will be set in setup() **/
+  private static Map<String, JsonContact> participants;
+
+  /** The local node, which the fern under test signs and stores attestations with. */
+  private CharlotteNodeService node;
+
+  /** The fern under test. */
+  private AgreementChainFernService fern;
+
+  /**
+   * Set stuff up before running any tests in this class.
+   * In this case, generate some crypto key files, and participants map for a config.
+   */
+  @BeforeAll
+  static void setup() {
+    generateKeyFiles("src/test/resources/server.pem",
+                     "src/test/resources/private-key.pem",
+                     "localhost",
+                     "127.0.0.1");
+    participants = Map.of("fern", new JsonContact("src/test/resources/server.pem", "localhost", getFreshPort()));
+  }
+
+  /** Set stuff up before running each test in this class. */
+  @BeforeEach
+  void init() {
+    node = new CharlotteNodeService(new Config(
+      new JsonConfig("src/test/resources/private-key.pem", "fern", participants), Paths.get(".")));
+    fern = new AgreementChainFernService(node);
+  }
+
+  /**
+   * @param name the contents of a block
+   * @return the hash of that block
+   */
+  private static Hash hash(final String name) {
+    return sha3Hash(Block.newBuilder().setStr(name).build());
+  }
+
+  /**
+   * @param slot the slot number
+   * @param root the hash of the root of the chain
+   * @param block the hash of the block in this slot, or null for none
+   * @param parent the reference to the parent, or null for none
+   * @return a ChainSlot with these things in it
+   */
+  private static ChainSlot chainSlot(final long slot, final Hash root, final Hash block, final Reference parent) {
+    final ChainSlot.Builder builder =
+      ChainSlot.newBuilder().setSlot(slot).setRoot(Reference.newBuilder().setHash(root));
+    if (block != null) {
+      builder.setBlock(Reference.newBuilder().setHash(block));
+    }
+    if (parent != null) {
+      builder.setParent(parent);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @param parent the hash of the parent block
+   * @return a reference to the parent, with no attestations
+   */
+  private static Reference parent(final Hash parent) {
+    return Reference.newBuilder().setHash(parent).build();
+  }
+
+  /**
+   * @param chainSlots the ChainSlots of the segment
+   * @return a request for a SignedChainSegment attestation to these ChainSlots
+   */
+  private static RequestIntegrityAttestationInput segmentRequest(final ChainSlot... chainSlots) {
+    return RequestIntegrityAttestationInput.newBuilder().setPolicy(IntegrityPolicy.newBuilder().setFillInTheBlank(
+             IntegrityAttestation.newBuilder().setSignedChainSegment(SignedChainSegment.newBuilder().setChainSegment(
+               ChainSegment.newBuilder().addAllChainSlot(List.of(chainSlots)))))).build();
+  }
+
+  /**
+   * @param chainSlot the ChainSlot
+   * @return a request for a SignedChainSlot attestation to this ChainSlot
+   */
+  private static RequestIntegrityAttestationInput slotRequest(final ChainSlot chainSlot) {
+    return RequestIntegrityAttestationInput.newBuilder().setPolicy(IntegrityPolicy.newBuilder().setFillInTheBlank(
+             IntegrityAttestation.newBuilder().setSignedChainSlot(SignedChainSlot.newBuilder().
+               setChainSlot(chainSlot)))).build();
+  }
+
+  /**
+   * @param service the fern to ask
+   * @param request the request
+   * @return the fern's response
+   */
+  private static RequestIntegrityAttestationResponse ask(final AgreementChainFernService service,
+                                                         final RequestIntegrityAttestationInput request) {
+    return service.requestIntegrityAttestationAsync(request).join();
+  }
+
+  /**
+   * Assert that this response is an error.
+   * @param response the response
+   * @param why what was wrong with the request
+   */
+  private static void assertRefused(final RequestIntegrityAttestationResponse response, final String why) {
+    assertFalse(response.getErrorMessage().isEmpty(), why + " should be refused");
+    assertFalse(response.hasReference(), why + " should not be attested to");
+  }
+
+  /** Test whether a well-formed segment gets one SignedChainSegment attestation, covering every slot. */
+  @Test
+  void segmentAttested() {
+    final Hash root = hash("block 0");
+    final ChainSlot[] chainSlots = {chainSlot(0, root, root, null),
+                                    chainSlot(1, root, hash("block 1"), parent(root)),
+                                    chainSlot(2, root, hash("block 2"), parent(hash("block 1")))};
+    assertNull(fern.validSegment(ChainSegment.newBuilder().addAllChainSlot(List.of(chainSlots)).build()),
+               "a well-formed segment should be acceptable");
+    final RequestIntegrityAttestationResponse response = ask(fern, segmentRequest(chainSlots));
+    assertEquals("", response.getErrorMessage(), "a well-formed segment should be attested to");
+    final Block attestation = node.getBlockMap().get(response.getReference().getHash());
+    assertEquals(List.of(chainSlots),
+                 attestation.getIntegrityAttestation().getSignedChainSegment().getChainSegment().getChainSlotList(),
+                 "the attestation should cover the whole segment");
+    assertTrue(fern.getTips().contains(root, 2, hash("block 2")), "the last slot should be remembered");
+  }
+
+  /** Test whether segments with something wrong after the first slot are refused, and nothing is committed. */
+  @Test
+  void badSegmentsRefused() {
+    final Hash root = hash("block 0");
+    final ChainSlot slot0 = chainSlot(0, root, root, null);
+    final ChainSlot slot1 = chainSlot(1, root, hash("block 1"), parent(root));
+    assertRefused(ask(fern, segmentRequest(slot0, slot1, chainSlot(2, root, null, parent(hash("block 1"))))),
+                  "a later slot without a block");
+    assertRefused(ask(fern, segmentRequest(slot0, slot1, chainSlot(2, root, hash("block 2"), parent(root)))),
+                  "a later slot whose parent is not the block before it");
+    assertRefused(ask(fern, segmentRequest(slot0, chainSlot(1, hash("other"), hash("block 1"), parent(root)))),
+                  "a later slot on a different chain");
+    assertRefused(ask(fern, segmentRequest(slot0, slot1, chainSlot(3, root, hash("block 3"), parent(hash("block 1"))))),
+                  "a later slot out of order");
+    assertRefused(ask(fern, segmentRequest(slot1, chainSlot(2, root, hash("block 2"), parent(hash("block 1"))))),
+                  "a segment whose first parent this fern never attested to");
+    assertEquals("", ask(fern, segmentRequest(slot0, slot1)).getErrorMessage(),
+                 "refused segments should not have committed to anything");
+  }
+
+  /** Test whether a SignedChainSegment attestation proves a parent only in the slot before, on the same chain. */
+  @Test
+  void segmentProvesParent() {
+    final Hash root = hash("block 0");
+    final Hash attestation = ask(fern, segmentRequest(
+        chainSlot(0, root, root, null),
+        chainSlot(1, root, hash("block 1"), parent(root)),
+        chainSlot(2, root, hash("block 2"), parent(hash("block 1"))))).getReference().getHash();
+    final Reference provenParent = Reference.newBuilder().setHash(hash("block 2")).
+                                     addIntegrityAttestations(Reference.newBuilder().setHash(attestation)).build();
+
+    // same node (so same keys, and the attestation is known), but nothing remembered in its ChainTips
+    final AgreementChainFernService forgetful =
+      new AgreementChainFernService(node, new CommitmentStore(), new ChainTips());
+    assertRefused(ask(forgetful, slotRequest(chainSlot(4, root, hash("block 4"), provenParent))),
+                  "a parent attested to in a different slot");
+    assertRefused(ask(forgetful, slotRequest(chainSlot(3, hash("other"), hash("block 3"), provenParent))),
+                  "a parent attested to on a different chain");
+    assertEquals("", ask(forgetful, slotRequest(chainSlot(3, root, hash("block 3"), provenParent))).getErrorMessage(),
+                 "a parent attested to in the slot before, on the same chain, should be accepted");
+  }
+
+  /** Test whether an AgreementNFern applies its parent quorum rule to every slot of a segment. */
+  @Test
+  void nFernChecksEverySlot() {
+    final JsonExperimentConfig config = new JsonExperimentConfig(List.of("fern"), emptyList(), 1, 0,
+      "src/test/resources/private-key.pem", "fern", participants, 100);
+    final AgreementNFern nFern =
+      new AgreementNFern(config, new CharlotteNodeService(new Config(config, Paths.get("."))));
+    final Hash root = hash("block 0");
+    final ChainSlot slot0 = chainSlot(0, root, root, null);
+    assertRefused(ask(nFern, segmentRequest(slot0, chainSlot(1, root, hash("block 1"), parent(root)))),
+                  "a later slot whose parent no quorum of ferns has attested to");
+    assertEquals("", ask(nFern, segmentRequest(slot0)).getErrorMessage(),
+                 "a root alone should be attested to, since nothing was committed before");
+  }
+}
@@ -0,0 +1,50 @@
+package com.isaacsheff.charlotte.fern;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+
+/**
+ * Do ChainTips remember the last window slots of each chain, and nothing else?
+ * @author Isaac Sheff
+ */
+class ChainTipsTest {
+
+  /**
+   * @param name the contents of a block
+   * @return the hash of that block
+   */
+  private static Hash hash(final String name) {
+    return sha3Hash(Block.newBuilder().setStr(name).build());
+  }
+
+  /** Test whether blocks are remembered by chain and slot, within the window. */
+  @Test
+  void remembersWindow() {
+    final ChainTips tips = new ChainTips(4);
+    final Hash root = hash("root");
+    final Hash otherRoot = hash("other root");
+    for (long slot = 0; slot < 10; ++slot) {
+      tips.put(root, slot, hash("block " + slot));
+    }
+    for (long slot = 6; slot < 10; ++slot) {
+      assertEquals(hash("block " + slot), tips.get(root, slot), "slot " + slot + " is within the window");
+    }
+    assertNull(tips.get(root, 5), "slot 5 has fallen out of the window");
+    assertNull(tips.get(root, 10), "slot 10 was never put");
+    assertNull(tips.get(otherRoot, 9), "other chains are separate");
+    assertTrue(tips.contains(root, 9, hash("block 9")), "slot 9 holds block 9");
+    assertTrue(!tips.contains(root, 9, hash("block 8")), "slot 9 does not hold block 8");
+
+    tips.put(root, 5, hash("late"));
+    assertEquals(hash("block 9"), tips.get(root, 9), "an earlier slot should not replace a later one");
+    assertNull(tips.get(root, 5), "an earlier slot outside the window should not be remembered");
+    assertEquals(1, tips.getChainCount(), "only one chain has anything remembered");
+  }
+}
@@ -0,0 +1,197 @@
+package com.isaacsheff.charlotte.fern;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSegment;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSegment;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityPolicy;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.RequestIntegrityAttestationResponse;
+
+/**
+ * Does a CommitmentStore commit to one response per slot, and keep it across reopening and archiving?
+ * @author Isaac Sheff
+ */
+class CommitmentStoreTest {
+
+  /** A fresh log file for each test. */
+  private Path path;
+
+  /** The hash of the root of the chain. */
+  private Hash root;
+
+  /** The policies asked for so far, in order. */
+  private List<IntegrityPolicy> asked;
+
+  /** Makes a response for a policy (naming its block), and remembers that it was asked. */
+  private Function<IntegrityPolicy, CompletableFuture<RequestIntegrityAttestationResponse>> respond;
+
+  /**
+   * Set stuff up before running each test in this class.
+   * Makes a fresh log file, and a respond function which remembers what it's asked.
+   */
+  @BeforeEach
+  void init() throws IOException {
+    path = Files.createTempFile("CommitmentStoreTest", ".log");
+    path.toFile().deleteOnExit();
+    root = sha3Hash(Block.newBuilder().setStr("root").build());
+    asked = new ArrayList<IntegrityPolicy>();
+    respond = policy -> {
+      asked.add(policy);
+      return CompletableFuture.completedFuture(RequestIntegrityAttestationResponse.newBuilder().setReference(
+               policy.getFillInTheBlank().getSignedChainSlot().getChainSlot().getBlock()).build());
+    };
+  }
+
+  /**
+   * @param slot the slot number
+   * @param name the contents of the block to put in the slot
+   * @return a policy asking for that block in that slot
+   */
+  private IntegrityPolicy policy(final long slot, final String name) {
+    return IntegrityPolicy.newBuilder().setFillInTheBlank(IntegrityAttestation.newBuilder().setSignedChainSlot(
+             SignedChainSlot.newBuilder().setChainSlot(ChainSlot.newBuilder().
+               setRoot(Reference.newBuilder().setHash(root)).
+               setSlot(slot).
+               setBlock(Reference.newBuilder().setHash(sha3Hash(Block.newBuilder().setStr(name).build()))))))
+           .build();
+  }
+
+  /** Test whether a second commitment to a slot gets the first response, even after reopening the log. */
+  @Test
+  void commitOncePerSlot() throws IOException {
+    CommitmentStore store = new CommitmentStore(path);
+    final RequestIntegrityAttestationResponse first = store.commit(root, 3, policy(3, "a"), respond).join();
+    assertEquals(first, store.commit(root, 3, policy(3, "b"), respond).join(), "the slot is already committed");
+    assertEquals(1, asked.size(), "only one response should have been made");
+    store.close();
+
+    store = new CommitmentStore(path);
+    assertEquals(first, store.get(root, 3).join(), "the commitment should be read back from the log");
+    assertEquals(first, store.commit(root, 3, policy(3, "b"), respond).join(), "the slot is still committed");
+    assertEquals(1, asked.size(), "no new response should have been made");
+    assertNotEquals(first, store.commit(root, 4, policy(4, "b"), respond).join(), "other slots are still free");
+    store.close();
+  }
+
+  /** Test whether a request for a slot whose response is still being made gets it later, without waiting. */
+  @Test
+  void duplicatesDoNotWait() throws IOException {
+    final CommitmentStore store = new CommitmentStore(path);
+    final CompletableFuture<RequestIntegrityAttestationResponse> signing =
+      new CompletableFuture<RequestIntegrityAttestationResponse>();
+    final CompletableFuture<RequestIntegrityAttestationResponse> first =
+      store.commit(root, 2, policy(2, "a"), p -> signing);
+    final CompletableFuture<RequestIntegrityAttestationResponse> second =
+      store.commit(root, 2, policy(2, "b"), respond);
+    assertTrue(!first.isDone() && !second.isDone(), "neither response should be ready yet");
+    final RequestIntegrityAttestationResponse response = respond.apply(policy(2, "a")).join();
+    signing.complete(response);
+    assertEquals(response, first.join(), "the first request should get the response made");
+    assertEquals(response, second.join(), "the second request should get the same response");
+    assertEquals(List.of(policy(2, "a")), asked, "only one response should have been made");
+    store.close();
+  }
+
+  /** Test whether a logged policy whose response was never made is the one attested to next time. */
+  @Test
+  void finishesLoggedPolicy() throws IOException {
+    final CommitmentStore store = new CommitmentStore(path);
+    assertTrue(store.commit(root, 1, policy(1, "a"), p -> {throw new IllegalStateException("crash");}).
+                 handle((response, exception) -> exception != null).join(),
+               "a response which can't be made should fail");
+    final RequestIntegrityAttestationResponse response = store.commit(root, 1, policy(1, "b"), respond).join();
+    assertEquals(List.of(policy(1, "a")), asked, "the logged policy should be attested to, not the new one");
+    assertEquals(respond.apply(policy(1, "a")).join(), response, "the response should be for the logged policy");
+    store.close();
+  }
+
+  /**
+   * @param firstSlot the first slot number
+   * @param length the number of slots
+   * @param name the contents of the block to put in the first slot (the rest get this with their index appended)
+   * @return a policy asking for that segment
+   */
+  private IntegrityPolicy segment(final long firstSlot, final int length, final String name) {
+    final ChainSegment.Builder segment = ChainSegment.newBuilder();
+    for (int i = 0; i < length; ++i) {
+      segment.addChainSlot(policy(firstSlot + i, name + i).getFillInTheBlank().getSignedChainSlot().getChainSlot());
+    }
+    return IntegrityPolicy.newBuilder().setFillInTheBlank(IntegrityAttestation.newBuilder().setSignedChainSegment(
+             SignedChainSegment.newBuilder().setChainSegment(segment))).build();
+  }
+
+  /** Test whether a segment is committed all or nothing, and a repeat gets the same response. */
+  @Test
+  void commitSegment() throws IOException {
+    CommitmentStore store = new CommitmentStore(path);
+    store.commit(root, 7, policy(7, "single"), respond).join();
+    assertTrue(!store.commitSegment(root, 5, 4, segment(5, 4, "a"), respond).join().getErrorMessage().isEmpty(),
+               "a segment overlapping a committed slot should be refused");
+    assertNull(store.get(root, 5), "nothing in a refused segment should be committed");
+
+    final RequestIntegrityAttestationResponse first =
+      store.commitSegment(root, 10, 4, segment(10, 4, "a"), respond).join();
+    assertEquals(List.of(policy(7, "single"), segment(10, 4, "a")), asked, "one response per commitment");
+    for (int slot = 10; slot < 14; ++slot) {
+      assertEquals(first, store.get(root, slot).join(), "every slot in the segment should be committed");
+    }
+    assertEquals(first, store.commitSegment(root, 10, 4, segment(10, 4, "b"), respond).join(),
+                 "a repeated segment should get the same response");
+    assertTrue(!store.commitSegment(root, 12, 4, segment(12, 4, "b"), respond).join().getErrorMessage().isEmpty(),
+               "a segment overlapping another segment should be refused");
+    store.close();
+
+    store = new CommitmentStore(path);
+    assertEquals(first, store.commit(root, 13, policy(13, "c"), respond).join(), "segments should be logged");
+    assertEquals(first, store.commitSegment(root, 10, 4, segment(10, 4, "b"), respond).join(),
+                 "a repeated segment should get the same response after reopening the log");
+    assertEquals(2, asked.size(), "no new response should have been made");
+    store.close();
+  }
+
+  /** Test whether archived slots leave memory, but keep their commitments. */
+  @Test
+  void archive() throws IOException {
+    final CommitmentStore store = new CommitmentStore(path);
+    final List<RequestIntegrityAttestationResponse> responses = new ArrayList<RequestIntegrityAttestationResponse>();
+    for (int slot = 0; slot < 3 * CommitmentStore.PAGE_SIZE; ++slot) {
+      responses.add(store.commit(root, slot, policy(slot, "block " + slot), respond).join());
+    }
+    final long archived = store.archive(root, CommitmentStore.PAGE_SIZE + 5);
+    assertEquals(CommitmentStore.PAGE_SIZE + 5, archived, "every slot below the mark should be archived");
+    assertEquals(2 * CommitmentStore.PAGE_SIZE - 5, store.getResidentCount(), "the rest should be in memory");
+    for (int slot : new int[] {0, CommitmentStore.PAGE_SIZE - 1, CommitmentStore.PAGE_SIZE + 4}) {
+      assertEquals(responses.get(slot), store.commit(root, slot, policy(slot, "other"), respond).join(),
+                   "archived slot " + slot + " should still be committed");
+    }
+    assertNull(store.get(root, 3 * CommitmentStore.PAGE_SIZE), "slots never used should be free");
+    store.close();
+
+    final CommitmentStore memoryOnly = new CommitmentStore();
+    memoryOnly.commit(root, 0, policy(0, "a"), respond).join();
+    memoryOnly.archive(root, 1);
+    assertTrue(!memoryOnly.commit(root, 0, policy(0, "b"), respond).join().getErrorMessage().isEmpty(),
+               "without a log, archived slots should not be committed again");
+  }
+}
@@ -5,19 +5,26 @@ import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
 import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
 import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.FileNotFoundException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.node.TimestampNode;
 import com.isaacsheff.charlotte.proto.Block;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation;
 import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedTimestampedReferences;
@@ -155,7 +162,8 @@ public class TimestampFernTest {
     }
     assertTrue(null != response); // we should have found an integrity attestation
     
-    // check that the integrity attestation attests to this set of blocks.
+    // check that the integrity attestation attests to this set of blocks (under its Merkle root, as the client
+    //  checks by asking the fern for proof of each)
     assertTrue(null != client.checkIntegrityAttestation(
       RequestIntegrityAttestationInput.newBuilder().setPolicy(
         IntegrityPolicy.newBuilder().setFillInTheBlank(
@@ -165,6 +173,8 @@ public class TimestampFernTest {
               setSignature(Signature.newBuilder().setCryptoId(client.getContact().getCryptoId()))
       ))).build(),
       response));
+    assertTrue(client.checkIntegrityAttestation(response).getIntegrityAttestation().getSignedTimestampedReferences().
+                 getTimestampedReferences().hasMerkleRoot());
     // clientNode.stop();
     // fernNode.stop();
     // client.shutdown();
@@ -223,4 +233,171 @@ public class TimestampFernTest {
     // fernNode.stop();
   }
 
+
+  /**
+   * Launch a local service and a Fern node, mint 5 blocks (fewer
+   *  than a batch), and then, once they've lingered, there should be
+   *  exactly 1 integrity attestation in existence.
+   */
+  @Test
+  void timestampLinger() throws InterruptedException, FileNotFoundException {
+    Map<String, JsonContact> participants = new HashMap<String, JsonContact>(2);
+    participants.put("fern", new JsonContact("src/test/resources/server.pem",  "localhost", getFreshPort()));
+    participants.put("client", new JsonContact("src/test/resources/server2.pem", "localhost", getFreshPort()));
+    // start the fern server, with lingering on
+    final TimestampFern fern =
+      new TimestampFern(
+        new Config(new JsonConfig("src/test/resources/private-key.pem",  "fern", participants),
+              Paths.get(".")
+            ),
+        10
+        );
+    ((TimestampNode) fern.getNode()).setLingerMilliseconds(TimestampNode.DEFAULT_LINGER_MILLISECONDS);
+    final CharlotteNode fernNode = getFernNode(fern);
+    (new Thread(fernNode)).start();
+    // start the client's CharlotteNode
+    final CharlotteNodeService clientService = new CharlotteNodeService(
+        new Config(new JsonConfig("src/test/resources/private-key2.pem", "client", participants),
+        Paths.get(".")));
+    final CharlotteNode clientNode = new CharlotteNode(clientService);
+    (new Thread(clientNode)).start();
+
+    TimeUnit.SECONDS.sleep(1); // wait a second for the server to start up
+
+    for(int i = 0; i < 5; ++i) {
+      clientService.onSendBlocksInput(Block.newBuilder().setStr("lingering block contents " + i).build());
+    }
+
+    // wait for the blocks to linger (more than once, so a timestamp of the timestamp would show up)
+    TimeUnit.MILLISECONDS.sleep(3 * TimestampNode.DEFAULT_LINGER_MILLISECONDS + 1000);
+
+    int responseCount = 0;
+    for (Block block : clientService.getBlockMap().values()) {
+      if (block.hasIntegrityAttestation()) {
+        responseCount++;
+      }
+    }
+    // the lingering blocks should have been timestamped together, and the timestamp itself not timestamped
+    assertEquals(1, responseCount);
+  }
+
+
+  /**
+   * Launch a local service and a Fern node with a group window, and
+   *  request timestamps for 3 blocks at once: they should all get
+   *  the same integrity attestation, which timestamps all 3.
+   */
+  @Test
+  void timestampGroup() throws InterruptedException, FileNotFoundException {
+    Map<String, JsonContact> participants = new HashMap<String, JsonContact>(2);
+    participants.put("fern", new JsonContact("src/test/resources/server.pem",  "localhost", getFreshPort()));
+    participants.put("client", new JsonContact("src/test/resources/server2.pem", "localhost", getFreshPort()));
+    // start the fern server, with a long group window so all the requests share it
+    final TimestampFern fern =
+      new TimestampFern(
+        new Config(new JsonConfig("src/test/resources/private-key.pem",  "fern", participants),
+              Paths.get(".")
+            ),
+        10
+        );
+    fern.setGroupWindowMicroseconds(200000);
+    final CharlotteNode fernNode = getFernNode(fern);
+    (new Thread(fernNode)).start();
+    // start the client's CharlotteNode
+    final CharlotteNodeService clientService = new CharlotteNodeService(
+        new Config(new JsonConfig("src/test/resources/private-key2.pem", "client", participants),
+        Paths.get(".")));
+    final CharlotteNode clientNode = new CharlotteNode(clientService);
+    (new Thread(clientNode)).start();
+
+    TimeUnit.SECONDS.sleep(1); // wait a second for the server to start up
+
+    final TimestampClient client = new TimestampClient(clientService, clientService.getConfig().getContact("fern"));
+    final List<RequestIntegrityAttestationInput> requests = new ArrayList<RequestIntegrityAttestationInput>();
+    final List<CompletableFuture<RequestIntegrityAttestationResponse>> responses =
+      new ArrayList<CompletableFuture<RequestIntegrityAttestationResponse>>();
+    for (int i = 0; i < 3; ++i) {
+      final Block block = Block.newBuilder().setStr("grouped block contents " + i).build();
+      clientService.onSendBlocksInput(block);
+      requests.add(RequestIntegrityAttestationInput.newBuilder().setPolicy(
+        IntegrityPolicy.newBuilder().setFillInTheBlank(
+          IntegrityAttestation.newBuilder().setSignedTimestampedReferences(
+            SignedTimestampedReferences.newBuilder().
+              setTimestampedReferences(
+                TimestampedReferences.newBuilder().
+                  addBlock(Reference.newBuilder().setHash(sha3Hash(block)))).
+              setSignature(Signature.newBuilder().setCryptoId(client.getContact().getCryptoId()))
+      ))).build());
+      responses.add(fern.requestIntegrityAttestationAsync(requests.get(i)));
+    }
+
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(responses.get(0).join(), responses.get(i).join()); // everyone shares one attestation
+      assertTrue(null != client.checkIntegrityAttestation(requests.get(i), responses.get(i).join()));
+    }
+  }
+
+  /**
+   * Launch a local service and a Fern node with a long group window and a maximum group size of 2, and request
+   *  timestamps for 4 blocks at once: each pair should share an attestation, made as soon as the pair is there,
+   *  without waiting out the window.
+   */
+  @Test
+  void timestampFullGroups() throws InterruptedException, FileNotFoundException, ExecutionException,
+                                    TimeoutException {
+    Map<String, JsonContact> participants = new HashMap<String, JsonContact>(2);
+    participants.put("fern", new JsonContact("src/test/resources/server.pem",  "localhost", getFreshPort()));
+    participants.put("client", new JsonContact("src/test/resources/server2.pem", "localhost", getFreshPort()));
+    // start the fern server, with a group window far longer than this test waits, and no lingering timestamps
+    final TimestampFern fern =
+      new TimestampFern(
+        new Config(new JsonConfig("src/test/resources/private-key.pem",  "fern", participants),
+              Paths.get(".")
+            ),
+        10
+        );
+    ((TimestampNode) fern.getNode()).setLingerMilliseconds(0);
+    fern.setMaxGroupSize(2);
+    fern.setGroupWindowMicroseconds(TimeUnit.MINUTES.toMicros(10));
+    final CharlotteNode fernNode = getFernNode(fern);
+    (new Thread(fernNode)).start();
+    // start the client's CharlotteNode
+    final CharlotteNodeService clientService = new CharlotteNodeService(
+        new Config(new JsonConfig("src/test/resources/private-key2.pem", "client", participants),
+        Paths.get(".")));
+    final CharlotteNode clientNode = new CharlotteNode(clientService);
+    (new Thread(clientNode)).start();
+
+    TimeUnit.SECONDS.sleep(1); // wait a second for the server to start up
+
+    final TimestampClient client = new TimestampClient(clientService, clientService.getConfig().getContact("fern"));
+    final List<RequestIntegrityAttestationInput> requests = new ArrayList<RequestIntegrityAttestationInput>();
+    final List<CompletableFuture<RequestIntegrityAttestationResponse>> responses =
+      new ArrayList<CompletableFuture<RequestIntegrityAttestationResponse>>();
+    for (int i = 0; i < 4; ++i) {
+      final Block block = Block.newBuilder().setStr("full group block contents " + i).build();
+      clientService.onSendBlocksInput(block);
+      requests.add(RequestIntegrityAttestationInput.newBuilder().setPolicy(
+        IntegrityPolicy.newBuilder().setFillInTheBlank(
+          IntegrityAttestation.newBuilder().setSignedTimestampedReferences(
+            SignedTimestampedReferences.newBuilder().
+              setTimestampedReferences(
+                TimestampedReferences.newBuilder().
+                  addBlock(Reference.newBuilder().setHash(sha3Hash(block)))).
+              setSignature(Signature.newBuilder().setCryptoId(client.getContact().getCryptoId()))
+      ))).build());
+      responses.add(fern.requestIntegrityAttestationAsync(requests.get(i)));
+    }
+
+    for (int i = 0; i < 4; ++i) {
+      // full groups don't wait out the window
+      final RequestIntegrityAttestationResponse response = responses.get(i).get(10, TimeUnit.SECONDS);
+      assertEquals(responses.get(i - (i % 2)).join(), response); // each pair shares one attestation
+      final Block attestation = client.checkIntegrityAttestation(requests.get(i), response);
+      assertTrue(null != attestation);
+      assertEquals(2, attestation.getIntegrityAttestation().getSignedTimestampedReferences().
+                        getTimestampedReferences().getBlockCount()); // and no more
+    }
+    assertNotEquals(responses.get(0).join(), responses.get(2).join()); // the pairs are in different groups
+  }
 }
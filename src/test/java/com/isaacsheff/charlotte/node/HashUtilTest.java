@@ -49,4 +49,20 @@ class HashUtilTest {
     assertTrue(!HashUtil.sha3Hash(challenge).equals(HashUtil.sha3Hash(challenge3)),
                  "Hashes of non-equal things should not be equal");
   }
+
+  /** Hashing a message directly matches hashing its serialized bytes, even when it's bigger than the buffer. */
+  @Test
+  void streamedHashesMatch() {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 10000; ++i) {
+      builder.append("hello, world! ");
+    }
+    final Block bigChallenge = Block.newBuilder().setStr(builder.toString()).build();
+    for (Block block : new Block[] {challenge, bigChallenge}) {
+      assertEquals(HashUtil.sha3Hash(block.toByteArray()), HashUtil.sha3Hash(block),
+                   "Hashes of messages should be the hashes of their bytes");
+      assertEquals(HashUtil.sha3Hash(block.toByteArray()), HashUtil.sha3Hash(block.toByteString()),
+                   "Hashes of ByteStrings should be the hashes of their bytes");
+    }
+  }
 }
@@ -0,0 +1,114 @@
+package com.isaacsheff.charlotte.node;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Signature;
+import com.isaacsheff.charlotte.yaml.GenerateX509;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Do Merkle batch signatures verify properly (and only properly)?.
+ * If GenerateX509 or SignatureUtil are not working, this won't either.
+ * @author Isaac Sheff
+ */
+class MerkleBatchSignerTest {
+
+  /** Generate a keypair before each method call. */
+  private KeyPair keyPair;
+
+  /** Things to sign. */
+  private List<Block> blocks;
+
+  /**
+   * Set stuff up before running each test in this class.
+   * Generates a KeyPair to use, and some blocks to sign.
+   */
+  @BeforeEach
+  void init() {
+    keyPair = GenerateX509.generateDefaultKeyPair();
+    assumeTrue(null != keyPair);
+    blocks = new ArrayList<Block>();
+    for (int i = 0; i < 13; ++i) {
+      blocks.add(Block.newBuilder().setStr("block " + i).build());
+    }
+  }
+
+  /**
+   * Test Whether every member of a batch verifies, and only against its own block.
+   * If this is working correctly, it will generate log messages, but that's ok.
+   */
+  @Test
+  void verifyBatch() {
+    // a long window, so everything lands in one batch
+    final MerkleBatchSigner signer = new MerkleBatchSigner(keyPair, 200000, 1024);
+    final List<CompletableFuture<Signature>> futures = new ArrayList<CompletableFuture<Signature>>();
+    for (Block block : blocks) {
+      futures.add(signer.sign(block));
+    }
+    for (int i = 0; i < blocks.size(); ++i) {
+      final Signature signature = futures.get(i).join();
+      assertTrue(signature.hasMerkleBatch(), "signatures in a batch should be Merkle batch signatures");
+      assertEquals(SignatureUtil.getCryptoId(keyPair.getPublic()), signature.getCryptoId(),
+                   "batch signatures should carry the signer's CryptoId");
+      assertTrue(SignatureUtil.checkSignature(blocks.get(i), signature),
+                 "correct batch signatures should verify correctly");
+      assertTrue(!SignatureUtil.checkSignature(blocks.get((i + 1) % blocks.size()), signature),
+                 "batch signatures should not verify for other members of the batch");
+    }
+  }
+
+  /** Test Whether a batch of one is just an ordinary signature. */
+  @Test
+  void batchOfOne() {
+    final MerkleBatchSigner signer = new MerkleBatchSigner(keyPair, 0, 1);
+    final Signature signature = signer.signBytes(blocks.get(0));
+    assertTrue(!signature.hasMerkleBatch(), "a batch of one should be signed directly");
+    assertTrue(SignatureUtil.checkSignature(blocks.get(0), signature), "correct signatures should verify correctly");
+  }
+
+  /**
+   * Test Whether a tampered path doesn't verify.
+   * If this is working correctly, it will generate a log message, but that's ok.
+   */
+  @Test
+  void tamperedPath() {
+    final MerkleBatchSigner signer = new MerkleBatchSigner(keyPair, 200000, 1024);
+    final CompletableFuture<Signature> first = signer.sign(blocks.get(0));
+    signer.sign(blocks.get(1));
+    final Signature signature = first.join();
+    assumeTrue(signature.hasMerkleBatch());
+    final Signature.Builder tampered = Signature.newBuilder(signature);
+    tampered.getMerkleBatchBuilder().getPathBuilder(0).setSiblingOnLeft(
+      !signature.getMerkleBatch().getPath(0).getSiblingOnLeft());
+    assertTrue(!SignatureUtil.checkSignature(blocks.get(0), tampered.build()),
+               "batch signatures with tampered paths should not verify");
+  }
+
+  /** Test Whether every leaf of a tree leads back to its root, and only from its own leaf. */
+  @Test
+  void treePaths() {
+    final List<byte[]> leaves = new ArrayList<byte[]>();
+    for (Block block : blocks) {
+      leaves.add(MerkleBatchSigner.leafHash(block));
+    }
+    final List<Signature.MerkleBatch.Builder> paths = new ArrayList<Signature.MerkleBatch.Builder>();
+    final byte[] root = MerkleBatchSigner.tree(leaves, paths);
+    assertEquals(leaves.size(), paths.size(), "there should be one path per leaf");
+    for (int i = 0; i < leaves.size(); ++i) {
+      assertTrue(Arrays.equals(root, MerkleBatchSigner.root(leaves.get(i), paths.get(i).getPathList())),
+                 "each leaf's path should lead to the root");
+      assertTrue(!Arrays.equals(root, MerkleBatchSigner.root(leaves.get((i + 1) % leaves.size()),
+                                                             paths.get(i).getPathList())),
+                 "a path should not lead to the root from another leaf");
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.isaacsheff.charlotte.node;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSlot;
+import com.isaacsheff.charlotte.proto.Reference;
+
+/**
+ * Does the ReferenceIndex find attestations referencing blocks, by kind?
+ * @author Isaac Sheff
+ */
+class ReferenceIndexTest {
+
+  /** Test whether availability and integrity attestations are indexed under the blocks they reference. */
+  @Test
+  void indexAttestations() {
+    final Block block = Block.newBuilder().setStr("referenced block").build();
+    final Block other = Block.newBuilder().setStr("other block").build();
+    final Reference reference = Reference.newBuilder().setHash(sha3Hash(block)).build();
+    final Block availability = Block.newBuilder().setAvailabilityAttestation(
+        AvailabilityAttestation.newBuilder().setSignedStoreForever(SignedStoreForever.newBuilder().setStoreForever(
+          StoreForever.newBuilder().addBlock(reference).
+            addBlock(Reference.newBuilder().setHash(sha3Hash(other)))))).build();
+    final Block integrity = Block.newBuilder().setIntegrityAttestation(
+        IntegrityAttestation.newBuilder().setSignedChainSlot(SignedChainSlot.newBuilder().setChainSlot(
+          ChainSlot.newBuilder().setBlock(reference).setSlot(1)))).build();
+
+    final ReferenceIndex index = new ReferenceIndex();
+    index.add(sha3Hash(block), block); // not an attestation: indexes nothing
+    index.add(sha3Hash(availability), availability);
+    index.add(sha3Hash(availability), availability); // adding twice should do no harm
+    index.add(sha3Hash(integrity), integrity);
+
+    assertEquals(Set.of(sha3Hash(availability)), index.getAvailabilityAttestations(sha3Hash(block)),
+                 "the availability attestation should be indexed under the block it references");
+    assertEquals(Set.of(sha3Hash(availability)), index.getAvailabilityAttestations(sha3Hash(other)),
+                 "the availability attestation should be indexed under every block it references");
+    assertEquals(Set.of(sha3Hash(integrity)), index.getAttestations(sha3Hash(block), ReferenceIndex.Kind.CHAIN_SLOT),
+                 "the integrity attestation should be indexed under the block it references, by kind");
+    assertTrue(index.references(sha3Hash(availability), sha3Hash(block), ReferenceIndex.Kind.STORE_FOREVER),
+               "references should find the availability attestation");
+    assertTrue(index.getAttestations(sha3Hash(other), ReferenceIndex.Kind.CHAIN_SLOT).isEmpty(),
+               "nothing should be indexed where nothing references");
+  }
+}
@@ -0,0 +1,138 @@
+package com.isaacsheff.charlotte.node;
+
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Signature;
+import com.isaacsheff.charlotte.yaml.GenerateX509;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Compare signing and verification throughput of SignatureUtil against the uncached approach it used to take,
+ *  and of the ECDSA P-256 scheme against the Ed25519 scheme.
+ * The uncached approach parses the signer's key, and looks up a new engine, for every signature.
+ * This is not a unit test (so surefire won't run it): run it with
+ * <code>java -cp ... com.isaacsheff.charlotte.node.SignatureUtilBenchmark [iterations]</code>.
+ * @author Isaac Sheff
+ */
+public class SignatureUtilBenchmark {
+
+  /** How many signatures to make and check if we're not told otherwise. */
+  private static final int DEFAULT_ITERATIONS = 2000;
+
+  /**
+   * Sign bytes the old way: a new engine, and a freshly derived CryptoId, each time.
+   * @param keyPair the key pair to use in signing
+   * @param bytes the bytes to sign
+   * @return the calculated Signature
+   */
+  private static Signature uncachedSign(final KeyPair keyPair, final byte[] bytes) throws Exception {
+    final java.security.Signature signature = java.security.Signature.getInstance("SHA256withECDSA", "BC");
+    signature.initSign(keyPair.getPrivate());
+    signature.update(bytes);
+    return Signature.newBuilder().
+             setSha256WithEcdsa(Signature.SignatureAlgorithmSHA256WithECDSA.newBuilder().setByteString(
+               com.google.protobuf.ByteString.copyFrom(signature.sign()))).
+             setCryptoId(SignatureUtil.createCryptoId(keyPair.getPublic())).build();
+  }
+
+  /**
+   * Check a signature the old way: parse the key and look up a new engine each time.
+   * @param bytes the bytes supposedly signed
+   * @param signature the signature
+   * @return whether the signature was correct
+   */
+  private static boolean uncachedCheck(final byte[] bytes, final Signature signature) throws Exception {
+    final java.security.PublicKey publicKey = KeyFactory.getInstance("EC", "BC").generatePublic(new X509EncodedKeySpec(
+        signature.getCryptoId().getPublicKey().getEllipticCurveP256().getByteString().toByteArray()));
+    final java.security.Signature sig = java.security.Signature.getInstance("SHA256withECDSA", "BC");
+    sig.initVerify(publicKey);
+    sig.update(bytes);
+    return sig.verify(signature.getSha256WithEcdsa().getByteString().toByteArray());
+  }
+
+  /**
+   * Run the benchmark, and print the results.
+   * @param args optionally, the number of iterations to run
+   */
+  public static void main(String[] args) throws Exception {
+    final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    final KeyPair keyPair = GenerateX509.generateDefaultKeyPair();
+    final byte[] bytes = Block.newBuilder().setStr("hello, world!").build().toByteArray();
+
+    // warm up both paths, so the JIT has had a look at everything
+    for (int i = 0; i < iterations / 4; ++i) {
+      uncachedCheck(bytes, uncachedSign(keyPair, bytes));
+      SignatureUtil.checkSignature(bytes, SignatureUtil.signBytes(keyPair, bytes));
+    }
+
+    final Signature signature = SignatureUtil.signBytes(keyPair, bytes);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      uncachedSign(keyPair, bytes);
+    }
+    final long uncachedSignNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      SignatureUtil.signBytes(keyPair, bytes);
+    }
+    final long cachedSignNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      uncachedCheck(bytes, signature);
+    }
+    final long uncachedCheckNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      SignatureUtil.checkSignature(bytes, signature);
+    }
+    final long cachedCheckNanos = System.nanoTime() - start;
+
+    System.out.println("iterations: " + iterations);
+    System.out.println("sign,   uncached: " + (uncachedSignNanos / iterations) + " ns/op");
+    System.out.println("sign,   cached:   " + (cachedSignNanos / iterations) + " ns/op");
+    System.out.println("verify, uncached: " + (uncachedCheckNanos / iterations) + " ns/op");
+    System.out.println("verify, cached:   " + (cachedCheckNanos / iterations) + " ns/op");
+
+    compareSchemes(iterations, keyPair, GenerateX509.generateEd25519KeyPair(), bytes);
+  }
+
+  /**
+   * Compare the throughput of two signature schemes (as chosen by SignatureUtil by key type), and print the results.
+   * @param iterations the number of signatures to make and check with each
+   * @param keyPair a key pair for the first scheme
+   * @param otherKeyPair a key pair for the second scheme
+   * @param bytes the bytes to sign
+   */
+  private static void compareSchemes(final int iterations,
+                                     final KeyPair keyPair,
+                                     final KeyPair otherKeyPair,
+                                     final byte[] bytes) {
+    for (KeyPair pair : new KeyPair[] {keyPair, otherKeyPair}) {
+      final String name = SignatureUtil.getScheme(pair.getPublic()).getClass().getSimpleName();
+      for (int i = 0; i < iterations / 4; ++i) { // warm up
+        SignatureUtil.checkSignature(bytes, SignatureUtil.signBytes(pair, bytes));
+      }
+      final Signature signature = SignatureUtil.signBytes(pair, bytes);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        SignatureUtil.signBytes(pair, bytes);
+      }
+      final long signNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        SignatureUtil.checkSignature(bytes, signature);
+      }
+      final long checkNanos = System.nanoTime() - start;
+      System.out.println(name + " sign:   " + (signNanos / iterations) + " ns/op, " +
+                         (1000000000L * iterations / signNanos) + " ops/s");
+      System.out.println(name + " verify: " + (checkNanos / iterations) + " ns/op, " +
+                         (1000000000L * iterations / checkNanos) + " ops/s");
+    }
+  }
+}
@@ -1,9 +1,11 @@
 package com.isaacsheff.charlotte.node;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Signature;
 import com.isaacsheff.charlotte.yaml.GenerateX509;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -54,5 +56,61 @@ class SignatureUtilTest {
                "incorrect signatures should not verify correctly");
   }
 
-}
+  /** Test Whether Signatures still verify (and still fail) once the signer's key is cached. */
+  @Test
+  void repeatedVerification() {
+    for (int i = 0; i < 3; ++i) {
+      assertTrue(SignatureUtil.checkSignature(challenge, SignatureUtil.signBytes(keyPair, challenge)),
+                 "correct signatures should verify correctly with a cached key");
+      assertTrue(!SignatureUtil.checkSignature(challenge2, SignatureUtil.signBytes(keyPair, challenge)),
+                 "incorrect signatures should not verify correctly with a cached key");
+    }
+  }
+
+  /** Test Whether the cached CryptoId matches a freshly created one. */
+  @Test
+  void cachedCryptoId() {
+    assertEquals(SignatureUtil.createCryptoId(keyPair.getPublic()), SignatureUtil.getCryptoId(keyPair.getPublic()),
+                 "cached CryptoIds should be the same as freshly created ones");
+    assertEquals(SignatureUtil.createCryptoId(keyPair.getPublic()),
+                 SignatureUtil.signBytes(keyPair, challenge).getCryptoId(),
+                 "signatures should carry the signer's CryptoId");
+  }
+
+  /** Test Whether Ed25519 Signatures Verify, and are recognized as Ed25519. */
+  @Test
+  void verifyEd25519Signature() {
+    final KeyPair edKeyPair = GenerateX509.generateEd25519KeyPair();
+    final Signature signature = SignatureUtil.signBytes(edKeyPair, challenge);
+    assertTrue(SignatureUtil.getScheme(signature) instanceof Ed25519SignatureScheme,
+               "Ed25519 keys should make Ed25519 signatures");
+    assertTrue(SignatureUtil.checkSignature(challenge, signature),
+               "correct Ed25519 signatures should verify correctly");
+    assertTrue(!SignatureUtil.checkSignature(challenge2, signature),
+               "incorrect Ed25519 signatures should not verify correctly");
+  }
 
+  /**
+   * Test Whether a signature claiming to be from a key of another scheme doesn't verify.
+   * If this is working correctly, it will generate a log message, but that's ok.
+   */
+  @Test
+  void mismatchedSchemes() {
+    final KeyPair edKeyPair = GenerateX509.generateEd25519KeyPair();
+    final Signature signature = Signature.newBuilder(SignatureUtil.signBytes(edKeyPair, challenge)).
+                                  setCryptoId(SignatureUtil.getCryptoId(keyPair.getPublic())).build();
+    assertTrue(!SignatureUtil.checkSignature(challenge, signature),
+               "Ed25519 signatures should not verify with an ECDSA key");
+  }
+
+  /** Test Whether signing a message is the same as signing its bytes. */
+  @Test
+  void streamedSignatureMatchesBytes() {
+    assertTrue(SignatureUtil.checkSignature(challenge.toByteArray(), SignatureUtil.signBytes(keyPair, challenge)),
+               "signatures of messages should verify against their bytes");
+    assertTrue(SignatureUtil.checkSignature(challenge, SignatureUtil.signBytes(keyPair, challenge.toByteArray())),
+               "signatures of bytes should verify against the message");
+    assertTrue(SignatureUtil.checkSignature(challenge.toByteString(), SignatureUtil.signBytes(keyPair, challenge)),
+               "signatures of messages should verify against their ByteStrings");
+  }
+}
@@ -0,0 +1,88 @@
+package com.isaacsheff.charlotte.node;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.isaacsheff.charlotte.node.SignatureVerificationService.SignedBytes;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.yaml.GenerateX509;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Do we verify batches of signatures in parallel properly?.
+ * If GenerateX509 or SignatureUtil are not working, this won't either.
+ * @author Isaac Sheff
+ */
+class SignatureVerificationServiceTest {
+
+  /** Generate a keypair before each method call. */
+  private KeyPair keyPair;
+
+  /** Generate an example thing to sign. */
+  private Block challenge;
+
+  /** Generate a different example thing to sign. */
+  private Block challenge2;
+
+  /**
+   * Set stuff up before running each test in this class.
+   * Generates a KeyPair to use.
+   */
+  @BeforeEach
+  void init() {
+    keyPair = GenerateX509.generateDefaultKeyPair();
+    assumeTrue(null != keyPair);
+    challenge = Block.newBuilder().setStr("hello, world!").build();
+    challenge2 = Block.newBuilder().setStr("Different Thing").build();
+  }
+
+  /** Test Whether a batch of correct signatures (including duplicates) all verify. */
+  @Test
+  void verifyBatch() {
+    final List<SignedBytes> batch = new ArrayList<SignedBytes>();
+    for (int i = 0; i < 20; ++i) {
+      batch.add(new SignedBytes(Block.newBuilder().setStr("block " + (i % 5)).build(),
+                                SignatureUtil.signBytes(keyPair, Block.newBuilder().setStr("block " + (i % 5)).build())));
+    }
+    for (CompletableFuture<Boolean> future : SignatureVerificationService.getDefault().verifyAll(batch)) {
+      assertTrue(future.join(), "correct signatures should verify correctly");
+    }
+    assertTrue(SignatureVerificationService.getDefault().allVerified(batch).join(),
+               "a batch of correct signatures should all verify correctly");
+  }
+
+  /** Test Whether a message is checked as it is, rather than copied, and agrees with checking its bytes. */
+  @Test
+  void verifyMessage() {
+    final SignedBytes signedMessage = new SignedBytes(challenge, SignatureUtil.signBytes(keyPair, challenge));
+    assertSame(challenge, signedMessage.getMessage(), "the message should be kept, not copied");
+    assertTrue(SignatureVerificationService.getDefault().verify(signedMessage).join(),
+               "correct signatures should verify correctly");
+    assertTrue(SignatureVerificationService.getDefault().verify(
+                 new SignedBytes(challenge.toByteString(), signedMessage.getSignature())).join(),
+               "correct signatures should verify correctly over the message's bytes too");
+    assertTrue(SignatureVerificationService.getDefault().check(challenge, signedMessage.getSignature()),
+               "correct signatures should check correctly on the caller's thread");
+  }
+
+  /**
+   * Test Whether one incorrect signature spoils the batch.
+   * If this is working correctly, it will generate a log message, but that's ok.
+   */
+  @Test
+  void invalidSignatureInBatch() {
+    final List<SignedBytes> batch = new ArrayList<SignedBytes>();
+    batch.add(new SignedBytes(challenge, SignatureUtil.signBytes(keyPair, challenge)));
+    batch.add(new SignedBytes(challenge2, SignatureUtil.signBytes(keyPair, challenge)));
+    assertTrue(!SignatureVerificationService.getDefault().check(challenge2, SignatureUtil.signBytes(keyPair, challenge)),
+               "incorrect signatures should not verify correctly");
+    assertTrue(!SignatureVerificationService.getDefault().allVerified(batch).join(),
+               "a batch with an incorrect signature should not all verify correctly");
+  }
+}
@@ -0,0 +1,92 @@
+package com.isaacsheff.charlotte.node;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Signature;
+import com.isaacsheff.charlotte.yaml.GenerateX509;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.security.KeyPair;
+
+/**
+ * Do we remember verified signatures (and only verified signatures) properly?.
+ * If GenerateX509 or SignatureUtil are not working, this won't either.
+ * @author Isaac Sheff
+ */
+class VerifiedSignatureCacheTest {
+
+  /** Generate a keypair before each method call. */
+  private KeyPair keyPair;
+
+  /** Generate an example thing to sign. */
+  private Block challenge;
+
+  /** Generate a different example thing to sign. */
+  private Block challenge2;
+
+  /**
+   * Set stuff up before running each test in this class.
+   * Generates a KeyPair to use.
+   */
+  @BeforeEach
+  void init() {
+    keyPair = GenerateX509.generateDefaultKeyPair();
+    assumeTrue(null != keyPair);
+    challenge = Block.newBuilder().setStr("hello, world!").build();
+    challenge2 = Block.newBuilder().setStr("Different Thing").build();
+  }
+
+  /** Test Whether a second check of a correct signature is a hit. */
+  @Test
+  void repeatedCheckHits() {
+    final VerifiedSignatureCache cache = new VerifiedSignatureCache(16);
+    final Signature signature = SignatureUtil.signBytes(keyPair, challenge);
+    assertTrue(cache.checkSignature(challenge, signature), "correct signatures should verify correctly");
+    assertEquals(0, cache.getHits(), "the first check should not be a hit");
+    assertTrue(cache.checkSignature(challenge, signature), "correct signatures should verify correctly again");
+    assertEquals(1, cache.getHits(), "the second check should be a hit");
+  }
+
+  /** Test Whether lookups count misses as well as hits, and messages and their bytes share entries. */
+  @Test
+  void lookupsCounted() {
+    final VerifiedSignatureCache cache = new VerifiedSignatureCache(16);
+    final Signature signature = SignatureUtil.signBytes(keyPair, challenge);
+    assertTrue(!cache.isVerified(challenge, signature), "nothing should be remembered yet");
+    assertEquals(1, cache.getMisses(), "an unsuccessful lookup should be a miss");
+    assertTrue(cache.checkSignature(challenge, signature), "correct signatures should verify correctly");
+    assertEquals(2, cache.getMisses(), "the first check should be a miss");
+    assertTrue(cache.isVerified(challenge.toByteString(), signature),
+               "a message's bytes should find the signature remembered for the message");
+    assertEquals(1, cache.getHits(), "a successful lookup should be a hit");
+  }
+
+  /**
+   * Test Whether incorrect signatures are never remembered.
+   * If this is working correctly, it will generate log messages, but that's ok.
+   */
+  @Test
+  void invalidSignatureNotCached() {
+    final VerifiedSignatureCache cache = new VerifiedSignatureCache(16);
+    final Signature signature = SignatureUtil.signBytes(keyPair, challenge);
+    assertTrue(cache.checkSignature(challenge, signature), "correct signatures should verify correctly");
+    assertTrue(!cache.checkSignature(challenge2, signature), "incorrect signatures should not verify correctly");
+    assertTrue(!cache.checkSignature(challenge2, signature), "incorrect signatures should not verify the second time");
+    assertEquals(1, cache.size(), "only the correct signature should be remembered");
+  }
+
+  /** Test Whether the cache stays within its capacity. */
+  @Test
+  void bounded() {
+    final VerifiedSignatureCache cache = new VerifiedSignatureCache(4);
+    for (int i = 0; i < 10; ++i) {
+      final Block block = Block.newBuilder().setStr("block " + i).build();
+      assertTrue(cache.checkSignature(block, SignatureUtil.signBytes(keyPair, block)),
+                 "correct signatures should verify correctly");
+    }
+    assertEquals(4, cache.size(), "the cache should not grow past its capacity");
+  }
+}
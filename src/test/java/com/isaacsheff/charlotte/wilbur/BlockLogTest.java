@@ -0,0 +1,81 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.proto.Block;
+
+/**
+ * Do BlockLogs keep what's appended, across reopening, and survive torn writes?
+ * @author Isaac Sheff
+ */
+class BlockLogTest {
+
+  /** A fresh log file for each test. */
+  private Path path;
+
+  /** Things to append. */
+  private List<Block> blocks;
+
+  /**
+   * Set stuff up before running each test in this class.
+   * Makes a fresh log file, and some blocks to append.
+   */
+  @BeforeEach
+  void init() throws IOException {
+    path = Files.createTempFile("BlockLogTest", ".log");
+    path.toFile().deleteOnExit();
+    blocks = new ArrayList<Block>();
+    for (int i = 0; i < 20; ++i) {
+      blocks.add(Block.newBuilder().setStr("block " + i).build());
+    }
+  }
+
+  /** Test whether concurrent appends are all replayed, in some order, without duplicates. */
+  @Test
+  void appendAndReplay() throws IOException {
+    final BlockLog log = new BlockLog(path, BlockLog.Durability.FSYNC, 10000, 1024);
+    final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+    for (Block block : blocks) {
+      futures.add(log.append(List.of(block)));
+    }
+    futures.add(log.append(blocks)); // all duplicates
+    for (CompletableFuture<Void> future : futures) {
+      future.join();
+    }
+    assertEquals(blocks.size(), log.getBlockCount(), "each block should be written exactly once");
+    log.close();
+    final List<Block> replayed = new ArrayList<Block>();
+    BlockLog.replay(path, replayed::add);
+    assertEquals(blocks.size(), replayed.size(), "replay should find every block, once");
+    assertEquals(true, replayed.containsAll(blocks), "replay should find every block");
+  }
+
+  /** Test whether a torn record at the end is truncated away, and appends afterward replay properly. */
+  @Test
+  void tornWrite() throws IOException {
+    BlockLog log = new BlockLog(path);
+    log.append(blocks.subList(0, 2)).join();
+    log.close();
+    final long intact = Files.size(path);
+    Files.write(path, new byte[] {50, 1, 2, 3}, StandardOpenOption.APPEND); // a record cut off mid-write
+    log = new BlockLog(path);
+    assertEquals(intact, Files.size(path), "a torn record should be truncated away");
+    log.append(blocks.subList(1, 3)).join();
+    assertEquals(1, log.getBlockCount(), "blocks already in the log should not be written again");
+    log.close();
+    final List<Block> replayed = new ArrayList<Block>();
+    BlockLog.replay(path, replayed::add);
+    assertEquals(blocks.subList(0, 3), replayed, "replay should find the blocks in the order appended");
+  }
+}
@@ -0,0 +1,86 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.ErasureCodedFragment;
+
+/**
+ * Can erasure-coded data be reconstructed from any k of its n fragments (and not from fewer)?
+ * @author Isaac Sheff
+ */
+class ErasureCodeTest {
+
+  /** Test whether random data survives losing random fragments, for a variety of k and n. */
+  @Test
+  void anyKFragments() {
+    final Random random = new Random(1);
+    for (int trial = 0; trial < 500; ++trial) {
+      final int k = 1 + random.nextInt(10);
+      final int n = k + random.nextInt(8);
+      final byte[] data = new byte[random.nextInt(300)];
+      random.nextBytes(data);
+      final byte[][] fragments = ErasureCode.encode(data, k, n);
+      final List<Integer> lost = new ArrayList<Integer>();
+      for (int i = 0; i < n; ++i) {
+        lost.add(i);
+      }
+      Collections.shuffle(lost, random);
+      for (int i = 0; i < n - k; ++i) {
+        fragments[lost.get(i)] = null;
+      }
+      assertArrayEquals(data, ErasureCode.decode(fragments, k, data.length),
+                        "any k fragments should reconstruct the data (k=" + k + ", n=" + n + ")");
+    }
+  }
+
+  /** Test whether fewer than k fragments are refused. */
+  @Test
+  void tooFewFragments() {
+    final byte[][] fragments = ErasureCode.encode(new byte[] {1, 2, 3, 4, 5}, 3, 5);
+    fragments[0] = null;
+    fragments[2] = null;
+    fragments[4] = null;
+    assertThrows(IllegalArgumentException.class, () -> ErasureCode.decode(fragments, 3, 5),
+                 "fewer than k fragments should not reconstruct anything");
+  }
+
+  /** Test whether a block split into fragment blocks can be reconstructed from some of them. */
+  @Test
+  void fragmentBlocks() {
+    final Block block = Block.newBuilder().setStr("a block worth storing in fragments").build();
+    final List<Block> fragments = ErasureCodedStore.fragment(block, 3, 7);
+    assertEquals(7, fragments.size(), "there should be n fragments");
+    assertEquals(block, ErasureCodedStore.reconstruct(List.of(fragments.get(6), fragments.get(1), fragments.get(4))),
+                 "any k fragment blocks should reconstruct the block");
+    assertEquals(null, ErasureCodedStore.reconstruct(List.of(fragments.get(6), fragments.get(1))),
+                 "fewer than k fragment blocks should not reconstruct anything");
+  }
+
+  /** Test whether fragment blocks with out-of-range parameters (uint32s too big to be ints) are refused. */
+  @Test
+  void malformedFragmentBlocks() {
+    final Block block = Block.newBuilder().setStr("a block worth storing in fragments").build();
+    final List<Block> fragments = ErasureCodedStore.fragment(block, 2, 3);
+    for (ErasureCodedFragment malformed : List.of(
+           fragments.get(0).getErasureCodedFragment().toBuilder().setN(-1).build(),
+           fragments.get(0).getErasureCodedFragment().toBuilder().setN(0).build(),
+           fragments.get(0).getErasureCodedFragment().toBuilder().setK(0).build(),
+           fragments.get(0).getErasureCodedFragment().toBuilder().setK(4).build(),
+           fragments.get(0).getErasureCodedFragment().toBuilder().setIndex(-1).build(),
+           fragments.get(0).getErasureCodedFragment().toBuilder().setLength(-1).build())) {
+      assertEquals(null, ErasureCodedStore.reconstruct(List.of(
+                           Block.newBuilder().setErasureCodedFragment(malformed).build(), fragments.get(1))),
+                   "a malformed fragment should not reconstruct anything: " + malformed);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
+import static com.isaacsheff.charlotte.wilburquery.WilburQueryService.getWilburQueryNode;
+import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.node.CharlotteNode;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.yaml.Config;
+import com.isaacsheff.charlotte.yaml.Contact;
+import com.isaacsheff.charlotte.yaml.JsonConfig;
+import com.isaacsheff.charlotte.yaml.JsonContact;
+
+/**
+ * Test storing a block erasure-coded across Wilbur servers, and getting it back.
+ * @author Isaac Sheff
+ */
+public class ErasureCodedStoreTest {
+
+  /** how many Wilbur servers (and so how many fragments) **/
+  private static final int WILBUR_COUNT = 3;
+
+  /** the participants map to be used in config files. will be set in setup() **/
+  private static Map<String, JsonContact> participants;
+
+  /**
+   * Set stuff up before running any tests in this class.
+   * In this case, generate some crypto key files, and participants map for a config.
+   * participant0 is the client, and the rest are Wilburs.
+   */
+  @BeforeAll
+  static void setup() {
+    participants = new HashMap<String, JsonContact>(WILBUR_COUNT + 1);
+    for (int i = 0; i <= WILBUR_COUNT; ++i) {
+      generateKeyFiles("src/test/resources/server" + i + ".pem",
+                       "src/test/resources/private-key" + i + ".pem",
+                       "localhost",
+                       "127.0.0.1");
+      participants.put("participant" + i, new JsonContact("src/test/resources/server" + i + ".pem",
+                                                          "localhost",
+                                                          getFreshPort()));
+    }
+  }
+
+  /**
+   * Launch some Wilburs (which also serve WilburQuery) and a client, store a block in fragments, and get it back
+   *  from every fragment, and from just k of them.
+   */
+  @Test
+  void storeAndRetrieve() throws InterruptedException, FileNotFoundException {
+    for (int i = 1; i <= WILBUR_COUNT; ++i) {
+      (new Thread(getWilburQueryNode(new CharlotteNodeService(new Config(
+        new JsonConfig("src/test/resources/private-key" + i + ".pem", "participant" + i, participants),
+        Paths.get(".")))))).start();
+    }
+    final CharlotteNodeService clientService = new CharlotteNodeService(new Config(
+      new JsonConfig("src/test/resources/private-key0.pem", "participant0", participants),
+      Paths.get(".")));
+    (new Thread(new CharlotteNode(clientService))).start();
+
+    TimeUnit.SECONDS.sleep(1); // wait a second for the servers to start up
+
+    final List<Contact> wilburs = new ArrayList<Contact>(WILBUR_COUNT);
+    for (int i = 1; i <= WILBUR_COUNT; ++i) {
+      wilburs.add(clientService.getConfig().getContact("participant" + i));
+    }
+    final ErasureCodedStore store = new ErasureCodedStore(clientService, wilburs, 2);
+
+    final Block block = Block.newBuilder().setStr("a block worth storing in fragments").build();
+    final List<Reference> fragments = store.store(block);
+    assertEquals(WILBUR_COUNT, fragments.size(), "every Wilbur should attest to its fragment");
+    assertEquals(block, store.retrieve(fragments), "the fragments should reconstruct the block");
+    assertEquals(block, store.retrieve(fragments.subList(1, WILBUR_COUNT)),
+                 "any k fragments should reconstruct the block");
+    assertEquals(null, store.retrieve(fragments.subList(2, WILBUR_COUNT)),
+                 "fewer than k fragments should not reconstruct anything");
+  }
+}
@@ -3,6 +3,7 @@ package com.isaacsheff.charlotte.wilbur;
 import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
 import static com.isaacsheff.charlotte.wilbur.WilburService.getWilburNode;
 import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.FileNotFoundException;
@@ -17,6 +18,7 @@ import org.junit.jupiter.api.Test;
 import com.isaacsheff.charlotte.node.CharlotteNode;
 import com.isaacsheff.charlotte.node.CharlotteNodeService;
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationResponse;
 import com.isaacsheff.charlotte.yaml.Config;
 import com.isaacsheff.charlotte.yaml.JsonConfig;
 import com.isaacsheff.charlotte.yaml.JsonContact;
@@ -81,7 +83,10 @@ public class WilburClientTest {
     // make a client using the local service, and the contact for the wilbur node
     final WilburClient client = new WilburClient(clientService, clientService.getConfig().getContact("wilbur"));
     // get an availability attestation for the block, and check it.
-    assertTrue(null != client.checkAvailabilityAttestation(block, client.requestAvailabilityAttestation(block)));
+    final RequestAvailabilityAttestationResponse attestation = client.requestAvailabilityAttestation(block);
+    assertTrue(null != client.checkAvailabilityAttestation(block, attestation));
+    // asking again for a block that's already covered should get the same attestation back
+    assertEquals(attestation.getReference(), client.requestAvailabilityAttestation(block).getReference());
     // client.shutdown();
     // wilburNode.stop();
     // clientNode.stop();
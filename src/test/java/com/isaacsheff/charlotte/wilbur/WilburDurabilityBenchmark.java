@@ -0,0 +1,124 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
+import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
+import static java.util.Collections.singletonList;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.isaacsheff.charlotte.node.CharlotteNode;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.yaml.Config;
+import com.isaacsheff.charlotte.yaml.JsonConfig;
+import com.isaacsheff.charlotte.yaml.JsonContact;
+
+/**
+ * Measure how many availability attestations per second a WilburService issues at several durability settings:
+ *  in memory only, written to a BlockLog, and forced to disk with various group commit windows.
+ * Each attestation request is for a fresh block, with a fixed number of requests outstanding at once.
+ * This is not a unit test (so surefire won't run it): run it with
+ * <code>java -cp ... com.isaacsheff.charlotte.wilbur.WilburDurabilityBenchmark [requests [outstanding]]</code>.
+ * @author Isaac Sheff
+ */
+public class WilburDurabilityBenchmark {
+
+  /** How many attestations to request at each setting if we're not told otherwise. */
+  private static final int DEFAULT_REQUESTS = 5000;
+
+  /** How many requests to have outstanding at once if we're not told otherwise. */
+  private static final int DEFAULT_OUTSTANDING = 64;
+
+  /** The group commit windows (in microseconds) to try with fsync. */
+  private static final long[] COMMIT_WINDOWS = {0, 200, 1000, 5000};
+
+  /** Each block requested has a different number in it. */
+  private static int blockNumber = 0;
+
+  /**
+   * Run the benchmark, and print the results.
+   * @param args optionally, the number of requests at each setting, and the number outstanding at once
+   */
+  public static void main(String[] args) throws Exception {
+    final int requests = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+    final int outstanding = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_OUTSTANDING;
+    final Path directory = Files.createTempDirectory("WilburDurabilityBenchmark");
+    generateKeyFiles(directory.resolve("server.pem").toString(),
+                     directory.resolve("private-key.pem").toString(),
+                     "localhost",
+                     "127.0.0.1");
+    final CharlotteNodeService node = new CharlotteNodeService(new Config(
+        new JsonConfig(directory.resolve("private-key.pem").toString(), "wilbur", Map.of("wilbur",
+          new JsonContact(directory.resolve("server.pem").toString(), "localhost", getFreshPort()))),
+        Paths.get(".")));
+    (new Thread(new CharlotteNode(node))).start();
+    TimeUnit.SECONDS.sleep(1); // wait a second for the server to start up
+
+    System.out.println("requests: " + requests + ", outstanding: " + outstanding);
+    run("memory only", new WilburService(node), requests, outstanding);
+    run("write", withLog(node, directory, BlockLog.Durability.WRITE, 0), requests, outstanding);
+    for (long window : COMMIT_WINDOWS) {
+      run("fsync, " + window + "us window",
+          withLog(node, directory, BlockLog.Durability.FSYNC, window), requests, outstanding);
+    }
+  }
+
+  /**
+   * @param node the CharlotteNodeService the WilburService will use
+   * @param directory where to put the log file
+   * @param durability how durable each append must be
+   * @param window the group commit window, in microseconds
+   * @return a new WilburService, with a fresh BlockLog
+   */
+  private static WilburService withLog(final CharlotteNodeService node,
+                                       final Path directory,
+                                       final BlockLog.Durability durability,
+                                       final long window) throws Exception {
+    final WilburService service = new WilburService(node);
+    service.setBlockLog(new BlockLog(Files.createTempFile(directory, "blocks", ".log"),
+                                     durability, window, BlockLog.DEFAULT_MAX_GROUP_SIZE));
+    return service;
+  }
+
+  /**
+   * Request attestations for fresh blocks, keeping a fixed number outstanding, and print the throughput.
+   * @param name the name of this setting
+   * @param service the WilburService to request attestations from
+   * @param requests the number of attestations to request
+   * @param outstanding the number of requests to have outstanding at once
+   */
+  private static void run(final String name,
+                          final WilburService service,
+                          final int requests,
+                          final int outstanding) throws InterruptedException {
+    final Semaphore permits = new Semaphore(outstanding);
+    final List<CompletableFuture<Reference>> futures = new ArrayList<CompletableFuture<Reference>>(requests);
+    final long start = System.nanoTime();
+    for (int i = 0; i < requests; ++i) {
+      final Block block = Block.newBuilder().setStr("benchmark block " + (blockNumber++)).build();
+      service.getNode().storeNewBlock(block);
+      permits.acquire();
+      final CompletableFuture<Reference> future =
+        service.attest(singletonList(Reference.newBuilder().setHash(sha3Hash(block)).build()));
+      future.whenComplete((reference, throwable) -> permits.release());
+      futures.add(future);
+    }
+    for (CompletableFuture<Reference> future : futures) {
+      future.join();
+    }
+    final long nanos = System.nanoTime() - start;
+    final BlockLog log = service.getBlockLog();
+    System.out.println(name + ": " + (1000000000L * requests / nanos) + " attestations/s" +
+                       ((log == null) ? "" : (", " + log.getCommitCount() + " commits")));
+  }
+}
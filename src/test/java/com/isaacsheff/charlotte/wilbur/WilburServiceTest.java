@@ -0,0 +1,141 @@
+package com.isaacsheff.charlotte.wilbur;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
+import static com.isaacsheff.charlotte.wilbur.WilburService.DEFAULT_MAX_BATCH_SIZE;
+import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.collections.BlockingConcurrentHashMap;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityPolicy;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationInput;
+import com.isaacsheff.charlotte.proto.RequestAvailabilityAttestationResponse;
+import com.isaacsheff.charlotte.yaml.Config;
+import com.isaacsheff.charlotte.yaml.JsonConfig;
+import com.isaacsheff.charlotte.yaml.JsonContact;
+
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Does a WilburService stop waiting (and let go of everything it was waiting with) when a call goes away?
+ * Does it remember only so many covering attestations?
+ * @author Isaac Sheff
+ */
+class WilburServiceTest {
+
+  /** The blocks our node has (none of those requested), and the futures waiting for them. */
+  private BlockingConcurrentHashMap<Hash, Block> blocks;
+
+  /** The WilburService under test. Its node has no config: nothing here gets far enough to sign anything. */
+  private WilburService wilbur;
+
+  /** Everything sent back to the client. */
+  private List<Object> sent;
+
+  /** Collects everything sent back to the client. */
+  private StreamObserver<RequestAvailabilityAttestationResponse> observer;
+
+  /** A request for an attestation to a block our node never receives. */
+  private RequestAvailabilityAttestationInput request;
+
+  /** Set stuff up before running each test in this class. */
+  @BeforeEach
+  void init() {
+    blocks = new BlockingConcurrentHashMap<Hash, Block>();
+    wilbur = new WilburService(new CharlotteNodeService(blocks, null));
+    sent = new ArrayList<Object>();
+    observer = new StreamObserver<RequestAvailabilityAttestationResponse>() {
+      @Override
+      public void onNext(final RequestAvailabilityAttestationResponse response) {sent.add(response);}
+
+      @Override
+      public void onError(final Throwable t) {sent.add(t);}
+
+      @Override
+      public void onCompleted() {sent.add("completed");}
+    };
+    request = RequestAvailabilityAttestationInput.newBuilder().setPolicy(AvailabilityPolicy.newBuilder().
+                setFillInTheBlank(AvailabilityAttestation.newBuilder().setSignedStoreForever(
+                  SignedStoreForever.newBuilder().setStoreForever(StoreForever.newBuilder().addBlock(
+                    Reference.newBuilder().setHash(sha3Hash(Block.newBuilder().setStr("never arrives").build())))))))
+              .build();
+  }
+
+  /** Test whether a cancelled call stops waiting for its blocks, and sends nothing. */
+  @Test
+  void cancelledCallLetsGo() {
+    final Context.CancellableContext context = Context.current().withCancellation();
+    context.run(() -> wilbur.requestAvailabilityAttestation(request, observer));
+    assertEquals(1, wilbur.getPendingRequestCount(), "the request should be waiting for its block");
+    assertEquals(1, blocks.getPendingFutureCount(), "there should be a future waiting for the block");
+
+    context.cancel(null);
+    assertEquals(0, wilbur.getPendingRequestCount(), "a cancelled request should no longer be pending");
+    assertEquals(0, blocks.getPendingFutureCount(), "a cancelled request's block futures should be removed");
+    assertEquals(List.of(), sent, "nothing should be sent to a cancelled call");
+  }
+
+  /** Test whether a call whose deadline passes stops waiting for its blocks, and sends nothing. */
+  @Test
+  void expiredCallLetsGo() throws InterruptedException {
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    final Context.CancellableContext context =
+      Context.current().withDeadlineAfter(100, TimeUnit.MILLISECONDS, scheduler);
+    context.run(() -> wilbur.requestAvailabilityAttestation(request, observer));
+    assertEquals(1, blocks.getPendingFutureCount(), "there should be a future waiting for the block");
+
+    TimeUnit.MILLISECONDS.sleep(500); // well past the deadline
+    assertEquals(0, wilbur.getPendingRequestCount(), "an expired request should no longer be pending");
+    assertEquals(0, blocks.getPendingFutureCount(), "an expired request's block futures should be removed");
+    assertEquals(List.of(), sent, "nothing should be sent to an expired call");
+    scheduler.shutdown();
+  }
+
+  /** Test whether only the most recently attested blocks' covering attestations are remembered. */
+  @Test
+  void coverageBounded() {
+    generateKeyFiles("src/test/resources/server.pem",
+                     "src/test/resources/private-key.pem",
+                     "localhost",
+                     "127.0.0.1");
+    final CharlotteNodeService node = new CharlotteNodeService(new Config(new JsonConfig(
+        "src/test/resources/private-key.pem",
+        "wilbur",
+        Map.of("wilbur", new JsonContact("src/test/resources/server.pem", "localhost", getFreshPort()))),
+      Paths.get(".")));
+    final WilburService bounded = new WilburService(node, 0, DEFAULT_MAX_BATCH_SIZE, 2);
+    Reference last = null;
+    for (int i = 0; i < 5; ++i) {
+      final Block block = Block.newBuilder().setStr("block " + i).build();
+      node.storeNewBlock(block);
+      last = bounded.attest(List.of(Reference.newBuilder().setHash(sha3Hash(block)).build())).join();
+      assertTrue(bounded.getCoverageSize() <= 2, "coverage should stay within its bound");
+    }
+    assertEquals(last, bounded.coveringAttestation(List.of(Reference.newBuilder().setHash(
+                   sha3Hash(Block.newBuilder().setStr("block 4").build())).build())),
+                 "the most recent attestation should still be remembered");
+    assertEquals(null, bounded.coveringAttestation(List.of(Reference.newBuilder().setHash(
+                   sha3Hash(Block.newBuilder().setStr("block 0").build())).build())),
+                 "the oldest attestation should have been forgotten");
+  }
+}
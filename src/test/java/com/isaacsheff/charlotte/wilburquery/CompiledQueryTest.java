@@ -0,0 +1,87 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSlot;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.Signature;
+
+/**
+ * Does a CompiledQuery give the same answers as WilburQueryService.fillInTheBlankMatch?
+ * @author Isaac Sheff
+ */
+class CompiledQueryTest {
+
+  /**
+   * @param random where to get randomness
+   * @return a random block: a string, availability attestation, or chain slot, drawn from a small space so that
+   *          random queries often match random blocks
+   */
+  private static Block randomBlock(final Random random) {
+    final CryptoId signer = CryptoId.newBuilder().setHash(sha3Hash(Block.newBuilder().
+                              setStr("signer " + random.nextInt(2)).build())).build();
+    switch (random.nextInt(4)) {
+      case 0:
+        return Block.newBuilder().setStr("block " + random.nextInt(3)).build();
+      case 1:
+        final StoreForever.Builder storeForever = StoreForever.newBuilder();
+        for (int i = random.nextInt(4); i > 0; --i) {
+          storeForever.addBlock(Reference.newBuilder().
+            setHash(sha3Hash(Block.newBuilder().setStr("block " + random.nextInt(3)).build())));
+        }
+        final SignedStoreForever.Builder signed = SignedStoreForever.newBuilder().setStoreForever(storeForever);
+        if (random.nextBoolean()) {
+          signed.setSignature(Signature.newBuilder().setCryptoId(signer));
+        }
+        return Block.newBuilder().setAvailabilityAttestation(
+                 AvailabilityAttestation.newBuilder().setSignedStoreForever(signed)).build();
+      case 2:
+        return Block.newBuilder().setIntegrityAttestation(IntegrityAttestation.newBuilder().setSignedChainSlot(
+                 SignedChainSlot.newBuilder().setChainSlot(ChainSlot.newBuilder().
+                   setSlot(random.nextInt(3)).
+                   setRoot(Reference.newBuilder().
+                     setHash(sha3Hash(Block.newBuilder().setStr("block " + random.nextInt(2)).build())))).
+                 setSignature(Signature.newBuilder().setCryptoId(signer)))).build();
+      default:
+        return Block.getDefaultInstance();
+    }
+  }
+
+  /** Test random queries against random blocks, and check that both matchers agree. */
+  @Test
+  void agreesWithFillInTheBlankMatch() {
+    final Random random = new Random(1);
+    final List<Block> blocks = new ArrayList<Block>();
+    for (int i = 0; i < 200; ++i) {
+      blocks.add(randomBlock(random));
+    }
+    int matches = 0;
+    for (int i = 0; i < 200; ++i) {
+      final Block query = randomBlock(random);
+      final CompiledQuery compiled = new CompiledQuery(query);
+      for (Block block : blocks) {
+        final boolean expected = WilburQueryService.fillInTheBlankMatch(query, block);
+        assertEquals(expected, compiled.test(block),
+                     "the compiled query should agree with fillInTheBlankMatch for query\n" + query + "block\n" + block);
+        if (expected) {
+          ++matches;
+        }
+      }
+    }
+    assertEquals(true, matches > 200, "random queries should match plenty of random blocks for this to mean much");
+  }
+}
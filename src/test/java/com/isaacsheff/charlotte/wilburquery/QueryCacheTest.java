@@ -0,0 +1,116 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.collections.BlockingConcurrentHashMap;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
+
+/**
+ * Does the QueryCache answer repeated queries without rerunning them, stay up to date, and stay within its size?
+ * @author Isaac Sheff
+ */
+class QueryCacheTest {
+
+  /**
+   * @param block a block
+   * @return an availability attestation referencing that block
+   */
+  private static Block attestation(final Block block) {
+    return Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().setSignedStoreForever(
+             SignedStoreForever.newBuilder().setStoreForever(StoreForever.newBuilder().
+               addBlock(Reference.newBuilder().setHash(sha3Hash(block)))))).build();
+  }
+
+  /** Test whether cached results are reused, and updated with new matching blocks. */
+  @Test
+  void incrementalUpdates() {
+    final CharlotteNodeService node = new CharlotteNodeService(new BlockingConcurrentHashMap<Hash, Block>(), null);
+    final QueryIndex index = new QueryIndex(node);
+    final QueryCache cache = new QueryCache(node);
+    final AtomicInteger runs = new AtomicInteger(0);
+    final Block original = Block.newBuilder().setStr("original").build();
+    node.storeNewBlock(original);
+    node.storeNewBlock(attestation(original));
+    final Block query = Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.getDefaultInstance()).
+                          build();
+    final Function<Block, Collection<Block>> counted = q -> {
+      runs.incrementAndGet();
+      return index.query(q);
+    };
+
+    assertEquals(List.of(attestation(original)), cache.query(query, counted), "a miss should run the query");
+    final Block later = Block.newBuilder().setStr("later").build();
+    node.storeNewBlock(later);
+    node.storeNewBlock(attestation(later));
+    assertEquals(Set.of(attestation(original), attestation(later)),
+                 new HashSet<Block>(cache.query(query, counted)),
+                 "a hit should include blocks stored since the query was run");
+    assertEquals(1, runs.get(), "the query should only have been run once");
+    assertEquals(1, cache.getHits(), "there should have been one hit");
+    assertEquals(1, cache.getMisses(), "there should have been one miss");
+    assertEquals(0.5, cache.getHitRate(), "the hit rate should be 1/2");
+  }
+
+  /** Test whether entries filed under a referenced block (rather than a type) are still kept up to date. */
+  @Test
+  void updatesByReference() {
+    final CharlotteNodeService node = new CharlotteNodeService(new BlockingConcurrentHashMap<Hash, Block>(), null);
+    final QueryIndex index = new QueryIndex(node);
+    final QueryCache cache = new QueryCache(node);
+    final Block original = Block.newBuilder().setStr("original").build();
+    final Block other = Block.newBuilder().setStr("other").build();
+    node.storeNewBlock(original);
+    node.storeNewBlock(other);
+    final Block query = attestation(original);
+    assertEquals(List.of(), cache.query(query, index::query), "nothing should match yet");
+
+    final Block both = Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+                         setSignedStoreForever(SignedStoreForever.newBuilder().setStoreForever(
+                           StoreForever.newBuilder().
+                             addBlock(Reference.newBuilder().setHash(sha3Hash(other))).
+                             addBlock(Reference.newBuilder().setHash(sha3Hash(original))))))
+                       .build();
+    node.storeNewBlock(attestation(other));
+    node.storeNewBlock(both);
+    node.storeNewBlock(attestation(original));
+    assertEquals(Set.of(both, attestation(original)), new HashSet<Block>(cache.query(query, index::query)),
+                 "blocks referencing the query's block should be added, and no others");
+    assertEquals(1, cache.getHits(), "the second query should have been a hit");
+  }
+
+  /** Test whether the least recently used entries are evicted to stay within the size limit. */
+  @Test
+  void evictsLeastRecentlyUsed() {
+    final CharlotteNodeService node = new CharlotteNodeService(new BlockingConcurrentHashMap<Hash, Block>(), null);
+    final QueryIndex index = new QueryIndex(node);
+    final QueryCache cache = new QueryCache(node, 2048);
+    final Block first = Block.newBuilder().setStr("query 0").build();
+    cache.query(first, index::query);
+    for (int i = 1; i < 100; ++i) {
+      cache.query(first, index::query); // keep this one recently used
+      cache.query(Block.newBuilder().setStr("query " + i).build(), index::query);
+      assertTrue(cache.getBytes() <= cache.getMaxBytes(), "the cache should stay within its size limit");
+    }
+    assertTrue(cache.size() < 100, "some entries should have been evicted");
+    final long hits = cache.getHits();
+    cache.query(first, index::query);
+    assertEquals(hits + 1, cache.getHits(), "the most recently used entry should not have been evicted");
+  }
+}
@@ -0,0 +1,219 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.collections.BlockingConcurrentHashMap;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.ChainSlot;
+import com.isaacsheff.charlotte.proto.IntegrityAttestation.SignedChainSlot;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.Signature;
+
+/**
+ * Does a QueryIndex find exactly the blocks a linear scan with fillInTheBlankMatch would?
+ * @author Isaac Sheff
+ */
+class QueryIndexTest {
+
+  /** The node whose blocks are indexed. It has no config: it never sends anything anywhere. */
+  private CharlotteNodeService node;
+
+  /** Some signers. */
+  private List<CryptoId> signers;
+
+  /** Some string blocks, which the attestations reference. */
+  private List<Block> strings;
+
+  /** A chain root. */
+  private Hash root;
+
+  /**
+   * Set stuff up before running each test in this class.
+   * Stores strings, availability attestations by each signer, and a chain of integrity attestations.
+   * Some blocks are stored before the QueryIndex is made, and some after, in each test.
+   */
+  @BeforeEach
+  void init() {
+    node = new CharlotteNodeService(new BlockingConcurrentHashMap<Hash, Block>(), null);
+    signers = new ArrayList<CryptoId>();
+    for (int i = 0; i < 3; ++i) {
+      signers.add(CryptoId.newBuilder().setHash(sha3Hash(Block.newBuilder().setStr("signer " + i).build())).build());
+    }
+    strings = new ArrayList<Block>();
+    for (int i = 0; i < 10; ++i) {
+      strings.add(Block.newBuilder().setStr("block " + i).build());
+      node.storeNewBlock(strings.get(i));
+    }
+    root = sha3Hash(strings.get(0));
+  }
+
+  /**
+   * @param signer who signs the attestation
+   * @param blocks the blocks it attests to
+   * @return an availability attestation
+   */
+  private static Block availability(final CryptoId signer, final List<Block> blocks) {
+    final StoreForever.Builder storeForever = StoreForever.newBuilder();
+    for (Block block : blocks) {
+      storeForever.addBlock(Reference.newBuilder().setHash(sha3Hash(block)));
+    }
+    return Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().setSignedStoreForever(
+             SignedStoreForever.newBuilder().setStoreForever(storeForever).
+               setSignature(Signature.newBuilder().setCryptoId(signer)))).build();
+  }
+
+  /**
+   * @param signer who signs the attestation
+   * @param block the block in the slot
+   * @param slot the slot number
+   * @return an integrity attestation that block is in that slot of the chain with the test's root
+   */
+  private Block chainSlot(final CryptoId signer, final Block block, final long slot) {
+    return Block.newBuilder().setIntegrityAttestation(IntegrityAttestation.newBuilder().setSignedChainSlot(
+             SignedChainSlot.newBuilder().setChainSlot(ChainSlot.newBuilder().
+               setBlock(Reference.newBuilder().setHash(sha3Hash(block))).
+               setRoot(Reference.newBuilder().setHash(root)).
+               setSlot(slot)).
+             setSignature(Signature.newBuilder().setCryptoId(signer)))).build();
+  }
+
+  /** Store a variety of attestations. */
+  private void storeAttestations() {
+    for (int i = 0; i < strings.size(); ++i) {
+      node.storeNewBlock(availability(signers.get(i % signers.size()), strings.subList(i / 2, i + 1)));
+      node.storeNewBlock(chainSlot(signers.get(i % signers.size()), strings.get(i), i));
+    }
+  }
+
+  /**
+   * @param query a fill-in-the-blank query
+   * @return every stored block it matches, found by linear scan
+   */
+  private Set<Block> scan(final Block query) {
+    final Set<Block> matches = new HashSet<Block>();
+    for (Block block : node.getBlockMap().values()) {
+      if (WilburQueryService.fillInTheBlankMatch(query, block)) {
+        matches.add(block);
+      }
+    }
+    return matches;
+  }
+
+  /** @return a variety of fill-in-the-blank queries */
+  private List<Block> queries() {
+    final List<Block> queries = new ArrayList<Block>();
+    queries.add(Block.getDefaultInstance());
+    queries.add(strings.get(3));
+    queries.add(Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.getDefaultInstance()).build());
+    for (CryptoId signer : signers) {
+      queries.add(availability(signer, List.of()));
+      queries.add(Block.newBuilder().setIntegrityAttestation(IntegrityAttestation.newBuilder().setSignedChainSlot(
+                    SignedChainSlot.newBuilder().setSignature(Signature.newBuilder().setCryptoId(signer)))).build());
+    }
+    for (int i = 0; i < strings.size(); ++i) {
+      queries.add(Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+                    setSignedStoreForever(SignedStoreForever.newBuilder().setStoreForever(StoreForever.newBuilder().
+                      addBlock(Reference.newBuilder().setHash(sha3Hash(strings.get(i)))).
+                      addBlock(Reference.newBuilder().setHash(sha3Hash(strings.get(strings.size() - 1))))))).
+                    build());
+      queries.add(chainSlot(signers.get(i % signers.size()), strings.get(i), i));
+      queries.add(Block.newBuilder().setIntegrityAttestation(IntegrityAttestation.newBuilder().setSignedChainSlot(
+                    SignedChainSlot.newBuilder().setChainSlot(ChainSlot.newBuilder().
+                      setRoot(Reference.newBuilder().setHash(root)).setSlot(i))))).build());
+    }
+    // partly filled in keys are blanks too, so these can't be looked up exactly
+    queries.add(Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+                  setSignedStoreForever(SignedStoreForever.newBuilder().setStoreForever(StoreForever.newBuilder().
+                    addBlock(Reference.newBuilder().setHash(Hash.getDefaultInstance()))))).build());
+    queries.add(availability(CryptoId.newBuilder().setHash(Hash.getDefaultInstance()).build(), List.of()));
+    queries.add(Block.newBuilder().setIntegrityAttestation(IntegrityAttestation.newBuilder().setSignedChainSlot(
+                  SignedChainSlot.newBuilder().setChainSlot(ChainSlot.newBuilder().
+                    setRoot(Reference.newBuilder().setHash(Hash.getDefaultInstance())).setSlot(3))))).build());
+    return queries;
+  }
+
+  /** Test whether queries with every kind of index find the same blocks as a linear scan. */
+  @Test
+  void matchesScan() {
+    final QueryIndex index = new QueryIndex(node); // indexes the strings already stored
+    storeAttestations(); // indexed as they're stored
+    for (Block query : queries()) {
+      assertEquals(scan(query), new HashSet<Block>(index.query(query)),
+                   "the index should find exactly what a scan finds for query:\n" + query);
+    }
+  }
+
+  /** Test whether matches pages through exactly what a scan finds, in HASH_ORDER, picking up after a cursor. */
+  @Test
+  void pagesInOrder() {
+    final QueryIndex index = new QueryIndex(node);
+    storeAttestations();
+    for (Block query : queries()) {
+      final List<Hash> expected = new ArrayList<Hash>();
+      for (Block block : scan(query)) {
+        expected.add(sha3Hash(block));
+      }
+      expected.sort(QueryIndex.HASH_ORDER);
+      final List<Hash> paged = new ArrayList<Hash>();
+      Hash cursor = null;
+      while (true) { // two blocks per page
+        final Iterator<Block> page = index.matches(query, cursor);
+        for (int i = 0; i < 2 && page.hasNext(); ++i) {
+          cursor = sha3Hash(page.next());
+          paged.add(cursor);
+        }
+        if (!page.hasNext()) {
+          break;
+        }
+      }
+      assertEquals(expected, paged, "paging should find a scan's blocks, in order, for query:\n" + query);
+    }
+  }
+
+  /** Test whether the planner picks an applicable index, and narrows things down. */
+  @Test
+  void plansSelectively() {
+    storeAttestations(); // all stored before the index is made
+    final QueryIndex index = new QueryIndex(node);
+    assertNull(index.candidates(Block.getDefaultInstance()), "no index applies to an empty query");
+    final Block bySlot = chainSlot(signers.get(0), strings.get(3), 3);
+    final Set<Hash> candidates = index.candidates(bySlot);
+    assertNotNull(candidates, "some index should apply to a chain slot query");
+    assertEquals(Set.of(sha3Hash(bySlot)), candidates, "the chain slot should narrow things down to one block");
+    assertTrue(index.candidates(availability(signers.get(1), List.of())).size() < node.getBlockMap().size(),
+               "the signer index should narrow things down");
+  }
+
+  /** Test whether a QueryIndex keeping no indexes still answers queries correctly, by scanning. */
+  @Test
+  void noIndexes() {
+    storeAttestations();
+    final QueryIndex index = new QueryIndex(node, EnumSet.noneOf(QueryIndex.Kind.class));
+    for (Block query : queries()) {
+      assertNull(index.candidates(query), "no index should apply when none are kept");
+      assertEquals(scan(query), new HashSet<Block>(index.query(query)),
+                   "a scan should find the same things for query:\n" + query);
+    }
+  }
+}
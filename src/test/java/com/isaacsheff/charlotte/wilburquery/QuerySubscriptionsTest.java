@@ -0,0 +1,124 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.isaacsheff.charlotte.collections.BlockingConcurrentHashMap;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.WilburQueryPageResponse;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Do standing queries get each newly stored matching block, once, and nothing else?
+ * @author Isaac Sheff
+ */
+class QuerySubscriptionsTest {
+
+  /**
+   * Collects the blocks streamed to it.
+   * @author Isaac Sheff
+   */
+  private static class Collector implements StreamObserver<WilburQueryPageResponse> {
+    /** The blocks received, in order. */
+    final List<Block> blocks = new ArrayList<Block>();
+
+    @Override
+    public void onNext(final WilburQueryPageResponse response) {
+      assertEquals(sha3Hash(response.getBlock()), response.getCursor(), "each block's cursor should be its hash");
+      blocks.add(response.getBlock());
+    }
+
+    @Override
+    public void onError(final Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+
+  /**
+   * @param block a block
+   * @return an availability attestation referencing that block
+   */
+  private static Block attestation(final Block block) {
+    return Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().setSignedStoreForever(
+             SignedStoreForever.newBuilder().setStoreForever(StoreForever.newBuilder().
+               addBlock(Reference.newBuilder().setHash(sha3Hash(block)))))).build();
+  }
+
+  /** Test whether subscribers get exactly the matching blocks, old ones first if they ask for them. */
+  @Test
+  void streamsNewMatches() {
+    final CharlotteNodeService node = new CharlotteNodeService(new BlockingConcurrentHashMap<Hash, Block>(), null);
+    final QueryIndex index = new QueryIndex(node);
+    final QuerySubscriptions subscriptions = new QuerySubscriptions(node);
+    final Block old = Block.newBuilder().setStr("old").build();
+    node.storeNewBlock(old);
+    node.storeNewBlock(attestation(old));
+
+    final Block query = attestation(old);
+    final Collector newOnly = new Collector();
+    final Collector withExisting = new Collector();
+    final Collector everything = new Collector();
+    subscriptions.subscribe(query, null, newOnly);
+    subscriptions.subscribe(query, () -> index.query(query), withExisting);
+    subscriptions.subscribe(Block.getDefaultInstance(), null, everything);
+    assertEquals(3, subscriptions.getSubscriptionCount(), "there should be 3 subscriptions");
+
+    final Block unrelated = Block.newBuilder().setStr("new").build();
+    final Block matching = Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+                             setSignedStoreForever(SignedStoreForever.newBuilder().setStoreForever(
+                               StoreForever.newBuilder().
+                                 addBlock(Reference.newBuilder().setHash(sha3Hash(unrelated))).
+                                 addBlock(Reference.newBuilder().setHash(sha3Hash(old))))))
+                           .build();
+    node.storeNewBlock(unrelated);
+    node.storeNewBlock(attestation(unrelated));
+    node.storeNewBlock(matching);
+    node.storeNewBlock(matching); // a repeat is not new
+
+    assertEquals(List.of(matching), newOnly.blocks, "only the new matching block should be streamed");
+    assertEquals(List.of(attestation(old), matching), withExisting.blocks,
+                 "the existing match should be streamed, then the new one");
+    assertEquals(List.of(unrelated, attestation(unrelated), matching), everything.blocks,
+                 "an empty query should stream every new block, once");
+  }
+
+  /** Test whether a block stored while existing blocks are being read is streamed only once. */
+  @Test
+  void storedWhileSubscribing() {
+    final CharlotteNodeService node = new CharlotteNodeService(new BlockingConcurrentHashMap<Hash, Block>(), null);
+    final QueryIndex index = new QueryIndex(node);
+    final QuerySubscriptions subscriptions = new QuerySubscriptions(node);
+    final Block old = Block.newBuilder().setStr("old").build();
+    node.storeNewBlock(old);
+
+    final Block query = attestation(old);
+    final Collector withExisting = new Collector();
+    subscriptions.subscribe(query, () -> {
+        node.storeNewBlock(attestation(old)); // offered as new, and then found among the existing
+        return index.query(query);
+      }, withExisting);
+    final Block later = Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+                          setSignedStoreForever(SignedStoreForever.newBuilder().setStoreForever(
+                            StoreForever.newBuilder().
+                              addBlock(Reference.newBuilder().setHash(sha3Hash(old))).
+                              addBlock(Reference.newBuilder().setHash(sha3Hash(query))))))
+                        .build();
+    node.storeNewBlock(later);
+
+    assertEquals(List.of(attestation(old), later), withExisting.blocks,
+                 "a block stored while subscribing should be streamed once, and later blocks after it");
+  }
+}
@@ -0,0 +1,105 @@
+package com.isaacsheff.charlotte.wilburquery;
+
+import static com.isaacsheff.charlotte.node.HashUtil.sha3Hash;
+
+import java.util.EnumSet;
+
+import com.isaacsheff.charlotte.collections.BlockingConcurrentHashMap;
+import com.isaacsheff.charlotte.node.CharlotteNodeService;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
+import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
+import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.CryptoId;
+import com.isaacsheff.charlotte.proto.Hash;
+import com.isaacsheff.charlotte.proto.Reference;
+import com.isaacsheff.charlotte.proto.Signature;
+
+/**
+ * Measure how fast an unindexed fill-in-the-blank query scans a large corpus of blocks:
+ *  with fillInTheBlankMatch on each block in turn, and with a QueryIndex keeping no indexes (so it scans with a
+ *  CompiledQuery, in parallel).
+ * The corpus is availability attestations by a handful of signers, and the query asks for one signer's.
+ * This is not a unit test (so surefire won't run it): run it with
+ * <code>java -cp ... com.isaacsheff.charlotte.wilburquery.WilburQueryBenchmark [blocks [repetitions]]</code>.
+ * @author Isaac Sheff
+ */
+public class WilburQueryBenchmark {
+
+  /** How many blocks to scan if we're not told otherwise. */
+  private static final int DEFAULT_BLOCKS = 200000;
+
+  /** How many times to run each query if we're not told otherwise. */
+  private static final int DEFAULT_REPETITIONS = 10;
+
+  /** How many different signers sign the blocks. */
+  private static final int SIGNERS = 8;
+
+  /**
+   * Run the benchmark, and print the results.
+   * @param args optionally, the number of blocks, and the number of times to run each query
+   */
+  public static void main(String[] args) {
+    final int blocks = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_BLOCKS;
+    final int repetitions = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_REPETITIONS;
+    final CharlotteNodeService node = new CharlotteNodeService(new BlockingConcurrentHashMap<Hash, Block>(), null);
+    for (int i = 0; i < blocks; ++i) {
+      node.storeNewBlock(Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+        setSignedStoreForever(SignedStoreForever.newBuilder().
+          setSignature(Signature.newBuilder().setCryptoId(signer(i % SIGNERS))).
+          setStoreForever(StoreForever.newBuilder().
+            addBlock(Reference.newBuilder().setHash(sha3Hash(Block.newBuilder().setStr("block " + i).build()))).
+            addBlock(Reference.newBuilder().setHash(sha3Hash(Block.newBuilder().setStr("other " + i).build()))))))
+        .build());
+    }
+    final Block query = Block.newBuilder().setAvailabilityAttestation(AvailabilityAttestation.newBuilder().
+      setSignedStoreForever(SignedStoreForever.newBuilder().
+        setSignature(Signature.newBuilder().setCryptoId(signer(0))))).build();
+    final QueryIndex scanning = new QueryIndex(node, EnumSet.noneOf(QueryIndex.Kind.class));
+    System.out.println("blocks: " + blocks + ", repetitions: " + repetitions);
+
+    long start = System.nanoTime();
+    int matches = 0;
+    for (int repetition = 0; repetition < repetitions; ++repetition) {
+      matches = 0;
+      for (Block block : node.getBlockMap().values()) {
+        if (WilburQueryService.fillInTheBlankMatch(query, block)) {
+          ++matches;
+        }
+      }
+    }
+    print("fillInTheBlankMatch, sequential", start, blocks, repetitions, matches);
+
+    start = System.nanoTime();
+    for (int repetition = 0; repetition < repetitions; ++repetition) {
+      matches = scanning.query(query).size();
+    }
+    print("CompiledQuery, parallel", start, blocks, repetitions, matches);
+  }
+
+  /**
+   * @param i which signer
+   * @return a made-up CryptoId for that signer
+   */
+  private static CryptoId signer(final int i) {
+    return CryptoId.newBuilder().setHash(sha3Hash(Block.newBuilder().setStr("signer " + i).build())).build();
+  }
+
+  /**
+   * Print the throughput of one way of scanning.
+   * @param name the name of this way of scanning
+   * @param start System.nanoTime() when it started
+   * @param blocks how many blocks each scan checked
+   * @param repetitions how many scans there were
+   * @param matches how many matches the last scan found
+   */
+  private static void print(final String name,
+                            final long start,
+                            final int blocks,
+                            final int repetitions,
+                            final int matches) {
+    final long nanos = System.nanoTime() - start;
+    System.out.println(name + ": " + (1000000000L * blocks * repetitions / nanos) + " blocks/s, " +
+                       matches + " matches");
+  }
+}
@@ -6,10 +6,17 @@ import static com.isaacsheff.charlotte.node.PortUtil.getFreshPort;
 import static com.isaacsheff.charlotte.wilburquery.WilburQueryService.getWilburQueryNode;
 import static com.isaacsheff.charlotte.yaml.GenerateX509.generateKeyFiles;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.AfterAll;
@@ -22,9 +29,12 @@ import com.isaacsheff.charlotte.proto.AvailabilityAttestation;
 import com.isaacsheff.charlotte.proto.AvailabilityAttestation.SignedStoreForever;
 import com.isaacsheff.charlotte.proto.AvailabilityAttestation.StoreForever;
 import com.isaacsheff.charlotte.proto.Block;
+import com.isaacsheff.charlotte.proto.Hash;
 import com.isaacsheff.charlotte.proto.Reference;
 import com.isaacsheff.charlotte.proto.Signature;
 import com.isaacsheff.charlotte.proto.WilburQueryInput;
+import com.isaacsheff.charlotte.proto.WilburQueryPageInput;
+import com.isaacsheff.charlotte.proto.WilburQueryPageResponse;
 import com.isaacsheff.charlotte.yaml.Config;
 import com.isaacsheff.charlotte.yaml.JsonConfig;
 import com.isaacsheff.charlotte.yaml.JsonContact;
@@ -215,4 +225,79 @@ public class WilburQueryTest {
         ).getBlockList().size()
       );
   }
+
+  /**
+   * Test streaming query results a page at a time.
+   * We ask for all the availability attestations signed by a specific server, one per page.
+   * There should be 2, and they should be the same 2 as the non-streaming query finds.
+   */
+  @Test
+  void pagedStream() {
+    final Block query = Block.newBuilder().
+      setAvailabilityAttestation(
+        AvailabilityAttestation.newBuilder().setSignedStoreForever(
+          SignedStoreForever.newBuilder().setSignature(
+            Signature.newBuilder().setCryptoId(
+              service.getConfig().getCryptoId()
+            )
+          )
+        )
+      ).build();
+    final Set<Block> streamed = new HashSet<Block>();
+    final Iterator<Block> iterator = client.wilburQueryIterator(query, 1);
+    while (iterator.hasNext()) {
+      assertTrue(streamed.add(iterator.next()), "no block should be streamed twice");
+    }
+    assertEquals(Set.of(block1, block2), streamed, "every match should be streamed, across pages");
+
+    final Iterator<WilburQueryPageResponse> page = client.wilburQueryStream(WilburQueryPageInput.newBuilder().
+        setQuery(WilburQueryInput.newBuilder().setFillInTheBlank(query)).
+        setLimit(1).build());
+    assertTrue(page.hasNext(), "a page should have a block in it");
+    page.next();
+    assertFalse(page.hasNext(), "a page should have no more blocks than its limit");
+  }
+
+  /**
+   * Test fetching several blocks by reference in one call.
+   * One block isn't there at first: without waiting, it's listed as missing, and when waiting, it arrives.
+   */
+  @Test
+  void multiGet() throws InterruptedException {
+    final Block late = Block.newBuilder().setStr("a block which arrives late").build();
+    final List<Reference> references = List.of(Reference.newBuilder().setHash(sha3Hash(block0)).build(),
+                                               Reference.newBuilder().setHash(sha3Hash(late)).build(),
+                                               Reference.newBuilder().setHash(sha3Hash(block1)).build());
+    final Set<Block> found = new HashSet<Block>();
+    final List<Hash> missing = new ArrayList<Hash>();
+    client.multiGet(references, 0).forEachRemaining(response -> {
+      if (response.hasBlock()) {
+        found.add(response.getBlock());
+      }
+      missing.addAll(response.getMissingList());
+    });
+    assertEquals(Set.of(block0, block1), found, "the blocks the server has should be found");
+    assertEquals(List.of(sha3Hash(late)), missing, "the block the server doesn't have should be missing");
+
+    found.clear();
+    missing.clear();
+    final Thread sender = new Thread(() -> {
+      try {
+        TimeUnit.MILLISECONDS.sleep(200);
+      } catch (InterruptedException e) {
+        return;
+      }
+      service.onSendBlocksInput(late);
+    });
+    sender.start();
+    client.multiGet(references, 10000).forEachRemaining(response -> {
+      if (response.hasBlock()) {
+        found.add(response.getBlock());
+      }
+      missing.addAll(response.getMissingList());
+    });
+    sender.join();
+    assertEquals(Set.of(block0, block1, late), found, "a block arriving while the server waits should be found");
+    assertTrue(missing.isEmpty(), "nothing should be missing");
+  }
 }